@@ -31,6 +31,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
@@ -61,9 +62,9 @@ public class ContentStreams {
      * returned. In the case of multiple hits for the same image URL, the one harvested closest to the webpage
      * in time will be delivered.
      * <p>
-     * If attemptUnique is true, this search attempts to deliver unique images using the Solr field {@code hash},
-     * but does not guarantee it fully as {@link dk.kb.netarchivesuite.solrwayback.solr.UniqueFilter} is used with
-     * hashing to {@code int}. Requesting uniqueness limits the export size to 20 million.
+     * If attemptUnique is true, this search attempts to deliver unique images using the Solr field {@code hash}.
+     * {@link dk.kb.netarchivesuite.solrwayback.solr.UniqueFilter} is used with 128 bit hashing, so the probability
+     * of wrongly discarding an image is negligible.
      * <p>
      * If the caller needs {@link ArcEntryDescriptor}, use the helpers method in SolrUtils as
      * {@code findImages(50, "kittens").map(SolrUtils::solrDocument2ArcEntryDescriptor)}.
@@ -75,25 +76,27 @@ public class ContentStreams {
      * @param query       a query for images.
      * @param filterQueries 0 or more Solr queries.
      * @return a stream of SolrDocuments representing images, containing the fields from
-     *         {@link SolrUtils#arcEntryDescriptorFieldList}.
+     *         {@link SolrUtils#arcEntryDescriptorFieldList}. The stream should be closed after use to release the
+     *         temporary files used by the unique filters.
      */
     public static Stream<SolrDocument> findImages(
             boolean attemptUnique, boolean goFast, int maxImagesPerPage, String query, String... filterQueries) {
         log.debug("findImages(attemptUnique={}, goFast={}, maxImagesPerPage={}, query='{}', filterQueries='{}') called",
                   attemptUnique, goFast, maxImagesPerPage, query, Arrays.asList(filterQueries));
         // Pruners are shared between direct and webpage, but not for final pruning as that would give 0 results
+        final List<UniqueFilter> uniqueFilters = new ArrayList<>(); // Closed when the result stream is closed
         final Predicate<SolrDocument> sharedHashPruner = attemptUnique ?
-                new UniqueFilter(true, 20_000_000, "hash") :
+                track(uniqueFilters, new UniqueFilter(true, 20_000_000, "hash")) :
                 doc -> true;
         final Predicate<SolrDocument> finalHashPruner = attemptUnique ?
-                new UniqueFilter(true, 20_000_000, "hash") :
+                track(uniqueFilters, new UniqueFilter(true, 20_000_000, "hash")) :
                 doc -> true;
         final Predicate<SolrDocument> sharedUrlPruner;
         final Predicate<SolrDocument> finalUrlPruner;
         final Predicate<String> sharedLinkPruner;
         if (goFast) {
-            finalUrlPruner = new UniqueFilter(true, 20_000_000, "url_norm");
-            UniqueFilter uf = new UniqueFilter(true, 20_000_000, "url_norm");
+            finalUrlPruner = track(uniqueFilters, new UniqueFilter(true, 20_000_000, "url_norm"));
+            UniqueFilter uf = track(uniqueFilters, new UniqueFilter(true, 20_000_000, "url_norm"));
             sharedUrlPruner = uf;
             sharedLinkPruner = uf::test;
         } else {
@@ -145,7 +148,13 @@ public class ContentStreams {
 
         // Mix the two streams, 4 direct images for each 1 image derived from a page
         return merged.filter(
-                new ThroughputTracker("findImages:", "images").logger(log).logInterval(100));
+                new ThroughputTracker("findImages:", "images").logger(log).logInterval(100)).
+                onClose(() -> uniqueFilters.forEach(UniqueFilter::close));
+    }
+
+    private static UniqueFilter track(List<UniqueFilter> uniqueFilters, UniqueFilter uniqueFilter) {
+        uniqueFilters.add(uniqueFilter);
+        return uniqueFilter;
     }
 
     /**
@@ -1,6 +1,6 @@
 package dk.kb.netarchivesuite.solrwayback.export;
 
-import dk.kb.netarchivesuite.solrwayback.facade.Facade;
+import dk.kb.netarchivesuite.solrwayback.parsers.ArcParserFileResolver;
 import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
 import dk.kb.netarchivesuite.solrwayback.solr.SRequest;
 import org.apache.cxf.helpers.IOUtils;
@@ -9,6 +9,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
@@ -29,12 +30,27 @@ public class StreamingRawZipExport {
      */
     public void getStreamingOutputWithZipOfContent(String query,
                                                    OutputStream output, String... filterQueries) throws IOException {
+        getStreamingOutputWithZipOfContent(query, false, output, filterQueries);
+    }
+
+    /**
+     * Streams content of specific type (e.g. HTML, images, PDF.) to a zip file.
+     * @param query       for solr to extract content from.
+     * @param locality    if true, the content is delivered in the order it is stored in the (W)ARC files.
+     *                    See {@link SRequest#localitySort()}.
+     * @param output      represents an output stream, where the zipped content gets delivered.
+     */
+    public void getStreamingOutputWithZipOfContent(String query, boolean locality,
+                                                   OutputStream output, String... filterQueries) throws IOException {
 
         SRequest request = SRequest.builder()
                 .query(query)
                 .filterQueries(filterQueries)
                 .fields("crawl_date", "source_file_path", "source_file_offset",
                         "content_type_ext", "content_type", "id", "url");
+        if (locality) {
+            request.localitySort();
+        }
 
         ZipOutputStream zos = new ZipOutputStream(output);
         WarcMetadataFromSolr warcMetadata = new WarcMetadataFromSolr();
@@ -69,13 +85,15 @@ public class StreamingRawZipExport {
     }
 
     /**
-     * Safe streamable implementation of {@code Facade.getArcEntry}
+     * Safe streamable implementation of {@code ArcParserFileResolver.getArcEntry}
      * @param doc represents a SolrDocument, which contains info on the ARC/WARC filepath and offset for entries.
      * @return     an arc entry, from the filepath and offset delivered by the solr document.
      */
     private static ArcEntry safeGetArcEntry(SolrDocument doc) {
         try {
-            return Facade.getArcEntry((String) doc.getFieldValue("source_file_path"), (long) doc.getFieldValue("source_file_offset"));
+            // The documents are from the index, so there is no need for collection verification.
+            // Not cacheable as an export requests each record once
+            return ArcParserFileResolver.getArcEntry((String) doc.getFieldValue("source_file_path"), (long) doc.getFieldValue("source_file_offset"), true, false);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -93,7 +111,9 @@ public class StreamingRawZipExport {
 
         try {
             zos.putNextEntry(zipArcEntry);
-            IOUtils.copy(entry.getBinaryRaw(), zos);
+            try (InputStream binary = entry.getBinaryRaw()) {
+                IOUtils.copy(binary, zos);
+            }
             zos.closeEntry();
             zos.flush(); // <-- This flush is very important. Without it, the service does not deliver any files.
         } catch (IOException e) {
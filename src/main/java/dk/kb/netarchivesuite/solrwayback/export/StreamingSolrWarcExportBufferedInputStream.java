@@ -4,38 +4,85 @@ import java.io.*;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Consumer;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Stream;
 
-import dk.kb.netarchivesuite.solrwayback.util.DelayedInputStream;
-import dk.kb.netarchivesuite.solrwayback.util.NamedConsumer;
 import dk.kb.netarchivesuite.solrwayback.util.StatusInputStream;
 import dk.kb.netarchivesuite.solrwayback.util.StreamBridge;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.solr.common.SolrDocument;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import dk.kb.netarchivesuite.solrwayback.parsers.ArcHeader2WarcHeader;
 import dk.kb.netarchivesuite.solrwayback.parsers.ArcParserFileResolver;
+import dk.kb.netarchivesuite.solrwayback.parsers.WarcGzipMember;
 import dk.kb.netarchivesuite.solrwayback.parsers.WarcParser;
+import dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource;
 import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
 
+/**
+ * Delivers the (W)ARC records referenced by a stream of Solr documents as a single WARC stream.
+ * <p>
+ * Records are resolved and buffered by a pool of workers, so that the latency of (W)ARC storage is paid for up to
+ * {@code parallelism} records at a time instead of one record at a time. The records are delivered in the order of
+ * the Solr documents. Resolving of new records is paused when the buffered records holds more than
+ * {@code maxBufferBytes} on the heap. Records larger than {@code maxBufferBytes/parallelism} are buffered in
+ * temporary files.
+ * <p>
+ * When gzipping records from {@code .warc.gz} sources where the gzip member holds exactly one complete record,
+ * the original gzip member is copied as-is instead of being inflated and deflated again. See {@link WarcGzipMember}.
+ */
 public class StreamingSolrWarcExportBufferedInputStream extends InputStream{
 
   private static final Logger log = LoggerFactory.getLogger(StreamingSolrWarcExportBufferedInputStream.class);
 
+  /**
+   * The default number of records to resolve concurrently.
+   */
+  public static final int DEFAULT_PARALLELISM = 8;
+  /**
+   * The default maximum number of bytes to hold on the heap for buffered records.
+   */
+  public static final long DEFAULT_MAX_BUFFER_BYTES = 50*1024*1024L;
+
+  private static final AtomicInteger threadID = new AtomicInteger(0);
+  // Unbounded as the number of concurrent tasks is bounded by parallelism for each export
+  private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "WarcExport_" + threadID.getAndIncrement());
+    t.setDaemon(true);
+    return t;
+  });
+
   //private final SolrGenericStreaming solrClient;
   private final Iterator<SolrDocument> solrDocs;
   private final long maxRecords;
   private final boolean gzip;
-  private final List<InputStream> entryStreams = new ArrayList<>(); // Ideally a FIFO buffer, but not worth the hassle
-  private long docsWarcRead;
-  private long docsArcRead;
-
-  private int heapCache = 10*1024*1024; // 10MB TODO: Make this an option
+  private final int parallelism;
+  private final long maxBufferBytes;
+  private final int heapCache; // Maximum number of bytes to hold on the heap for a single record
+
+  private final Deque<CompletableFuture<Record>> pending = new ArrayDeque<>(); // Records in Solr order
+  private final AtomicLong bufferedBytes = new AtomicLong(0); // Heap bytes held by finished but undelivered records
+  private Record current = null;
+  private long submitted = 0;
+  private boolean closed = false;
+
+  private final AtomicLong docsWarcRead = new AtomicLong(0);
+  private final AtomicLong docsArcRead = new AtomicLong(0);
+  private final AtomicLong unresolved = new AtomicLong(0);
+  private final AtomicLong passthroughRecords = new AtomicLong(0); // Gzip members copied without re-compression
+  private final AtomicLong warcsResolveAttempt = new AtomicLong(0);
+
+  private long startTimeNS = -1;
+  private long deliveredRecords = 0;
+  private long deliveredBytes = 0;
 
   /**
    * Create a stream with WARC-content from the records referenced by the solrClient.
@@ -46,9 +93,7 @@ public class StreamingSolrWarcExportBufferedInputStream extends InputStream{
    * @param gzip if true, the WARC-records will be gzipped. If false, they will be delivered as-is.
    */
   public StreamingSolrWarcExportBufferedInputStream(Iterator<SolrDocument> solrDocs, long maxRecords, boolean gzip) {
-    this.solrDocs = solrDocs;
-    this.maxRecords = maxRecords;
-    this.gzip = gzip;
+    this(solrDocs, maxRecords, gzip, DEFAULT_PARALLELISM, DEFAULT_MAX_BUFFER_BYTES);
   }
 
   /**
@@ -60,9 +105,28 @@ public class StreamingSolrWarcExportBufferedInputStream extends InputStream{
    * @param gzip if true, the WARC-records will be gzipped. If false, they will be delivered as-is.
    */
   public StreamingSolrWarcExportBufferedInputStream(Stream<SolrDocument> solrDocs, long maxRecords, boolean gzip) {
-    this.solrDocs = solrDocs.iterator();
+    this(solrDocs.iterator(), maxRecords, gzip);
+  }
+
+  /**
+   * Create a stream with WARC-content from the records referenced by the solrClient.
+   * The parts of the stream is lazy loaded and has no practical limit on sizes.
+   * @param solrDocs       the Solr documents specifying the records to stream. The documents MUST include the fields
+   *                       {@code source_file_path} and {@code source_file_offset}.
+   * @param maxRecords     the maximum number of records to deliver.
+   * @param gzip           if true, the WARC-records will be gzipped. If false, they will be delivered as-is.
+   * @param parallelism    the maximum number of records to resolve concurrently.
+   * @param maxBufferBytes the maximum number of bytes to hold on the heap for records that are resolved but not
+   *                       yet delivered. Resolving of more records is paused when this is exceeded.
+   */
+  public StreamingSolrWarcExportBufferedInputStream(
+          Iterator<SolrDocument> solrDocs, long maxRecords, boolean gzip, int parallelism, long maxBufferBytes) {
+    this.solrDocs = solrDocs;
     this.maxRecords = maxRecords;
     this.gzip = gzip;
+    this.parallelism = Math.max(1, parallelism);
+    this.maxBufferBytes = maxBufferBytes;
+    this.heapCache = (int) Math.max(64*1024, Math.min(10*1024*1024, maxBufferBytes / this.parallelism));
   }
 
   @Override
@@ -73,108 +137,221 @@ public class StreamingSolrWarcExportBufferedInputStream extends InputStream{
   }
   private final byte[] SINGLE_BYTE = new byte[1];
 
-  private long readFromCurrent = 0;
-  private long processedStreams = 0;
-
   @Override
   public int read(byte[] b, int off, int len) throws IOException {
+    if (startTimeNS == -1) {
+      startTimeNS = System.nanoTime();
+    }
     int totalRead = 0;
     while (len > 0) {
-      // Do we have streams available?
-      if (entryStreams.isEmpty()) {
-        // No streams. Try to load more
-        loadMore();
-        if (entryStreams.isEmpty()) {
-          // Still no streams. Stop processing
-          log.info("warcExport buffer empty. Warcs read:"+docsWarcRead +" arcs read:"+docsArcRead);
+      // Do we have a record available?
+      if (current == null) {
+        current = nextRecord();
+        if (current == null) {
+          // No more records. Stop processing
+          if (totalRead == 0) {
+            log.info("warcExport finished. " + this);
+          }
           return totalRead == 0 ? -1 : totalRead; // -1 signals EOS
         }
       }
 
-      // There are streams. Read content from the first one
-      int read = entryStreams.get(0).read(b, off, len);
-      if (read == -1) { // The entryStream is empty. Remove it and go to the next
-        /* Too spammy
-          log.debug(String.format(Locale.ENGLISH, "Emptied entryStream #%d (contained %d bytes). " +
-                                                "Switching to next one or loadMore() if the buffer is empty",
-                                processedStreams+1, readFromCurrent));
-        */
-        try {
-          entryStreams.get(0).close();
-          processedStreams++;
-        } catch (Exception e) {
-            log.debug("boo", e);
-          log.warn("Error closing entryStream", e);
-        }
-        entryStreams.remove(0);
-        readFromCurrent = 0;
+      // There is a record. Read content from it
+      int read = current.stream.read(b, off, len);
+      if (read == -1) { // The record is empty. Release it and go to the next
+        release(current);
+        current = null;
+        deliveredRecords++;
         continue;
       }
 
       // We got some content. Update counters and loop to try and fill the input buffer fully
       totalRead += read;
-      readFromCurrent += read;
+      deliveredBytes += read;
       off += read;
       len -= read;
     }
+    return totalRead;
+  }
+
+  /**
+   * Wait for the next record in Solr order, while keeping the workers busy resolving the following records.
+   * @return the next record or null if there are no more records.
+   */
+  private Record nextRecord() {
+    while (true) {
+      fillPending();
+      CompletableFuture<Record> next = pending.poll();
+      if (next == null) {
+        log.debug("nextRecord(): No more documents available after " + (docsWarcRead.get()+docsArcRead.get()) +
+                  " docs read");
+        return null;
+      }
+      Record record;
+      try {
+        record = next.join();
+      } catch (CompletionException e) {
+        log.error("Unhandled exception resolving record. Skipping record", e.getCause());
+        continue;
+      }
+      if (record.stream != null) {
+        return record;
+      }
+    }
+  }
+
+  /**
+   * Start resolving records until {@link #parallelism} records are pending, the heap buffer is full, the
+   * maximum number of records has been reached or there are no more Solr documents.
+   */
+  private void fillPending() {
+    try {
+      while (!closed && pending.size() < parallelism && bufferedBytes.get() < maxBufferBytes &&
+             solrDocs.hasNext()) {
+        if (submitted - unresolved.get() > maxRecords) { //Stop loading more
+          log.info("fillPending(): Max documents reached (" + maxRecords + "). Stopping loading of more documents");
+          return;
+        }
+        final SolrDocument doc = solrDocs.next();
+        submitted++;
+        pending.add(CompletableFuture.supplyAsync(() -> resolve(doc), executor));
+      }
+    } catch (Exception e) {
+      log.error("Unhandled exception requesting more Solr documents", e);
+    }
+  }
 
-    if (totalRead == 0) {
-      log.debug("No more content in last remaining stream. Closing export. " +
-                "WARCS read: " + docsWarcRead + " ARCs read: " + docsArcRead);
+  /**
+   * Resolve and buffer the record for the given Solr document. Called from worker threads.
+   * @param doc a Solr document with {@code source_file_path} and {@code source_file_offset} fields.
+   * @return a buffered record or {@link Record#EMPTY} if it could not be resolved.
+   */
+  private Record resolve(SolrDocument doc) {
+    if (gzip) {
+      Record passthrough = resolvePassthrough(doc);
+      if (passthrough != null) {
+        return passthrough;
+      }
+    }
+    EntryAndHeaders entryAndHeaders = docToEntry(doc);
+    if (entryAndHeaders == null) {
+      unresolved.incrementAndGet();
+      return Record.EMPTY;
     }
-    return totalRead == 0 ? -1 : totalRead; // -1 signals EOS
+    StatusInputStream stream;
+    try {
+      stream = getWARCEntryStream(entryAndHeaders);
+      if (gzip) {
+        stream = StreamBridge.guaranteedStream(StreamBridge.gzipInput(stream), heapCache);
+        if (stream.getStatus() == StatusInputStream.STATUS.exception) {
+          log.warn(String.format(Locale.ENGLISH, "Exception during gzipping of bytes for payload size %d bytes " +
+                                                 "for URL '%s'. Delivering partial content",
+                                 entryAndHeaders.entry.getBinaryArraySize(), entryAndHeaders.entry.getUrl()),
+                   stream.getException());
+        }
+      }
+    } catch (Exception e) {
+      log.warn(String.format(Locale.ENGLISH, "Exception getting stream for record with payload size %d bytes " +
+                                             "for URL '%s'. Skipping record",
+                             entryAndHeaders.entry.getBinaryArraySize(), entryAndHeaders.entry.getUrl()), e);
+      unresolved.incrementAndGet();
+      return Record.EMPTY;
+    }
+    Record record = new Record(stream, Math.min(stream.size(), heapCache));
+    bufferedBytes.addAndGet(record.heapBytes);
+    return record;
   }
-  AtomicInteger c = new AtomicInteger(0);
-  AtomicInteger cLazy = new AtomicInteger(0);
 
   /**
-   * Resolve more content streams and add them to {@link #entryStreams}.
+   * If the Solr document references a record in a {@code .warc.gz} that is stored as a single gzip member, the
+   * compressed bytes for the member are buffered as-is. The compressed bytes read while locating the end of the
+   * member are kept, so that the member is only read again if it is larger than the heap cache. Called from worker
+   * threads.
+   * @param doc a Solr document with {@code source_file_path} and {@code source_file_offset} fields.
+   * @return a buffered record with the original gzip member or null if the record must be processed normally.
    */
-  private void loadMore() {
+  private Record resolvePassthrough(SolrDocument doc) {
+    String source_file_path = (String) doc.getFieldValue("source_file_path");
+    long offset = (Long) doc.getFieldValue("source_file_offset");
+    if (!source_file_path.trim().toLowerCase(Locale.ROOT).endsWith(".warc.gz")) {
+      return null;
+    }
     try {
-      if (docsWarcRead+docsArcRead > maxRecords) { //Stop loading more
-        log.info("loadMore(): Max documents reached (" + maxRecords + "). Stopping loading of more documents");
-        return;
+      ArcSource source = ArcParserFileResolver.getArcSource(source_file_path);
+      long memberLength;
+      RecordingInputStream member = new RecordingInputStream(source.get(offset, -1), heapCache);
+      try {
+        memberLength = WarcGzipMember.getMemberLength(member);
+      } finally {
+        member.close();
       }
-      while (solrDocs.hasNext() && entryStreams.isEmpty()) {
-        // We stream eventhough there is only 1 element in preparation of batching at a later time
-        addRecordsToStream(Stream.of(solrDocs.next()));
+      if (memberLength <= 0) {
+        return null;
       }
-      // log.debug("Got " + (docs == null ? 0 : docs.size()) + " Solr documents");
-      if (entryStreams.isEmpty()) {
-        log.debug("loadMore(): No more documents available after " + (docsWarcRead+docsArcRead) + " docs read");
+      StatusInputStream stream = member.recorded.size() >= memberLength ?
+              new StatusInputStream(new ByteArrayInputStream(member.recorded.toByteArray(), 0, (int) memberLength),
+                                    StatusInputStream.STATUS.ok, memberLength) :
+              StreamBridge.guaranteedStream(
+                      new BoundedInputStream(source.get(offset, memberLength), memberLength), heapCache);
+      if (stream.getStatus() != StatusInputStream.STATUS.ok || stream.size() != memberLength) {
+        close(stream, source_file_path + "#" + offset);
+        return null;
       }
+      passthroughRecords.incrementAndGet();
+      docsWarcRead.incrementAndGet();
+      Record record = new Record(stream, Math.min(stream.size(), heapCache));
+      bufferedBytes.addAndGet(record.heapBytes);
+      return record;
     } catch (Exception e) {
-      log.error("Unhandled exception in loadMore", e);
+      // The normal processing will log the problem if it persists
+      log.debug("Unable to pass through gzip member for " + source_file_path + "#" + offset, e);
+      return null;
     }
   }
 
   /**
-   * Given a list of Solr records with WARC paths and offsets, derive WARC entry representations from these and
-   * send them to {@link #addRecordsToStream(List)}.
-   * @param docs Solr documents with {@code source_file_path} and {@code source_file_offset} fields.
+   * Keeps a copy of the bytes read from the inner stream, until more than {@code maxBytes} has been read.
+   * Bytes read ahead of the caller's need are also recorded.
    */
-  private void addRecordsToStream(Stream<SolrDocument> docs) throws IOException {
-    AtomicInteger docCount = new AtomicInteger(0);
-    List<EntryAndHeaders> entriesAndHeaders = docs
-            .peek(doc -> docCount.incrementAndGet())
-            .map(this::docToEntry)
-            .filter(Objects::nonNull)
-            .collect(Collectors.toList());
-
-    if (entriesAndHeaders.isEmpty()) {
-      log.info("addRecordsToStream: No WARC records derived from " + docCount.get() + " Solr documents");
-      return;
+  private static class RecordingInputStream extends FilterInputStream {
+    private final ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+    private final int maxBytes;
+
+    RecordingInputStream(InputStream in, int maxBytes) {
+      super(in);
+      this.maxBytes = maxBytes;
     }
 
-    if (gzip) {
-      addGzipRecordsToStream(entriesAndHeaders);
-    } else {
-      addRecordsToStream(entriesAndHeaders);
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1 && recorded.size() < maxBytes) {
+        recorded.write(b);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = super.read(b, off, len);
+      if (read > 0 && recorded.size() < maxBytes) {
+        recorded.write(b, off, read);
+      }
+      return read;
     }
   }
 
-  private long warcsResolveAttempt = 0;
+  /**
+   * Close the stream for the record and release its bytes from the buffer.
+   */
+  private void release(Record record) {
+    bufferedBytes.addAndGet(-record.heapBytes);
+    try {
+      record.stream.close();
+    } catch (Exception e) {
+      log.warn("Error closing record stream", e);
+    }
+  }
 
   /**
    * Resolve a WARC entrys from the given Solr doc.
@@ -182,7 +359,7 @@ public class StreamingSolrWarcExportBufferedInputStream extends InputStream{
    * @return a representation of the corresponding WARC record or null if it is unresolvable.
    */
   private EntryAndHeaders docToEntry(SolrDocument doc) {
-    warcsResolveAttempt++;
+    long attempt = warcsResolveAttempt.incrementAndGet();
     String source_file_path = (String) doc.getFieldValue("source_file_path");
     long offset = (Long) doc.getFieldValue("source_file_offset");
     EntryAndHeaders singleEntry;
@@ -190,77 +367,63 @@ public class StreamingSolrWarcExportBufferedInputStream extends InputStream{
       singleEntry = getWARCEntryAndHeaderStream(source_file_path, offset);
     } catch (Exception e) {
       log.warn(String.format(Locale.ENGLISH, "Exception resolving (W)ARC entry representation #%d for %s#%d. Skipping entry",
-                             warcsResolveAttempt + 1, source_file_path, offset));
+                             attempt, source_file_path, offset));
       return null;
     }
     if (singleEntry == null) {
       log.warn(String.format(Locale.ENGLISH, "Unable to resolve (W)ARC entry representation #%d for %s#%d",
-                             warcsResolveAttempt + 1, source_file_path, offset));
+                             attempt, source_file_path, offset));
     }
     return singleEntry;
   }
 
   /**
-   * Given a list of WARC entry representations, construct InputStreams for the WARC content for these and add
-   * them to {@link #entryStreams}. If the content for a WARC entry if faulty, it is repaired (the WARC header
-   * {@code Content-Length} is adjusted). If the content cannot be resolved at all, an error is logged and the entry is
-   * skipped.
-   * @param entriesAndHeaders a list of WARC entry representations.
+   * @return the number of records delivered per second since the first read.
    */
-  private void addRecordsToStream(List<EntryAndHeaders> entriesAndHeaders) {
-    entriesAndHeaders.forEach(
-            entryAndHeader -> entryStreams.add(
-                    new DelayedInputStream(() -> getWARCEntryStream(entryAndHeader))));
+  public double getRecordsPerSecond() {
+    return perSecond(deliveredRecords);
   }
 
   /**
-   * Given a list of WARC entry representations, construct gzipped InputStreams for the WARC content for these and add
-   * them to {@link #entryStreams}. If the content for a WARC entry if faulty, it is repaired (the WARC header
-   * {@code Content-Length} is adjusted). If the content cannot be resolved at all, an error is logged and the entry is
-   * skipped.
-   * @param entriesAndHeaders a list of WARC entry representations.
-   * @throws IOException if the overall processing failed. This should not happen under normal circumstances.
+   * @return the number of bytes delivered per second since the first read.
    */
-  private void addGzipRecordsToStream(List<EntryAndHeaders> entriesAndHeaders) throws IOException {
-    List<Consumer<OutputStream>> providers = new ArrayList<>(entriesAndHeaders.size());
-    for (EntryAndHeaders entryAndHeader: entriesAndHeaders) {
-      ArcEntry entry = entryAndHeader.entry;
-      try {
-        providers.add(new NamedConsumer<>( // Wrapping in NamedConsumer for logging and debugging
-                StreamBridge.gzip(out -> { // Add the lambda to the list for later activation
-                    cLazy.incrementAndGet();
-                    try {
-                        IOUtils.copy(getWARCEntryStream(entryAndHeader), out);
-                    } catch (Exception e) {
-                        log.warn(String.format(
-                                Locale.ENGLISH, "Exception during copying of bytes from export lambda #%d " +
-                                        "with payload size %d bytes for URL '%s'",
-                                cLazy.get(), entry.getBinaryArraySize(), entry.getUrl()), e);
-                    }
-                }), "url='" + entry.getUrl()));
-      } catch (Exception e) {
-        log.error(String.format(
-                Locale.ENGLISH,
-                "Exception getting delayed stream for export lambda #%d with payload size %d bytes for URL '%s'",
-                c.incrementAndGet(), entry.getBinaryArraySize(), entry.getUrl()), e);
-      }
+  public double getBytesPerSecond() {
+    return perSecond(deliveredBytes);
+  }
+
+  private double perSecond(long count) {
+    if (startTimeNS == -1) {
+      return 0;
     }
+    long ns = System.nanoTime() - startTimeNS;
+    return ns == 0 ? 0 : count * 1000000000.0 / ns;
+  }
+
+  /**
+   * @return the number of records that were delivered by copying the original gzip member from the (W)ARC.
+   */
+  public long getPassthroughRecords() {
+    return passthroughRecords.get();
+  }
 
-    // All the providers are added in a single call, so that they will all be processed by the same thread.
-    // If they are added one at a time, they will require a thread for each call.
-    //log.debug("loadMore() adding " + providers.size() + " lazy resolved records");
-    entryStreams.add(StreamBridge.outputToInput(providers));
+  @Override
+  public String toString() {
+    return String.format(Locale.ENGLISH, "StreamingSolrWarcExport(records=%d, bytes=%d, %.1f records/s, " +
+                                         "%.1f KB/s, WARCs read=%d, ARCs read=%d, gzip passthrough=%d, unresolved=%d, parallelism=%d, " +
+                                         "maxBufferBytes=%d)",
+                         deliveredRecords, deliveredBytes, getRecordsPerSecond(), getBytesPerSecond()/1024,
+                         docsWarcRead.get(), docsArcRead.get(), passthroughRecords.get(), unresolved.get(), parallelism, maxBufferBytes);
   }
 
   /**
-   * Given a WARC entry representation, construct an InputStream for the WARC content.
+   * Given a WARC entry representation, construct a buffered InputStream for the WARC content.
    * If the payload for the WARC entry if faulty, the WARC header {@code Content-Length} is adjusted accordingly.
    * If the headers cannot be resolved, an exception is thrown.
    * @param entryAndHeaders a WARC entry representation.
    * @throws RuntimeException if the headers of the WARC entry could be resolved or a similar show-stopping problem
    * were encountered.
    */
-  private InputStream getWARCEntryStream(EntryAndHeaders entryAndHeaders) {
+  private StatusInputStream getWARCEntryStream(EntryAndHeaders entryAndHeaders) {
     final String id = entryAndHeaders.entry.getArcSource() + "#" + entryAndHeaders.entry.getOffset();
     try {
       // Retrieve the payload to local cache (heap or storage, depending on size)
@@ -287,7 +450,8 @@ public class StreamingSolrWarcExportBufferedInputStream extends InputStream{
 
       //Usefull but too spammy
       //log.debug(String.format(Locale.ENGLISH, "Delivering delayed stream for '%s' with a total of %d bytes", id, headers.size() + payload.size() + 4));
-      return StreamBridge.concat(headers, payload, trailer);
+      return new StatusInputStream(StreamBridge.concat(headers, payload, trailer), StatusInputStream.STATUS.ok,
+                                   headers.size() + payload.size() + 4);
     } catch (Exception e) {
       throw new RuntimeException("Exception lazily constructing input streams for '" + id + "'", e);
     }
@@ -383,7 +547,7 @@ public class StreamingSolrWarcExportBufferedInputStream extends InputStream{
     if (source_file_path.toLowerCase().endsWith(".arc") || source_file_path.toLowerCase().endsWith(".arc.gz")){
       //log.info("skipping Arc record:"+source_file_path);
       try{
-        warcEntry = ArcParserFileResolver.getArcEntry(source_file_path, offset);
+        warcEntry = ArcParserFileResolver.getArcEntry(source_file_path, offset, true, false);
       }
       catch(Exception e){ //This will only happen if warc file is not found etc. Should not happen for real.
         log.warn("Error loading arc:"+source_file_path,e);
@@ -402,10 +566,10 @@ public class StreamingSolrWarcExportBufferedInputStream extends InputStream{
         log.warn(message, e);
         throw new RuntimeException(message, e);
       }
-      docsArcRead++;
+      docsArcRead.incrementAndGet();
     } else {
       try{
-        warcEntry = ArcParserFileResolver.getArcEntry(source_file_path,offset);
+        warcEntry = ArcParserFileResolver.getArcEntry(source_file_path, offset, true, false);
       }
       catch(Exception e){ //This will only happen if warc file is not found etc. Should not happen for real.
         log.warn("Error loading warc:"+source_file_path,e);
@@ -429,7 +593,7 @@ public class StreamingSolrWarcExportBufferedInputStream extends InputStream{
 
       // The header is (normally) fairly small, so we hold it in memory
       headers = new ByteArrayInputStream(warcEntry.getHeader().getBytes(charset));
-      docsWarcRead++;
+      docsWarcRead.incrementAndGet();
     }
     return new EntryAndHeaders(warcEntry, headers);
   }
@@ -448,16 +612,37 @@ public class StreamingSolrWarcExportBufferedInputStream extends InputStream{
   }
 
   /**
-   * Non-failing close that ensures that all {@link #entryStreams} are closed.
+   * Simple holder for a buffered record and the number of heap bytes it holds.
+   */
+  private static class Record {
+    static final Record EMPTY = new Record(null, 0);
+
+    public final InputStream stream;
+    public final long heapBytes;
+
+    public Record(InputStream stream, long heapBytes) {
+      this.stream = stream;
+      this.heapBytes = heapBytes;
+    }
+  }
+
+  /**
+   * Non-failing close that ensures that all buffered records are closed, including those still being resolved.
    */
   @Override
   public void close() {
-    for (InputStream entryStream: entryStreams) {
-      try {
-        entryStream.close();
-      } catch (Exception e) {
-        log.error("Error closing cached entryStream during outer close()", e);
-      }
+    closed = true;
+    if (current != null) {
+      release(current);
+      current = null;
+    }
+    for (CompletableFuture<Record> record: pending) {
+      record.thenAccept(r -> {
+        if (r.stream != null) {
+          release(r);
+        }
+      });
     }
+    pending.clear();
   }
 }
@@ -12,6 +12,8 @@ import dk.kb.netarchivesuite.solrwayback.playback.CssPlayback;
 import dk.kb.netarchivesuite.solrwayback.playback.HtmlPlayback;
 import dk.kb.netarchivesuite.solrwayback.playback.JavascriptPlayback;
 import dk.kb.netarchivesuite.solrwayback.playback.JodelPlayback;
+import dk.kb.netarchivesuite.solrwayback.image.ThumbnailCache;
+import dk.kb.netarchivesuite.solrwayback.playback.PlaybackCache;
 import dk.kb.netarchivesuite.solrwayback.playback.TwitterPlayback;
 import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
 import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoaderWeb;
@@ -61,6 +63,7 @@ import javax.ws.rs.core.StreamingOutput;
 import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -73,14 +76,18 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class Facade {
     private static final Logger log = LoggerFactory.getLogger(Facade.class);
+    private static volatile PlaybackCache playbackCache = null; // Created on first use, see getPlaybackCache
+    private static volatile ThumbnailCache thumbnailCache = null; // Created on first use, see getThumbnailCache
 
     public static SearchResult search(String searchText, String filterQuery) throws Exception {
         SearchResult result = NetarchiveSolrClient.getInstance().search(searchText, filterQuery);
@@ -182,10 +189,13 @@ public class Facade {
     public static ArrayList<ArcEntryDescriptor> findImages(String query, String... filterQueries) {
         long searchTimeMS = -System.currentTimeMillis();
         // TODO: This has goFast and will not be accurate. Should it be an option?
-        ArrayList<ArcEntryDescriptor> images = ContentStreams.findImages(true, true, 50, query, filterQueries).
-                        limit(500).
-                        map(SolrUtils::solrDocument2ArcEntryDescriptor).
-                        collect(Collectors.toCollection(ArrayList::new));
+        ArrayList<ArcEntryDescriptor> images;
+        try (Stream<SolrDocument> imageDocs = ContentStreams.findImages(true, true, 50, query, filterQueries)) {
+            images = imageDocs.
+                    limit(500).
+                    map(SolrUtils::solrDocument2ArcEntryDescriptor).
+                    collect(Collectors.toCollection(ArrayList::new));
+        }
         searchTimeMS += System.currentTimeMillis();
         log.debug("Found at least {} images in {}ms ({} images/second), searching for '{}'",
                   images.size(), searchTimeMS, searchTimeMS == 0 ? "N/A" : (images.size()*1000/searchTimeMS), query);
@@ -504,18 +514,32 @@ public class Facade {
     * Important to set the load binary flag to false if not used    
     */    
     public static ArcEntry getArcEntry(String source_file_path, long offset) throws Exception {
+        return getArcEntry(source_file_path, offset, false);
+    }
+
+    /**
+     * Resolve and parse the headers for the (W)ARC entry.
+     * @param retainBinary if true, the stream is kept open after header parsing and used for the first binary read.
+     *                     Only set this if the binary is read, e.g. for delivering the content or an image.
+     */
+    public static ArcEntry getArcEntry(String source_file_path, long offset, boolean retainBinary) throws Exception {
+        verifyInCollection(source_file_path, offset);
+        return ArcParserFileResolver.getArcEntry(source_file_path, offset, retainBinary);
+    }
 
-       //Validate WARC+offset has been indexed and in the collection.
-       //This will prevent url hacking and accessing other WARC-files if you know location on filesystem.
-       //Minor performance impact
-       //Define property to make it active.
-       
-       boolean validateWARCFileInCollection=PropertiesLoader.WARC_FILES_VERIFY_COLLECTION;        
-        if (validateWARCFileInCollection) { 
+    /**
+     * Validate WARC+offset has been indexed and is in the collection, if
+     * {@link PropertiesLoader#WARC_FILES_VERIFY_COLLECTION} is enabled.
+     * This will prevent url hacking and accessing other WARC-files if you know location on filesystem.
+     * Minor performance impact.
+     * <p>
+     * Content derived from (W)ARC entries, such as cached thumbnails, must also be checked before delivery.
+     * @throws Exception if the entry is not in the collection.
+     */
+    public static void verifyInCollection(String source_file_path, long offset) throws Exception {
+        if (PropertiesLoader.WARC_FILES_VERIFY_COLLECTION) {
             NetarchiveSolrClient.getInstance().getArcEntry(source_file_path, offset); //Call Solr. Correct exception already thrown if not found
-        }        
-        
-        return ArcParserFileResolver.getArcEntry(source_file_path, offset);
+        }
     }
 
     /**
@@ -533,11 +557,39 @@ public class Facade {
         // TODO: This has goFast==false and will be accurate but slow. Should it be an option?
         Stream<SolrDocument> imageDocs = ContentStreams.findImages(avoidDuplicates, true,50, query, filterqueries);
 
-        return new StreamingSolrWarcExportBufferedInputStream(imageDocs, Integer.MAX_VALUE, gzip);
+        InputStream warc = new StreamingSolrWarcExportBufferedInputStream(
+                imageDocs.iterator(), Integer.MAX_VALUE, gzip,
+                PropertiesLoaderWeb.EXPORT_WARC_PARALLEL_RECORDS, PropertiesLoaderWeb.EXPORT_WARC_BUFFER_BYTES);
+        return new FilterInputStream(warc) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    imageDocs.close(); // Releases the unique filters
+                }
+            }
+        };
     }
 
 
     public static InputStream exportWarcStreaming(boolean expandResources, boolean ensureUnique, boolean gzip, String query, String... filterqueries)  throws Exception{
+        return exportWarcStreaming(expandResources, ensureUnique, gzip, false, query, filterqueries);
+    }
+
+    /**
+     * Export the records matching the query as a WARC.
+     * @param expandResources if true, resources such as images and CSS for HTML pages are also exported.
+     * @param ensureUnique    if true, records are only exported once.
+     * @param gzip            if true, the records are gzipped.
+     * @param locality        if true, the records are delivered in the order they are stored in the (W)ARC files
+     *                        instead of relevance order. This is much faster for large exports from spinning drives
+     *                        or network storage. See {@link SRequest#localitySort()}.
+     * @param query           Solr query.
+     * @param filterqueries   Solr filter queries.
+     * @return a WARC stream.
+     */
+    public static InputStream exportWarcStreaming(boolean expandResources, boolean ensureUnique, boolean gzip, boolean locality, String query, String... filterqueries)  throws Exception{
 
         long max=0;
         //Check size
@@ -554,16 +606,21 @@ public class Facade {
                 throw new InvalidArgumentServiceException("Number of results("+results+") for warc expanded export exceeds the configured limit: "+PropertiesLoaderWeb.EXPORT_WARC_EXPANDED_MAXRESULTS);
             }
         }
-        Iterator<SolrDocument> solrDocs = SolrStreamDirect.iterate(
-                SRequest.builder()
+        SRequest request = SRequest.builder()
                                 .query(query)
                                 .filterQueries(filterqueries)
                                 .fields("source_file_path", "source_file_offset")
                                 .pageSize(100). // TODO: Why so low? The two fields are tiny and single-valued
                         expandResources(expandResources).
-                        ensureUnique(ensureUnique));
+                        ensureUnique(ensureUnique);
+        if (locality) {
+            request.localitySort();
+        }
+        Iterator<SolrDocument> solrDocs = SolrStreamDirect.iterate(request);
 
-        return new StreamingSolrWarcExportBufferedInputStream(solrDocs, max, gzip); // Use maximum export results from property-file
+        return new StreamingSolrWarcExportBufferedInputStream( // Use maximum export results from property-file
+                solrDocs, max, gzip,
+                PropertiesLoaderWeb.EXPORT_WARC_PARALLEL_RECORDS, PropertiesLoaderWeb.EXPORT_WARC_BUFFER_BYTES);
     }
 
     public static InputStream exportLinkGraphStreaming(String q) {
@@ -655,6 +712,19 @@ public class Facade {
      */
     public static StreamingOutput exportZipContent(String query, String... filterQueries)
             throws SolrServerException, IOException, InvalidArgumentServiceException {
+        return exportZipContent(false, query, filterQueries);
+    }
+
+    /**
+     * Export content from WARC files to zip that are present in solr query. Can be used to extract files such as HTML, images or PDFs.
+     * @param locality      if true, the files are delivered in the order they are stored in the (W)ARC files instead
+     *                      of relevance order. See {@link SRequest#localitySort()}.
+     * @param query         used to query solr for warc entries to export.
+     * @param filterQueries appended to query.
+     * @return              a streaming output containing a zip of all exported files.
+     */
+    public static StreamingOutput exportZipContent(boolean locality, String query, String... filterQueries)
+            throws SolrServerException, IOException, InvalidArgumentServiceException {
         if (!PropertiesLoaderWeb.ALLOW_EXPORT_ZIP){
             throw new InvalidArgumentServiceException("Zip export is not allowed.");
         }
@@ -673,7 +743,7 @@ public class Facade {
 
         StreamingRawZipExport zipExporter = new StreamingRawZipExport();
 
-        return output -> zipExporter.getStreamingOutputWithZipOfContent(query, output, filterQueries);
+        return output -> zipExporter.getStreamingOutputWithZipOfContent(query, locality, output, filterQueries);
     }
 
 
@@ -692,11 +762,14 @@ public class Facade {
         // Also find facet for all facets from first call.
         domainFacetMap.put(domain, facets); // add this center domain
 
-        // Do all queries
+        // Do all queries concurrently
+        Map<String, CompletableFuture<List<FacetCount>>> pending = new LinkedHashMap<>();
         for (FacetCount f : facets) {
             String facetDomain = f.getValue();
-            List<FacetCount> fc = NetarchiveSolrClient.getInstance().getDomainFacets(facetDomain, facetLimit, ingoing, start, end);
-            domainFacetMap.put(f.getValue(), fc);
+            pending.put(facetDomain, NetarchiveSolrClient.getInstance().getDomainFacetsAsync(facetDomain, facetLimit, ingoing, start, end));
+        }
+        for (Map.Entry<String, CompletableFuture<List<FacetCount>>> entry : pending.entrySet()) {
+            domainFacetMap.put(entry.getKey(), entry.getValue().join());
         }
 
         // Just build a HashSet with all domains
@@ -915,13 +988,67 @@ public class Facade {
     }
 
 
+    /**
+     * Render the resource for playback. Rendered HTML, CSS and JavaScript is cached by {@link PlaybackCache}.
+     */
     public static ArcEntry viewResource(
             String source_file_path, long offset, IndexDoc doc, Boolean showToolbar, Boolean lenient) throws Exception {
         lenient = Boolean.TRUE.equals(lenient);
         if (showToolbar == null) {
             showToolbar = false;
         }
-        ArcEntry arc = ArcParserFileResolver.getArcEntry(source_file_path, offset);
+        PlaybackCache cache = getPlaybackCache();
+        long generation = NetarchiveSolrClient.getInstance().getIndexGeneration();
+        ArcEntry cached = cache.get(source_file_path, offset, showToolbar, lenient, generation);
+        if (cached != null) {
+            return cached;
+        }
+        ArcEntry arc = renderResource(source_file_path, offset, doc, showToolbar, lenient);
+        return arc.isHasBeenDecompressed() ?
+                cache.offer(source_file_path, offset, showToolbar, lenient, generation, arc) :
+                arc; // Not rendered. Small records are cached by ArcParserFileResolver
+    }
+
+    /**
+     * @return the cache for rendered playback. Only enabled if changes to the index are tracked.
+     */
+    public static PlaybackCache getPlaybackCache() {
+        if (playbackCache == null) {
+            synchronized (Facade.class) {
+                if (playbackCache == null) {
+                    boolean watched = NetarchiveSolrClient.getInstance().isIndexWatched();
+                    if (!watched && PropertiesLoader.PLAYBACK_CACHE_MAX_BYTES > 0) {
+                        log.info("Disabling the playback cache as changes to the index are not tracked");
+                    }
+                    playbackCache = new PlaybackCache(watched ? PropertiesLoader.PLAYBACK_CACHE_MAX_BYTES : 0,
+                                                      PropertiesLoader.PLAYBACK_CACHE_MAX_ENTRY_BYTES,
+                                                      PropertiesLoader.PLAYBACK_CACHE_SPILL_FOLDER,
+                                                      PropertiesLoader.PLAYBACK_CACHE_SPILL_MAX_BYTES);
+                }
+            }
+        }
+        return playbackCache;
+    }
+
+    /**
+     * @return the cache for scaled images delivered by the /image endpoint.
+     */
+    public static ThumbnailCache getThumbnailCache() {
+        if (thumbnailCache == null) {
+            synchronized (Facade.class) {
+                if (thumbnailCache == null) {
+                    thumbnailCache = new ThumbnailCache(PropertiesLoader.THUMBNAIL_CACHE_MAX_BYTES,
+                                                        PropertiesLoader.THUMBNAIL_CACHE_FOLDER,
+                                                        PropertiesLoader.THUMBNAIL_CACHE_FOLDER_MAX_BYTES);
+                }
+            }
+        }
+        return thumbnailCache;
+    }
+
+    private static ArcEntry renderResource(
+            String source_file_path, long offset, IndexDoc doc, boolean showToolbar, boolean lenient) throws Exception {
+        ArcEntry arc = ArcParserFileResolver.getArcEntry(source_file_path, offset, true);
 
         //log.debug("View html Warc content-type:" + arc.getContentType());
 
@@ -3,9 +3,16 @@ package dk.kb.netarchivesuite.solrwayback.image;
 import java.awt.Image;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.Iterator;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 
 import dk.kb.netarchivesuite.solrwayback.util.InputStreamUtils;
 
@@ -27,6 +34,60 @@ public class ImageUtils {
         return image;
     }
 
+    /**
+     * Decode the image scaled down to fit within the target width and height. Images that already fit are returned
+     * unscaled.
+     * <p>
+     * The dimensions are read from the image header before decoding and the decoder is asked to skip pixels using
+     * source subsampling, so that large images are never fully decoded for small thumbnails: A 40 megapixel JPEG
+     * scaled to 200x200 is decoded as approximately 400x300 pixels. The subsampling leaves at least twice the target
+     * size, which is smoothly scaled to the final size with {@link #resizeImage}.
+     * @param bytes        the binary for the image, optionally compressed.
+     * @param targetWidth  the maximum width of the result.
+     * @param targetHeight the maximum height of the result.
+     * @return the scaled image or null if the image format is not supported by ImageIO.
+     */
+    public static BufferedImage getScaledImageFromBinary(InputStream bytes, int targetWidth, int targetHeight)
+            throws Exception {
+        InputStream maybeDecompress = InputStreamUtils.maybeDecompress(bytes);
+        try (ImageInputStream iis = new MemoryCacheImageInputStream(maybeDecompress)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                int sourceWidth = reader.getWidth(0);
+                int sourceHeight = reader.getHeight(0);
+                boolean fits = sourceWidth <= targetWidth && sourceHeight <= targetHeight;
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (!fits && targetWidth > 0 && targetHeight > 0) {
+                    double scale = determineImageScale(sourceWidth, sourceHeight, targetWidth, targetHeight);
+                    int subsampling = Math.max(1, (int) (1 / (2 * scale)));
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                BufferedImage image = reader.read(0, param);
+                if (fits) {
+                    return image;
+                }
+                return resizeImage(image, image.getWidth(), image.getHeight(), targetWidth, targetHeight);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * @return the image encoded as PNG.
+     */
+    public static byte[] encodePng(BufferedImage image) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", baos);
+        return baos.toByteArray();
+    }
+
     //TODO not sure this is the best/fastest way to do this in Java. For animated images, this will only return the first image
    public static BufferedImage resizeImage(BufferedImage originalImage, int sourceWidth, int sourceHeight, int targetWidth, int targetHeight) {
         double scale = determineImageScale(sourceWidth, sourceHeight, targetWidth, targetHeight);
@@ -0,0 +1,372 @@
+package dk.kb.netarchivesuite.solrwayback.image;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Byte bounded LRU cache of PNG encoded scaled images, keyed by {@code (source_file_path, offset, width, height)}.
+ * A (W)ARC record never changes, so entries are never invalidated.
+ * <p>
+ * Entries are held in memory and, if a folder is given, written to disk where they are kept across restarts until
+ * the disk budget is exceeded. Entries on disk are evicted in order of last use.
+ */
+public class ThumbnailCache {
+    private static final Logger log = LoggerFactory.getLogger(ThumbnailCache.class);
+    private static final String SUFFIX = ".png";
+
+    private final long maxBytes;
+    private final long maxDiskBytes;
+    private final Path folder;
+
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true); // Access order
+    private final LinkedHashMap<String, Long> stored = new LinkedHashMap<>(16, 0.75f, true); // File name -> size
+    private long cachedBytes = 0;
+    private long storedBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong diskHits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong admissions = new AtomicLong(0);
+    private final AtomicLong bypasses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    /**
+     * @param maxBytes     the maximum number of PNG bytes to hold in memory. 0 disables memory caching.
+     * @param folder       folder for storing the entries on disk. null disables disk caching.
+     * @param maxDiskBytes the maximum number of PNG bytes to hold on disk.
+     */
+    public ThumbnailCache(long maxBytes, String folder, long maxDiskBytes) {
+        this.maxBytes = maxBytes;
+        this.maxDiskBytes = maxDiskBytes;
+        this.folder = maxDiskBytes > 0 ? openFolder(folder) : null;
+    }
+
+    /**
+     * Create the folder if needed and register the entries from earlier runs, oldest first.
+     */
+    private Path openFolder(String folder) {
+        if (folder == null || folder.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            Path path = Files.createDirectories(Paths.get(folder.trim()));
+            List<Path> files;
+            try (Stream<Path> listing = Files.list(path)) {
+                files = listing.collect(Collectors.toList());
+            }
+            for (Path file: files) {
+                if (file.getFileName().toString().endsWith(".tmp")) { // Interrupted write
+                    Files.deleteIfExists(file);
+                }
+            }
+            try (Stream<Path> listing = Files.list(path)) {
+                files = listing.filter(file -> file.getFileName().toString().endsWith(SUFFIX))
+                        .sorted(Comparator.comparing(ThumbnailCache::lastModified))
+                        .collect(Collectors.toList());
+            }
+            for (Path file: files) {
+                long size = Files.size(file);
+                stored.put(file.getFileName().toString(), size);
+                storedBytes += size;
+            }
+            log.info("Opened thumbnail cache folder '" + path + "' with " + files.size() + " entries");
+            return path;
+        } catch (IOException e) {
+            log.warn("Unable to use thumbnail cache folder '" + folder + "'. Caching on disk is disabled", e);
+            return null;
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * @param path   the source_file_path for the image record.
+     * @param offset the offset of the image record in the (W)ARC.
+     * @param width  the maximum width of the scaled image.
+     * @param height the maximum height of the scaled image.
+     * @return the PNG for the scaled image or null if it is not cached. The array must not be modified.
+     */
+    public byte[] get(String path, long offset, int width, int height) {
+        String key = key(path, offset, width, height);
+        synchronized (cache) {
+            byte[] png = cache.get(key);
+            if (png != null) {
+                hits.incrementAndGet();
+                return png;
+            }
+        }
+        if (folder != null) {
+            String name = fileName(key);
+            boolean isStored;
+            synchronized (cache) {
+                isStored = stored.get(name) != null; // Updates the access order
+            }
+            if (isStored) {
+                Path file = folder.resolve(name);
+                try {
+                    byte[] png = Files.readAllBytes(file);
+                    Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+                    diskHits.incrementAndGet();
+                    admitMemory(key, png);
+                    return png;
+                } catch (IOException e) {
+                    log.debug("Unable to read cached thumbnail " + file + ". Dropping it: " + e.getMessage());
+                    unregister(name);
+                    delete(name);
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Add the PNG for a scaled image to the cache. Entries larger than 1/16 of the budget are not cached.
+     * @param path   the source_file_path for the image record.
+     * @param offset the offset of the image record in the (W)ARC.
+     * @param width  the maximum width of the scaled image.
+     * @param height the maximum height of the scaled image.
+     * @param png    the scaled image as PNG. The array must not be modified after the call.
+     */
+    public void offer(String path, long offset, int width, int height, byte[] png) {
+        long budget = Math.max(maxBytes, folder == null ? 0 : maxDiskBytes);
+        if (budget <= 0 || png.length > budget / 16) {
+            bypasses.incrementAndGet();
+            return;
+        }
+        String key = key(path, offset, width, height);
+        admissions.incrementAndGet();
+        admitMemory(key, png);
+        if (folder != null) {
+            store(key, png);
+        }
+    }
+
+    private void admitMemory(String key, byte[] png) {
+        if (maxBytes <= 0 || png.length > maxBytes / 16) {
+            return;
+        }
+        synchronized (cache) {
+            byte[] old = cache.put(key, png);
+            if (old != null) {
+                cachedBytes -= old.length;
+            }
+            cachedBytes += png.length;
+            Iterator<byte[]> eldest = cache.values().iterator();
+            while (cachedBytes > maxBytes && eldest.hasNext()) {
+                cachedBytes -= eldest.next().length;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Write the entry to disk, outside of the lock, and delete the least recently used entries if the disk budget is
+     * exceeded.
+     */
+    private void store(String key, byte[] png) {
+        String name = fileName(key);
+        try {
+            Path tmp = Files.createTempFile(folder, name, ".tmp");
+            Files.write(tmp, png);
+            Files.move(tmp, folder.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.warn("Unable to store thumbnail for " + key + " in " + folder + ": " + e.getMessage());
+            return;
+        }
+        List<String> obsolete = new ArrayList<>();
+        synchronized (cache) {
+            Long old = stored.put(name, (long) png.length);
+            if (old != null) {
+                storedBytes -= old;
+            }
+            storedBytes += png.length;
+            Iterator<Map.Entry<String, Long>> eldest = stored.entrySet().iterator();
+            while (storedBytes > maxDiskBytes && eldest.hasNext()) {
+                Map.Entry<String, Long> e = eldest.next();
+                storedBytes -= e.getValue();
+                eldest.remove();
+                obsolete.add(e.getKey());
+            }
+        }
+        obsolete.forEach(this::delete);
+    }
+
+    /**
+     * Remove the entry from the disk bookkeeping, so that the budget is not taken by an unreadable file.
+     */
+    private void unregister(String name) {
+        synchronized (cache) {
+            Long size = stored.remove(name);
+            if (size != null) {
+                storedBytes -= size;
+            }
+        }
+    }
+
+    private void delete(String name) {
+        try {
+            Files.deleteIfExists(folder.resolve(name));
+        } catch (IOException e) {
+            log.debug("Unable to delete cached thumbnail " + name + ": " + e.getMessage());
+        }
+    }
+
+    private static String key(String path, long offset, int width, int height) {
+        return path + "#" + offset + "#" + width + "x" + height;
+    }
+
+    /**
+     * @return the SHA-1 of the key as hex, used as file name.
+     */
+    private static String fileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2 + SUFFIX.length());
+            for (byte b: digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.append(SUFFIX).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 should always be available", e);
+        }
+    }
+
+    /**
+     * Remove all entries from memory and disk. Statistics are not cleared.
+     */
+    public void clear() {
+        List<String> obsolete;
+        synchronized (cache) {
+            cache.clear();
+            cachedBytes = 0;
+            obsolete = new ArrayList<>(stored.keySet());
+            stored.clear();
+            storedBytes = 0;
+        }
+        if (folder != null) {
+            obsolete.forEach(this::delete);
+        }
+    }
+
+    /**
+     * @return the number of entries held in memory.
+     */
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * @return the number of entries held on disk.
+     */
+    public int storedSize() {
+        synchronized (cache) {
+            return stored.size();
+        }
+    }
+
+    /**
+     * The number of PNG bytes held in memory.
+     */
+    public long getCachedBytes() {
+        synchronized (cache) {
+            return cachedBytes;
+        }
+    }
+
+    /**
+     * The number of PNG bytes held on disk.
+     */
+    public long getStoredBytes() {
+        synchronized (cache) {
+            return storedBytes;
+        }
+    }
+
+    /**
+     * @return the number of hits served from memory.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of hits served from disk.
+     */
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return (hits + diskHits) / (hits + diskHits + misses) or 0 if there has been no requests.
+     */
+    public double getHitRate() {
+        long h = hits.get() + diskHits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : h * 1.0 / total;
+    }
+
+    /**
+     * The number of scaled images that has been added to the cache.
+     */
+    public long getAdmissions() {
+        return admissions.get();
+    }
+
+    /**
+     * The number of scaled images that were not cached due to being too large.
+     */
+    public long getBypasses() {
+        return bypasses.get();
+    }
+
+    /**
+     * The number of entries that has been removed from memory to stay within max bytes.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+                             "ThumbnailCache(entries=%d, bytes=%d/%d, storedEntries=%d, storedBytes=%d/%d, " +
+                             "hitRate=%.2f, hits=%d, diskHits=%d, misses=%d, admissions=%d, bypasses=%d, evictions=%d)",
+                             size(), getCachedBytes(), maxBytes, storedSize(), getStoredBytes(),
+                             folder == null ? 0 : maxDiskBytes, getHitRate(), hits.get(), diskHits.get(), misses.get(),
+                             admissions.get(), bypasses.get(), evictions.get());
+    }
+}
@@ -15,6 +15,8 @@
 package dk.kb.netarchivesuite.solrwayback.interfaces;
 
 import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
+import dk.kb.netarchivesuite.solrwayback.util.FileChannelPool;
+import dk.kb.netarchivesuite.solrwayback.util.InputStreamUtils;
 import dk.kb.netarchivesuite.solrwayback.util.SkippingHTTPInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,6 +28,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.NoSuchFileException;
 import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
@@ -46,6 +49,7 @@ public class ArcSource implements Supplier<InputStream> {
 
     private final String source;
     private final Supplier<InputStream> supplier;
+    private final RangeSupplier rangeSupplier;
 
     /**
      * It is highly recommended to ensure that the {@link InputStream} delivered by the {@code supplier} handles
@@ -54,8 +58,19 @@ public class ArcSource implements Supplier<InputStream> {
      * @param source the source (URL, file path or similar) of the ArcData.
      */
     public ArcSource(String source, Supplier<InputStream> supplier) {
+        this(source, supplier, null);
+    }
+
+    /**
+     * @param source        the source (URL, file path or similar) of the ArcData.
+     * @param supplier      delivers the full content of the source.
+     * @param rangeSupplier delivers the content of the source from a given offset. If null, the stream from
+     *                      {@code supplier} is skipped to the offset.
+     */
+    public ArcSource(String source, Supplier<InputStream> supplier, RangeSupplier rangeSupplier) {
         this.source = source;
         this.supplier = supplier;
+        this.rangeSupplier = rangeSupplier;
     }
 
     /**
@@ -74,14 +89,48 @@ public class ArcSource implements Supplier<InputStream> {
         return supplier.get();
     }
 
+    /**
+     * Open the source positioned at the given offset. The length is a hint that allows some implementations, such
+     * as HTTP, to request only the needed part of the source. It is possible to read past the length.
+     * @param offset the position in the source to start at.
+     * @param length the number of bytes that are expected to be read. -1 if unknown.
+     * @return a stream with the content of an ARC or a WARC file, starting at offset.
+     * @throws IOException if the stream could not be positioned at the offset.
+     */
+    public InputStream get(long offset, long length) throws IOException {
+        if (rangeSupplier != null) {
+            return rangeSupplier.get(offset, length);
+        }
+        InputStream is = get();
+        try {
+            InputStreamUtils.skipFully(is, offset);
+        } catch (IOException | RuntimeException e) {
+            is.close();
+            throw e;
+        }
+        return is;
+    }
+
     /**
      * Construct an ArcSource from a file path.
      * <p>
+     * If {@link PropertiesLoader#WARC_SOURCE_FILE_MAX_CHANNELS} is positive, entries are read using positional reads
+     * on channels from the shared {@link FileChannelPool}, else a new {@link FileInputStream} is opened for each entry.
+     * <p>
      * Consider using the general {@link #create(String)} instead of this method.
      * @param file a file on the local file system.
      * @return an ArcSource for the given file.
      */
     public static ArcSource fromFile(String file) {
+        RangeSupplier pooled = PropertiesLoader.WARC_SOURCE_FILE_MAX_CHANNELS <= 0 ? null : (offset, length) -> {
+            try {
+                return FileChannelPool.getInstance().getInputStream(file, offset);
+            } catch (NoSuchFileException e) {
+                log.error("FileNotFoundException trying to access (W)ARC '{}'", file);
+                throw new RuntimeException("FileNotFoundException trying to access (W)ARC '" + file + "'",
+                                           new FileNotFoundException(e.getMessage()));
+            }
+        };
         return new ArcSource(file, () -> {
             try {
                 // TODO: Verify that Files.newInputStream supports efficient skipping then switch to that
@@ -93,7 +142,7 @@ public class ArcSource implements Supplier<InputStream> {
                 log.error("Unable to create FileInputStream for (W)ARC '" + file + "'", e);
                 throw new RuntimeException("Unable to create FileInputStream for (W)ARC '" + file + "'", e);
             }
-        });
+        }, pooled);
     }
 
     /**
@@ -119,7 +168,9 @@ public class ArcSource implements Supplier<InputStream> {
                 log.error("Unable to open stream for '" + httpURL + "'", e);
                 throw new RuntimeException("Unable to open stream for '" + httpURL + "'", e);
             }
-        });
+        }, (offset, length) ->
+                // Connection is established lazily, so errors are thrown on first read
+                new SkippingHTTPInputStream(url, PropertiesLoader.WARC_SOURCE_HTTP_FALLBACK, offset, length));
     }
     /**
      * Construct an ArcSource from multiple possible source types.
@@ -150,4 +201,17 @@ public class ArcSource implements Supplier<InputStream> {
     public String toString() {
         return "ArcSource(" + "source='" + source + '\'' + ')';
     }
+
+    /**
+     * Delivers the content of a source, starting at a given offset.
+     */
+    @FunctionalInterface
+    public interface RangeSupplier {
+        /**
+         * @param offset the position in the source to start at.
+         * @param length the number of bytes that are expected to be read. -1 if unknown.
+         * @return a stream with the content of the source, starting at offset.
+         */
+        InputStream get(long offset, long length) throws IOException;
+    }
 }
@@ -14,6 +14,18 @@ public class ArcFileParserFactory {
    * @param offset offset in the warc file
    */
     public static ArcEntry getArcEntry(ArcSource arcSource, long offset) throws Exception{
+        return getArcEntry(arcSource, offset, false);
+    }
+
+  /*
+   * Do not call this call. This class is called from ArcParseFileResolver and will use file-mapping first
+   *
+   * @param file_path is the file location, the file location must be resolved first.
+   * @param offset offset in the warc file
+   * @param retainBinary if true, the stream is kept open after header parsing and used for the first binary read.
+   *                     Only use this if the binary is to be read.
+   */
+    public static ArcEntry getArcEntry(ArcSource arcSource, long offset, boolean retainBinary) throws Exception{
         
         if (arcSource == null ){
             throw new IllegalArgumentException("No arcSupplier provided");
@@ -24,11 +36,11 @@ public class ArcFileParserFactory {
 
 
         if (sourceLowercase.endsWith(".warc")  || sourceLowercase.endsWith(".warc.gz") ) {
-            arcEntry = WarcParser.getWarcEntry(arcSource, offset);
+            arcEntry = WarcParser.getWarcEntry(arcSource, offset, retainBinary);
         }
                         
         else if (sourceLowercase.endsWith(".arc") || sourceLowercase.endsWith("arc.gz")){
-            arcEntry = ArcParser.getArcEntry(arcSource, offset);
+            arcEntry = ArcParser.getArcEntry(arcSource, offset, retainBinary);
         }
         else{
             throw new IllegalArgumentException(
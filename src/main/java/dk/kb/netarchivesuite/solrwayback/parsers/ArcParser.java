@@ -3,16 +3,14 @@ package dk.kb.netarchivesuite.solrwayback.parsers;
 import dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource;
 import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
 import dk.kb.netarchivesuite.solrwayback.util.DateUtils;
-import dk.kb.netarchivesuite.solrwayback.util.InputStreamUtils;
 import org.apache.commons.io.input.BoundedInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.Locale;
-import java.util.zip.GZIPInputStream;
 
 public class ArcParser extends  ArcWarcFileParserAbstract{
 
@@ -34,52 +32,48 @@ public class ArcParser extends  ArcWarcFileParserAbstract{
    *X-Powered-By: ASP.NET
    */
   public static ArcEntry getArcEntry(ArcSource arcSource, long arcEntryPosition) throws Exception {
-      if (arcSource.getSource().toLowerCase(Locale.ROOT).endsWith(".gz")){ //It is zipped
-        return getArcEntryZipped(arcSource, arcEntryPosition);
-      } else {
-          return getArcEntryNotZipped(arcSource, arcEntryPosition);
-      }      
+      return getArcEntry(arcSource, arcEntryPosition, false);
   }
 
-  
-  public static ArcEntry getArcEntryNotZipped(ArcSource arcSource, long arcEntryPosition) throws Exception {
+  /**
+   * Parse the headers for the ARC entry at the given position.
+   * <p>
+   * If {@code retainBinary} is true, the stream used for parsing the headers is kept open in the returned
+   * {@link ArcEntry} and the first call to {@link ArcEntry#getBinaryRaw()} continues reading from it.
+   * See {@link WarcParser#getWarcEntry(ArcSource, long, boolean)}.
+   * @param arcSource        source of the ARC.
+   * @param arcEntryPosition where in the ARC the entry is positioned.
+   * @param retainBinary     if true, keep the stream positioned at the binary for later reading.
+   * @return the entry with header information.
+   */
+  public static ArcEntry getArcEntry(ArcSource arcSource, long arcEntryPosition, boolean retainBinary) throws Exception {
       ArcEntry arcEntry = new ArcEntry();
       arcEntry.setFormat(ArcEntry.FORMAT.ARC);
       arcEntry.setSource(arcSource);
       arcEntry.setOffset(arcEntryPosition);
 
-      try (InputStream is = arcSource.get()) {
-          InputStreamUtils.skipFully(is, arcEntryPosition);
-
-          try (BufferedInputStream bis = new BufferedInputStream(is)) {
-              loadArcHeader(bis, arcEntry);
-
-              //log.debug("Arc entry : totalsize:"+totalSize +" headersize:"+headerSize+" binary size:"+binarySize);
+      HeaderLineReader bis = openEntry(arcSource, arcEntryPosition);
+      boolean retained = false;
+      try {
+          loadArcHeader(bis, arcEntry);
+          if (retainBinary) {
+              arcEntry.setRetainedBinary(new BufferedInputStream(new BoundedInputStream(bis, arcEntry.getBinaryArraySize())));
+              retained = true;
+          }
+      } finally {
+          if (!retained) {
+              bis.close();
           }
-          return arcEntry;
       }
+      return arcEntry;
   }
 
-  public static ArcEntry getArcEntryZipped(ArcSource arcSource, long arcEntryPosition) throws Exception {
-
-    ArcEntry arcEntry = new ArcEntry();
-    arcEntry.setFormat(ArcEntry.FORMAT.ARC);
-    arcEntry.setSource(arcSource);
-    arcEntry.setOffset(arcEntryPosition);
-
-    try (InputStream is = arcSource.get()) {
-        InputStreamUtils.skipFully(is, arcEntryPosition);
-
-        // log.info("file is zipped:"+arcFilePath);
-        try (GZIPInputStream stream = new GZIPInputStream(is);
-             BufferedInputStream  bis= new BufferedInputStream(stream)) {
-
-            loadArcHeader(bis, arcEntry);
+  public static ArcEntry getArcEntryNotZipped(ArcSource arcSource, long arcEntryPosition) throws Exception {
+      return getArcEntry(arcSource, arcEntryPosition, false);
+  }
 
-            //System.out.println("Arc entry : totalsize:"+totalSize +" binary size:"+binarySize +" firstHeadersize:"+byteCount);
-        }
-    }
-    return arcEntry;
+  public static ArcEntry getArcEntryZipped(ArcSource arcSource, long arcEntryPosition) throws Exception {
+      return getArcEntry(arcSource, arcEntryPosition, false);
   }
 
 
@@ -92,50 +86,53 @@ public class ArcParser extends  ArcWarcFileParserAbstract{
    * @param bis stream positioned at the start of an ARC-entry. Afterwards it will be positioned at the start of content.
    * @param arcEntry the ARC entry representation to populate.
    */
-  private static void loadArcHeader(BufferedInputStream bis, ArcEntry arcEntry) throws IOException{
+  private static void loadArcHeader(HeaderLineReader bis, ArcEntry arcEntry) throws IOException{
 
-    StringBuilder headerLinesBuffer = new StringBuilder();
+    ByteArrayOutputStream headerLinesBuffer = new ByteArrayOutputStream(1024);
 
-    String line = readLine(bis); // First line
-    headerLinesBuffer.append(line+newLineChar);
+    bis.nextLine(); // First line
+    String line = bis.asString();
+    int firstLineByteCount = bis.getByteCount();
+    bis.appendTo(headerLinesBuffer);
 
     if  (!(line.startsWith("http"))) //No version check yet
     {            
       throw new IllegalArgumentException("ARC header does not start with http : "+line);
     }            
-    
-    arcEntry.setFileName(getArcLastUrlPart(line));                    
-    String waybackDate = getWaybackDate(line);                    
+
+    // URL IP-address Archive-date Content-type Archive-length
+    String[] split = line.split(" ");
+    String fullUrl = split[0].trim();
+    String[] paths = fullUrl.split("/");
+    arcEntry.setFileName(paths[paths.length - 1].trim());
+    String waybackDate = split[2];
     arcEntry.setCrawlDate(DateUtils.convertWaybackDate2SolrDate(waybackDate));          
     arcEntry.setWaybackDate(waybackDate);
-    arcEntry.setUrl(getArcUrl(line));
-    arcEntry.setIp(getIp(line));            
-      System.out.println(line);
+    arcEntry.setUrl(fullUrl);
+    arcEntry.setIp(split[1]);
 
-    String[] split = line.split(" ");
     int totalSize = Integer.parseInt(split[split.length - 1]);
 
     int byteCount=0; //Bytes of second header
 
-    LineAndByteCount lc =readLineCount(bis);
-    line=lc.getLine();
-    arcEntry.setStatus_code(getStatusCode(line));
-    headerLinesBuffer.append(line+newLineChar);
-    byteCount +=lc.getByteCount();                    
+    bis.nextLine();
+    arcEntry.setStatus_code(bis.statusCode());
+    bis.appendTo(headerLinesBuffer);
+    byteCount += bis.getByteCount();
 
-    while (!"".equals(line)) { // End of warc second header block is an empty line
-      lc =readLineCount(bis);
-      line=lc.getLine();
-      headerLinesBuffer.append(line+newLineChar);
-      byteCount +=lc.getByteCount();                    
+    do { // End of warc second header block is an empty line
+      bis.nextLine();
+      bis.appendTo(headerLinesBuffer);
+      byteCount += bis.getByteCount();
 
-      populateArcHeader(arcEntry, line);        
-    }
-    arcEntry.setHeader(headerLinesBuffer.toString());
+      populateArcHeader(arcEntry, bis);
+    } while (!bis.isEmpty());
+    arcEntry.setHeader(headerLinesBuffer.toString(ARC_HEADER_ENCODING));
     
     int binarySize = totalSize-byteCount;                                                   
     arcEntry.setContentLength(binarySize); //trust the load, not the http-header for arc-files
-    arcEntry.setBinaryArraySize(binarySize);      
+    arcEntry.setBinaryArraySize(binarySize);
+    arcEntry.setBinaryOffset(firstLineByteCount+byteCount);
   }
 
 
@@ -147,6 +144,9 @@ public class ArcParser extends  ArcWarcFileParserAbstract{
      * <p>
      * This method does not cache the binary and the caller should take care to close the returned {@code InputStream}
      * after use as failing to do so might cause resource leaks.
+     * <p>
+     * If the headers for the entry has already been parsed, use
+     * {@link #lazyLoadBinary(ArcSource, long, long, long)} to avoid parsing them again.
      * @param arcSource        source of the raw ARC.
      * @param arcEntryPosition where in the ARC the entry is positioned.
      * @return a stream with the binary content from a ARC entry.
@@ -155,25 +155,15 @@ public class ArcParser extends  ArcWarcFileParserAbstract{
   public static BufferedInputStream lazyLoadContent(ArcSource arcSource, long arcEntryPosition) throws IOException {
       ArcEntry arcEntry = new ArcEntry(); // We just throw away the header info anyway 
 
-      InputStream is = arcSource.get();
-      InputStreamUtils.skipFully(is, arcEntryPosition);
-
-      if (arcSource.getSource().toLowerCase(Locale.ROOT).endsWith(".gz")){ //It is zipped
-          // log.info("file is zipped:"+arcFilePath);
-          GZIPInputStream zipStream = new GZIPInputStream(is);
-          BufferedInputStream  bis = new BufferedInputStream(zipStream);
+      HeaderLineReader bis = openEntry(arcSource, arcEntryPosition);
+      try {
           loadArcHeader(bis, arcEntry);
-          
-          BoundedInputStream maxStream = new BoundedInputStream(bis, arcEntry.getBinaryArraySize());
-          return new BufferedInputStream(maxStream); // It's a mess to use nested BufferedInputStreams...
-          
-      } else {
-          BufferedInputStream  bis = new BufferedInputStream(is);
-          loadArcHeader(bis, arcEntry);
-          BoundedInputStream maxStream = new BoundedInputStream(bis, arcEntry.getBinaryArraySize());
-          return new BufferedInputStream(maxStream);
+      } catch (IOException | RuntimeException e) {
+          bis.close();
+          throw e;
       }
-      
+      BoundedInputStream maxStream = new BoundedInputStream(bis, arcEntry.getBinaryArraySize());
+      return new BufferedInputStream(maxStream); // It's a mess to use nested BufferedInputStreams...
   }
 
     public static String readLine(BufferedInputStream bis) throws IOException{
@@ -214,72 +204,35 @@ public class ArcParser extends  ArcWarcFileParserAbstract{
   }
 
 
-  private static String getArcLastUrlPart(String arcHeaderLine) {
-    String[] split = arcHeaderLine.split(" ");
-    String fullUrl = split[0];
-    String paths[] = fullUrl.split("/");
-    String fileName = paths[paths.length - 1];
-    if (fileName == null){
-      fileName="";
-    }
-    return fileName.trim();
-  }
-
-
-  private static String getArcUrl(String arcHeaderLine) {
-    String[] split = arcHeaderLine.split(" ");
-    String fullUrl = split[0];
-    return fullUrl.trim();
-  }
-
-  private static String getIp(String arcHeaderLine) {
-    String[] split = arcHeaderLine.split(" ");
-    return split[1];
-  }
-
-  private static String getWaybackDate(String arcHeaderLine) {
-    String[] split = arcHeaderLine.split(" ");
-    return split[2];                                
-  }
-
-  private static void populateArcHeader(ArcEntry arcEntry, String headerLine) {
-    if (headerLine.toLowerCase().startsWith("content-length:")) {      
-      String[] split = headerLine.split(":");
-      //arcEntry.setContentLength(Integer.parseInt(split[1].trim())); //Dont trust server. Use binary size.        
-    } else if (headerLine.toLowerCase().startsWith("content-type:")) {
+  private static void populateArcHeader(ArcEntry arcEntry, HeaderLineReader headerLine) {
+    // Content-Length is ignored: Dont trust server. Use binary size.
+    if (headerLine.startsWith(CONTENT_TYPE)) {
       //text/html; charset=
-      String[] part1 = headerLine.split(":");
-      String[] part2= part1[1].split(";");                                  
-      arcEntry.setContentType(part2[0].trim());
-      
-      if (part2.length == 2){
-        String charsetString = part2[1].trim();
-        if (charsetString.toLowerCase().startsWith("charset=")){
-          String  charset= charsetString.substring(8).replace("\"", "");
-          arcEntry.setContentCharset( charset);
-        }                    
+      int semicolon = headerLine.indexOf(';', CONTENT_TYPE.length);
+      if (semicolon == -1) {
+        arcEntry.setContentType(headerLine.value(CONTENT_TYPE.length));
+      } else {
+        arcEntry.setContentType(headerLine.value(CONTENT_TYPE.length, semicolon));
+        int end = headerLine.indexOf(';', semicolon+1);
+        String charsetString = headerLine.value(semicolon+1, end == -1 ? headerLine.length() : end);
+        if (charsetString.toLowerCase(Locale.ROOT).startsWith("charset=")){
+          arcEntry.setContentCharset(charsetString.substring(8)); // The setter removes "
+        }
       }
-      
     }
-    else if (headerLine.toLowerCase().startsWith("content-encoding:")) {
-      //text/html; charset=
-      String[] contentHeader = headerLine.split(":");                                  
-      
-      arcEntry.setContentEncoding(contentHeader[1].trim());
-      //log.info("setting content encoding:"+contentHeader[1].trim());
+    else if (headerLine.startsWith(CONTENT_ENCODING)) {
+      arcEntry.setContentEncoding(headerLine.value(CONTENT_ENCODING.length));
+      //log.info("setting content encoding:"+arcEntry.getContentEncoding());
     }
-    else if (headerLine.toLowerCase().startsWith("location:")) {                                      
-      arcEntry.setRedirectUrl(headerLine.substring(9).trim());
+    else if (headerLine.startsWith(LOCATION)) {
+      arcEntry.setRedirectUrl(headerLine.value(LOCATION.length));
     }
-    else if (headerLine.toLowerCase().startsWith("transfer-encoding:")) {                                      
-        String transferEncoding=headerLine.substring(18).trim();
-//        log.debug("transfer-encoding:"+transferEncoding);
-        if (transferEncoding.equalsIgnoreCase("chunked")) {
+    else if (headerLine.startsWith(TRANSFER_ENCODING)) {
+//        log.debug("transfer-encoding:"+headerLine.asString());
+        if (headerLine.value(TRANSFER_ENCODING.length).equalsIgnoreCase("chunked")) {
             arcEntry.setChunked(true);
          }
       }    
-    
-    
   }  
   
 }
@@ -3,34 +3,81 @@ package dk.kb.netarchivesuite.solrwayback.parsers;
 import dk.kb.netarchivesuite.solrwayback.interfaces.ArcFileLocationResolverInterface;
 import dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource;
 import dk.kb.netarchivesuite.solrwayback.interfaces.RewriteLocationResolver;
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
 import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
 import dk.kb.netarchivesuite.solrwayback.service.exception.NotFoundServiceException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.FileNotFoundException;
-import java.util.HashMap;
 
 /*
  * This class will resolve the arc-file location using source_file_path from the index.
  * The resolver class is defined in solrwayback.properties.
  * Default is the identity resolver, which can be used if file locations seen from solrwayback is the same as source_file_path
  * 
- * When a file has been resolved it will cache the location making future requests fasters. 
- * TODO implement a max cache size.
+ * When a file has been resolved it will cache the location making future requests fasters.
+ * Files that could not be found are also cached for a short while, see {@link ArcSourceCache}.
+ * Small records that are requested repeatedly are cached in memory, see {@link RecordCache}.
  *  
  * It will just call the ArcFileParserFactory with the resolved filename.
  * 
  */
 public class ArcParserFileResolver {
 
-  private static final HashMap<String, ArcSource> cache = new HashMap<>();
+  private static volatile ArcSourceCache cache = createCache();
+  private static volatile RecordCache recordCache = createRecordCache();
 
   private static ArcFileLocationResolverInterface resolver = new RewriteLocationResolver(); // Default
   private static final Logger log = LoggerFactory.getLogger(ArcFileLocationResolverInterface.class);
 
+  /**
+   * Set the resolver and create a new cache with the limits from {@link PropertiesLoader}, as locations
+   * resolved by a previous resolver might no longer be valid.
+   */
   public static void setArcFileLocationResolver(ArcFileLocationResolverInterface resolverImpl) {
     resolver = resolverImpl;
+    cache = createCache();
+    recordCache = createRecordCache();
+  }
+
+  /**
+   * @return the cache of resolved (W)ARC locations, used for statistics.
+   */
+  public static ArcSourceCache getCache() {
+    return cache;
+  }
+
+  /**
+   * @return the cache of small records, used for statistics.
+   */
+  public static RecordCache getRecordCache() {
+    return recordCache;
+  }
+
+  private static RecordCache createRecordCache() {
+    return new RecordCache(PropertiesLoader.WARC_RECORD_CACHE_MAX_BYTES,
+                           PropertiesLoader.WARC_RECORD_CACHE_MAX_RECORD_BYTES);
+  }
+
+  private static ArcSourceCache createCache() {
+    return new ArcSourceCache(PropertiesLoader.WARC_FILE_RESOLVER_CACHE_MAX_ENTRIES,
+                              PropertiesLoader.WARC_FILE_RESOLVER_CACHE_AGE_SECONDS*1000L,
+                              PropertiesLoader.WARC_FILE_RESOLVER_CACHE_MISSING_AGE_SECONDS*1000L);
+  }
+
+  /**
+   * Resolve the source for the given source_file_path, using the cache of resolved (W)ARC locations.
+   * @param source_file_path the source_file_path from the index.
+   * @return a source for the (W)ARC.
+   * @throws NotFoundServiceException if the (W)ARC is known to be missing.
+   */
+  public static ArcSource getArcSource(String source_file_path) throws NotFoundServiceException {
+    try {
+      return cache.get(source_file_path.trim(), resolver::resolveArcFileLocation);
+    } catch (FileNotFoundException e) {
+      throw new NotFoundServiceException("Unable to locate (W)ARC '" + source_file_path + "'");
+    }
   }
 
   /*
@@ -41,24 +88,55 @@ public class ArcParserFileResolver {
    * @param offset offset in the warc file
    */
   public static ArcEntry getArcEntry(String source_file_path_org, long offset) throws Exception {
+    return getArcEntry(source_file_path_org, offset, false);
+  }
+
+  /*
+   * 
+   * @param file_path is the file location, the file location must be resolved
+   * first.
+   * 
+   * @param offset offset in the warc file
+   *
+   * @param retainBinary if true, the stream used for reading the headers is kept open and used for the first
+   * binary read, saving a second open, skip and decompression of the (W)ARC. Only set this if the binary is read.
+   */
+  public static ArcEntry getArcEntry(String source_file_path_org, long offset, boolean retainBinary) throws Exception {
+    return getArcEntry(source_file_path_org, offset, retainBinary, retainBinary);
+  }
+
+  /**
+   * @param retainBinary if true, the stream used for reading the headers is kept open and used for the first
+   *                     binary read. Only set this if the binary is read.
+   * @param cacheable    if true and retainBinary is true, the entry is offered to the {@link RecordCache}.
+   *                     Set this to false for bulk access, such as exports, where the records are requested once.
+   */
+  public static ArcEntry getArcEntry(String source_file_path_org, long offset, boolean retainBinary,
+                                     boolean cacheable) throws Exception {
 
     // Maybe this will stop code scan think parameter is used unvalidated.
     // It is validated later to be .warc/.warcs.gz/.arc/.arc.gz
     String source_file_path = source_file_path_org.trim();
 
-    try {
-      ArcSource arcSource = cache.get(source_file_path);
-      if (arcSource == null) {
-
-        arcSource = resolver.resolveArcFileLocation(source_file_path);
-        cache.put(source_file_path, arcSource);
-      }
+    ArcEntry cached = recordCache.get(source_file_path, offset);
+    if (cached != null) {
+      return cached;
+    }
 
-      return ArcFileParserFactory.getArcEntry(arcSource, offset);
+    final ArcSourceCache cache = ArcParserFileResolver.cache;
+    try {
+      ArcSource arcSource = cache.get(source_file_path, resolver::resolveArcFileLocation);
+      ArcEntry arcEntry = ArcFileParserFactory.getArcEntry(arcSource, offset, retainBinary);
+      // Only offer entries where the caller intends to read the binary
+      return retainBinary && cacheable ? recordCache.offer(source_file_path, offset, arcEntry) : arcEntry;
 
+    } catch (FileNotFoundException e) {
+      // Negative cache hit
+      throw new NotFoundServiceException("Unable to locate (W)ARC '" + source_file_path + "'");
     } catch (Exception e) {
       if (e instanceof RuntimeException && e.getCause() instanceof FileNotFoundException) {
         // The only thing throwing FileNotFoundExceptions should be ArcSource.get and that already logs errors
+        cache.markMissing(source_file_path);
         throw new NotFoundServiceException("Unable to locate (W)ARC '" + source_file_path + "'");
       }
       // It CAN happen, but crazy unlikely, and not critical at all... (took 10
@@ -0,0 +1,181 @@
+package dk.kb.netarchivesuite.solrwayback.parsers;
+
+import dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Size and age bounded cache of resolved {@link ArcSource}s, keyed by {@code source_file_path} from the index.
+ * <p>
+ * Lookups are lock free. When the cache grows beyond its maximum size, a single thread evicts expired entries and,
+ * if that is not enough, the oldest entries down to 90% of the maximum size. Other threads continue unhindered
+ * while this happens, so the cache can temporarily be slightly larger than the maximum.
+ * <p>
+ * Sources that are known to be missing are cached as negative entries with a separate and typically shorter max
+ * age, so that repeated requests for a missing (W)ARC neither calls the resolver nor touches the file system.
+ */
+public class ArcSourceCache {
+  private static final Logger log = LoggerFactory.getLogger(ArcSourceCache.class);
+
+  private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+  private final int maxEntries;
+  private final long maxAgeMS;
+  private final long missingAgeMS;
+  private final AtomicBoolean evicting = new AtomicBoolean(false);
+  private final AtomicLong insertions = new AtomicLong(0); // Ordering of entries, used for evicting the oldest
+
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong misses = new AtomicLong(0);
+  private final AtomicLong missingHits = new AtomicLong(0);
+  private final AtomicLong evictions = new AtomicLong(0);
+
+  /**
+   * @param maxEntries   the maximum number of entries, positive as well as negative, to hold in the cache.
+   * @param maxAgeMS     the maximum number of milliseconds that a resolved source is cached.
+   * @param missingAgeMS the maximum number of milliseconds that a source is remembered as missing.
+   */
+  public ArcSourceCache(int maxEntries, long maxAgeMS, long missingAgeMS) {
+    this.maxEntries = maxEntries;
+    this.maxAgeMS = maxAgeMS;
+    this.missingAgeMS = missingAgeMS;
+  }
+
+  /**
+   * Get the cached source for the given path or resolve and cache it if it is not cached.
+   * @param path     the source_file_path for the (W)ARC.
+   * @param resolver used for resolving the path if it is not in the cache.
+   * @return the resolved source.
+   * @throws FileNotFoundException if the path has been marked as missing with {@link #markMissing(String)}
+   *                               within the missing age.
+   */
+  public ArcSource get(String path, Function<String, ArcSource> resolver) throws FileNotFoundException {
+    Entry entry = cache.get(path);
+    if (entry != null) {
+      if (!entry.isTooOld()) {
+        if (entry.source == null) {
+          missingHits.incrementAndGet();
+          throw new FileNotFoundException("The (W)ARC '" + path + "' was recently found to be missing");
+        }
+        hits.incrementAndGet();
+        return entry.source;
+      }
+      cache.remove(path, entry);
+    }
+    misses.incrementAndGet();
+    ArcSource source = resolver.apply(path);
+    put(path, source, maxAgeMS);
+    return source;
+  }
+
+  /**
+   * Mark the given path as missing. Subsequent calls to {@link #get(String, Function)} for the path will throw
+   * an exception until the missing age has passed.
+   * @param path the source_file_path for the (W)ARC.
+   */
+  public void markMissing(String path) {
+    if (missingAgeMS > 0) {
+      put(path, null, missingAgeMS);
+    } else {
+      cache.remove(path);
+    }
+  }
+
+  private void put(String path, ArcSource source, long ageMS) {
+    cache.put(path, new Entry(source, insertions.incrementAndGet(), ageMS));
+    // The size is checked again after eviction as other threads might have added entries during eviction
+    while (cache.size() > maxEntries && evicting.compareAndSet(false, true)) {
+      try {
+        evict();
+      } finally {
+        evicting.set(false);
+      }
+    }
+  }
+
+  /**
+   * Remove all expired entries and, if the cache is still too large, the oldest entries until the size is
+   * 90% of max size.
+   */
+  private void evict() {
+    int before = cache.size();
+    cache.values().removeIf(Entry::isTooOld);
+    int excess = cache.size() - (int) (maxEntries * 0.9);
+    if (excess > 0) {
+      long[] orders = cache.values().stream().mapToLong(e -> e.order).toArray();
+      Arrays.sort(orders);
+      final long cutoff = orders[Math.min(excess, orders.length) - 1];
+      cache.values().removeIf(e -> e.order <= cutoff);
+    }
+    evictions.addAndGet(before - cache.size());
+    log.debug("Evicted {} entries from ArcSource cache, new size is {}", before - cache.size(), cache.size());
+  }
+
+  /**
+   * Remove all entries from the cache. Statistics are not cleared.
+   */
+  public void clear() {
+    cache.clear();
+  }
+
+  public int size() {
+    return cache.size();
+  }
+
+  /**
+   * The number of lookups where a resolved source was available in the cache.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * The number of lookups where the resolver had to be called.
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * The number of lookups that were answered by a negative (missing) entry.
+   */
+  public long getMissingHits() {
+    return missingHits.get();
+  }
+
+  /**
+   * The number of entries removed from the cache due to size or age.
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  @Override
+  public String toString() {
+    return "ArcSourceCache(size=" + cache.size() + "/" + maxEntries + ", hits=" + hits + ", misses=" + misses +
+           ", missingHits=" + missingHits + ", evictions=" + evictions + ")";
+  }
+
+  private static class Entry {
+    final ArcSource source; // null means missing
+    final long order;
+    final long expires;
+
+    Entry(ArcSource source, long order, long maxAgeMS) {
+      this.source = source;
+      this.order = order;
+      this.expires = System.currentTimeMillis() + maxAgeMS;
+    }
+
+    boolean isTooOld() {
+      return System.currentTimeMillis() > expires;
+    }
+  }
+}
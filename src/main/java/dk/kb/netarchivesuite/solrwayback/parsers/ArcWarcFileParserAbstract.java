@@ -1,14 +1,101 @@
 package dk.kb.netarchivesuite.solrwayback.parsers;
 
+import dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource;
+import dk.kb.netarchivesuite.solrwayback.util.InputStreamUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
 public class ArcWarcFileParserAbstract {
   private static final Logger log = LoggerFactory.getLogger(ArcWarcFileParserAbstract.class);
 
-  public static int getStatusCode(String line){//HTTP/1.1 302 Object moved      
+  // HTTP header fields, shared by the ARC and WARC parsers
+  protected static final byte[] CONTENT_TYPE = HeaderLineReader.field("Content-Type:");
+  protected static final byte[] CONTENT_LENGTH = HeaderLineReader.field("Content-Length:");
+  protected static final byte[] CONTENT_ENCODING = HeaderLineReader.field("Content-Encoding:");
+  protected static final byte[] LOCATION = HeaderLineReader.field("Location:");
+  protected static final byte[] TRANSFER_ENCODING = HeaderLineReader.field("Transfer-Encoding:");
+
+  public static int getStatusCode(String line){//HTTP/1.1 302 Object moved
     String[] tokens = line.split(" ");
     String status = tokens[1];
-    return Integer.parseInt(status);     
+    return Integer.parseInt(status);
+  }
+
+  /**
+   * @return true if the source is gzip-compressed (one gzip member per entry), judged from the file extension.
+   */
+  protected static boolean isZipped(ArcSource arcSource) {
+    return arcSource.getSource().toLowerCase(Locale.ROOT).endsWith(".gz");
+  }
+
+  /**
+   * Opens the given source, skips to the entry and wraps the stream in a gzip-decompressor if the source is zipped.
+   * The returned stream is positioned at the start of the (W)ARC entry headers.
+   * <p>
+   * The caller must close the returned stream.
+   * @param arcSource        source of the (W)ARC.
+   * @param arcEntryPosition where in the (W)ARC the entry is positioned.
+   * @return a header reader positioned at the start of the entry.
+   * @throws IOException if the source could not be opened or skipped.
+   */
+  protected static HeaderLineReader openEntry(ArcSource arcSource, long arcEntryPosition) throws IOException {
+    return openEntry(arcSource, arcEntryPosition, -1);
+  }
+
+  /**
+   * Opens the given source at the given position and wraps the stream in a gzip-decompressor if the source is zipped.
+   * <p>
+   * The caller must close the returned stream.
+   * @param arcSource source of the (W)ARC.
+   * @param position  where in the (W)ARC to start reading.
+   * @param length    the number of (compressed) bytes expected to be read from position, -1 if unknown.
+   *                  This is a hint for sources that can request partial content, such as HTTP.
+   * @return a header reader positioned at the given position.
+   * @throws IOException if the source could not be opened or skipped.
+   */
+  protected static HeaderLineReader openEntry(ArcSource arcSource, long position, long length) throws IOException {
+    InputStream is = arcSource.get(position, length);
+    try {
+      return new HeaderLineReader(isZipped(arcSource) ? new GZIPInputStream(is) : is);
+    } catch (IOException | RuntimeException e) {
+      is.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Constructs a stream for the binary of an entry where the position of the binary relative to the entry start
+   * is already known from an earlier header parse. No headers are parsed: For uncompressed sources the stream
+   * skips directly to the binary, for compressed sources the entry is decompressed and the headers skipped.
+   * <p>
+   * The caller must close the returned stream.
+   * @param arcSource        source of the (W)ARC.
+   * @param arcEntryPosition where in the (W)ARC the entry is positioned.
+   * @param binaryOffset     number of (uncompressed) header bytes before the binary.
+   * @param binarySize       number of bytes in the binary.
+   * @return a stream with the binary content from the entry.
+   * @throws IOException if the binary could not be read.
+   */
+  public static BufferedInputStream lazyLoadBinary(
+          ArcSource arcSource, long arcEntryPosition, long binaryOffset, long binarySize) throws IOException {
+    BufferedInputStream bis = isZipped(arcSource) ?
+            openEntry(arcSource, arcEntryPosition) :
+            openEntry(arcSource, arcEntryPosition + binaryOffset, binarySize);
+    try {
+      if (isZipped(arcSource)) {
+        InputStreamUtils.skipFully(bis, binaryOffset);
+      }
+    } catch (IOException | RuntimeException e) {
+      bis.close();
+      throw e;
+    }
+    return new BufferedInputStream(new BoundedInputStream(bis, binarySize));
   }
 }
@@ -0,0 +1,222 @@
+package dk.kb.netarchivesuite.solrwayback.parsers;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Buffered stream with line based access to (W)ARC and HTTP headers.
+ * <p>
+ * Lines are located by scanning the internal buffer of the {@link BufferedInputStream} for LF and copied in bulk
+ * to a reusable line buffer. Field names are matched case-insensitively directly on the bytes and only the values
+ * that are needed are converted to Strings. After the headers has been read, the stream is positioned at the first
+ * byte after the last read line, so the binary can be read directly from this stream.
+ * <p>
+ * Headers are decoded as ISO-8859-1, see {@link WarcParser#WARC_HEADER_ENCODING}.
+ * <p>
+ * Not thread safe.
+ */
+public class HeaderLineReader extends BufferedInputStream {
+  private byte[] line = new byte[256];
+  private int length = 0;     // Length of the current line, without line terminator
+  private int byteCount = 0;  // Number of bytes consumed for the current line, including line terminator
+
+  public HeaderLineReader(InputStream in) {
+    super(in);
+  }
+
+  /**
+   * Read the next line into the internal line buffer. Lines are terminated by LF or CRLF.
+   * If EOF is reached before a line terminator, the line holds the bytes read until EOF.
+   * @return false if EOF was reached before any bytes were read, else true.
+   * @throws IOException if the underlying stream could not be read.
+   */
+  public boolean nextLine() throws IOException {
+    length = 0;
+    byteCount = 0;
+    while (true) {
+      if (pos >= count) {
+        if (read() == -1) { // Fills the buffer if possible
+          return byteCount > 0;
+        }
+        pos--; // read() consumed a byte from the freshly filled buffer. Un-read it
+      }
+      final byte[] b = buf;
+      final int start = pos;
+      final int end = count;
+      int i = start;
+      while (i < end && b[i] != '\n') {
+        i++;
+      }
+      append(b, start, i - start);
+      if (i < end) { // Found LF
+        pos = i + 1;
+        byteCount++;
+        if (length > 0 && line[length-1] == '\r') {
+          length--;
+        }
+        return true;
+      }
+      pos = end;
+    }
+  }
+
+  private void append(byte[] b, int offset, int len) {
+    if (length + len > line.length) {
+      byte[] newLine = new byte[Math.max(line.length*2, length + len)];
+      System.arraycopy(line, 0, newLine, 0, length);
+      line = newLine;
+    }
+    System.arraycopy(b, offset, line, length, len);
+    length += len;
+    byteCount += len;
+  }
+
+  /**
+   * @return the number of bytes in the current line, excluding the line terminator.
+   */
+  public int length() {
+    return length;
+  }
+
+  /**
+   * @return true if the current line is empty, signalling end of a header block.
+   */
+  public boolean isEmpty() {
+    return length == 0;
+  }
+
+  /**
+   * @return the number of bytes consumed from the stream for the current line, including the line terminator.
+   */
+  public int getByteCount() {
+    return byteCount;
+  }
+
+  /**
+   * Case-insensitive prefix match for ASCII.
+   * @param prefix the prefix to match, as produced by {@link #field(String)}.
+   * @return true if the current line starts with the given prefix.
+   */
+  public boolean startsWith(byte[] prefix) {
+    if (prefix.length > length) {
+      return false;
+    }
+    for (int i = 0 ; i < prefix.length ; i++) {
+      byte c = line[i];
+      if (c >= 'A' && c <= 'Z') {
+        c += 'a' - 'A';
+      }
+      if (c != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the position of the first occurrence of {@code c} at or after {@code from}, -1 if not present.
+   */
+  public int indexOf(char c, int from) {
+    for (int i = from ; i < length ; i++) {
+      if (line[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @param from start position in the current line.
+   * @param to   end position (exclusive) in the current line.
+   * @return the bytes in the range as a String with leading and trailing whitespace removed.
+   */
+  public String value(int from, int to) {
+    while (from < to && line[from] <= ' ') {
+      from++;
+    }
+    while (to > from && line[to-1] <= ' ') {
+      to--;
+    }
+    return new String(line, from, to-from, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * @param from start position in the current line.
+   * @return the rest of the line as a String with leading and trailing whitespace removed.
+   */
+  public String value(int from) {
+    return value(from, length);
+  }
+
+  /**
+   * Parse a non-negative number, ignoring leading and trailing whitespace.
+   * @param from start position in the current line.
+   * @return the number.
+   * @throws NumberFormatException if the rest of the line is not a number.
+   */
+  public long longValue(int from) {
+    int to = length;
+    while (from < to && line[from] <= ' ') {
+      from++;
+    }
+    while (to > from && line[to-1] <= ' ') {
+      to--;
+    }
+    if (from == to) {
+      throw new NumberFormatException("No number in header line '" + asString() + "'");
+    }
+    long value = 0;
+    for (int i = from ; i < to ; i++) {
+      int digit = line[i] - '0';
+      if (digit < 0 || digit > 9) {
+        throw new NumberFormatException("Illegal number in header line '" + asString() + "'");
+      }
+      value = value*10 + digit;
+    }
+    return value;
+  }
+
+  /**
+   * Extract the status code from a HTTP status line such as {@code HTTP/1.1 302 Object moved}.
+   * @return the status code.
+   * @throws NumberFormatException if the status code could not be parsed.
+   */
+  public int statusCode() {
+    int start = indexOf(' ', 0);
+    if (start == -1) {
+      throw new NumberFormatException("No status code in header line '" + asString() + "'");
+    }
+    start++;
+    int end = indexOf(' ', start);
+    return Integer.parseInt(value(start, end == -1 ? length : end));
+  }
+
+  /**
+   * @return the current line as a String.
+   */
+  public String asString() {
+    return new String(line, 0, length, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Write the current line followed by CRLF to the given stream.
+   * @param out destination for the line.
+   */
+  public void appendTo(ByteArrayOutputStream out) {
+    out.write(line, 0, length);
+    out.write('\r');
+    out.write('\n');
+  }
+
+  /**
+   * @param name a header field name, such as {@code Content-Type:}.
+   * @return the name as lowercase bytes, for use with {@link #startsWith(byte[])}.
+   */
+  public static byte[] field(String name) {
+    return name.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.ISO_8859_1);
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.parsers;
+
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+
+/**
+ * Table of element rules (element → attribute → transformer) that are applied to a JSOUP document in a single
+ * traversal, instead of one {@code doc.select(...)} per rule.
+ * <p>
+ * The rules for any given element are applied in the order they were added. This gives the same result as calling
+ * {@link HtmlParserUrlRewriter#processElement(Document, String, String, UnaryOperator)} and friends once for each
+ * rule, as long as no two rules for the same element uses the same attribute.
+ * <p>
+ * This class is not thread safe.
+ */
+public class HtmlElementRules implements NodeVisitor {
+    private static final String ANY = "*";
+    private static final Rule[] NO_RULES = new Rule[0];
+
+    private final String baseURI;
+    private final List<Rule> rules = new ArrayList<>();
+    private final Map<String, Rule[]> rulesByElement = new HashMap<>();
+
+    /**
+     * @param baseURI the base for resolving relative URLs in regexp-matched content. Typically
+     *                {@code doc.baseUri()} for the document that the rules will be applied to.
+     */
+    public HtmlElementRules(String baseURI) {
+        this.baseURI = baseURI;
+    }
+
+    /**
+     * Add a rule that applies the transformer on the content of the attribute.
+     * See {@link HtmlParserUrlRewriter#processElement(Document, String, String, UnaryOperator)}.
+     * @param element     an HTML element or {@code *} for all elements.
+     * @param attribute   an attribute for the HTML element.
+     *                    If the attribute is null, the content of the element is used.
+     *                    If the attribute is prefixed with {@code abs:}, JSOUP will attempt to make is an absolute URL.
+     * @param transformer takes the content of the attribute and provides the new content.
+     *                    If null is returned, the content will not be changed.
+     * @return the rules, for chaining.
+     */
+    public HtmlElementRules add(String element, String attribute, UnaryOperator<String> transformer) {
+        rules.add(new Rule(element.toLowerCase(Locale.ROOT), attribute, transformer));
+        rulesByElement.clear();
+        return this;
+    }
+
+    /**
+     * Add a rule that applies the regexps to the content of the attribute and the transformer to the resulting URLs.
+     * See {@link HtmlParserUrlRewriter#processElementRegexp(Document, String, String, UnaryOperator, Pattern...)}.
+     * @param element     an HTML element or {@code *} for all elements.
+     * @param attribute   an attribute for the HTML element.
+     *                    If the attribute is null, the content of the element is used.
+     * @param transformer takes the regexp matching content of the attribute and provides the new content.
+     *                    If null is returned, the content will not be changed.
+     * @param regexps     the content of the matching nodes will be matched by the first regexp and {@code .group(1)}
+     *                    will be fed to the next regexp and so forth.
+     * @return the rules, for chaining.
+     */
+    public HtmlElementRules addRegexp(
+            String element, String attribute, UnaryOperator<String> transformer, Pattern... regexps) {
+        return add(element, attribute, HtmlParserUrlRewriter.createRegexpProcessor(baseURI, transformer, regexps));
+    }
+
+    /**
+     * Add a rule for comma and space separated multi value attributes, such as {@code srcset}.
+     * See {@link HtmlParserUrlRewriter#processMultiAttribute(Document, String, String, UnaryOperator)}.
+     * @param element     an HTML element or {@code *} for all elements.
+     * @param attribute   an attribute for the HTML element.
+     * @param transformer takes the sub-content of the attribute and provides the new content.
+     *                    If null is returned, the content will not be changed.
+     * @return the rules, for chaining.
+     */
+    public HtmlElementRules addMultiValue(String element, String attribute, UnaryOperator<String> transformer) {
+        return add(element, attribute, HtmlParserUrlRewriter.createMultiValueProcessor(baseURI, transformer));
+    }
+
+    /**
+     * Apply all rules to all matching elements in the document, using a single traversal.
+     * @param doc a JSOUP document.
+     */
+    public void apply(Document doc) {
+        NodeTraversor.traverse(this, doc);
+    }
+
+    @Override
+    public void head(Node node, int depth) {
+        if (!(node instanceof Element)) {
+            return;
+        }
+        Element element = (Element) node;
+        for (Rule rule: getRules(element.normalName())) {
+            HtmlParserUrlRewriter.processElement(element, rule.attribute, rule.transformer);
+        }
+    }
+
+    @Override
+    public void tail(Node node, int depth) {
+        // Everything is handled in head
+    }
+
+    /**
+     * @param element a lowercase element name.
+     * @return the rules matching the given element, in the order they were added.
+     */
+    Rule[] getRules(String element) {
+        return rulesByElement.computeIfAbsent(element, this::resolveRules);
+    }
+
+    private Rule[] resolveRules(String element) {
+        Rule[] matching = rules.stream()
+                .filter(rule -> ANY.equals(rule.element) || rule.element.equals(element))
+                .toArray(Rule[]::new);
+        return matching.length == 0 ? NO_RULES : matching;
+    }
+
+    static class Rule {
+        final String element;
+        final String attribute;
+        final UnaryOperator<String> transformer;
+
+        Rule(String element, String attribute, UnaryOperator<String> transformer) {
+            this.element = element;
+            this.attribute = attribute;
+            this.transformer = transformer;
+        }
+    }
+}
@@ -159,7 +159,6 @@ public class HtmlParserUrlRewriter {
 		final long preReplaceMS = System.currentTimeMillis()-startMS;
 		long replaceMS = -System.currentTimeMillis();
 
-		final String waybackDate = DateUtils.convertUtcDate2WaybackDate(crawlDate);
 		Document doc = Jsoup.parse(html, url);
 
 		// Collect URLs and resolve archived versions for them 
@@ -177,39 +176,73 @@ public class HtmlParserUrlRewriter {
 		}
 
         // Replace URLs in the document with URLs for archived versions.
+		createRewriteRules(doc.baseUri(), crawlDate, urlReplaceMap).apply(doc);
+
+		replaceMS += System.currentTimeMillis();
+		/*
+		log.debug(String.format(
+				"replaceLinks('%s', %s): Links unique=%d, replaced=%d, not_found=%d. " +
+				"Time total=%dms (resolveHTML=%dms, analysis+adjustment=%dms, resolveResources=%dms)",
+	            url, crawlDate, urlSet.size(), urlReplaceMap.getFoundCount(), urlReplaceMap.getFailCount(),
+				preReplaceMS+replaceMS, preReplaceMS, replaceMS-resolveMS, resolveMS));
+        */
+
+		String html_output= doc.toString();
+		html_output = RewriterBase.unescape(html_output);
+
+		ParseResult res = new ParseResult();
+		res.setReplaced(html_output);
+		res.setNumberOfLinksReplaced(urlReplaceMap.getFoundCount());
+		res.setNumberOfLinksNotFound(urlReplaceMap.getFailCount());
+		return res;
+	}
+
+	/**
+	 * Creates the rules for replacing URLs in a HTML page with URLs for archived versions.
+	 * Shared between the DOM based {@link #replaceLinks(String, String, String, NearestResolver)} and
+	 * {@link HtmlStreamingRewriter}.
+	 * @param baseURI       the base for resolving relative URLs.
+	 * @param crawlDate     the ideal timestamp for the archived versions to link to.
+	 * @param urlReplaceMap archived versions for the normalised URLs on the page.
+	 * @return rules for rewriting a page.
+	 */
+	static HtmlElementRules createRewriteRules(
+			String baseURI, String crawlDate, Map<String, IndexDocShort> urlReplaceMap) {
+		final String waybackDate = DateUtils.convertUtcDate2WaybackDate(crawlDate);
+		HtmlElementRules rules = new HtmlElementRules(baseURI);
 		UnaryOperator<String> rewriterRaw = createTransformer(
 				urlReplaceMap, "downloadRaw", "");
-        processElement(doc, "img",    "abs:src", rewriterRaw);
-        processElement(doc, "img",    "abs:data-src", rewriterRaw); // JQuery convention used for delayed loading of images
-        processElement(doc, "embed",  "abs:src", rewriterRaw);
-        processElement(doc, "source", "abs:src", rewriterRaw);
-		processElement(doc, "script", "abs:src", rewriterRaw);
-		processElement(doc, "body",   "abs:background", rewriterRaw);
-		processElement(doc, "table",  "abs:background", rewriterRaw);
-		processElement(doc, "td",     "abs:background", rewriterRaw);
+        rules.add("img",    "abs:src", rewriterRaw);
+        rules.add("img",    "abs:data-src", rewriterRaw); // JQuery convention used for delayed loading of images
+        rules.add("embed",  "abs:src", rewriterRaw);
+        rules.add("source", "abs:src", rewriterRaw);
+		rules.add("script", "abs:src", rewriterRaw);
+		rules.add("body",   "abs:background", rewriterRaw);
+		rules.add("table",  "abs:background", rewriterRaw);
+		rules.add("td",     "abs:background", rewriterRaw);
 
 		// link elements are mostly used to reference stylesheets, which must be transformed before use
 		UnaryOperator<String> rewriterView = createTransformer(
 				urlReplaceMap, "view", "");
-		processElement(doc, "link", "abs:href", rewriterView);
+		rules.add("link", "abs:href", rewriterView);
 
 		// Don't show SolrWayback bar in frames
 		UnaryOperator<String> rewriterViewNoBar = createTransformer(
 				urlReplaceMap, "view", "&showToolbar=false");
-		processElement(doc, "frame",  "abs:src", rewriterViewNoBar);
-        processElement(doc, "iframe", "abs:src", rewriterViewNoBar);
+		rules.add("frame",  "abs:src", rewriterViewNoBar);
+        rules.add("iframe", "abs:src", rewriterViewNoBar);
 
 		// Links to external resources are not resolved until clicked
 		UnaryOperator<String> rewriterRawNoResolve = (sourceURL) ->
 				PropertiesLoader.WAYBACK_BASEURL + "services/web/" + waybackDate + "/" + sourceURL;
-        processElement(doc, "a",    "abs:href", rewriterRawNoResolve);
-        processElement(doc, "area", "abs:href", rewriterRawNoResolve);
-        processElement(doc, "form", "abs:action", rewriterRawNoResolve);
+        rules.add("a",    "abs:href", rewriterRawNoResolve);
+        rules.add("area", "abs:href", rewriterRawNoResolve);
+        rules.add("form", "abs:action", rewriterRawNoResolve);
 
         // Multi value elements
-        processMultiAttribute(doc, "img", "srcset", rewriterRaw);
-        processMultiAttribute(doc, "img", "data-srcset", rewriterRaw);
-		processMultiAttribute(doc, "source", "srcset", rewriterRaw);
+        rules.addMultiValue("img", "srcset", rewriterRaw);
+        rules.addMultiValue("img", "data-srcset", rewriterRaw);
+		rules.addMultiValue("source", "srcset", rewriterRaw);
 
 		// Full content processing
 		// TODO: Why the raw rewrite? Shouldn't this be view?
@@ -218,44 +251,28 @@ public class HtmlParserUrlRewriter {
 			return sourceURL == null ? null : sourceURL.replace("&", AMPERSAND_REPLACE);
 		};
 		// TODO: Move this to ScriptRewriter
-		processElementRegexp(doc, "style", null, rewriterRawAmpersand, CSS_IMPORT_PATTERN2);
+		rules.addRegexp("style", null, rewriterRawAmpersand, CSS_IMPORT_PATTERN2);
 
-		processElementRegexp(doc, "*", "style", rewriterRaw, STYLE_ELEMENT_BACKGROUND_PATTERN, CSS_URL_PATTERN);
+		rules.addRegexp("*", "style", rewriterRaw, STYLE_ELEMENT_BACKGROUND_PATTERN, CSS_URL_PATTERN);
 
 		// Script content is handled by ScriptRewriter
-		rewriteInlineScripts(doc, crawlDate, urlReplaceMap);
-
-		replaceMS += System.currentTimeMillis();
-		/*
-		log.debug(String.format(
-				"replaceLinks('%s', %s): Links unique=%d, replaced=%d, not_found=%d. " +
-				"Time total=%dms (resolveHTML=%dms, analysis+adjustment=%dms, resolveResources=%dms)",
-	            url, crawlDate, urlSet.size(), urlReplaceMap.getFoundCount(), urlReplaceMap.getFailCount(),
-				preReplaceMS+replaceMS, preReplaceMS, replaceMS-resolveMS, resolveMS));
-        */
+		rules.add("script", null, createInlineScriptRewriter(baseURI, crawlDate, urlReplaceMap));
 
-		String html_output= doc.toString();
-		html_output = RewriterBase.unescape(html_output);
-
-		ParseResult res = new ParseResult();
-		res.setReplaced(html_output);
-		res.setNumberOfLinksReplaced(urlReplaceMap.getFoundCount());
-		res.setNumberOfLinksNotFound(urlReplaceMap.getFailCount());
-		return res;
+		return rules;
 	}
 
-	private static void rewriteInlineScripts(
-			Document doc, String crawlDate, Map<String, IndexDocShort> urlReplaceMap) {
-		processElement(doc, "script", null, (content) -> {
+	private static UnaryOperator<String> createInlineScriptRewriter(
+			String baseURI, String crawlDate, Map<String, IndexDocShort> urlReplaceMap) {
+		return (content) -> {
 			try {
 				ParseResult scriptResult = ScriptRewriter.getInstance().replaceLinks(
-						content, doc.baseUri(), crawlDate, urlReplaceMap, RewriterBase.PACKAGING.inline, true);
+						content, baseURI, crawlDate, urlReplaceMap, RewriterBase.PACKAGING.inline, true);
 				return scriptResult.getReplaced();
 			} catch (Exception e) {
-				log.warn("Exception while parsing inline script for " + doc.baseUri() + " " + crawlDate, e);
+				log.warn("Exception while parsing inline script for " + baseURI + " " + crawlDate, e);
 				return content;
 			}
-		});
+		};
 	}
 
 	/**
@@ -295,43 +312,58 @@ public class HtmlParserUrlRewriter {
      * @return a Set of URLs found on the page.
      */
 	public static HashSet<String> getUrlResourcesForHtmlPage(Document doc, String baseURL) {
-		URLAbsoluter absoluter = new URLAbsoluter(baseURL, true);
         final HashSet<String> urlSet = new HashSet<>();
+		createCollectorRules(doc.baseUri(), baseURL, urlSet).apply(doc);
+        return urlSet;
+	}
+
+	/**
+	 * Creates the rules for collecting URLs for resources on a HTML page.
+	 * Shared between the DOM based {@link #getUrlResourcesForHtmlPage(Document, String)} and
+	 * {@link HtmlStreamingRewriter}.
+	 * @param baseURI the base for resolving relative URLs in attributes, normally {@code doc.baseUri()}.
+	 * @param baseURL the URL for the web page, used for resolving relative URLs in collected content.
+	 * @param urlSet  collected URLs are added to this.
+	 * @return rules for collecting URLs. The rules does not change the content.
+	 */
+	static HtmlElementRules createCollectorRules(String baseURI, String baseURL, Set<String> urlSet) {
+		URLAbsoluter absoluter = new URLAbsoluter(baseURL, true);
         UnaryOperator<String> collector = (String sourceURL) -> {
             urlSet.add(absoluter.apply(sourceURL));
             return null; // We don't want any changes when collecting
         };
 
-        processElement(doc, "img",    "abs:src", collector);
-        processElement(doc, "img",    "abs:data-src", collector);  // JQuery convention used for delayed loading of images
-        processElement(doc, "embed",  "abs:src", collector);
-        processElement(doc, "source", "abs:src", collector);
-		processElement(doc, "script", "abs:src", collector);
+        HtmlElementRules rules = new HtmlElementRules(baseURI);
+        rules.add("img",    "abs:src", collector);
+        rules.add("img",    "abs:data-src", collector);  // JQuery convention used for delayed loading of images
+        rules.add("embed",  "abs:src", collector);
+        rules.add("source", "abs:src", collector);
+		rules.add("script", "abs:src", collector);
 
-		processElement(doc, "body",   "abs:background", collector);
-		processElement(doc, "td",     "abs:background", collector);
-		processElement(doc, "table",  "abs:background", collector);
-		processElement(doc, "area",   "abs:href", collector); // Why is this collected? It is not replaced later on
+		rules.add("body",   "abs:background", collector);
+		rules.add("td",     "abs:background", collector);
+		rules.add("table",  "abs:background", collector);
+		rules.add("area",   "abs:href", collector); // Why is this collected? It is not replaced later on
 
-		processElement(doc, "link",   "abs:href", collector);
+		rules.add("link",   "abs:href", collector);
 
-		processElement(doc, "frame",  "abs:src", collector);
-        processElement(doc, "iframe", "abs:src", collector);
+		rules.add("frame",  "abs:src", collector);
+        rules.add("iframe", "abs:src", collector);
         
-		processMultiAttribute(doc, "img", "srcset", collector);
-		processMultiAttribute(doc, "img", "data-srcset", collector);
-		processMultiAttribute(doc, "source", "srcset", collector);
+		rules.addMultiValue("img", "srcset", collector);
+		rules.addMultiValue("img", "data-srcset", collector);
+		rules.addMultiValue("source", "srcset", collector);
 
-		processElementRegexp(doc, "style", null, collector, CSS_IMPORT_PATTERN2);
-		processElementRegexp(doc, "*", "style", collector, STYLE_ELEMENT_BACKGROUND_PATTERN, CSS_URL_PATTERN);
+		rules.addRegexp("style", null, collector, CSS_IMPORT_PATTERN2);
+		rules.addRegexp("*", "style", collector, STYLE_ELEMENT_BACKGROUND_PATTERN, CSS_URL_PATTERN);
 
 		// Get URLs from the ScriptRewriter
-		processElement(doc, "script", null, (content) -> {
+		rules.add("script", null, (content) -> {
 			urlSet.addAll(ScriptRewriter.getInstance().getResourceURLs(content, baseURL));
 			return null;
 		});
 
-        return urlSet;
+		return rules;
 	}
 
 
@@ -414,14 +446,24 @@ public class HtmlParserUrlRewriter {
 	 */
 	public static void processElementRegexp(
 			Document doc, String element, String attribute, UnaryOperator<String> transformer, Pattern... regexps) {
-		final URLAbsoluter absoluter = new URLAbsoluter(doc.baseUri(), true);
+		processElement(doc, element, attribute, createRegexpProcessor(doc.baseUri(), transformer, regexps));
+	}
+
+	/**
+	 * Creates a processor that applies the regexps in order and feeds the {@code .group(1)}-matches from the last
+	 * one, made absolute using baseURI, to the transformer.
+	 * See {@link #processElementRegexp(Document, String, String, UnaryOperator, Pattern...)}.
+	 */
+	static UnaryOperator<String> createRegexpProcessor(
+			String baseURI, UnaryOperator<String> transformer, Pattern... regexps) {
+		final URLAbsoluter absoluter = new URLAbsoluter(baseURI, true);
 		UnaryOperator<String> processor = url ->
 				// TODO: Should canonicalization not be the responsibility of the collector?
 				transformer.apply(absoluter.apply(url));
 		for (int i = regexps.length-1 ; i >= 0 ; i--) {
 			processor = new RegexpReplacer(regexps[i], processor);
 		}
-		processElement(doc, element, attribute, processor);
+		return processor;
 	}
 
     /**
@@ -440,17 +482,25 @@ public class HtmlParserUrlRewriter {
 	public static void processElement(
 	        Document doc, String element, String attribute, UnaryOperator<String> transformer) {
 		for (Element e : doc.select(element)) {
-			String content = attribute == null || attribute.isEmpty() ? e.data() : e.attr(attribute);
-			if (content == null  || content.trim().isEmpty()){
-				continue;
-			}
-            String newContent = transformer.apply(content);
-			if (newContent != null && !newContent.equals(content)) {
-				if (attribute == null || attribute.isEmpty()) {
-					e.html(newContent.replace("\n", RewriterBase.NEWLINE_PLACEHOLDER));
-				} else {
-					e.attr(attribute.replaceFirst("abs:", ""), newContent);
-				}
+			processElement(e, attribute, transformer);
+		}
+	}
+
+	/**
+	 * Applies the transformer on the content of the attribute for a single element.
+	 * See {@link #processElement(Document, String, String, UnaryOperator)}.
+	 */
+	static void processElement(Element e, String attribute, UnaryOperator<String> transformer) {
+		String content = attribute == null || attribute.isEmpty() ? e.data() : e.attr(attribute);
+		if (content == null  || content.trim().isEmpty()){
+			return;
+		}
+		String newContent = transformer.apply(content);
+		if (newContent != null && !newContent.equals(content)) {
+			if (attribute == null || attribute.isEmpty()) {
+				e.html(newContent.replace("\n", RewriterBase.NEWLINE_PLACEHOLDER));
+			} else {
+				e.attr(attribute.replaceFirst("abs:", ""), newContent);
 			}
 		}
 	}
@@ -468,10 +518,19 @@ public class HtmlParserUrlRewriter {
 
 	public static void processMultiAttribute(
 	        Document doc, String element, String attribute, UnaryOperator<String> transformer) {
-		URLAbsoluter absoluter = new URLAbsoluter(doc.baseUri(), false);
-		processElementRegexp(doc, element, attribute,
-							 url ->transformer.apply(absoluter.apply(url)),
-							 COMMA_SEPARATED_PATTERN, SPACE_SEPARATED_PATTERN);
+		processElement(doc, element, attribute, createMultiValueProcessor(doc.baseUri(), transformer));
+	}
+
+	/**
+	 * Creates a processor that splits the content on {@code ,} and subsequently {@code } (space) and applies the
+	 * transformer on the extracted URLs, made absolute using baseURI.
+	 * See {@link #processMultiAttribute(Document, String, String, UnaryOperator)}.
+	 */
+	static UnaryOperator<String> createMultiValueProcessor(String baseURI, UnaryOperator<String> transformer) {
+		URLAbsoluter absoluter = new URLAbsoluter(baseURI, false);
+		return createRegexpProcessor(baseURI,
+									 url ->transformer.apply(absoluter.apply(url)),
+									 COMMA_SEPARATED_PATTERN, SPACE_SEPARATED_PATTERN);
 	}
 	private static final Pattern COMMA_SEPARATED_PATTERN = Pattern.compile("([^,]+),?");
 	private static final Pattern SPACE_SEPARATED_PATTERN = Pattern.compile("([^ ]+) ?.*");
@@ -0,0 +1,629 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.parsers;
+
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoaderWeb;
+import dk.kb.netarchivesuite.solrwayback.service.dto.IndexDocShort;
+import dk.kb.netarchivesuite.solrwayback.util.CountingMap;
+import org.jsoup.internal.StringUtil;
+import org.jsoup.parser.Parser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Token level alternative to {@link HtmlParserUrlRewriter#replaceLinks(String, String, String,
+ * HtmlParserUrlRewriter.NearestResolver)} for very large pages.
+ * <p>
+ * Instead of building a JSOUP DOM for the full page, the HTML is tokenised while it is read and only the start tags
+ * and the content of {@code <script>} and {@code <style>} elements are held in memory. The same rules as the DOM
+ * based rewriter are used (see {@link HtmlParserUrlRewriter#createCollectorRules(String, String, Set)} and
+ * {@link HtmlParserUrlRewriter#createRewriteRules(String, String, java.util.Map)}), so the rewritten URLs are the
+ * same. Everything that is not rewritten is passed through as-is, where the DOM based rewriter normalises the markup.
+ * <p>
+ * The content is read twice: {@link #resolve(HtmlParserUrlRewriter.NearestResolver)} collects and resolves the URLs
+ * and {@link #write(Writer, String, String)} rewrites the content to the given Writer, optionally injecting HTML
+ * (typically the toolbar) after the {@code <head>} and {@code <body>} start tags.
+ * <p>
+ * This class is not thread safe.
+ */
+public class HtmlStreamingRewriter {
+    private static final Logger log = LoggerFactory.getLogger(HtmlStreamingRewriter.class);
+
+    // Elements where the content is not HTML. Matches the raw text, RC data and script data elements in JSOUP
+    private static final Set<String> RAW_TEXT_ELEMENTS = new HashSet<>(Arrays.asList(
+            "script", "style", "textarea", "title", "xmp", "iframe", "noembed", "noframes"));
+    // Elements that are placed in the head by the HTML parsing algorithm when there is no explicit <head>
+    private static final Set<String> HEAD_ELEMENTS = new HashSet<>(Arrays.asList(
+            "html", "head", "base", "basefont", "bgsound", "link", "meta", "title", "style", "script", "noscript",
+            "template"));
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Callable<Reader> content;
+    private final String url;
+    private final String crawlDate;
+
+    private String baseURI;
+    private CountingMap<String, IndexDocShort> urlReplaceMap = null;
+
+    /**
+     * @param content   provides the HTML. Called once for {@link #resolve(HtmlParserUrlRewriter.NearestResolver)} and
+     *                  once for {@link #write(Writer, String, String)}. The Readers are closed after use.
+     * @param url       the URL for the HTML (needed for resolving relative links).
+     * @param crawlDate the ideal timestamp for the archived versions to link to.
+     */
+    public HtmlStreamingRewriter(Callable<Reader> content, String url, String crawlDate) {
+        this.content = content;
+        this.url = url;
+        this.crawlDate = crawlDate;
+        this.baseURI = url;
+    }
+
+    /**
+     * Replaces links and other URLs with the archived versions that are closest to the links in the html in time.
+     * Convenience method that is equivalent to
+     * {@link HtmlParserUrlRewriter#replaceLinks(String, String, String, HtmlParserUrlRewriter.NearestResolver)}
+     * but does not normalise the HTML.
+     * @param html the web page to use as basis for replacing links.
+     * @param url the URL for the html (needed for resolving relative links).
+     * @param crawlDate the ideal timestamp for the archived versions to link to.
+     * @param nearestResolver handles url -> archived-resource lookups based on smallest temporal distance to crawlDate.
+     * @throws Exception if link resolving failed.
+     */
+    public static ParseResult replaceLinks(
+            String html, String url, String crawlDate, HtmlParserUrlRewriter.NearestResolver nearestResolver)
+            throws Exception {
+        HtmlStreamingRewriter rewriter = new HtmlStreamingRewriter(() -> new StringReader(html), url, crawlDate);
+        rewriter.resolve(nearestResolver);
+        StringWriter sw = new StringWriter(html.length());
+        ParseResult result = rewriter.write(sw, null, null);
+        result.setReplaced(sw.toString());
+        return result;
+    }
+
+    /**
+     * Collect URLs for resources on the page, intended for later replacement with links to archived versions.
+     * Streaming equivalent to {@link HtmlParserUrlRewriter#getUrlResourcesForHtmlPage(org.jsoup.nodes.Document, String)}.
+     * @return a Set of URLs found on the page.
+     * @throws Exception if the content could not be read.
+     */
+    public Set<String> getUrlResources() throws Exception {
+        Set<String> urlSet = new HashSet<>();
+        String base = collect(url, urlSet);
+        if (!base.equals(baseURI)) {
+            // A <base href="..."> was encountered. It applies to the full page, also the URLs before it
+            log.debug("getUrlResources(): Re-collecting URLs for '{}' with base '{}'", url, base);
+            urlSet.clear();
+            collect(base, urlSet);
+            baseURI = base;
+        }
+        return urlSet;
+    }
+
+    /**
+     * Collects the URLs on the page and resolves archived versions for them.
+     * Must be called before {@link #write(Writer, String, String)}.
+     * @param nearestResolver handles url -> archived-resource lookups based on smallest temporal distance to crawlDate.
+     * @return the number of unique resolved and unresolved URLs. The content is not set.
+     * @throws Exception if the content could not be read or link resolving failed.
+     */
+    public ParseResult resolve(HtmlParserUrlRewriter.NearestResolver nearestResolver) throws Exception {
+        final long startMS = System.currentTimeMillis();
+        ParseResult result = new ParseResult();
+        Set<String> urlSet = getUrlResources();
+        result.addTiming("collectURLs", System.currentTimeMillis()-startMS);
+
+        final long resolveMS = System.currentTimeMillis();
+        List<IndexDocShort> docs = nearestResolver.findNearestHarvestTime(urlSet, crawlDate);
+        result.addTiming("findNearest", System.currentTimeMillis()-resolveMS);
+
+        urlReplaceMap = new CountingMap<>();
+        for (IndexDocShort indexDoc: docs){
+            urlReplaceMap.put(indexDoc.getUrl_norm(), indexDoc);
+        }
+        result.setNumberOfLinksReplaced(urlReplaceMap.size());
+        result.setNumberOfLinksNotFound(Math.max(0, urlSet.size()-urlReplaceMap.size()));
+        return result;
+    }
+
+    /**
+     * Writes the page with links to archived versions instead of live web versions.
+     * @param out           destination for the rewritten page. This is flushed but not closed.
+     * @param headInjection if not null, this is written just after the {@code <head>} start tag. If there is no
+     *                      {@code <head>}, it is written before the first content that does not belong in the head,
+     *                      matching where a DOM parser would place the implied head.
+     * @param bodyInjection if not null, this is written just after the {@code <body>} start tag or at the end if
+     *                      there is no body.
+     * @return the number of replaced links and links that could not be resolved. The content is not set.
+     * @throws Exception if the content could not be read or written.
+     */
+    public ParseResult write(Writer out, String headInjection, String bodyInjection) throws Exception {
+        if (urlReplaceMap == null) {
+            throw new IllegalStateException("resolve(...) must be called before write(...)");
+        }
+        final long startMS = System.currentTimeMillis();
+        Tokenizer tokenizer = new Tokenizer(
+                HtmlParserUrlRewriter.createRewriteRules(baseURI, crawlDate, urlReplaceMap), baseURI, out,
+                headInjection, bodyInjection);
+        try (Reader reader = content.call()) {
+            tokenizer.process(reader);
+        }
+        out.flush();
+
+        ParseResult result = new ParseResult();
+        result.addTiming("replaceURLs", System.currentTimeMillis()-startMS);
+        result.setNumberOfLinksReplaced(urlReplaceMap.getFoundCount());
+        result.setNumberOfLinksNotFound(urlReplaceMap.getFailCount());
+        return result;
+    }
+
+    /**
+     * Collects URLs using the given base for relative URLs in attributes.
+     * @return the base for the page: The first {@code <base href="...">} if present, else the given base.
+     */
+    private String collect(String base, Set<String> urlSet) throws Exception {
+        Tokenizer tokenizer = new Tokenizer(
+                HtmlParserUrlRewriter.createCollectorRules(base, url, urlSet), base, null, null, null);
+        try (Reader reader = content.call()) {
+            tokenizer.process(reader);
+        }
+        return tokenizer.documentBase == null ? base : tokenizer.documentBase;
+    }
+
+    /**
+     * Single pass HTML tokenizer that applies {@link HtmlElementRules} to start tags and to the content of raw text
+     * elements. Everything else is copied verbatim to the output.
+     */
+    private static class Tokenizer {
+        private final HtmlElementRules rules;
+        private final String baseURI;
+        private final Writer out; // null means collect only
+        private String headInjection;
+        private String bodyInjection;
+        private boolean frameset = false;
+
+        private Input in;
+        private final StringBuilder tag = new StringBuilder();
+        private final List<Attribute> attributes = new ArrayList<>();
+        String documentBase = null;
+
+        Tokenizer(HtmlElementRules rules, String baseURI, Writer out, String headInjection, String bodyInjection) {
+            this.rules = rules;
+            this.baseURI = baseURI;
+            this.out = out;
+            this.headInjection = headInjection;
+            this.bodyInjection = bodyInjection;
+        }
+
+        void process(Reader reader) throws IOException {
+            in = new Input(reader);
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c != '<') {
+                    if (headInjection != null && !isWhitespace(c)) {
+                        writePendingHead(); // Text implies the body
+                    }
+                    write(c);
+                    continue;
+                }
+                int next = in.peek(0);
+                if (next == '!') {
+                    if (in.peek(1) == '-' && in.peek(2) == '-') {
+                        write('<');
+                        copyUntil("-->", 3); // Skip past "!--" before looking for the end
+                    } else {
+                        write('<');
+                        copyUntil(">", 0);
+                    }
+                } else if (next == '?' || next == '/') {
+                    if (headInjection != null && next == '/' &&
+                        (isEndTagName(0, "head") || isEndTagName(0, "body") || isEndTagName(0, "html"))) {
+                        writePendingHead();
+                    }
+                    write('<');
+                    copyUntil(">", 0);
+                } else if (isLetter(next)) {
+                    startTag();
+                } else {
+                    writePendingHead(); // Stray '<' is text
+                    write(c);
+                }
+            }
+            writePendingHead();
+            if (bodyInjection != null && !frameset) {
+                write(bodyInjection);
+            }
+        }
+
+        /**
+         * Parses a start tag, starting just after {@code <}, applies rules to the attributes and writes the tag.
+         */
+        private void startTag() throws IOException {
+            tag.setLength(0);
+            attributes.clear();
+            tag.append('<');
+            int c;
+            while ((c = in.peek(0)) != -1 && !isWhitespace(c) && c != '/' && c != '>') {
+                tag.append((char) in.read());
+            }
+            final String name = tag.substring(1).toLowerCase(Locale.ROOT);
+
+            while (true) {
+                while ((c = in.peek(0)) != -1 && isWhitespace(c)) {
+                    tag.append((char) in.read());
+                }
+                if (c == -1) { // EOF inside tag: Pass through as-is
+                    write(tag);
+                    return;
+                }
+                if (c == '>') {
+                    tag.append((char) in.read());
+                    break;
+                }
+                if (c == '/') {
+                    tag.append((char) in.read());
+                    continue;
+                }
+                parseAttribute();
+            }
+
+            HtmlElementRules.Rule[] elementRules = rules.getRules(name);
+            if ("base".equals(name) && documentBase == null) {
+                Attribute href = getAttribute("href");
+                if (href != null) {
+                    String resolved = StringUtil.resolve(baseURI, href.value);
+                    if (!resolved.isEmpty()) {
+                        documentBase = resolved;
+                    }
+                }
+            }
+            applyAttributeRules(elementRules);
+            if (!HEAD_ELEMENTS.contains(name)) {
+                writePendingHead();
+            }
+            writeTag();
+
+            if ("head".equals(name) && headInjection != null) {
+                write(headInjection);
+                headInjection = null;
+            } else if ("body".equals(name) && bodyInjection != null) {
+                write(bodyInjection);
+                bodyInjection = null;
+            } else if ("frameset".equals(name)) {
+                frameset = true;
+            } else if ("plaintext".equals(name)) {
+                copyUntil(null, 0);
+            }
+            if (RAW_TEXT_ELEMENTS.contains(name)) {
+                rawText(name, elementRules);
+            }
+        }
+
+        private void parseAttribute() throws IOException {
+            Attribute attribute = new Attribute();
+            int nameStart = tag.length();
+            int c;
+            tag.append((char) in.read()); // The first character is always part of the name, even if it is '='
+            while ((c = in.peek(0)) != -1 && !isWhitespace(c) && c != '/' && c != '>' && c != '=') {
+                tag.append((char) in.read());
+            }
+            attribute.name = tag.substring(nameStart).toLowerCase(Locale.ROOT);
+            attribute.valueStart = tag.length();
+            attribute.valueEnd = tag.length();
+
+            int ws = 0;
+            while (isWhitespace(in.peek(ws))) {
+                ws++;
+            }
+            if (in.peek(ws) != '=') { // No value
+                attributes.add(attribute);
+                return;
+            }
+            for (int i = 0 ; i <= ws ; i++) { // Whitespace and '='
+                tag.append((char) in.read());
+            }
+            while ((c = in.peek(0)) != -1 && isWhitespace(c)) {
+                tag.append((char) in.read());
+            }
+            attribute.valueStart = tag.length();
+            attribute.hasValue = true;
+            if (c == '"' || c == '\'') {
+                int quote = in.read();
+                tag.append((char) quote);
+                while ((c = in.read()) != -1 && c != quote) {
+                    tag.append((char) c);
+                }
+                attribute.value = Parser.unescapeEntities(tag.substring(attribute.valueStart+1), true);
+                if (c != -1) {
+                    tag.append((char) c);
+                }
+            } else {
+                while ((c = in.peek(0)) != -1 && !isWhitespace(c) && c != '>') {
+                    tag.append((char) in.read());
+                }
+                attribute.value = Parser.unescapeEntities(tag.substring(attribute.valueStart), true);
+            }
+            attribute.valueEnd = tag.length();
+            attributes.add(attribute);
+        }
+
+        /**
+         * Mirrors {@link HtmlParserUrlRewriter#processElement(org.jsoup.nodes.Element, String,
+         * java.util.function.UnaryOperator)} for attributes.
+         */
+        private void applyAttributeRules(HtmlElementRules.Rule[] elementRules) {
+            for (HtmlElementRules.Rule rule: elementRules) {
+                if (rule.attribute == null || rule.attribute.isEmpty()) {
+                    continue; // Content rules are handled by rawText
+                }
+                boolean abs = rule.attribute.startsWith("abs:");
+                Attribute attribute = getAttribute(abs ? rule.attribute.substring(4) : rule.attribute);
+                if (attribute == null) {
+                    continue;
+                }
+                String content = abs ? StringUtil.resolve(baseURI, attribute.value) : attribute.value;
+                if (content == null || content.trim().isEmpty()) {
+                    continue;
+                }
+                String newContent = rule.transformer.apply(content);
+                if (newContent != null && !newContent.equals(content)) {
+                    attribute.value = newContent;
+                    attribute.changed = true;
+                }
+            }
+        }
+
+        /**
+         * @return the first attribute with the given name or null if it is not present.
+         */
+        private Attribute getAttribute(String name) {
+            for (Attribute attribute: attributes) {
+                if (attribute.name.equals(name)) {
+                    return attribute;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Writes the start tag, with the values of changed attributes replaced.
+         */
+        private void writeTag() throws IOException {
+            if (out == null) {
+                return;
+            }
+            int pos = 0;
+            for (Attribute attribute: attributes) {
+                if (!attribute.changed) {
+                    continue;
+                }
+                out.append(tag, pos, attribute.valueStart);
+                if (!attribute.hasValue) {
+                    out.write('=');
+                }
+                out.write('"');
+                out.write(attribute.value.replace("&", "&amp;").replace("\"", "&quot;"));
+                out.write('"');
+                pos = attribute.valueEnd;
+            }
+            out.append(tag, pos, tag.length());
+        }
+
+        /**
+         * Handles the content of a raw text element, such as {@code <script>}, up to the end tag.
+         * Mirrors {@link HtmlParserUrlRewriter#processElement(org.jsoup.nodes.Element, String,
+         * java.util.function.UnaryOperator)} for element content.
+         */
+        private void rawText(String name, HtmlElementRules.Rule[] elementRules) throws IOException {
+            boolean hasContentRules = false;
+            for (HtmlElementRules.Rule rule: elementRules) {
+                hasContentRules |= rule.attribute == null || rule.attribute.isEmpty();
+            }
+            StringBuilder content = hasContentRules ? new StringBuilder() : null;
+            int c;
+            while (!isEndTag(name) && (c = in.read()) != -1) {
+                if (content == null) {
+                    write(c);
+                } else if (content.length() < PropertiesLoaderWeb.WARC_ENTRY_TEXT_MAX_CHARACTERS) {
+                    content.append((char) c);
+                } else { // Too large to process: Pass the rest through as-is
+                    log.debug("rawText: Content of <{}> exceeds {} characters and will not be rewritten",
+                              name, PropertiesLoaderWeb.WARC_ENTRY_TEXT_MAX_CHARACTERS);
+                    write(content);
+                    write(c);
+                    content = null;
+                }
+            }
+            if (content == null) {
+                return;
+            }
+            String data = content.toString();
+            if (data.trim().isEmpty()) {
+                write(data);
+                return;
+            }
+            boolean changed = false;
+            for (HtmlElementRules.Rule rule: elementRules) {
+                if (rule.attribute != null && !rule.attribute.isEmpty()) {
+                    continue;
+                }
+                String newData = rule.transformer.apply(data);
+                if (newData != null && !newData.equals(data)) {
+                    data = newData;
+                    changed = true;
+                }
+            }
+            write(changed ? RewriterBase.unescape(data) : data);
+        }
+
+        /**
+         * Writes the head injection if it has not been written yet.
+         */
+        private void writePendingHead() throws IOException {
+            if (headInjection != null) {
+                write(headInjection);
+                headInjection = null;
+            }
+        }
+
+        /**
+         * @return true if the input is positioned at {@code </name} followed by whitespace, {@code /} or {@code >}.
+         */
+        private boolean isEndTag(String name) throws IOException {
+            return in.peek(0) == '<' && isEndTagName(1, name);
+        }
+
+        /**
+         * @return true if the input at the given look ahead offset is {@code /name} followed by whitespace,
+         *         {@code /} or {@code >}.
+         */
+        private boolean isEndTagName(int offset, String name) throws IOException {
+            if (in.peek(offset) != '/') {
+                return false;
+            }
+            for (int i = 0 ; i < name.length() ; i++) {
+                if (Character.toLowerCase(in.peek(offset+1+i)) != name.charAt(i)) {
+                    return false;
+                }
+            }
+            int after = in.peek(offset+1+name.length());
+            return after == -1 || after == '/' || after == '>' || isWhitespace(after);
+        }
+
+        /**
+         * Copies the input to the output until and including the terminator.
+         * @param terminator the String to look for. If null, the rest of the input is copied.
+         * @param skip the number of characters to copy before looking for the terminator.
+         */
+        private void copyUntil(String terminator, int skip) throws IOException {
+            int c;
+            for (int i = 0 ; i < skip && (c = in.read()) != -1 ; i++) {
+                write(c);
+            }
+            if (terminator == null) {
+                while ((c = in.read()) != -1) {
+                    write(c);
+                }
+                return;
+            }
+            final int length = terminator.length();
+            final char[] tail = new char[length]; // The last copied characters, used as a ring
+            long count = 0;
+            while ((c = in.read()) != -1) {
+                write(c);
+                tail[(int) (count++ % length)] = (char) c;
+                if (count >= length && endsWith(tail, count, terminator)) {
+                    return;
+                }
+            }
+        }
+
+        private static boolean endsWith(char[] tail, long count, String terminator) {
+            for (int i = 0 ; i < terminator.length() ; i++) {
+                if (tail[(int) ((count - terminator.length() + i) % tail.length)] != terminator.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void write(int c) throws IOException {
+            if (out != null) {
+                out.write(c);
+            }
+        }
+
+        private void write(CharSequence chars) throws IOException {
+            if (out != null) {
+                out.append(chars);
+            }
+        }
+
+        private static boolean isLetter(int c) {
+            return ('a' <= c && c <= 'z') || ('A' <= c && c <= 'Z');
+        }
+
+        private static boolean isWhitespace(int c) {
+            return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+        }
+    }
+
+    private static class Attribute {
+        String name;
+        String value = "";
+        boolean hasValue = false;
+        boolean changed = false;
+        int valueStart; // Position in tag, including quotes
+        int valueEnd;
+    }
+
+    /**
+     * Buffered Reader wrapper with look ahead.
+     */
+    private static class Input {
+        private final Reader reader;
+        private final char[] buffer = new char[BUFFER_SIZE];
+        private int pos = 0;
+        private int limit = 0;
+
+        Input(Reader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * @return the next character or -1 if EOF.
+         */
+        int read() throws IOException {
+            return fill(1) ? buffer[pos++] : -1;
+        }
+
+        /**
+         * @param ahead the number of characters to look ahead. Must be less than {@link #BUFFER_SIZE}.
+         * @return the character at the given position after the current position or -1 if EOF.
+         */
+        int peek(int ahead) throws IOException {
+            return fill(ahead+1) ? buffer[pos+ahead] : -1;
+        }
+
+        private boolean fill(int needed) throws IOException {
+            if (limit-pos >= needed) {
+                return true;
+            }
+            System.arraycopy(buffer, pos, buffer, 0, limit-pos);
+            limit -= pos;
+            pos = 0;
+            while (limit < needed) {
+                int read = reader.read(buffer, limit, buffer.length-limit);
+                if (read == -1) {
+                    return false;
+                }
+                limit += read;
+            }
+            return true;
+        }
+    }
+}
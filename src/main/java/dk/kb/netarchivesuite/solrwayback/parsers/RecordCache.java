@@ -0,0 +1,240 @@
+package dk.kb.netarchivesuite.solrwayback.parsers;
+
+import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte bounded LRU cache of small (W)ARC records, keyed by {@code (source_file_path, offset)}. Both the parsed
+ * headers and the raw binary are cached, so a cache hit does not touch the (W)ARC at all.
+ * <p>
+ * Admission is frequency based: The number of requests is tracked for recently requested records. A record is only
+ * admitted if it has been requested at least twice and, if the cache is full, at least as often as the least
+ * recently used record that would be evicted. The counts are halved periodically, so that old popularity fades.
+ * This keeps one-off requests from pushing out popular records such as shared CSS, JavaScript and logos.
+ * Bulk access, such as exports of full search results, should not offer records at all.
+ * <p>
+ * Entries returned from the cache are copies and can be modified freely.
+ */
+public class RecordCache {
+  private static final Logger log = LoggerFactory.getLogger(RecordCache.class);
+
+  private final long maxBytes;
+  private final int maxRecordBytes;
+  private final int sampleSize;
+
+  private final LinkedHashMap<String, ArcEntry> cache = new LinkedHashMap<>(16, 0.75f, true); // Access order
+  private long cachedBytes = 0;
+  // Request counts for recently requested records, cached or not. Used for admission. Guarded by cache
+  private final Map<String, Integer> frequencies = new HashMap<>();
+  private int samples = 0; // Number of counted requests since last aging
+
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong misses = new AtomicLong(0);
+  private final AtomicLong admissions = new AtomicLong(0);
+  private final AtomicLong evictions = new AtomicLong(0);
+
+  /**
+   * @param maxBytes       the maximum number of binary bytes to hold in the cache. 0 disables the cache.
+   * @param maxRecordBytes records with binaries larger than this are not cached.
+   */
+  public RecordCache(long maxBytes, int maxRecordBytes) {
+    this.maxBytes = maxBytes;
+    this.maxRecordBytes = maxRecordBytes;
+    // Enough to remember records for a few times the capacity of the cache, assuming 10KB records.
+    // This also bounds the number of tracked frequencies
+    this.sampleSize = (int) Math.min(1000000, Math.max(1000, maxBytes / 10240 * 4));
+  }
+
+  /**
+   * @param path   the source_file_path for the record.
+   * @param offset the offset of the record in the (W)ARC.
+   * @return a copy of the cached entry with the binary in memory or null if the record is not cached.
+   */
+  public ArcEntry get(String path, long offset) {
+    if (maxBytes <= 0) {
+      return null;
+    }
+    ArcEntry cached;
+    synchronized (cache) {
+      String key = key(path, offset);
+      cached = cache.get(key);
+      if (cached != null) {
+        increment(key);
+      }
+    }
+    if (cached == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return cached.copy();
+  }
+
+  /**
+   * Offer a freshly parsed entry to the cache. If the binary of the entry is small enough and the record has been
+   * requested often enough, the binary is read into memory and the entry is cached. Only offer entries for
+   * individual requests, such as playback, as each offer counts as a request for the record.
+   * <p>
+   * The given entry must have been parsed with retained binary as the binary will be read at most once.
+   * @param path   the source_file_path for the record.
+   * @param offset the offset of the record in the (W)ARC.
+   * @param entry  a freshly parsed entry.
+   * @return the given entry, possibly with the binary loaded into memory.
+   */
+  public ArcEntry offer(String path, long offset, ArcEntry entry) {
+    if (maxBytes <= 0 || entry.getBinaryArraySize() < 0 || entry.getBinaryArraySize() > maxRecordBytes) {
+      return entry;
+    }
+    String key = key(path, offset);
+    synchronized (cache) {
+      if (!admit(key, entry.getBinaryArraySize())) {
+        return entry;
+      }
+    }
+
+    byte[] binary;
+    try (InputStream in = entry.getBinaryRaw()) {
+      binary = IOUtils.toByteArray(in);
+    } catch (IOException e) {
+      // Typically a truncated record. The entry will read the binary from the (W)ARC again if requested
+      log.debug("Unable to read binary for caching of record " + key + ": " + e.getMessage());
+      return entry;
+    }
+    entry.setCachedBinary(binary);
+    admissions.incrementAndGet();
+    ArcEntry cached = entry.copy();
+    synchronized (cache) {
+      ArcEntry old = cache.put(key, cached);
+      if (old != null) {
+        cachedBytes -= old.getBinaryArraySize();
+      }
+      cachedBytes += binary.length;
+      Iterator<ArcEntry> eldest = cache.values().iterator();
+      while (cachedBytes > maxBytes && eldest.hasNext()) {
+        cachedBytes -= eldest.next().getBinaryArraySize();
+        eldest.remove();
+        evictions.incrementAndGet();
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Count the request and decide whether the record should be cached. Must be called while holding the lock.
+   * @return true if the record has been requested at least twice and at least as often as the records that would
+   *         be evicted to make room for it.
+   */
+  private boolean admit(String key, long size) {
+    int frequency = increment(key);
+    if (frequency < 2) {
+      return false;
+    }
+    long needed = cachedBytes + size - maxBytes;
+    Iterator<Map.Entry<String, ArcEntry>> eldest = cache.entrySet().iterator();
+    while (needed > 0 && eldest.hasNext()) {
+      Map.Entry<String, ArcEntry> victim = eldest.next();
+      if (frequencies.getOrDefault(victim.getKey(), 0) > frequency) {
+        return false;
+      }
+      needed -= victim.getValue().getBinaryArraySize();
+    }
+    return true;
+  }
+
+  /**
+   * Increment the request count for the key. When the number of counted requests reaches the sample size, all
+   * counts are halved and records that reach zero are forgotten. Must be called while holding the lock.
+   * @return the updated count for the key.
+   */
+  private int increment(String key) {
+    int frequency = frequencies.merge(key, 1, Integer::sum);
+    if (++samples >= sampleSize) {
+      frequencies.replaceAll((k, count) -> count / 2);
+      frequencies.values().removeIf(count -> count == 0);
+      samples /= 2;
+    }
+    return frequency;
+  }
+
+  private String key(String path, long offset) {
+    return path + "#" + offset;
+  }
+
+  /**
+   * Remove all records from the cache. Statistics are not cleared.
+   */
+  public void clear() {
+    synchronized (cache) {
+      cache.clear();
+      cachedBytes = 0;
+      frequencies.clear();
+      samples = 0;
+    }
+  }
+
+  public int size() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+  /**
+   * The number of binary bytes held in the cache.
+   */
+  public long getCachedBytes() {
+    synchronized (cache) {
+      return cachedBytes;
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return hits / (hits + misses) or 0 if there has been no requests.
+   */
+  public double getHitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0 : h * 1.0 / total;
+  }
+
+  /**
+   * The number of records that has been added to the cache.
+   */
+  public long getAdmissions() {
+    return admissions.get();
+  }
+
+  /**
+   * The number of records that has been removed from the cache to stay within max bytes.
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.ROOT,
+                         "RecordCache(records=%d, bytes=%d/%d, maxRecordBytes=%d, hitRate=%.2f, hits=%d, " +
+                         "misses=%d, admissions=%d, evictions=%d)",
+                         size(), getCachedBytes(), maxBytes, maxRecordBytes, getHitRate(), hits.get(),
+                         misses.get(), admissions.get(), evictions.get());
+  }
+}
@@ -0,0 +1,244 @@
+package dk.kb.netarchivesuite.solrwayback.parsers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Locates the boundaries of the gzip member holding a record in a {@code .warc.gz}.
+ * <p>
+ * Records in a {@code .warc.gz} are normally stored as one gzip member per record. When such a member is exported
+ * to a gzipped WARC, the original compressed bytes can be copied directly instead of being inflated, buffered and
+ * deflated again. Finding the end of the member requires inflating it, but inflating is far cheaper than deflating
+ * and the inflated bytes are discarded as they are checked.
+ */
+public class WarcGzipMember {
+  private static final int FTEXT = 1;
+  private static final int FHCRC = 2;
+  private static final int FEXTRA = 4;
+  private static final int FNAME = 8;
+  private static final int FCOMMENT = 16;
+
+  private static final int MAX_WARC_HEADER_BYTES = 64*1024;
+  private static final byte[] HEADER_END = "\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+  private static final byte[] HTTP = "HTTP/".getBytes(StandardCharsets.ISO_8859_1);
+
+  /**
+   * Determine the number of compressed bytes in the gzip member starting at the current position of the stream.
+   * <p>
+   * The member is only accepted if it is complete, with matching checksum and size, and if it holds exactly one
+   * WARC record: The uncompressed content must start with {@code WARC/} and have the length stated by the record
+   * headers, i.e. {@code headers + Content-Length + 4}. Truncated records and members with multiple records are
+   * rejected, as they cannot be delivered as-is.
+   * <p>
+   * Only the record types that {@link WarcParser} delivers are accepted: {@code resource} as well as
+   * {@code response} and {@code revisit} with HTTP headers.
+   * @param in a stream positioned at the start of a gzip member. The stream is read past the end of the member.
+   * @return the number of bytes in the gzip member or -1 if the member does not hold exactly one complete record.
+   * @throws IOException if the stream could not be read.
+   */
+  public static long getMemberLength(InputStream in) throws IOException {
+    byte[] buffer = new byte[8192];
+    int[] pos = new int[]{0, 0}; // Current position and valid bytes in buffer
+
+    // Header, see https://www.rfc-editor.org/rfc/rfc1952#page-5
+    if (readByte(in, buffer, pos) != 0x1f || readByte(in, buffer, pos) != 0x8b || readByte(in, buffer, pos) != 8) {
+      return -1; // Not gzip with deflate
+    }
+    int flags = readByte(in, buffer, pos);
+    if (flags == -1 || (flags & ~(FTEXT | FHCRC | FEXTRA | FNAME | FCOMMENT)) != 0) {
+      return -1;
+    }
+    long consumed = 10;
+    for (int i = 0 ; i < 6 ; i++) { // MTIME, XFL, OS
+      if (readByte(in, buffer, pos) == -1) {
+        return -1;
+      }
+    }
+    if ((flags & FEXTRA) != 0) {
+      int low = readByte(in, buffer, pos);
+      int high = readByte(in, buffer, pos);
+      if (low == -1 || high == -1) {
+        return -1;
+      }
+      int extraLength = low | (high << 8);
+      for (int i = 0 ; i < extraLength ; i++) {
+        if (readByte(in, buffer, pos) == -1) {
+          return -1;
+        }
+      }
+      consumed += 2 + extraLength;
+    }
+    for (int flag: new int[]{FNAME, FCOMMENT}) {
+      if ((flags & flag) != 0) {
+        int b;
+        do {
+          b = readByte(in, buffer, pos);
+          consumed++;
+        } while (b > 0);
+        if (b == -1) {
+          return -1;
+        }
+      }
+    }
+    if ((flags & FHCRC) != 0) {
+      if (readByte(in, buffer, pos) == -1 || readByte(in, buffer, pos) == -1) {
+        return -1;
+      }
+      consumed += 2;
+    }
+
+    // Deflate data
+    Inflater inflater = new Inflater(true);
+    CRC32 crc = new CRC32();
+    byte[] inflated = new byte[65536];
+    byte[] warcHeader = new byte[MAX_WARC_HEADER_BYTES];
+    int warcHeaderLength = 0;
+    long expectedSize = -1;
+    try {
+      while (!inflater.finished()) {
+        if (inflater.needsInput()) {
+          if (pos[0] == pos[1] && fill(in, buffer, pos) == -1) {
+            return -1; // Truncated
+          }
+          inflater.setInput(buffer, pos[0], pos[1] - pos[0]);
+          consumed += pos[1] - pos[0];
+          pos[0] = pos[1];
+        }
+        int n;
+        try {
+          n = inflater.inflate(inflated);
+        } catch (DataFormatException e) {
+          return -1;
+        }
+        if (n == 0 && inflater.needsDictionary()) {
+          return -1;
+        }
+        crc.update(inflated, 0, n);
+        if (expectedSize == -1 && n > 0) { // Still collecting the WARC header
+          int copy = Math.min(n, warcHeader.length - warcHeaderLength);
+          System.arraycopy(inflated, 0, warcHeader, warcHeaderLength, copy);
+          warcHeaderLength += copy;
+          expectedSize = getExpectedSize(warcHeader, warcHeaderLength);
+          if (expectedSize == -2 || (expectedSize == -1 && warcHeaderLength == warcHeader.length)) {
+            return -1; // Not a WARC record or no end of headers
+          }
+        }
+      }
+      int remaining = inflater.getRemaining();
+      consumed -= remaining;
+      pos[0] = pos[1] - remaining;
+
+      // Trailer
+      long trailerCRC = readIntLE(in, buffer, pos);
+      long trailerSize = readIntLE(in, buffer, pos);
+      if (trailerCRC == -1 || trailerSize == -1 ||
+          trailerCRC != crc.getValue() || trailerSize != (inflater.getBytesWritten() & 0xFFFFFFFFL) ||
+          expectedSize != inflater.getBytesWritten()) {
+        return -1;
+      }
+      return consumed + 8;
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * @return the full size of the record if the header is complete, -1 if more bytes are needed or -2 if the bytes
+   *         are not from a WARC record.
+   */
+  private static long getExpectedSize(byte[] header, int length) {
+    if (length < 5) {
+      return -1;
+    }
+    if (header[0] != 'W' || header[1] != 'A' || header[2] != 'R' || header[3] != 'C' || header[4] != '/') {
+      return -2;
+    }
+    int end = indexOf(header, length, HEADER_END);
+    if (end == -1) {
+      return -1;
+    }
+    String type = null;
+    long contentLength = -1;
+    String headers = new String(header, 0, end, StandardCharsets.ISO_8859_1);
+    for (String line: headers.split("\r\n")) {
+      String lower = line.toLowerCase(Locale.ROOT);
+      if (lower.startsWith("warc-type:")) {
+        type = lower.substring("warc-type:".length()).trim();
+      } else if (lower.startsWith("content-length:")) {
+        try {
+          contentLength = Long.parseLong(line.substring("content-length:".length()).trim());
+        } catch (NumberFormatException e) {
+          return -2;
+        }
+      }
+    }
+    if (contentLength == -1 || type == null) {
+      return -2;
+    }
+    int blockStart = end + HEADER_END.length;
+    switch (type) {
+      case "resource":
+        break;
+      case "response":
+      case "revisit":
+        if (contentLength < HTTP.length) {
+          return -2;
+        }
+        if (length < blockStart + HTTP.length) {
+          return -1;
+        }
+        for (int i = 0 ; i < HTTP.length ; i++) {
+          if (header[blockStart+i] != HTTP[i]) {
+            return -2;
+          }
+        }
+        break;
+      default: return -2;
+    }
+    return blockStart + contentLength + 4;
+  }
+
+  private static int indexOf(byte[] data, int length, byte[] pattern) {
+    outer:
+    for (int i = 0 ; i <= length - pattern.length ; i++) {
+      for (int j = 0 ; j < pattern.length ; j++) {
+        if (data[i+j] != pattern[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  private static long readIntLE(InputStream in, byte[] buffer, int[] pos) throws IOException {
+    long value = 0;
+    for (int i = 0 ; i < 4 ; i++) {
+      int b = readByte(in, buffer, pos);
+      if (b == -1) {
+        return -1;
+      }
+      value |= ((long) b) << (8*i);
+    }
+    return value;
+  }
+
+  private static int readByte(InputStream in, byte[] buffer, int[] pos) throws IOException {
+    if (pos[0] == pos[1] && fill(in, buffer, pos) == -1) {
+      return -1;
+    }
+    return 0xFF & buffer[pos[0]++];
+  }
+
+  private static int fill(InputStream in, byte[] buffer, int[] pos) throws IOException {
+    int read = in.read(buffer, 0, buffer.length);
+    pos[0] = 0;
+    pos[1] = Math.max(0, read);
+    return read <= 0 ? -1 : read;
+  }
+}
@@ -4,7 +4,6 @@ import dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource;
 import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
 import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry.TYPE;
 import dk.kb.netarchivesuite.solrwayback.util.DateUtils;
-import dk.kb.netarchivesuite.solrwayback.util.InputStreamUtils;
 import org.apache.commons.io.input.BoundedInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,9 +11,7 @@ import org.slf4j.LoggerFactory;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.Locale;
-import java.util.zip.GZIPInputStream;
 
 public class WarcParser extends  ArcWarcFileParserAbstract {
 
@@ -47,113 +44,104 @@ public class WarcParser extends  ArcWarcFileParserAbstract {
    *Content-Length: 7178
    */
   public static ArcEntry getWarcEntry(ArcSource arcSource, long warcEntryPosition) throws Exception {
-
-    if (arcSource.getSource().toLowerCase(Locale.ROOT).endsWith(".gz")){ //It is zipped
-      return getWarcEntryZipped(arcSource, warcEntryPosition);
-    }
-    else {
-      return getWarcEntryNotZipped(arcSource, warcEntryPosition);
-    }          
+    return getWarcEntry(arcSource, warcEntryPosition, false);
   }
 
-  public static ArcEntry getWarcEntryNotZipped(ArcSource arcSource, long warcEntryPosition) throws Exception {
-
+  /**
+   * Parse the headers for the WARC entry at the given position.
+   * <p>
+   * If {@code retainBinary} is true, the stream used for parsing the headers is kept open in the returned
+   * {@link ArcEntry} and the first call to {@link ArcEntry#getBinaryRaw()} continues reading from it.
+   * This avoids opening, skipping and decompressing the WARC a second time. Only use this if the binary
+   * is to be read: The open stream is only released when the binary is read or the entry is garbage collected.
+   * @param arcSource         source of the WARC.
+   * @param warcEntryPosition where in the WARC the entry is positioned.
+   * @param retainBinary      if true, keep the stream positioned at the binary for later reading.
+   * @return the entry with header information.
+   */
+  public static ArcEntry getWarcEntry(ArcSource arcSource, long warcEntryPosition, boolean retainBinary) throws Exception {
     ArcEntry warcEntry = new ArcEntry();
     warcEntry.setFormat(ArcEntry.FORMAT.WARC);
     warcEntry.setSource(arcSource);
     warcEntry.setOffset(warcEntryPosition);
-    
-    try (InputStream is = arcSource.get()) {
-        InputStreamUtils.skipFully(is, warcEntryPosition);
-        try (BufferedInputStream bis = new BufferedInputStream(is)) {
-            loadWarcHeader(bis, warcEntry);            
-            //log.debug("Arc entry : totalsize:"+totalSize +" headersize:"+headerSize+" binary size:"+binarySize);
-        }
-        return warcEntry;
+
+    HeaderLineReader bis = openEntry(arcSource, warcEntryPosition);
+    boolean retained = false;
+    try {
+      loadWarcHeader(bis, warcEntry);
+      //log.debug("Arc entry : totalsize:"+totalSize +" headersize:"+headerSize+" binary size:"+binarySize);
+      if (retainBinary) {
+        warcEntry.setRetainedBinary(new BufferedInputStream(new BoundedInputStream(bis, warcEntry.getBinaryArraySize())));
+        retained = true;
+      }
+    } finally {
+      if (!retained) {
+        bis.close();
+      }
     }
+    return warcEntry;
+  }
+
+  public static ArcEntry getWarcEntryNotZipped(ArcSource arcSource, long warcEntryPosition) throws Exception {
+    return getWarcEntry(arcSource, warcEntryPosition, false);
+  }
+
+  public static ArcEntry getWarcEntryZipped(ArcSource arcSource, long warcEntryPosition) throws Exception {
+    return getWarcEntry(arcSource, warcEntryPosition, false);
   }
 
   /*
    * Will load the header information into the warcEntry
    * The  BufferedInputStream will be returned with pointer in start of binary 
-   * warcEntry will have binaryArraySize defined
+   * warcEntry will have binaryArraySize and binaryOffset defined
    * 
    */
-  private static void loadWarcHeader(BufferedInputStream bis, ArcEntry warcEntry) throws IOException {
+  private static void loadWarcHeader(HeaderLineReader bis, ArcEntry warcEntry) throws IOException {
 
-    StringBuffer headerLinesBuffer = new StringBuffer();
-    String line = readLine(bis); // First line
-    headerLinesBuffer.append(line+newLineChar);
+    ByteArrayOutputStream headerLinesBuffer = new ByteArrayOutputStream(1024);
+    bis.nextLine(); // First line
+    long headerByteCount = bis.getByteCount(); //Bytes of both headers
+    bis.appendTo(headerLinesBuffer);
 
-    if  (!(line.startsWith("WARC/"))) //No version check yet
+    if  (!(bis.startsWith(WARC_VERSION))) //No version check yet
     {            
-      throw new IllegalArgumentException("WARC header is not WARC/'version', instead it is : "+line);
+      throw new IllegalArgumentException("WARC header is not WARC/'version', instead it is : "+bis.asString());
     }            
 
-    while (!"".equals(line)) { // End of warc first header block is an empty line
-      line = readLine(bis);                
-      headerLinesBuffer.append(line+newLineChar);
-      populateWarcFirstHeader(warcEntry, line);             
-
-    }
+    do { // End of warc first header block is an empty line
+      bis.nextLine();
+      headerByteCount += bis.getByteCount();
+      bis.appendTo(headerLinesBuffer);
+      populateWarcFirstHeader(warcEntry, bis);
+    } while (!bis.isEmpty());
 
     int byteCount=0; //Bytes of second header
    
     if( !(warcEntry.getType() == ArcEntry.TYPE.RESOURCE)){       
-      LineAndByteCount lc =readLineCount(bis);
-      line=lc.getLine();
-      warcEntry.setStatus_code(getStatusCode(line));
-      headerLinesBuffer.append(line+newLineChar);
-      byteCount +=lc.getByteCount();                    
-
-      while (!"".equals(line)) { // End of warc second header block is an empty line
-        lc =readLineCount(bis);         
-        line=lc.getLine();        
-        headerLinesBuffer.append(line+newLineChar);
-        byteCount +=lc.getByteCount(); 
-        populateWarcSecondHeader(warcEntry, line);                                              
-      }        
-      warcEntry.setHeader(headerLinesBuffer.toString());
+      bis.nextLine();
+      warcEntry.setStatus_code(bis.statusCode());
+      bis.appendTo(headerLinesBuffer);
+      byteCount += bis.getByteCount();
+
+      do { // End of warc second header block is an empty line
+        bis.nextLine();
+        bis.appendTo(headerLinesBuffer);
+        byteCount += bis.getByteCount();
+        populateWarcSecondHeader(warcEntry, bis);
+      } while (!bis.isEmpty());
     }
     else {  //For type RESOURCE we fake http status.
       warcEntry.setStatus_code(200); //fake it . Warc-indexer does the same
-      warcEntry.setHeader(headerLinesBuffer.toString());
     }
+    warcEntry.setHeader(headerLinesBuffer.toString(WARC_HEADER_ENCODING));
 
     long totalSize= warcEntry.getWarcEntryContentLength();
     long binarySize = totalSize-byteCount;
 
     warcEntry.setBinaryArraySize(binarySize);
+    warcEntry.setBinaryOffset(headerByteCount+byteCount);
   }
 
-  public static ArcEntry getWarcEntryZipped(ArcSource arcSource, long warcEntryPosition) throws Exception {
-
-    ArcEntry warcEntry = new ArcEntry();
-    warcEntry.setFormat(ArcEntry.FORMAT.WARC);
-    warcEntry.setSource(arcSource);
-    warcEntry.setOffset(warcEntryPosition);
-
-    try (InputStream is = arcSource.get()) {
-        InputStreamUtils.skipFully(is, warcEntryPosition);
-
-        // log.info("file is zipped:"+arcFilePath);
-        try (GZIPInputStream stream = new GZIPInputStream(is);
-             BufferedInputStream  bis= new BufferedInputStream(stream)) {
-
-            loadWarcHeader(bis, warcEntry);
-
-            //System.out.println("Arc entry : totalsize:"+totalSize +" binary size:"+binarySize +" firstHeadersize:"+byteCount);
-        }
-    }
-    return warcEntry;
-      /*
-          System.out.println("-------- binary start");
-          System.out.println(new String(chars));
-          System.out.println("-------- slut");
-       */
-  }
-
-
     /**
      * Constructs a (W)ARC neutral {@code InputStream} that delivers the binary content for a WARC entry.
      * If the WARC is marked as gzip-compressed, the content will be automatically gzip-uncompressed.
@@ -162,6 +150,9 @@ public class WarcParser extends  ArcWarcFileParserAbstract {
      * <p>
      * This method does not cache the binary and the caller should take care to close the returned {@code InputStream}
      * after use as failing to do so might cause resource leaks.
+     * <p>
+     * If the headers for the entry has already been parsed, use
+     * {@link #lazyLoadBinary(ArcSource, long, long, long)} to avoid parsing them again.
      * @param arcSource        source of the raw WARC.
      * @param arcEntryPosition where in the WARC the entry is positioned.
      * @return a stream with the binary content from a WARC entry.
@@ -170,25 +161,15 @@ public class WarcParser extends  ArcWarcFileParserAbstract {
   public static BufferedInputStream lazyLoadBinary(ArcSource arcSource, long arcEntryPosition) throws IOException{
     ArcEntry arcEntry = new ArcEntry(); // We just throw away the header info anyway 
 
-    InputStream is = arcSource.get();
-    InputStreamUtils.skipFully(is, arcEntryPosition);
-
-    if (arcSource.getSource().toLowerCase(Locale.ROOT).endsWith(".gz")){ //It is zipped
-      // log.info("file is zipped:"+arcFilePath);
-      GZIPInputStream zipStream = new GZIPInputStream(is);
-      BufferedInputStream  bis= new BufferedInputStream(zipStream);
-      loadWarcHeader(bis, arcEntry);
-
-      BoundedInputStream maxStream = new BoundedInputStream(bis, arcEntry.getBinaryArraySize());
-      return new BufferedInputStream(maxStream); // It's a mess to use nested BufferedInputStreams...
-
-    } else {
-      BufferedInputStream  bis = new BufferedInputStream(is);
+    HeaderLineReader bis = openEntry(arcSource, arcEntryPosition);
+    try {
       loadWarcHeader(bis, arcEntry);
-      BoundedInputStream maxStream = new BoundedInputStream(bis, arcEntry.getBinaryArraySize());
-      return new BufferedInputStream(maxStream);
+    } catch (IOException | RuntimeException e) {
+      bis.close();
+      throw e;
     }
-
+    BoundedInputStream maxStream = new BoundedInputStream(bis, arcEntry.getBinaryArraySize());
+    return new BufferedInputStream(maxStream); // It's a mess to use nested BufferedInputStreams...
   }
 
   public static String getWarcLastUrlPart(String warcHeaderLine) {        
@@ -204,84 +185,69 @@ public class WarcParser extends  ArcWarcFileParserAbstract {
     return fileName.trim();
   }
 
-  private static String getWarcUrl(String warcHeaderLine) {        
-    //Example:
-    //WARC-Target-URI: http://www.boerkopcykler.dk/images/low_Trance-27.5-2-LTD-_20112013_151813.jpg
-    String urlPath = warcHeaderLine.substring(16);                      
-    return urlPath.trim();
-  }
-
-  private static void populateWarcFirstHeader(ArcEntry warcEntry, String headerLine) {
-    //log.debug("Parsing warc headerline(part 1):"+headerLine);                              
-    if (headerLine.startsWith("WARC-Target-URI:")) {
-      warcEntry.setFileName(getWarcLastUrlPart(headerLine));
-      warcEntry.setUrl(getWarcUrl(headerLine));
+  private static final byte[] WARC_VERSION = HeaderLineReader.field("WARC/");
+  private static final byte[] WARC_TARGET_URI = HeaderLineReader.field("WARC-Target-URI:");
+  private static final byte[] WARC_DATE = HeaderLineReader.field("WARC-Date:");
+  private static final byte[] WARC_TYPE = HeaderLineReader.field("WARC-Type:");
+
+  private static void populateWarcFirstHeader(ArcEntry warcEntry, HeaderLineReader headerLine) {
+    //log.debug("Parsing warc headerline(part 1):"+headerLine.asString());
+    if (headerLine.startsWith(WARC_TARGET_URI)) {
+      String url = headerLine.value(WARC_TARGET_URI.length);
+      String[] paths = url.split("/");
+      warcEntry.setFileName(paths[paths.length - 1].trim());
+      warcEntry.setUrl(url);
     }    
 
     //Example:
     //Content-Length: 31131
-    else if (headerLine.startsWith("Content-Length:")) {
-      String[] contentLine = headerLine.split(" ");
-      long totalSize = Long.parseLong(contentLine[1].trim());               
-      warcEntry.setWarcEntryContentLength(totalSize);                       
+    else if (headerLine.startsWith(CONTENT_LENGTH)) {
+      warcEntry.setWarcEntryContentLength(headerLine.longValue(CONTENT_LENGTH.length));
     }       
 
-    else if (headerLine.startsWith("WARC-Date:")) {
-      String[] contentLine = headerLine.split(" ");
-      String crawlDate =contentLine[1].trim();  //Zulu/UTC time   : 2020-04-28T08:17:36Z                                
+    else if (headerLine.startsWith(WARC_DATE)) {
+      String crawlDate = headerLine.value(WARC_DATE.length);  //Zulu/UTC time   : 2020-04-28T08:17:36Z
       warcEntry.setCrawlDate(crawlDate);                         
       String waybackDate = DateUtils.convertUtcDate2WaybackDate(crawlDate);             
       warcEntry.setWaybackDate(waybackDate);                          
     }
-    else if (headerLine.startsWith("WARC-Type:")) {
-      String[] contentLine = headerLine.split(" ");
-      warcEntry.setType(TYPE.valueOf(contentLine[1].trim().toUpperCase()));   // will fail if new type is found          
+    else if (headerLine.startsWith(WARC_TYPE)) {
+      warcEntry.setType(TYPE.valueOf(headerLine.value(WARC_TYPE.length).toUpperCase(Locale.ROOT)));   // will fail if new type is found
     }
-
-
   }
 
-  private static void populateWarcSecondHeader(ArcEntry warcEntry, String headerLine) {
-    //  log.debug("parsing warc headerline(part 2):"+headerLine);                
+  private static void populateWarcSecondHeader(ArcEntry warcEntry, HeaderLineReader headerLine) {
+    //  log.debug("parsing warc headerline(part 2):"+headerLine.asString());
     //Content-Type: image/jpeg
     // or Content-Type: text/html; charset=windows-1252          
-    if (headerLine.toLowerCase().startsWith("content-type:")) {            
-      String[] part1 = headerLine.split(":");
-      String[] part2= part1[1].split(";");                        
-      warcEntry.setContentType(part2[0].trim());          
-      if (part2.length == 2){
-        String charset = part2[1].trim();
-        if (charset.startsWith("charset=")){                                   
-          String headerEncoding=charset.substring(8).replace("\"", ""); ////Some times Content-Type: text/html; charset="utf-8" instead of Content-Type: text/html; charset=utf-8
-          warcEntry.setContentCharset(charset.substring(8));
-        }                                   
+    if (headerLine.startsWith(CONTENT_TYPE)) {
+      int semicolon = headerLine.indexOf(';', CONTENT_TYPE.length);
+      if (semicolon == -1) {
+        warcEntry.setContentType(headerLine.value(CONTENT_TYPE.length));
+      } else {
+        warcEntry.setContentType(headerLine.value(CONTENT_TYPE.length, semicolon));
+        int end = headerLine.indexOf(';', semicolon+1);
+        String charset = headerLine.value(semicolon+1, end == -1 ? headerLine.length() : end);
+        if (charset.startsWith("charset=")){
+          warcEntry.setContentCharset(charset.substring(8)); //Some times Content-Type: text/html; charset="utf-8" instead of Content-Type: text/html; charset=utf-8
+        }
       }
-
-
     }  //Content-Length: 31131
-    else if (headerLine.toLowerCase().startsWith("content-length:")) {
-      String[] contentLine = headerLine.split(":");
-      long totalSize = Long.parseLong(contentLine[1].trim());               
-      warcEntry.setContentLength(totalSize);                       
+    else if (headerLine.startsWith(CONTENT_LENGTH)) {
+      warcEntry.setContentLength(headerLine.longValue(CONTENT_LENGTH.length));
     }
-    else if (headerLine.toLowerCase().startsWith("content-encoding:")) {
-      String[] contentLine = headerLine.split(":");               
-      warcEntry.setContentEncoding(contentLine[1].trim().replace("\"", "")); //Some times Content-Type: text/html; charset="utf-8" instead of Content-Type: text/html; charset=utf-8                       
+    else if (headerLine.startsWith(CONTENT_ENCODING)) {
+      warcEntry.setContentEncoding(headerLine.value(CONTENT_ENCODING.length)); // The setter removes "
     }
-    else if (headerLine.toLowerCase().startsWith("location:")) {                                      
-      warcEntry.setRedirectUrl(headerLine.substring(9).trim());
+    else if (headerLine.startsWith(LOCATION)) {
+      warcEntry.setRedirectUrl(headerLine.value(LOCATION.length));
     }
-    else if (headerLine.toLowerCase().startsWith("transfer-encoding:")) {                                      
-      String transferEncoding=headerLine.substring(18).trim();
-      //log.debug("transfer-encoding:"+transferEncoding);
-      if (transferEncoding.indexOf("chunked") > 0) { //multivalued
+    else if (headerLine.startsWith(TRANSFER_ENCODING)) {
+      //log.debug("transfer-encoding:"+headerLine.asString());
+      if (headerLine.value(TRANSFER_ENCODING.length).toLowerCase(Locale.ROOT).contains("chunked")) { //multivalued
         warcEntry.setChunked(true);
       }
-    }    
-
-
-
-
+    }
   }
 
   public static String readLine(BufferedInputStream  bis) throws IOException {
@@ -19,6 +19,9 @@ import dk.kb.netarchivesuite.solrwayback.solr.WaybackStatistics;
 
 public class WaybackToolbarInjecter {
   private static final Logger log = LoggerFactory.getLogger(WaybackToolbarInjecter.class);
+
+  //Injected as soon as possible in head to get referer. Also injected in wayback toolbar
+  public static final String REFERRER_META = " <meta name=\"referrer\" content=\"unsafe-url\">\n";
   
 
   
@@ -77,6 +80,23 @@ public static String injectWaybacktoolBar(IndexDoc indexDoc, ParseResult htmlPar
   }
   
   
+  /**
+   * Generates the toolbar HTML without injecting it, for use with {@link HtmlStreamingRewriter}.
+   * @param indexDoc the page that the toolbar is for.
+   * @param htmlParsedResult the number of found and not found links.
+   * @return the toolbar HTML or the empty String if it could not be generated.
+   */
+  public static String generateToolbarHtml(IndexDoc indexDoc, ParseResult htmlParsedResult) {
+    try{
+    WaybackStatistics stats = NetarchiveSolrClient.getInstance().getWayBackStatistics(indexDoc.getStatusCode(),indexDoc.getUrl(),indexDoc.getUrl_norm(), indexDoc.getCrawlDate());
+    stats.setHarvestDate(indexDoc.getCrawlDate());
+    return generateToolbarHtml(htmlParsedResult, stats, indexDoc.getSource_file_path(), indexDoc.getOffset());
+   }catch (Exception e){
+     log.error("error generating waybacktoolbar", e);
+    return ""; // no injection (should not happen).
+   }
+  }
+
   public static String injectWaybacktoolBar(String source_file_path, long offset, ParseResult htmlParsedResult, boolean xhtml) throws Exception{
     IndexDoc indexDoc = NetarchiveSolrClient.getInstance().getArcEntry(source_file_path, offset);    
     return injectWaybacktoolBar(indexDoc, htmlParsedResult, xhtml);    
@@ -99,7 +119,7 @@ public static String injectWaybacktoolBar(IndexDoc indexDoc, ParseResult htmlPar
       log.info("wayback tool injected. xhtml:"+xhtml);
       
       Elements head = doc.select("head"); //Also inject as soon as possible to get referer. Also injected in wayback toolbar
-      head.prepend(" <meta name=\"referrer\" content=\"unsafe-url\">\n");      
+      head.prepend(REFERRER_META);
             
       //Below will improve playback IF solrwayback is running https. If running http (localhost), it will make playback worse
       //head.prepend("<meta http-equiv=\"Content-Security-Policy\" content=\"upgrade-insecure-requests\">"); 
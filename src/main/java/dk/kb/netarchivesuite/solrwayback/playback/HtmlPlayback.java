@@ -1,19 +1,38 @@
 package dk.kb.netarchivesuite.solrwayback.playback;
 
-import java.nio.charset.Charset;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import dk.kb.netarchivesuite.solrwayback.parsers.HtmlStreamingRewriter;
 import dk.kb.netarchivesuite.solrwayback.parsers.ParseResult;
 import dk.kb.netarchivesuite.solrwayback.parsers.HtmlParserUrlRewriter;
 import dk.kb.netarchivesuite.solrwayback.parsers.WaybackToolbarInjecter;
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
 import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
 import dk.kb.netarchivesuite.solrwayback.service.dto.IndexDoc;
+import dk.kb.netarchivesuite.solrwayback.solr.NetarchiveSolrClient;
+import dk.kb.netarchivesuite.solrwayback.util.RingBufferPipe;
 
 public class HtmlPlayback  extends PlaybackHandler{
   
   private static final Logger log = LoggerFactory.getLogger(HtmlPlayback.class);
+
+  // The rewriter blocks while the client is not reading, so it must not occupy the shared Processing threads.
+  // Unbounded as there is one rewriter per streaming response
+  private static final AtomicInteger threadID = new AtomicInteger(0);
+  private static final ExecutorService streamingExecutor = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "HtmlStreaming_" + threadID.getAndIncrement());
+    t.setDaemon(true);
+    return t;
+  });
   
   public HtmlPlayback(ArcEntry arc, IndexDoc doc, boolean showToolbar){
     super(arc,doc,showToolbar);
@@ -23,6 +42,10 @@ public class HtmlPlayback  extends PlaybackHandler{
   public ArcEntry playback(boolean lenient) throws Exception{
     log.debug(" Generate webpage from FilePath:{} offset:{} content encoding:{} lenient:{}",
               doc.getSource_file_path(), doc.getOffset(), arc.getContentEncoding(), lenient);
+    if (PropertiesLoader.PLAYBACK_HTML_STREAMING_THRESHOLD >= 0 &&
+        arc.getBinaryArraySize() >= PropertiesLoader.PLAYBACK_HTML_STREAMING_THRESHOLD) {
+      return playbackStreaming(lenient);
+    }
     long start = System.currentTimeMillis();
     
 
@@ -41,5 +64,44 @@ public class HtmlPlayback  extends PlaybackHandler{
      arc.setHasBeenDecompressed(true);
      return arc;
   }
+
+  /**
+   * Playback of large pages with {@link HtmlStreamingRewriter}. Links are collected and resolved before returning,
+   * so resolve errors are reported to the caller. The rewriting and toolbar injection is done in the background
+   * while the content is delivered. If the consumer closes the content stream, the rewriting stops.
+   */
+  private ArcEntry playbackStreaming(boolean lenient) throws Exception {
+    long start = System.currentTimeMillis();
+    // The content is read twice. Each pass uses a copy of the entry as reading the binary changes its state
+    final ArcEntry source = arc.copy();
+    HtmlStreamingRewriter rewriter = new HtmlStreamingRewriter(
+            () -> source.copy().getStringContentFull(), arc.getUrl(), arc.getCrawlDate());
+    ParseResult resolved = rewriter.resolve(
+            (urls, timeStamp) -> NetarchiveSolrClient.getInstance().findNearestUrlsShort(urls, timeStamp, lenient));
+    final String headInjection = showToolbar ? WaybackToolbarInjecter.REFERRER_META : null;
+    final String bodyInjection = showToolbar ? WaybackToolbarInjecter.generateToolbarHtml(doc, resolved) : null;
+    log.info("Streaming webpage links resolved:" + (System.currentTimeMillis()-start) + " " +
+             doc.getSource_file_path() + " " + doc.getOffset() + " " + arc.getUrl());
+
+    RingBufferPipe pipe = new RingBufferPipe(PropertiesLoader.STREAM_BRIDGE_BUFFER_BYTES);
+    streamingExecutor.submit(() -> {
+      Writer out = new BufferedWriter(new OutputStreamWriter(pipe.getOutputStream(), arc.getCharsetSafe()));
+      try {
+        ParseResult written = rewriter.write(out, headInjection, bodyInjection);
+        log.info("Streaming webpage total processing:" + (System.currentTimeMillis()-start) + " " +
+                 doc.getSource_file_path() + " " + doc.getOffset() + " " + arc.getUrl() + " " + written.getTimingsString());
+      } catch (Exception e) {
+        log.warn("Exception streaming webpage " + doc.getSource_file_path() + " " + doc.getOffset(), e);
+        // Must be set before closing, so that the reader does not see a normal end of stream
+        pipe.setException(e instanceof IOException ? (IOException) e :
+                          new IOException("Exception streaming webpage " + arc.getUrl(), e));
+      } finally {
+        out.close();
+      }
+      return null;
+    });
+    arc.setStreamingContent(pipe.getInputStream());
+    return arc;
+  }
   
 }
\ No newline at end of file
@@ -0,0 +1,408 @@
+package dk.kb.netarchivesuite.solrwayback.playback;
+
+import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Byte bounded LRU cache of rendered playback output, keyed by {@code (source_file_path, offset, showToolbar,
+ * lenient)} and index generation. For a given key the output of playback is deterministic, so a cache hit skips
+ * reading the (W)ARC, resolving the links against Solr, rewriting and injecting the toolbar.
+ * <p>
+ * The rendered binaries are held deflated in memory. If a spill folder is given, entries evicted from memory are
+ * written to disk, where they are kept until the disk budget is exceeded.
+ * <p>
+ * Entries with a newer index generation than seen before clears the cache. Entries rendered for an older
+ * generation are not admitted. Entries returned from the cache are copies and can be modified freely.
+ */
+public class PlaybackCache {
+  private static final Logger log = LoggerFactory.getLogger(PlaybackCache.class);
+
+  private final long maxBytes;
+  private final int maxEntryBytes;
+  private final long maxSpillBytes;
+  private final Path spillFolder;
+
+  private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<>(16, 0.75f, true); // Access order
+  private final LinkedHashMap<String, Entry> spilled = new LinkedHashMap<>(16, 0.75f, true); // Access order
+  private long cachedBytes = 0;
+  private long spilledBytes = 0;
+  private long generation = 0;
+  private final AtomicLong spillCounter = new AtomicLong(0);
+
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong diskHits = new AtomicLong(0);
+  private final AtomicLong misses = new AtomicLong(0);
+  private final AtomicLong admissions = new AtomicLong(0);
+  private final AtomicLong bypasses = new AtomicLong(0);
+  private final AtomicLong evictions = new AtomicLong(0);
+
+  /**
+   * @param maxBytes      the maximum number of deflated bytes to hold in memory. 0 disables the cache.
+   * @param maxEntryBytes rendered output larger than this is not cached.
+   * @param spillFolder   folder for spilling entries evicted from memory to disk. null disables spilling.
+   * @param maxSpillBytes the maximum number of deflated bytes to hold on disk.
+   */
+  public PlaybackCache(long maxBytes, int maxEntryBytes, String spillFolder, long maxSpillBytes) {
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = maxEntryBytes;
+    this.maxSpillBytes = maxSpillBytes;
+    this.spillFolder = maxBytes > 0 && maxSpillBytes > 0 ? createSpillFolder(spillFolder) : null;
+  }
+
+  private static Path createSpillFolder(String folder) {
+    if (folder == null || folder.trim().isEmpty()) {
+      return null;
+    }
+    try {
+      Path parent = Files.createDirectories(Paths.get(folder.trim()));
+      return Files.createTempDirectory(parent, "playback_cache_");
+    } catch (IOException e) {
+      log.warn("Unable to create spill folder below '" + folder + "'. Spilling to disk is disabled", e);
+      return null;
+    }
+  }
+
+  /**
+   * @param path        the source_file_path for the record.
+   * @param offset      the offset of the record in the (W)ARC.
+   * @param showToolbar whether the toolbar is injected.
+   * @param lenient     whether lenient URL resolving is used.
+   * @param generation  the index generation, see
+   *                    {@link dk.kb.netarchivesuite.solrwayback.solr.NetarchiveSolrClient#getIndexGeneration()}.
+   * @return a copy of the cached rendered entry or null if it is not cached.
+   */
+  public ArcEntry get(String path, long offset, boolean showToolbar, boolean lenient, long generation) {
+    if (maxBytes <= 0) {
+      return null;
+    }
+    String key = key(path, offset, showToolbar, lenient, generation);
+    Entry entry;
+    boolean fromDisk = false;
+    synchronized (cache) {
+      entry = cache.get(key);
+      if (entry == null && (entry = spilled.remove(key)) != null) {
+        spilledBytes -= entry.deflatedSize;
+        fromDisk = true;
+      }
+    }
+    if (entry == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+
+    byte[] binary;
+    try {
+      if (fromDisk) {
+        byte[] deflated = Files.readAllBytes(entry.file);
+        Files.deleteIfExists(entry.file);
+        entry = new Entry(entry.template, deflated, entry.size, null);
+        admit(key, entry, generation);
+      }
+      binary = inflate(entry.deflated, entry.size);
+    } catch (IOException | DataFormatException e) {
+      log.warn("Unable to read cached playback for " + key + ": " + e.getMessage());
+      misses.incrementAndGet();
+      return null;
+    }
+    (fromDisk ? diskHits : hits).incrementAndGet();
+    ArcEntry copy = entry.template.copy();
+    copy.setCachedBinary(binary);
+    return copy;
+  }
+
+  /**
+   * Offer rendered output to the cache. Output with unknown size, such as streamed playback, or output larger than
+   * max entry bytes is not cached.
+   * <p>
+   * The given entry must be rendered, with the binary held in memory.
+   * @param path        the source_file_path for the record.
+   * @param offset      the offset of the record in the (W)ARC.
+   * @param showToolbar whether the toolbar is injected.
+   * @param lenient     whether lenient URL resolving is used.
+   * @param generation  the index generation at the time the rendering was started.
+   * @param rendered    the result of playback.
+   * @return the given entry.
+   */
+  public ArcEntry offer(String path, long offset, boolean showToolbar, boolean lenient, long generation,
+                        ArcEntry rendered) {
+    if (maxBytes <= 0) {
+      return rendered;
+    }
+    if (!rendered.isHasBeenDecompressed() || rendered.getBinaryArraySize() < 0 ||
+        rendered.getBinaryArraySize() > maxEntryBytes) {
+      bypasses.incrementAndGet();
+      return rendered;
+    }
+    byte[] binary;
+    try (InputStream in = rendered.getBinaryRaw()) {
+      binary = IOUtils.toByteArray(in);
+    } catch (IOException e) {
+      log.debug("Unable to read rendered binary for caching of " + path + "#" + offset + ": " + e.getMessage());
+      return rendered;
+    }
+    ArcEntry template = rendered.copy();
+    template.setCachedBinary(new byte[0]); // The binary is held deflated by the cache
+    admit(key(path, offset, showToolbar, lenient, generation),
+          new Entry(template, deflate(binary), binary.length, null), generation);
+    return rendered;
+  }
+
+  private void admit(String key, Entry entry, long generation) {
+    List<Map.Entry<String, Entry>> evicted = new ArrayList<>();
+    synchronized (cache) {
+      if (generation < this.generation) {
+        return; // Rendered before the index changed
+      }
+      if (generation > this.generation) {
+        clearInternal();
+        this.generation = generation;
+      }
+      Entry old = cache.put(key, entry);
+      if (old != null) {
+        cachedBytes -= old.deflatedSize;
+      }
+      cachedBytes += entry.deflatedSize;
+      Iterator<Map.Entry<String, Entry>> eldest = cache.entrySet().iterator();
+      while (cachedBytes > maxBytes && eldest.hasNext()) {
+        Map.Entry<String, Entry> e = eldest.next();
+        cachedBytes -= e.getValue().deflatedSize;
+        eldest.remove();
+        evictions.incrementAndGet();
+        evicted.add(e);
+      }
+    }
+    admissions.incrementAndGet();
+    if (spillFolder != null) {
+      evicted.forEach(e -> spill(e.getKey(), e.getValue(), generation));
+    }
+  }
+
+  /**
+   * Write the entry to disk, outside of the lock, and register it as spilled.
+   */
+  private void spill(String key, Entry entry, long generation) {
+    Path file = spillFolder.resolve(spillCounter.incrementAndGet() + ".deflated");
+    try {
+      Files.write(file, entry.deflated);
+    } catch (IOException e) {
+      log.warn("Unable to spill cached playback for " + key + " to " + file + ": " + e.getMessage());
+      return;
+    }
+    List<Path> obsolete = new ArrayList<>();
+    synchronized (cache) {
+      if (generation != this.generation) {
+        obsolete.add(file);
+      } else {
+        Entry old = spilled.put(key, new Entry(entry.template, null, entry.size, file, entry.deflatedSize));
+        if (old != null) {
+          spilledBytes -= old.deflatedSize;
+          obsolete.add(old.file);
+        }
+        spilledBytes += entry.deflatedSize;
+        Iterator<Entry> eldest = spilled.values().iterator();
+        while (spilledBytes > maxSpillBytes && eldest.hasNext()) {
+          Entry e = eldest.next();
+          spilledBytes -= e.deflatedSize;
+          eldest.remove();
+          obsolete.add(e.file);
+        }
+      }
+    }
+    obsolete.forEach(PlaybackCache::delete);
+  }
+
+  private static void delete(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      log.debug("Unable to delete spilled playback " + file + ": " + e.getMessage());
+    }
+  }
+
+  private String key(String path, long offset, boolean showToolbar, boolean lenient, long generation) {
+    return path + "#" + offset + "#" + showToolbar + "#" + lenient + "#" + generation;
+  }
+
+  private static byte[] deflate(byte[] binary) {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(binary);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(binary.length / 4 + 64);
+      byte[] buffer = new byte[8192];
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static byte[] inflate(byte[] deflated, int size) throws DataFormatException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(deflated);
+      byte[] binary = new byte[size];
+      int pos = 0;
+      while (pos < size && !inflater.finished()) {
+        int read = inflater.inflate(binary, pos, size - pos);
+        if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        pos += read;
+      }
+      if (pos != size) {
+        throw new DataFormatException("Expected " + size + " inflated bytes but got " + pos);
+      }
+      return binary;
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Remove all entries from memory and disk. Statistics are not cleared.
+   */
+  public void clear() {
+    synchronized (cache) {
+      clearInternal();
+    }
+  }
+
+  // Must be called while holding the lock on cache
+  private void clearInternal() {
+    cache.clear();
+    cachedBytes = 0;
+    spilled.values().forEach(e -> delete(e.file));
+    spilled.clear();
+    spilledBytes = 0;
+  }
+
+  /**
+   * @return the number of entries held in memory and on disk.
+   */
+  public int size() {
+    synchronized (cache) {
+      return cache.size() + spilled.size();
+    }
+  }
+
+  /**
+   * The number of deflated bytes held in memory.
+   */
+  public long getCachedBytes() {
+    synchronized (cache) {
+      return cachedBytes;
+    }
+  }
+
+  /**
+   * The number of deflated bytes spilled to disk.
+   */
+  public long getSpilledBytes() {
+    synchronized (cache) {
+      return spilledBytes;
+    }
+  }
+
+  /**
+   * @return the number of hits served from memory.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of hits served from disk.
+   */
+  public long getDiskHits() {
+    return diskHits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return (hits + diskHits) / (hits + diskHits + misses) or 0 if there has been no requests.
+   */
+  public double getHitRate() {
+    long h = hits.get() + diskHits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0 : h * 1.0 / total;
+  }
+
+  /**
+   * The number of rendered entries that has been added to the cache.
+   */
+  public long getAdmissions() {
+    return admissions.get();
+  }
+
+  /**
+   * The number of rendered entries that were not cached due to unknown size or being too large.
+   */
+  public long getBypasses() {
+    return bypasses.get();
+  }
+
+  /**
+   * The number of entries that has been removed from memory to stay within max bytes.
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.ROOT,
+                         "PlaybackCache(entries=%d, bytes=%d/%d, spilledBytes=%d/%d, maxEntryBytes=%d, " +
+                         "hitRate=%.2f, hits=%d, diskHits=%d, misses=%d, admissions=%d, bypasses=%d, evictions=%d)",
+                         size(), getCachedBytes(), maxBytes, getSpilledBytes(), spillFolder == null ? 0 : maxSpillBytes,
+                         maxEntryBytes, getHitRate(), hits.get(), diskHits.get(), misses.get(), admissions.get(),
+                         bypasses.get(), evictions.get());
+  }
+
+  /**
+   * A rendered entry without binary and the deflated binary, either in memory or spilled to file.
+   */
+  private static class Entry {
+    final ArcEntry template;
+    final byte[] deflated;
+    final int size;
+    final Path file;
+    final long deflatedSize;
+
+    Entry(ArcEntry template, byte[] deflated, int size, Path file) {
+      this(template, deflated, size, file, deflated.length);
+    }
+
+    Entry(ArcEntry template, byte[] deflated, int size, Path file, long deflatedSize) {
+      this.template = template;
+      this.deflated = deflated;
+      this.size = size;
+      this.file = file;
+      this.deflatedSize = deflatedSize;
+    }
+  }
+}
@@ -32,9 +32,20 @@ public class PropertiesLoader {
     private static final String SOLR_SERVER_PROPERTY="solr.server";
     private static final String WARC_FILE_RESOLVER_CLASS_PROPERTY="warc.file.resolver.class";
     private static final String WARC_FILE_RESOLVER_PARAMETERS_PROPERTY="warc.file.resolver.parameters";
+    private static final String WARC_FILE_RESOLVER_CACHE_MAX_ENTRIES_PROPERTY="warc.file.resolver.cache.max.entries";
+    private static final String WARC_FILE_RESOLVER_CACHE_AGE_SECONDS_PROPERTY="warc.file.resolver.cache.age.seconds";
+    private static final String WARC_FILE_RESOLVER_CACHE_MISSING_AGE_SECONDS_PROPERTY="warc.file.resolver.cache.missing.age.seconds";
+    private static final String WARC_RECORD_CACHE_MAX_BYTES_PROPERTY="warc.record.cache.max.bytes";
+    private static final String WARC_RECORD_CACHE_MAX_RECORD_BYTES_PROPERTY="warc.record.cache.max.record.bytes";
     private static final String WARC_SOURCE_HTTP_FALLBACK_PROPERTY = "warc.file.resolver.source.http.readfallback";
     // The now deprecated ArcHTTPResolver used this property to specify readfallback
     private static final String WARC_SOURCE_HTTP_FALLBACK_LEGACY_PROPERTY = "warc.file.resolver.parameters.readfallback";
+    private static final String WARC_SOURCE_FILE_MAX_CHANNELS_PROPERTY = "warc.file.resolver.source.file.maxchannels";
+    private static final String STREAM_BRIDGE_BUFFER_BYTES_PROPERTY = "export.pipe.buffer.bytes";
+    private static final String UNIQUE_MEMORY_BYTES_PROPERTY = "export.unique.memory.bytes";
+    private static final String EXPAND_RESOURCES_PARALLEL_PROPERTY = "export.expand.parallel.pages";
+    private static final String EXPAND_RESOURCES_THREADS_PROPERTY = "export.expand.threads";
+    private static final String EXPAND_RESOURCES_LINK_FIELDS_PROPERTY = "export.expand.link.fields";
     private static final String WAYBACK_BASEURL_PROPERTY="wayback.baseurl";
     private static final String CHROME_COMMAND_PROPERTY="chrome.command";
     private static final String SCREENSHOT_TEMP_IMAGEDIR_PROPERTY="screenshot.temp.imagedir";
@@ -43,8 +54,10 @@ public class PropertiesLoader {
     private static final String WARC_FILES_VERIFY_COLLECTION_PROPERTY  ="warc.files.verify.collection";
     
     private static final String SOLR_SERVER_CACHING_PROPERTY="solr.server.caching";
+    private static final String SOLR_CLIENT_TRANSPORT_PROPERTY="solr.client.transport";
     private static final String SOLR_SERVER_CACHING_MAX_ENTRIES_PROPERTY="solr.server.caching.max.entries";
     private static final String SOLR_SERVER_CACHING_AGE_SECONDS_PROPERTY="solr.server.caching.age.seconds";
+    private static final String SOLR_SERVER_CACHING_MAX_BYTES_PROPERTY="solr.server.caching.max.bytes";
     public static final String SOLR_SERVER_CHECK_INTERVAL_PROPERTY = "solr.server.check.interval.seconds";
 
     // Used by SolrStreamShard
@@ -56,10 +69,52 @@ public class PropertiesLoader {
     private static final String URL_NORMALISER_PROPERTY="url.normaliser";
     
     public static final String PLAYBACK_DISABLED_PROPERTY="playback.disabled";
+    private static final String PLAYBACK_HTML_STREAMING_THRESHOLD_PROPERTY="playback.html.streaming.threshold.bytes";
+    private static final String PLAYBACK_CACHE_MAX_BYTES_PROPERTY="playback.cache.max.bytes";
+    private static final String PLAYBACK_CACHE_MAX_ENTRY_BYTES_PROPERTY="playback.cache.max.entry.bytes";
+    private static final String PLAYBACK_CACHE_SPILL_FOLDER_PROPERTY="playback.cache.spill.folder";
+    private static final String PLAYBACK_CACHE_SPILL_MAX_BYTES_PROPERTY="playback.cache.spill.max.bytes";
+    private static final String TOOLBAR_DOMAIN_CACHE_MAX_ENTRIES_PROPERTY="toolbar.domain.cache.max.entries";
+    private static final String TOOLBAR_DOMAIN_CACHE_AGE_SECONDS_PROPERTY="toolbar.domain.cache.age.seconds";
+    private static final String TIMELINE_FOLDER_PROPERTY="timeline.folder";
+    private static final String LENIENT_MAX_REQUESTS_PROPERTY="playback.lenient.max.requests";
+    private static final String PLAYBACK_RESOLVE_CACHE_MAX_ENTRIES_PROPERTY="playback.resolve.cache.max.entries";
+    private static final String PLAYBACK_RESOLVE_CACHE_BUCKET_SECONDS_PROPERTY="playback.resolve.cache.bucket.seconds";
+    private static final String URL_FILTER_FOLDER_PROPERTY="url.filter.folder";
+    private static final String URL_FILTER_FALSE_POSITIVE_RATE_PROPERTY="url.filter.false.positive.rate";
+    private static final String THUMBNAIL_CACHE_MAX_BYTES_PROPERTY="image.thumbnail.cache.max.bytes";
+    private static final String THUMBNAIL_CACHE_FOLDER_PROPERTY="image.thumbnail.cache.folder";
+    private static final String THUMBNAIL_CACHE_FOLDER_MAX_BYTES_PROPERTY="image.thumbnail.cache.folder.max.bytes";
+    private static final String TIMELINE_DELTA_MAX_RECORDS_PROPERTY="timeline.delta.max.records";
     private static final String SOLR_SEARCH_PARAMS_PROPERTY="solr.search.params";
 
     private static Properties serviceProperties = null;
     public static boolean PLAYBACK_DISABLED = false;
+    // Used by HtmlPlayback. Pages of this size or larger are rewritten with HtmlStreamingRewriter. -1 disables
+    public static long PLAYBACK_HTML_STREAMING_THRESHOLD = 10*1024*1024; //default value 10MB
+    // Used by PlaybackCache through Facade. 0 disables the cache
+    public static long PLAYBACK_CACHE_MAX_BYTES = 50*1024*1024; //default value 50MB
+    public static int PLAYBACK_CACHE_MAX_ENTRY_BYTES = 2*1024*1024; //default value 2MB
+    public static String PLAYBACK_CACHE_SPILL_FOLDER = null; //default no spilling to disk
+    public static long PLAYBACK_CACHE_SPILL_MAX_BYTES = 1024*1024*1024L; //default value 1GB
+    // Used by NetarchiveSolrClient.getWayBackStatistics for the domain statistics in the toolbar. 0 disables the cache
+    public static int TOOLBAR_DOMAIN_CACHE_MAX_ENTRIES = 10000; //default value
+    public static int TOOLBAR_DOMAIN_CACHE_AGE_SECONDS = 86400; //default value 1 day
+    // Used by CaptureTimeline through NetarchiveSolrClient. null disables the timeline
+    public static String TIMELINE_FOLDER = null; //default disabled
+    public static int TIMELINE_DELTA_MAX_RECORDS = 1000000; //default value
+    // Used by NetarchiveSolrClient for lenient URL resolving. Maximum number of Solr requests per batch of URLs
+    public static int LENIENT_MAX_REQUESTS = 10; //default value
+    // Used by ResolutionCache through NetarchiveSolrClient. 0 disables the cache
+    public static int PLAYBACK_RESOLVE_CACHE_MAX_ENTRIES = 200000; //default value
+    public static int PLAYBACK_RESOLVE_CACHE_BUCKET_SECONDS = 3600; //default value 1 hour
+    // Used by ArchivedUrlFilter through NetarchiveSolrClient. null disables the filter
+    public static String URL_FILTER_FOLDER = null; //default disabled
+    public static double URL_FILTER_FALSE_POSITIVE_RATE = 0.01; //default value
+    // Used by ThumbnailCache through Facade for the /image endpoint. 0 disables the memory cache
+    public static long THUMBNAIL_CACHE_MAX_BYTES = 20*1024*1024; //default value 20MB
+    public static String THUMBNAIL_CACHE_FOLDER = null; //default no caching on disk
+    public static long THUMBNAIL_CACHE_FOLDER_MAX_BYTES = 1024*1024*1024L; //default value 1GB
     public static String SOLR_SERVER = null;
     public static String WAYBACK_BASEURL = null;
     public static String WAYBACK_HOST = null; //Taken from WAYBACK_BASEURL
@@ -68,14 +123,32 @@ public class PropertiesLoader {
     public static String SCREENSHOT_TEMP_IMAGEDIR = null;
     public static String WARC_FILE_RESOLVER_CLASS = null;
     public static Map<String, String> WARC_FILE_RESOLVER_PARAMETERS= new HashMap<>();
+    // Used by ArcParserFileResolver
+    public static int WARC_FILE_RESOLVER_CACHE_MAX_ENTRIES = 100000; //default value
+    public static int WARC_FILE_RESOLVER_CACHE_AGE_SECONDS = 86400; //default value 1 day
+    public static int WARC_FILE_RESOLVER_CACHE_MISSING_AGE_SECONDS = 60; //default value
+    // Used by RecordCache through ArcParserFileResolver. 0 disables the cache
+    public static long WARC_RECORD_CACHE_MAX_BYTES = 50*1024*1024; //default value 50MB
+    public static int WARC_RECORD_CACHE_MAX_RECORD_BYTES = 256*1024; //default value 256KB
     public static boolean WARC_SOURCE_HTTP_FALLBACK = false;
+    // Used by ArcSource.fromFile. 0 means no pooling
+    public static int WARC_SOURCE_FILE_MAX_CHANNELS = 1000;
+    // Used by StreamBridge for coupling export producers and consumers
+    public static int STREAM_BRIDGE_BUFFER_BYTES = 256*1024; //default value 256KB
+    public static long UNIQUE_MEMORY_BYTES = 64*1024*1024; //default value 64MB
+    public static int EXPAND_RESOURCES_PARALLEL = 8; //default value 8 pages
+    public static int EXPAND_RESOURCES_THREADS = 8; //default value 8 threads
+    public static String EXPAND_RESOURCES_LINK_FIELDS = ""; //default empty: Extract links from the WARC record
     public static String PID_COLLECTION_NAME = null;
     public static String WORDCLOUD_STOPWORDS;
     public static LinkedHashMap<String,String> SOLR_PARAMS_MAP= new LinkedHashMap<String,String>(); 
 
     public static boolean SOLR_SERVER_CACHING=false;
+    // Used by RestrictedSolrClient. http1 uses HttpSolrClient, http2 uses Http2SolrClient with async requests
+    public static String SOLR_CLIENT_TRANSPORT="http1"; //default value
     public static boolean WARC_FILES_VERIFY_COLLECTION=false;
     public static int SOLR_SERVER_CACHING_MAX_ENTRIES=1000; //default value
+    public static long SOLR_SERVER_CACHING_MAX_BYTES=209715200L; //default value 200MB, estimated. -1 means no limit
     public static int SOLR_SERVER_CACHING_AGE_SECONDS=36584600; //default value 1 year (effectively disabled)
     /**
      * How often the status (available, unavailable, changed) of the backing Solr is checked.
@@ -128,8 +201,19 @@ public class PropertiesLoader {
             // Legacy support
             WARC_SOURCE_HTTP_FALLBACK = Boolean.parseBoolean(serviceProperties.getProperty(WARC_SOURCE_HTTP_FALLBACK_LEGACY_PROPERTY, "false"));
             WARC_SOURCE_HTTP_FALLBACK = Boolean.parseBoolean(serviceProperties.getProperty(WARC_SOURCE_HTTP_FALLBACK_PROPERTY, Boolean.toString(WARC_SOURCE_HTTP_FALLBACK)));
+            WARC_SOURCE_FILE_MAX_CHANNELS = Integer.parseInt(serviceProperties.getProperty(WARC_SOURCE_FILE_MAX_CHANNELS_PROPERTY, Integer.toString(WARC_SOURCE_FILE_MAX_CHANNELS)).trim());
+            STREAM_BRIDGE_BUFFER_BYTES = Integer.parseInt(serviceProperties.getProperty(STREAM_BRIDGE_BUFFER_BYTES_PROPERTY, Integer.toString(STREAM_BRIDGE_BUFFER_BYTES)).trim());
+            UNIQUE_MEMORY_BYTES = Long.parseLong(serviceProperties.getProperty(UNIQUE_MEMORY_BYTES_PROPERTY, Long.toString(UNIQUE_MEMORY_BYTES)).trim());
+            EXPAND_RESOURCES_PARALLEL = Integer.parseInt(serviceProperties.getProperty(EXPAND_RESOURCES_PARALLEL_PROPERTY, Integer.toString(EXPAND_RESOURCES_PARALLEL)).trim());
+            EXPAND_RESOURCES_THREADS = Integer.parseInt(serviceProperties.getProperty(EXPAND_RESOURCES_THREADS_PROPERTY, Integer.toString(EXPAND_RESOURCES_THREADS)).trim());
+            EXPAND_RESOURCES_LINK_FIELDS = serviceProperties.getProperty(EXPAND_RESOURCES_LINK_FIELDS_PROPERTY, EXPAND_RESOURCES_LINK_FIELDS).trim();
             PID_COLLECTION_NAME = serviceProperties.getProperty(PID_COLLECTION_NAME_PROPERTY);
             loadArcResolverParameters(serviceProperties);
+            WARC_FILE_RESOLVER_CACHE_MAX_ENTRIES = Integer.parseInt(serviceProperties.getProperty(WARC_FILE_RESOLVER_CACHE_MAX_ENTRIES_PROPERTY, Integer.toString(WARC_FILE_RESOLVER_CACHE_MAX_ENTRIES)).trim());
+            WARC_FILE_RESOLVER_CACHE_AGE_SECONDS = Integer.parseInt(serviceProperties.getProperty(WARC_FILE_RESOLVER_CACHE_AGE_SECONDS_PROPERTY, Integer.toString(WARC_FILE_RESOLVER_CACHE_AGE_SECONDS)).trim());
+            WARC_FILE_RESOLVER_CACHE_MISSING_AGE_SECONDS = Integer.parseInt(serviceProperties.getProperty(WARC_FILE_RESOLVER_CACHE_MISSING_AGE_SECONDS_PROPERTY, Integer.toString(WARC_FILE_RESOLVER_CACHE_MISSING_AGE_SECONDS)).trim());
+            WARC_RECORD_CACHE_MAX_BYTES = Long.parseLong(serviceProperties.getProperty(WARC_RECORD_CACHE_MAX_BYTES_PROPERTY, Long.toString(WARC_RECORD_CACHE_MAX_BYTES)).trim());
+            WARC_RECORD_CACHE_MAX_RECORD_BYTES = Integer.parseInt(serviceProperties.getProperty(WARC_RECORD_CACHE_MAX_RECORD_BYTES_PROPERTY, Integer.toString(WARC_RECORD_CACHE_MAX_RECORD_BYTES)).trim());
             String timeout  = serviceProperties.getProperty(SCREENSHOT_PREVIEW_TIMEOUT_PROPERTY);
             URL_NORMALISER  = serviceProperties.getProperty(URL_NORMALISER_PROPERTY,"normal");
             SOLR_STREAM_SHARD_DIVIDE = serviceProperties.getProperty(SOLR_STREAM_SHARD_DIVIDE_PROPERTY, SOLR_STREAM_SHARD_DIVIDE);
@@ -145,6 +229,7 @@ public class PropertiesLoader {
                 SCREENSHOT_PREVIEW_TIMEOUT = Integer.parseInt(timeout);
             }
            
+            SOLR_CLIENT_TRANSPORT = serviceProperties.getProperty(SOLR_CLIENT_TRANSPORT_PROPERTY, SOLR_CLIENT_TRANSPORT).trim();
             String cachingStr= serviceProperties.getProperty(SOLR_SERVER_CACHING_PROPERTY);
 
             if (cachingStr != null && cachingStr.equalsIgnoreCase("true")) {
@@ -155,6 +240,9 @@ public class PropertiesLoader {
                 if (serviceProperties.containsKey(SOLR_SERVER_CACHING_MAX_ENTRIES_PROPERTY)) {
                     SOLR_SERVER_CACHING_MAX_ENTRIES = Integer.parseInt(serviceProperties.getProperty(SOLR_SERVER_CACHING_MAX_ENTRIES_PROPERTY).trim());
                 }
+                if (serviceProperties.containsKey(SOLR_SERVER_CACHING_MAX_BYTES_PROPERTY)) {
+                    SOLR_SERVER_CACHING_MAX_BYTES = Long.parseLong(serviceProperties.getProperty(SOLR_SERVER_CACHING_MAX_BYTES_PROPERTY).trim());
+                }
             }
 
             SOLR_SERVER_CHECK_INTERVAL = Integer.parseInt(serviceProperties.getProperty(
@@ -172,8 +260,48 @@ public class PropertiesLoader {
              log.info("no solrParams loaded");   
             }
             PLAYBACK_DISABLED = Boolean.parseBoolean(serviceProperties.getProperty(PLAYBACK_DISABLED_PROPERTY));
+            PLAYBACK_HTML_STREAMING_THRESHOLD = Long.parseLong(serviceProperties.getProperty(PLAYBACK_HTML_STREAMING_THRESHOLD_PROPERTY, Long.toString(PLAYBACK_HTML_STREAMING_THRESHOLD)).trim());
+            PLAYBACK_CACHE_MAX_BYTES = Long.parseLong(serviceProperties.getProperty(PLAYBACK_CACHE_MAX_BYTES_PROPERTY, Long.toString(PLAYBACK_CACHE_MAX_BYTES)).trim());
+            PLAYBACK_CACHE_MAX_ENTRY_BYTES = Integer.parseInt(serviceProperties.getProperty(PLAYBACK_CACHE_MAX_ENTRY_BYTES_PROPERTY, Integer.toString(PLAYBACK_CACHE_MAX_ENTRY_BYTES)).trim());
+            PLAYBACK_CACHE_SPILL_FOLDER = serviceProperties.getProperty(PLAYBACK_CACHE_SPILL_FOLDER_PROPERTY, PLAYBACK_CACHE_SPILL_FOLDER);
+            PLAYBACK_CACHE_SPILL_MAX_BYTES = Long.parseLong(serviceProperties.getProperty(PLAYBACK_CACHE_SPILL_MAX_BYTES_PROPERTY, Long.toString(PLAYBACK_CACHE_SPILL_MAX_BYTES)).trim());
+            TOOLBAR_DOMAIN_CACHE_MAX_ENTRIES = Integer.parseInt(serviceProperties.getProperty(TOOLBAR_DOMAIN_CACHE_MAX_ENTRIES_PROPERTY, Integer.toString(TOOLBAR_DOMAIN_CACHE_MAX_ENTRIES)).trim());
+            TOOLBAR_DOMAIN_CACHE_AGE_SECONDS = Integer.parseInt(serviceProperties.getProperty(TOOLBAR_DOMAIN_CACHE_AGE_SECONDS_PROPERTY, Integer.toString(TOOLBAR_DOMAIN_CACHE_AGE_SECONDS)).trim());
+            TIMELINE_FOLDER = serviceProperties.getProperty(TIMELINE_FOLDER_PROPERTY, TIMELINE_FOLDER);
+            if (TIMELINE_FOLDER != null && TIMELINE_FOLDER.trim().isEmpty()) {
+                TIMELINE_FOLDER = null;
+            }
+            LENIENT_MAX_REQUESTS = Integer.parseInt(serviceProperties.getProperty(LENIENT_MAX_REQUESTS_PROPERTY, Integer.toString(LENIENT_MAX_REQUESTS)).trim());
+            TIMELINE_DELTA_MAX_RECORDS = Integer.parseInt(serviceProperties.getProperty(TIMELINE_DELTA_MAX_RECORDS_PROPERTY, Integer.toString(TIMELINE_DELTA_MAX_RECORDS)).trim());
+            PLAYBACK_RESOLVE_CACHE_MAX_ENTRIES = Integer.parseInt(serviceProperties.getProperty(PLAYBACK_RESOLVE_CACHE_MAX_ENTRIES_PROPERTY, Integer.toString(PLAYBACK_RESOLVE_CACHE_MAX_ENTRIES)).trim());
+            PLAYBACK_RESOLVE_CACHE_BUCKET_SECONDS = Integer.parseInt(serviceProperties.getProperty(PLAYBACK_RESOLVE_CACHE_BUCKET_SECONDS_PROPERTY, Integer.toString(PLAYBACK_RESOLVE_CACHE_BUCKET_SECONDS)).trim());
+            URL_FILTER_FOLDER = serviceProperties.getProperty(URL_FILTER_FOLDER_PROPERTY, URL_FILTER_FOLDER);
+            if (URL_FILTER_FOLDER != null && URL_FILTER_FOLDER.trim().isEmpty()) {
+                URL_FILTER_FOLDER = null;
+            }
+            URL_FILTER_FALSE_POSITIVE_RATE = Double.parseDouble(serviceProperties.getProperty(URL_FILTER_FALSE_POSITIVE_RATE_PROPERTY, Double.toString(URL_FILTER_FALSE_POSITIVE_RATE)).trim());
+            THUMBNAIL_CACHE_MAX_BYTES = Long.parseLong(serviceProperties.getProperty(THUMBNAIL_CACHE_MAX_BYTES_PROPERTY, Long.toString(THUMBNAIL_CACHE_MAX_BYTES)).trim());
+            THUMBNAIL_CACHE_FOLDER = serviceProperties.getProperty(THUMBNAIL_CACHE_FOLDER_PROPERTY, THUMBNAIL_CACHE_FOLDER);
+            THUMBNAIL_CACHE_FOLDER_MAX_BYTES = Long.parseLong(serviceProperties.getProperty(THUMBNAIL_CACHE_FOLDER_MAX_BYTES_PROPERTY, Long.toString(THUMBNAIL_CACHE_FOLDER_MAX_BYTES)).trim());
             
             log.info("Property:"+ PLAYBACK_DISABLED_PROPERTY +" = " + PLAYBACK_DISABLED);
+            log.info("Property:"+ PLAYBACK_HTML_STREAMING_THRESHOLD_PROPERTY +" = " + PLAYBACK_HTML_STREAMING_THRESHOLD);
+            log.info("Property:"+ PLAYBACK_CACHE_MAX_BYTES_PROPERTY +" = " + PLAYBACK_CACHE_MAX_BYTES);
+            log.info("Property:"+ PLAYBACK_CACHE_MAX_ENTRY_BYTES_PROPERTY +" = " + PLAYBACK_CACHE_MAX_ENTRY_BYTES);
+            log.info("Property:"+ PLAYBACK_CACHE_SPILL_FOLDER_PROPERTY +" = " + PLAYBACK_CACHE_SPILL_FOLDER);
+            log.info("Property:"+ PLAYBACK_CACHE_SPILL_MAX_BYTES_PROPERTY +" = " + PLAYBACK_CACHE_SPILL_MAX_BYTES);
+            log.info("Property:"+ TOOLBAR_DOMAIN_CACHE_MAX_ENTRIES_PROPERTY +" = " + TOOLBAR_DOMAIN_CACHE_MAX_ENTRIES);
+            log.info("Property:"+ TOOLBAR_DOMAIN_CACHE_AGE_SECONDS_PROPERTY +" = " + TOOLBAR_DOMAIN_CACHE_AGE_SECONDS);
+            log.info("Property:"+ TIMELINE_FOLDER_PROPERTY +" = " + TIMELINE_FOLDER);
+            log.info("Property:"+ TIMELINE_DELTA_MAX_RECORDS_PROPERTY +" = " + TIMELINE_DELTA_MAX_RECORDS);
+            log.info("Property:"+ LENIENT_MAX_REQUESTS_PROPERTY +" = " + LENIENT_MAX_REQUESTS);
+            log.info("Property:"+ PLAYBACK_RESOLVE_CACHE_MAX_ENTRIES_PROPERTY +" = " + PLAYBACK_RESOLVE_CACHE_MAX_ENTRIES);
+            log.info("Property:"+ PLAYBACK_RESOLVE_CACHE_BUCKET_SECONDS_PROPERTY +" = " + PLAYBACK_RESOLVE_CACHE_BUCKET_SECONDS);
+            log.info("Property:"+ URL_FILTER_FOLDER_PROPERTY +" = " + URL_FILTER_FOLDER);
+            log.info("Property:"+ URL_FILTER_FALSE_POSITIVE_RATE_PROPERTY +" = " + URL_FILTER_FALSE_POSITIVE_RATE);
+            log.info("Property:"+ THUMBNAIL_CACHE_MAX_BYTES_PROPERTY +" = " + THUMBNAIL_CACHE_MAX_BYTES);
+            log.info("Property:"+ THUMBNAIL_CACHE_FOLDER_PROPERTY +" = " + THUMBNAIL_CACHE_FOLDER);
+            log.info("Property:"+ THUMBNAIL_CACHE_FOLDER_MAX_BYTES_PROPERTY +" = " + THUMBNAIL_CACHE_FOLDER_MAX_BYTES);
             log.info("Property:"+ SOLR_SERVER_PROPERTY +" = " + SOLR_SERVER);
             log.info("Property:"+ WAYBACK_BASEURL_PROPERTY +" = " + WAYBACK_BASEURL);
             log.info("Property:"+ CHROME_COMMAND_PROPERTY +" = " + CHROME_COMMAND);
@@ -182,12 +310,25 @@ public class PropertiesLoader {
             log.info("Property:"+ WARC_FILE_RESOLVER_CLASS_PROPERTY +" = " + WARC_FILE_RESOLVER_CLASS);
             log.info("Property:"+ WARC_FILE_RESOLVER_PARAMETERS_PROPERTY +" = " + WARC_FILE_RESOLVER_PARAMETERS);
             log.info("Property:"+ WARC_SOURCE_HTTP_FALLBACK_PROPERTY + " = " + WARC_SOURCE_HTTP_FALLBACK);
+            log.info("Property:"+ WARC_SOURCE_FILE_MAX_CHANNELS_PROPERTY + " = " + WARC_SOURCE_FILE_MAX_CHANNELS);
+            log.info("Property:"+ STREAM_BRIDGE_BUFFER_BYTES_PROPERTY + " = " + STREAM_BRIDGE_BUFFER_BYTES);
+            log.info("Property:"+ UNIQUE_MEMORY_BYTES_PROPERTY + " = " + UNIQUE_MEMORY_BYTES);
+            log.info("Property:"+ EXPAND_RESOURCES_PARALLEL_PROPERTY + " = " + EXPAND_RESOURCES_PARALLEL);
+            log.info("Property:"+ EXPAND_RESOURCES_THREADS_PROPERTY + " = " + EXPAND_RESOURCES_THREADS);
+            log.info("Property:"+ EXPAND_RESOURCES_LINK_FIELDS_PROPERTY + " = " + EXPAND_RESOURCES_LINK_FIELDS);
+            log.info("Property:"+ WARC_FILE_RESOLVER_CACHE_MAX_ENTRIES_PROPERTY + " = " + WARC_FILE_RESOLVER_CACHE_MAX_ENTRIES);
+            log.info("Property:"+ WARC_FILE_RESOLVER_CACHE_AGE_SECONDS_PROPERTY + " = " + WARC_FILE_RESOLVER_CACHE_AGE_SECONDS);
+            log.info("Property:"+ WARC_FILE_RESOLVER_CACHE_MISSING_AGE_SECONDS_PROPERTY + " = " + WARC_FILE_RESOLVER_CACHE_MISSING_AGE_SECONDS);
+            log.info("Property:"+ WARC_RECORD_CACHE_MAX_BYTES_PROPERTY + " = " + WARC_RECORD_CACHE_MAX_BYTES);
+            log.info("Property:"+ WARC_RECORD_CACHE_MAX_RECORD_BYTES_PROPERTY + " = " + WARC_RECORD_CACHE_MAX_RECORD_BYTES);
             log.info("Property:"+ URL_NORMALISER_PROPERTY +" = " +  URL_NORMALISER);
             log.info("Property:"+ PID_COLLECTION_NAME_PROPERTY +" = " +  PID_COLLECTION_NAME);
             log.info("Property:"+ WARC_FILES_VERIFY_COLLECTION_PROPERTY  +" = " + WARC_FILES_VERIFY_COLLECTION);
             log.info("Property:"+ SOLR_SERVER_CACHING_PROPERTY +" = " +  SOLR_SERVER_CACHING);
+            log.info("Property:"+ SOLR_CLIENT_TRANSPORT_PROPERTY +" = " +  SOLR_CLIENT_TRANSPORT);
             log.info("Property:"+ SOLR_SERVER_CACHING_AGE_SECONDS_PROPERTY +" = " +  SOLR_SERVER_CACHING_AGE_SECONDS);
             log.info("Property:"+ SOLR_SERVER_CACHING_MAX_ENTRIES_PROPERTY +" = " +  SOLR_SERVER_CACHING_MAX_ENTRIES);
+            log.info("Property:"+ SOLR_SERVER_CACHING_MAX_BYTES_PROPERTY +" = " +  SOLR_SERVER_CACHING_MAX_BYTES);
             log.info("Property:"+ SOLR_SERVER_CHECK_INTERVAL_PROPERTY +" = " +  SOLR_SERVER_CHECK_INTERVAL);
             log.info("Property:"+ SOLR_SEARCH_PARAMS_PROPERTY+" loaded map: " +  SOLR_PARAMS_MAP);
             log.info("Property:"+ SOLR_STREAM_SHARD_DIVIDE_PROPERTY + " = " + SOLR_STREAM_SHARD_DIVIDE);
@@ -60,6 +60,8 @@ public class PropertiesLoaderWeb {
     public static final String EXPORT_CSV_MAXRESULTS_PROPERTY = "export.csv.maxresults";
     public static final String EXPORT_WARC_EXPANDED_MAXRESULTS_PROPERTY = "export.warc.expanded.maxresults";
     public static final String EXPORT_ZIP_MAXRESULTS_PROPERTY ="export.csv.maxresults";
+    public static final String EXPORT_WARC_PARALLEL_RECORDS_PROPERTY = "export.warc.parallel.records";
+    public static final String EXPORT_WARC_BUFFER_BYTES_PROPERTY = "export.warc.buffer.bytes";
 
     public static final String EXPORT_CSV_FIELDS_PROPERTY = "export.csv.fields";
     public static final String ABOUT_TEXT_FILE_PROPERTY = "about.text.file";
@@ -95,6 +97,8 @@ public class PropertiesLoaderWeb {
     public static long EXPORT_WARC_MAXRESULTS=1000000; // 1M default
     public static long EXPORT_WARC_EXPANDED_MAXRESULTS=100000; // 500K default
     public static long EXPORT_ZIP_MAXRESULTS=1000000; // 1M default
+    public static int EXPORT_WARC_PARALLEL_RECORDS=8; // Number of records to resolve concurrently for WARC export
+    public static long EXPORT_WARC_BUFFER_BYTES=50*1024*1024L; // 50MB heap buffer per WARC export
     public static boolean ALLOW_EXPORT_WARC;
     public static boolean ALLOW_EXPORT_CSV;
     public static boolean ALLOW_EXPORT_ZIP;
@@ -184,6 +188,8 @@ public class PropertiesLoaderWeb {
             TOP_LEFT_LOGO_IMAGE_LINK = serviceProperties.getProperty(TOP_LEFT_LOGO_IMAGE_LINK_PROPERTY);
 
             WARC_ENTRY_TEXT_MAX_CHARACTERS = getInt(WARC_ENTRY_TEXT_MAX_CHARACTERS_PROPERTY, WARC_ENTRY_TEXT_MAX_CHARACTERS);
+            EXPORT_WARC_PARALLEL_RECORDS = getInt(EXPORT_WARC_PARALLEL_RECORDS_PROPERTY, EXPORT_WARC_PARALLEL_RECORDS);
+            EXPORT_WARC_BUFFER_BYTES = getLong(EXPORT_WARC_BUFFER_BYTES_PROPERTY, EXPORT_WARC_BUFFER_BYTES);
 
             String csv_max_results= serviceProperties.getProperty(EXPORT_CSV_MAXRESULTS_PROPERTY);
             String warc_max_results= serviceProperties.getProperty(EXPORT_WARC_MAXRESULTS_PROPERTY);
@@ -276,6 +282,8 @@ public class PropertiesLoaderWeb {
             log.info("Property:"+ EXPORT_WARC_MAXRESULTS_PROPERTY +" = " + EXPORT_WARC_MAXRESULTS);
             log.info("Property:"+ EXPORT_WARC_EXPANDED_MAXRESULTS_PROPERTY +" = " + EXPORT_WARC_EXPANDED_MAXRESULTS);
             log.info("Property:"+ EXPORT_ZIP_MAXRESULTS_PROPERTY + " = " + EXPORT_ZIP_MAXRESULTS);
+            log.info("Property:"+ EXPORT_WARC_PARALLEL_RECORDS_PROPERTY + " = " + EXPORT_WARC_PARALLEL_RECORDS);
+            log.info("Property:"+ EXPORT_WARC_BUFFER_BYTES_PROPERTY + " = " + EXPORT_WARC_BUFFER_BYTES);
             log.info("Property:"+ EXPORT_CSV_FIELDS_PROPERTY +" = " + EXPORT_CSV_FIELDS);
             log.info("Property:"+ WAYBACK_SERVER_PROPERTY +" = " + WAYBACK_SERVER);			
             log.info("Property:"+ MAPS_LATITUDE_PROPERTY+" = " +MAPS_LATITUDE);
@@ -320,6 +328,17 @@ public class PropertiesLoaderWeb {
         return Integer.parseInt(raw.trim());
     }
 
+    private static long getLong(String key, long defaultValue) {
+        if (serviceProperties == null) {
+            initProperties();
+        }
+        String raw = serviceProperties.getProperty(key);
+        if (raw == null || raw.isEmpty()) {
+            return defaultValue;
+        }
+        return Long.parseLong(raw.trim());
+    }
+
     public static String getProperty(String key, String defaultValue) {
         if (serviceProperties == null) {
             initProperties();
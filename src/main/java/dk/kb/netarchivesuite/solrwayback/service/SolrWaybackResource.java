@@ -3,7 +3,6 @@ package dk.kb.netarchivesuite.solrwayback.service;
 
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
@@ -19,7 +18,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import javax.imageio.ImageIO;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
@@ -33,13 +31,16 @@ import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import dk.kb.netarchivesuite.solrwayback.facade.Facade;
 import dk.kb.netarchivesuite.solrwayback.image.ImageUtils;
+import dk.kb.netarchivesuite.solrwayback.image.ThumbnailCache;
 import dk.kb.netarchivesuite.solrwayback.normalise.Normalisation;
+import dk.kb.netarchivesuite.solrwayback.parsers.ArcParserFileResolver;
 import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
 import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoaderWeb;
 import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
@@ -177,10 +178,19 @@ public class SolrWaybackResource {
 
       //log.debug("Getting image from source_file_path:" + source_file_path + " offset:" + offset + " targetWidth:" + width + " targetHeight:" + height);
 
-      ArcEntry arcEntry= Facade.getArcEntry(source_file_path, offset);
+      // Checked before the cache lookup, as cached thumbnails can be from records no longer in the collection
+      Facade.verifyInCollection(source_file_path, offset);
+      ThumbnailCache cache = Facade.getThumbnailCache();
+      byte[] png = cache.get(source_file_path, offset, width, height);
+      if (png != null) {
+        return Response.ok(new ByteArrayInputStream(png)).build();
+      }
+
+      // Collection membership has been verified above, so the resolver is called directly
+      ArcEntry arcEntry= ArcParserFileResolver.getArcEntry(source_file_path, offset, true);
 
-      // TODO: This is prone to OOM for large images. There should be a sanity check of width & height first
-      BufferedImage image = ImageUtils.getImageFromBinary(arcEntry.getBinaryDecoded());
+      // Decoded with subsampling, so large images are not fully decoded
+      BufferedImage image = ImageUtils.getScaledImageFromBinary(arcEntry.getBinaryDecoded(), width, height);
 
       if (image== null){
         // java does not support ico format. Just serve it RAW... 
@@ -193,16 +203,9 @@ public class SolrWaybackResource {
         throw new IllegalArgumentException("image is null and not .ico image, source_file_path:"+source_file_path +" offset:"+offset +" contentType:"+arcEntry.getContentType());                
       }
 
-      int sourceWidth = image.getWidth();
-      int sourceHeight = image.getHeight();
-
-      if (sourceHeight <= height && sourceWidth <= width) { // No resize, image is smaller
-       return convertToPng(image); 
-        
-      } else {
-        BufferedImage resizeImage = ImageUtils.resizeImage(image, sourceWidth, sourceHeight, width, height);
-        return convertToPng(resizeImage);
-      }
+      png = ImageUtils.encodePng(image);
+      cache.offer(source_file_path, offset, width, height, png);
+      return Response.ok(new ByteArrayInputStream(png)).build();
     } catch (Exception e) {
       log.error("error getImage:"+source_file_path +" offset:"+offset +" height:"+height +" width:"+width); //Java can not read all images. 
       throw handleServiceExceptions(e);
@@ -237,7 +240,7 @@ public class SolrWaybackResource {
         }
         
   //  log.debug("Download from FilePath:" + source_file_path + " offset:" + offset);
-      ArcEntry arcEntry= Facade.getArcEntry(source_file_path, offset);
+      ArcEntry arcEntry= Facade.getArcEntry(source_file_path, offset, true);
       
       //Only solr lookup if redirect.
       if (arcEntry.getStatus_code() >= 300 &&  arcEntry.getStatus_code() <= 399 ){
@@ -311,24 +314,26 @@ public class SolrWaybackResource {
   @GET
   @Path("/export/warc")    
   @Produces(MediaType.APPLICATION_OCTET_STREAM)    
-  public Response exportWarc(@QueryParam("query") String q, @QueryParam("fq") List<String> fq, @QueryParam("gzip") boolean gzip) throws SolrWaybackServiceException {
+  public Response exportWarc(@QueryParam("query") String q, @QueryParam("fq") List<String> fq, @QueryParam("gzip") boolean gzip,
+                             @QueryParam("locality") boolean locality) throws SolrWaybackServiceException {
    
     //This is also required even if the option is removed on the web-page.
     if (!PropertiesLoaderWeb.ALLOW_EXPORT_WARC){ 
       throw new InvalidArgumentServiceException("Export to warc not allowed!");
     }    
-    return exportWarcImpl(q, fq, gzip, false, false);
+    return exportWarcImpl(q, fq, gzip, false, false, locality);
   }
   
   @GET
   @Path("/export/warcExpanded")    
   @Produces(MediaType.APPLICATION_OCTET_STREAM)    
-  public Response exportWarcExpanded(@QueryParam("query") String q, @QueryParam("fq") List<String> fq,  @QueryParam("gzip") boolean gzip) throws SolrWaybackServiceException {
+  public Response exportWarcExpanded(@QueryParam("query") String q, @QueryParam("fq") List<String> fq,  @QueryParam("gzip") boolean gzip,
+                                     @QueryParam("locality") boolean locality) throws SolrWaybackServiceException {
     //This is also required even if the option is removed on the web-page.
     if (!PropertiesLoaderWeb.ALLOW_EXPORT_WARC){ 
       throw new InvalidArgumentServiceException("Export to warc not allowed!");
     }        
-    return exportWarcImpl(q, fq, gzip, true, true);
+    return exportWarcImpl(q, fq, gzip, true, true, locality);
   }
   
   
@@ -336,16 +341,17 @@ public class SolrWaybackResource {
                                    List<String>  fqList,
                                    boolean gzip,
                                    boolean expandResources,
-                                   boolean avoidDuplicates) throws SolrWaybackServiceException {
+                                   boolean avoidDuplicates,
+                                   boolean locality) throws SolrWaybackServiceException {
     InputStream is = null;
     try {
-      log.debug("Export warc. gzip="+gzip +" query:"+q +" filterquery:"+fqList);
+      log.debug("Export warc. gzip="+gzip +" locality="+locality +" query:"+q +" filterquery:"+fqList);
       DateFormat formatOut= new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss");
       String dateStr = formatOut.format(new Date());
 
       //Map FQ List<String> to String[]
       String[] fqArray = fqList.stream().toArray(String[]::new);
-      is = Facade.exportWarcStreaming(expandResources, avoidDuplicates, gzip,q, fqArray);
+      is = Facade.exportWarcStreaming(expandResources, avoidDuplicates, gzip, locality, q, fqArray);
       
       String template = "solrwayback_$DATETIME.warc";
       if (gzip) {
@@ -453,18 +459,20 @@ public class SolrWaybackResource {
   /**
    * Endpoint that delivers a zip file of content present in query of a specific content type.
    * @param query       used to extract WARC entries from solr by.
+   * @param locality    if true, the content is delivered in (W)ARC storage order, which is faster for large exports.
    * @param filters     appended to the solr query.
    * @return            a zip file of the exported content.
    */
   @GET
   @Path("/export/zip")
-  public Response exportZipContent(@QueryParam("query") String query, @QueryParam("fq") String... filters)
+  public Response exportZipContent(@QueryParam("query") String query, @QueryParam("locality") boolean locality,
+                                   @QueryParam("fq") String... filters)
           throws InvalidArgumentServiceException, SolrServerException, IOException {
     if (!PropertiesLoaderWeb.ALLOW_EXPORT_ZIP){
       throw new InvalidArgumentServiceException("Zip export is not allowed!");
     }
 
-    StreamingOutput zip = Facade.exportZipContent(query, filters);
+    StreamingOutput zip = Facade.exportZipContent(locality, query, filters);
 
     return Response.ok(zip)
             .header("Content-Disposition", getDisposition("solrwayback_$DATETIME.zip"))
@@ -961,7 +969,14 @@ public class SolrWaybackResource {
    //log.debug("setting contentype:"+contentType);
 //          
    
-   ResponseBuilder response = Response.ok(arcEntry.getBinaryNoChunking()).type(contentType );
+   // Always closed after delivery, also if the client disconnects, so that a streaming producer stops
+   final InputStream content = arcEntry.getBinaryNoChunking();
+   StreamingOutput output = os -> {
+     try (InputStream in = content) {
+       IOUtils.copy(in, os);
+     }
+   };
+   ResponseBuilder response = Response.ok(output).type(contentType );
 
     if (arcEntry.isHasBeenDecompressed()){ //Will have if playback (HTML, Twitter, etc.) has replaced the content
     	response.header("Content-Encoding", "identity"); //Not required, but will make it easier to see it has been applied.
@@ -1098,13 +1113,7 @@ public class SolrWaybackResource {
   }
   
   private Response convertToPng(BufferedImage image)  throws Exception { 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    ImageIO.write(image, "png", baos);
-    byte[] imageData = baos.toByteArray();
-    baos.flush();
-    baos.close();
-    ResponseBuilder response = Response.ok(new ByteArrayInputStream(imageData));
-    return response.build();
+    return Response.ok(new ByteArrayInputStream(ImageUtils.encodePng(image))).build();
   }
 
   /**
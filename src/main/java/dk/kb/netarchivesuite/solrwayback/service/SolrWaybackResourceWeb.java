@@ -624,7 +624,7 @@ public class SolrWaybackResourceWeb {
       try {
 
         log.debug("Download from FilePath:" + source_file_path + " offset:" + offset);
-        ArcEntry arcEntry= Facade.getArcEntry(source_file_path, offset);
+        ArcEntry arcEntry= Facade.getArcEntry(source_file_path, offset, true);
         
         //Only solr lookup if redirect.
         if (arcEntry.getStatus_code() >= 300 &&  arcEntry.getStatus_code() <= 399 ){
@@ -10,13 +10,16 @@ import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.lang.ref.Cleaner;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlTransient;
 
 import dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource;
 import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoaderWeb;
@@ -59,12 +62,17 @@ public class ArcEntry {
   private FORMAT format;
     
   private static final Logger log = LoggerFactory.getLogger(ArcEntry.class);
+  // Releases retained binary streams that are never read
+  private static final Cleaner retainedCleaner = Cleaner.create();
+
   private ArcSource arcSource;
   private long offset;  
   private boolean hasBeenDecompressed=false;
   private boolean chunked=false;
   private byte[] cachedBinary;
   private long binaryTrueSize;
+  private long binaryOffset = -1; // Bytes from entry start (after (W)ARC decompression) to binary. -1 if unknown
+  private RetainedBinary retainedBinary;
   private int status_code;
   private String header;//Both headers for WARC.
   private String ip;
@@ -161,6 +169,79 @@ public void setOffset(long offset) {
 public void setBinaryArraySize(long binaryArraySize) {
     this.binaryTrueSize = binaryArraySize;
 }
+
+  /**
+   * @return the number of header bytes before the binary, counted from the start of the (decompressed) entry.
+   *         -1 if the headers has not been parsed.
+   */
+  public long getBinaryOffset() {
+    return binaryOffset;
+  }
+  public void setBinaryOffset(long binaryOffset) {
+    this.binaryOffset = binaryOffset;
+  }
+
+  /**
+   * Set the raw binary, as delivered by {@link #getBinaryRaw()}, for this entry. Subsequent calls to
+   * {@link #getBinaryRaw()} will use the given bytes instead of reading from the (W)ARC.
+   * <p>
+   * The array is not copied and must not be modified after the call.
+   * @param binary the raw binary for the entry.
+   */
+  public void setCachedBinary(byte[] binary) {
+    if (retainedBinary != null) {
+      retainedBinary.run();
+    }
+    cachedBinary = binary;
+    binaryTrueSize = binary.length;
+  }
+
+  /**
+   * Create a shallow copy of this entry, without any retained binary stream.
+   * A cached binary is shared between the copies, which is safe as the cached binary is only ever replaced.
+   * @return a copy of this entry.
+   */
+  public ArcEntry copy() {
+    ArcEntry copy = new ArcEntry();
+    copy.format = format;
+    copy.arcSource = arcSource;
+    copy.offset = offset;
+    copy.hasBeenDecompressed = hasBeenDecompressed;
+    copy.chunked = chunked;
+    copy.cachedBinary = cachedBinary;
+    copy.binaryTrueSize = binaryTrueSize;
+    copy.binaryOffset = binaryOffset;
+    copy.status_code = status_code;
+    copy.header = header;
+    copy.ip = ip;
+    copy.url = url;
+    copy.contentCharset = contentCharset;
+    copy.contentLength = contentLength;
+    copy.warcEntryContentLength = warcEntryContentLength;
+    copy.contentType = contentType;
+    copy.type = type;
+    copy.contentTypeExt = contentTypeExt;
+    copy.fileName = fileName;
+    copy.crawlDate = crawlDate;
+    copy.contentEncoding = contentEncoding;
+    copy.waybackDate = waybackDate;
+    copy.redirectUrl = redirectUrl;
+    return copy;
+  }
+
+  /**
+   * Set a stream positioned at the start of the binary, left open from the header parsing.
+   * The first call to {@link #getBinaryRaw()} will hand over this stream instead of opening the (W)ARC again.
+   * If the binary is never requested, the stream is closed when this entry is garbage collected.
+   * @param binary stream positioned at the start of the binary and bounded to the binary size.
+   */
+  public void setRetainedBinary(InputStream binary) {
+    if (retainedBinary != null) {
+      retainedBinary.run();
+    }
+    retainedBinary = new RetainedBinary(binary);
+    retainedCleaner.register(this, retainedBinary);
+  }
 /**
    * Lenient setter for content-encoding (compression).
    * Will trim leading and trailing whitespace and remove {@code "}-characters.
@@ -259,12 +340,22 @@ public void setFormat(FORMAT format) {
         if (cachedBinary != null) {
             return new BufferedInputStream(new ByteArrayInputStream(cachedBinary));
         }
-        // TODO: If binaryArraySize is "small" this should be cached
+        InputStream retained = retainedBinary == null ? null : retainedBinary.take();
+        if (retained != null) {
+            return retained instanceof BufferedInputStream ?
+                    (BufferedInputStream) retained :
+                    new BufferedInputStream(retained);
+        }
+        // Small binaries are cached by RecordCache, see ArcParserFileResolver
         switch (format) {
             case ARC:
-                return ArcParser.lazyLoadContent(arcSource, offset);
+                return binaryOffset < 0 ?
+                        ArcParser.lazyLoadContent(arcSource, offset) :
+                        ArcParser.lazyLoadBinary(arcSource, offset, binaryOffset, binaryTrueSize);
             case WARC:
-                return WarcParser.lazyLoadBinary(arcSource, offset);
+                return binaryOffset < 0 ?
+                        WarcParser.lazyLoadBinary(arcSource, offset) :
+                        WarcParser.lazyLoadBinary(arcSource, offset, binaryOffset, binaryTrueSize);
             default:
                 throw new UnsupportedOperationException(
                         "Loading of binaries for the format '" + format + "' is unsupported. " +
@@ -419,6 +510,9 @@ public void setFormat(FORMAT format) {
      * @param content replacement for the existing binary.
      */
     public void setStringContent(String content) {
+        if (retainedBinary != null) {
+            retainedBinary.run(); // Release the retained stream as the binary is replaced
+        }
         cachedBinary = content.getBytes(getCharsetSafe());
         binaryTrueSize = cachedBinary.length;
         
@@ -426,6 +520,24 @@ public void setFormat(FORMAT format) {
         setChunked(false); //also removed chunked flag 
     }
 
+    /**
+     * Sets the binary for this (W)ARC entry representation to the given stream, typically rewritten HTML produced
+     * on the fly by playback. The content must be encoded using {@link #getCharsetSafe()}.
+     * Like {@link #setStringContent(String)} the compression and chunked flags are removed. The size of the binary
+     * is unknown after this call and the stream can only be read once.
+     * <p>
+     * If the binary is never requested, the stream is closed when this entry is garbage collected.
+     * @param content replacement for the existing binary.
+     */
+    public void setStreamingContent(InputStream content) {
+        cachedBinary = null;
+        binaryTrueSize = -1;
+        setRetainedBinary(content);
+
+        hasBeenDecompressed = true; //This is the flag used by service when returning the content
+        setChunked(false);
+    }
+
   private InputStream maybeBrotliDecode(InputStream before) throws IOException {
       if (!"br".equalsIgnoreCase(contentEncoding)) {
           return before;
@@ -581,7 +693,8 @@ public void setFormat(FORMAT format) {
     /**
      * @return the charset from the HTTP header if possible, else {@code utf-8}.
      */
-    private Charset getCharsetSafe() {
+    @XmlTransient
+    public Charset getCharsetSafe() {
         Charset charset;
         String encoding = this.getContentCharset();
         charset = StandardCharsets.UTF_8;
@@ -596,4 +709,38 @@ public void setFormat(FORMAT format) {
         return charset;
     }
 
+    /**
+     * Holder for a stream left open by the (W)ARC parser. Can be taken once.
+     * Used as a {@link Cleaner} action, so it must not reference the owning {@link ArcEntry}.
+     */
+    private static class RetainedBinary implements Runnable {
+        private final AtomicReference<InputStream> binary;
+
+        RetainedBinary(InputStream binary) {
+            this.binary = new AtomicReference<>(binary);
+        }
+
+        /**
+         * @return the retained stream or null if it has already been taken or released.
+         */
+        InputStream take() {
+            return binary.getAndSet(null);
+        }
+
+        /**
+         * Closes the retained stream if it has not been taken.
+         */
+        @Override
+        public void run() {
+            InputStream stream = take();
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    log.debug("Exception closing retained binary stream", e);
+                }
+            }
+        }
+    }
+
 }
@@ -0,0 +1,441 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.solr;
+
+import dk.kb.netarchivesuite.solrwayback.util.CollectionUtils;
+import dk.kb.netarchivesuite.solrwayback.util.UrlUtils;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filters for the {@code url_norm}s, {@code url}s and {@code host}s in the index, used for skipping Solr
+ * lookups for URLs that were never archived. A large part of the embedded resources on old pages were never
+ * harvested and without the filter, each of them costs both a direct and a lenient lookup.
+ * <p>
+ * The filters can answer "definitely not in the index" with certainty and "might be in the index" with a false
+ * positive rate that is set when building. The rate is measured against the number of documents in the index at
+ * build time, so it will be lower for indexes where most URLs have multiple captures.
+ * <p>
+ * The filters are built by streaming the full index once and stored in a folder. After that they are kept current
+ * by requesting documents with an {@code index_time} at or after the latest seen {@code index_time}, see
+ * {@link #update(SolrClient)}. Deletions from the index are not tracked, which only means more false positives.
+ * If many documents are added after the build, the false positive rate rises: Delete the folder and restart to
+ * rebuild.
+ * <p>
+ * Lookups are thread safe and can be issued while updating.
+ */
+public class ArchivedUrlFilter implements IndexTimeTracking.Updatable {
+    private static final Logger log = LoggerFactory.getLogger(ArchivedUrlFilter.class);
+
+    static final String META_FILE = "filter.properties";
+    static final String BITS_FILE = "filter.bin";
+    private static final String URLS_KEY = "urls";
+    private static final String HOSTS_KEY = "hosts";
+    private static final String FALSE_POSITIVE_RATE_KEY = "false.positive.rate";
+
+    private static final long MIN_URLS = 100000;
+    private static final long MIN_HOSTS = 10000;
+
+    private final File folder;
+    private final double falsePositiveRate;
+    private final Bloom urls;
+    private final Bloom hosts;
+    private final Object updateLock = new Object();
+    private volatile long indexTime;
+    // Documents added since the filters were last written to the folder
+    private long unwritten = 0;
+
+    private final AtomicLong checks = new AtomicLong(0);
+    private final AtomicLong absent = new AtomicLong(0);
+
+    private ArchivedUrlFilter(File folder, double falsePositiveRate, Bloom urls, Bloom hosts, long indexTime) {
+        this.folder = folder;
+        this.falsePositiveRate = falsePositiveRate;
+        this.urls = urls;
+        this.hosts = hosts;
+        this.indexTime = indexTime;
+    }
+
+    /**
+     * @param folder a folder that might contain filters.
+     * @return true if filters have been built in the folder.
+     */
+    public static boolean exists(File folder) {
+        return new File(folder, META_FILE).isFile();
+    }
+
+    /**
+     * Open previously built filters. Call {@link #update(SolrClient)} afterwards to get URLs that were added to the
+     * index since the filters were last written.
+     * @param folder the folder with the filters.
+     * @return the filters.
+     * @throws IOException if the filters could not be opened.
+     */
+    public static ArchivedUrlFilter open(File folder) throws IOException {
+        Properties meta = IndexTimeTracking.loadMeta(new File(folder, META_FILE));
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(folder, BITS_FILE)), 1024*1024))) {
+            Bloom urls = Bloom.read(meta.getProperty(URLS_KEY), in);
+            Bloom hosts = Bloom.read(meta.getProperty(HOSTS_KEY), in);
+            ArchivedUrlFilter filter = new ArchivedUrlFilter(
+                    folder, Double.parseDouble(meta.getProperty(FALSE_POSITIVE_RATE_KEY)), urls, hosts,
+                    Long.parseLong(meta.getProperty(IndexTimeTracking.INDEX_TIME_KEY)));
+            log.info("Opened " + filter);
+            return filter;
+        }
+    }
+
+    /**
+     * Build filters for all documents in the index by streaming {@code url_norm}, {@code url} and {@code host}.
+     * This can take hours for large indexes. Any previous filters in the folder are replaced.
+     * @param solrClient        the client for the index.
+     * @param folder            the folder to hold the filters. Created if it does not exist.
+     * @param falsePositiveRate the wanted rate of false positives, e.g. 0.01.
+     * @return the filters.
+     * @throws IOException if the filters could not be build.
+     */
+    public static ArchivedUrlFilter build(SolrClient solrClient, File folder, double falsePositiveRate)
+            throws IOException {
+        final long startNS = System.nanoTime();
+        Files.createDirectories(folder.toPath());
+        // Documents indexed while streaming are picked up by the first update
+        long indexTime = IndexTimeTracking.getMaxIndexTime(solrClient);
+        String query = IndexTimeTracking.upToQuery(indexTime);
+        long documents = count(solrClient, query);
+
+        Bloom urls = Bloom.create(Math.max(MIN_URLS, documents), falsePositiveRate);
+        Set<String> hostSet = new HashSet<>(); // Hosts are few enough to hold in memory, giving an exact size
+        try (CollectionUtils.CloseableIterator<SolrDocument> docs = request(solrClient, query).iterate()) {
+            while (docs.hasNext()) {
+                SolrDocument doc = docs.next();
+                addURLs(urls, doc);
+                String host = (String) doc.getFieldValue("host");
+                if (host != null) {
+                    hostSet.add(host);
+                }
+            }
+        }
+        Bloom hosts = Bloom.create(Math.max(MIN_HOSTS, hostSet.size() * 2L), falsePositiveRate);
+        hostSet.forEach(hosts::add);
+
+        ArchivedUrlFilter filter = new ArchivedUrlFilter(folder, falsePositiveRate, urls, hosts, indexTime);
+        filter.write();
+        log.info("Built " + filter + " from " + documents + " documents in " +
+                 (System.nanoTime() - startNS) / 1000000 + " ms");
+        return filter;
+    }
+
+    /**
+     * Add the URLs and hosts that have been indexed since last build or update. The filters are written to the folder
+     * if the additions since last write exceed 1% of the capacity.
+     * @param solrClient the client for the index.
+     * @return the number of documents received from Solr.
+     * @throws IOException if the additions could not be requested or written.
+     */
+    @Override
+    public long update(SolrClient solrClient) throws IOException {
+        synchronized (updateLock) {
+            long newIndexTime = IndexTimeTracking.getMaxIndexTime(solrClient);
+            if (newIndexTime < indexTime) {
+                return 0;
+            }
+            // Documents at the start of the interval are received again. Adding twice is harmless
+            long added = 0;
+            try (CollectionUtils.CloseableIterator<SolrDocument> docs = request(
+                    solrClient, IndexTimeTracking.rangeQuery(indexTime, newIndexTime)).iterate()) {
+                while (docs.hasNext()) {
+                    SolrDocument doc = docs.next();
+                    addURLs(urls, doc);
+                    String host = (String) doc.getFieldValue("host");
+                    if (host != null) {
+                        hosts.add(host);
+                    }
+                    added++;
+                }
+            }
+            indexTime = newIndexTime;
+            unwritten += added;
+            if (unwritten > urls.capacity / 100) {
+                write();
+            }
+            if (urls.getAdded() > urls.capacity || hosts.getAdded() > hosts.capacity) {
+                log.warn("The archived URL filter holds more entries than it was built for, raising the false " +
+                         "positive rate. Delete the folder '" + folder + "' and restart to rebuild: " + this);
+            }
+            return added;
+        }
+    }
+
+    /**
+     * Check whether a direct {@code url_norm:"<urlNorm>"} lookup can match anything in the index.
+     * @param urlNorm a normalised URL.
+     * @return false if the URL is definitely not in the index, true if it might be.
+     */
+    public boolean mightContain(String urlNorm) {
+        checks.incrementAndGet();
+        if (urlNorm == null || urls.mightContain(urlNorm)) {
+            return true;
+        }
+        absent.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Check whether {@link UrlUtils#lenientURLQuery(String)} can match anything in the index: The URL or the
+     * normalised URL must be in the index or, for URLs with arguments, the host must be in the index.
+     * @param url     the URL to resolve leniently.
+     * @param urlNorm the URL normalised by {@link UrlUtils#punyCodeAndNormaliseUrl(String)}. Can be null.
+     * @return false if the URL definitely cannot be resolved leniently, true if it might be.
+     */
+    public boolean mightContainLenient(String url, String urlNorm) {
+        checks.incrementAndGet();
+        if (urls.mightContain(url)) {
+            return true;
+        }
+        if (urlNorm != null) {
+            if (urls.mightContain(urlNorm)) {
+                return true;
+            }
+            String host = UrlUtils.lenientURLHost(urlNorm);
+            if (host != null && hosts.mightContain(host)) {
+                return true;
+            }
+        }
+        absent.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return the number of checks for URLs.
+     */
+    public long getChecks() {
+        return checks.get();
+    }
+
+    /**
+     * @return the number of checks where the URL was definitely not in the index, i.e. skipped Solr lookups.
+     */
+    public long getAbsent() {
+        return absent.get();
+    }
+
+    /**
+     * @return the estimated false positive rate for URLs, based on the number of set bits in the filter.
+     */
+    public double getEstimatedFalsePositiveRate() {
+        return urls.getEstimatedFalsePositiveRate();
+    }
+
+    /**
+     * @return the number of bytes used by the filters.
+     */
+    public long getBytes() {
+        return urls.getBytes() + hosts.getBytes();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+                             "ArchivedUrlFilter(folder='%s', urls=%s, hosts=%s, memory=%dMB, checks=%d, absent=%d, " +
+                             "indexTime=%s)",
+                             folder, urls, hosts, getBytes() / 1048576, checks.get(), absent.get(),
+                             IndexTimeTracking.solrDate(indexTime));
+    }
+
+    /**
+     * Add {@code url_norm} and, if different, {@code url} from the document.
+     */
+    private static void addURLs(Bloom urls, SolrDocument doc) {
+        String urlNorm = (String) doc.getFieldValue("url_norm");
+        String url = (String) doc.getFieldValue("url");
+        if (urlNorm != null) {
+            urls.add(urlNorm);
+        }
+        if (url != null && !url.equals(urlNorm)) {
+            urls.add(url);
+        }
+    }
+
+    private static SRequest request(SolrClient solrClient, String query) {
+        return SRequest.builder().
+                solrClient(solrClient).
+                query(query).
+                fields("url_norm", "url", "host");
+    }
+
+    private static long count(SolrClient solrClient, String query) throws IOException {
+        SolrQuery solrQuery = new SolrQuery(query);
+        solrQuery.setRows(0);
+        solrQuery.set("facet", "false");
+        try {
+            return solrClient.query(solrQuery, SolrRequest.METHOD.POST).getResults().getNumFound();
+        } catch (SolrServerException e) {
+            throw new IOException("Unable to count the documents for '" + query + "'", e);
+        }
+    }
+
+    /**
+     * Write the filters to the folder. The meta file is written last, so an interrupted write leaves the previous
+     * filters in place.
+     */
+    private void write() throws IOException {
+        synchronized (updateLock) {
+            File bitsTmp = new File(folder, BITS_FILE + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(bitsTmp), 1024*1024))) {
+                urls.write(out);
+                hosts.write(out);
+            }
+            IndexTimeTracking.replace(bitsTmp, new File(folder, BITS_FILE));
+
+            Properties meta = new Properties();
+            meta.setProperty(URLS_KEY, urls.describe());
+            meta.setProperty(HOSTS_KEY, hosts.describe());
+            meta.setProperty(IndexTimeTracking.INDEX_TIME_KEY, Long.toString(indexTime));
+            meta.setProperty(FALSE_POSITIVE_RATE_KEY, Double.toString(falsePositiveRate));
+            IndexTimeTracking.storeMeta(new File(folder, META_FILE), meta, "ArchivedUrlFilter");
+            unwritten = 0;
+        }
+    }
+
+    /**
+     * Bloom filter using the two 64 bit halves of MurmurHash3 128 for double hashing.
+     */
+    static final class Bloom {
+        final long capacity;
+        final int hashes;
+        final long bits;
+        private final AtomicLongArray words;
+        private final AtomicLong added;
+
+        private Bloom(long capacity, int hashes, long bits, long added) {
+            this.capacity = capacity;
+            this.hashes = hashes;
+            this.bits = bits;
+            this.words = new AtomicLongArray((int) ((bits + 63) / 64));
+            this.added = new AtomicLong(added);
+        }
+
+        /**
+         * @param capacity          the expected number of entries.
+         * @param falsePositiveRate the wanted rate of false positives when the filter holds capacity entries.
+         */
+        static Bloom create(long capacity, double falsePositiveRate) {
+            double log2 = Math.log(2);
+            long bits = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (log2 * log2));
+            bits = Math.max(64, Math.min(bits, Integer.MAX_VALUE * 64L));
+            int hashes = (int) Math.max(1, Math.round(1.0 * bits / capacity * log2));
+            return new Bloom(capacity, hashes, bits, 0);
+        }
+
+        /**
+         * @return true if the value was not already in the filter.
+         */
+        boolean add(String value) {
+            long[] hash = UniqueHashTracker.murmur3(value);
+            boolean changed = false;
+            for (int i = 0 ; i < hashes ; i++) {
+                long bit = Math.floorMod(hash[0] + i * hash[1], bits);
+                long mask = 1L << bit;
+                int word = (int) (bit >>> 6);
+                if ((words.get(word) & mask) == 0) {
+                    words.getAndUpdate(word, w -> w | mask);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                added.incrementAndGet();
+            }
+            return changed;
+        }
+
+        boolean mightContain(String value) {
+            long[] hash = UniqueHashTracker.murmur3(value);
+            for (int i = 0 ; i < hashes ; i++) {
+                long bit = Math.floorMod(hash[0] + i * hash[1], bits);
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the number of distinct values added, except for values that were false positives when added.
+         */
+        long getAdded() {
+            return added.get();
+        }
+
+        double getEstimatedFalsePositiveRate() {
+            long set = 0;
+            for (int i = 0 ; i < words.length() ; i++) {
+                set += Long.bitCount(words.get(i));
+            }
+            return Math.pow(1.0 * set / bits, hashes);
+        }
+
+        long getBytes() {
+            return words.length() * 8L;
+        }
+
+        String describe() {
+            return capacity + "," + hashes + "," + bits + "," + added.get();
+        }
+
+        static Bloom read(String description, DataInputStream in) throws IOException {
+            String[] tokens = description.split(",");
+            Bloom bloom = new Bloom(Long.parseLong(tokens[0]), Integer.parseInt(tokens[1]),
+                                    Long.parseLong(tokens[2]), Long.parseLong(tokens[3]));
+            for (int i = 0 ; i < bloom.words.length() ; i++) {
+                bloom.words.set(i, in.readLong());
+            }
+            return bloom;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            for (int i = 0 ; i < words.length() ; i++) {
+                out.writeLong(words.get(i));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "Bloom(entries=%d/%d, hashes=%d, bytes=%d, estimatedFPP=%.4f)",
+                                 added.get(), capacity, hashes, getBytes(), getEstimatedFalsePositiveRate());
+        }
+    }
+}
@@ -63,10 +63,28 @@ public class CachingSolrClient extends SolrClient {
      */
     public CachingSolrClient(SolrClient inner,
                              int maxCachedEntries, int maxCacheTimeSeconds, int maxConcurrentConnections) {
+        this(inner, maxCachedEntries, -1, maxCacheTimeSeconds, maxConcurrentConnections);
+    }
+
+    /**
+     * Wrap a cache around the given inner SolrClient
+     * @param inner the SolrClient to handle the calls that are not already cached.
+     * @param maxCachedEntries the maximum number of entries in the cache.
+     *                         Setting this to -1 disables this limit.
+     * @param maxCachedBytes the maximum number of bytes, as estimated by {@link SizeEstimator}, in the cache.
+     *                       Setting this to -1 disables this limit.
+     * @param maxCacheTimeSeconds the maximum age of entries in the cache.
+     *                            Setting this to -1 disables this limit.
+     * @param maxConcurrentConnections the maximum number of concurrent connections against the inner SolrClient.
+     *                                 Setting this to -1 disable this limit.
+     */
+    public CachingSolrClient(SolrClient inner, int maxCachedEntries, long maxCachedBytes,
+                             int maxCacheTimeSeconds, int maxConcurrentConnections) {
         this.inner = inner;
         int maxCapacity = maxCachedEntries == -1 ? Integer.MAX_VALUE : maxCachedEntries;
+        long maxBytes = maxCachedBytes == -1 ? Long.MAX_VALUE : maxCachedBytes;
         long maxAgeMS= maxCacheTimeSeconds == -1 ? Integer.MAX_VALUE / 4 : maxCacheTimeSeconds * 1000L;        
-        queryCache = new TimeCache<>(maxCapacity,maxAgeMS);
+        queryCache = new TimeCache<>(maxCapacity, maxBytes, maxAgeMS);
         namedCache = queryCache.createLinked();
         this.maxConnections = maxConcurrentConnections;
         connection = new Semaphore(maxConcurrentConnections == -1 ? Integer.MAX_VALUE : maxConcurrentConnections, true);
@@ -102,9 +120,17 @@ public class CachingSolrClient extends SolrClient {
         return queryCache.getHits() + namedCache.getHits();
     }
 
+    /**
+     * @return the number of request calls that were not cached, but shared the result of an identical call
+     *         already in progress instead of issuing their own call to the inner SolrClient.
+     */
+    public long getCoalesced() {
+        return queryCache.getCoalesced() + namedCache.getCoalesced();
+    }
+
     /**
      * Return the result of the call immediately if it is cached, else evaluate the solrCall, store it in the cache
-     * and return it.
+     * and return it. Concurrent calls with the same key share a single evaluation of solrCall.
      * @param key      cache entry key.
      * @param solrCall call to perform to populate the cache.
      * @return
@@ -140,8 +166,10 @@ public class CachingSolrClient extends SolrClient {
         return "CachingSolrClient{" +
                "maxConnections=" + maxConnections +
                ", size/capacity=" + size() + "/" + queryCache.capacity() +
+               ", bytes/maxBytes=" + queryCache.getBytes() + "/" + queryCache.getMaxBytes() +
                ", maxAgeSeconds=" + queryCache.getMaxAgeMS()/1000 +
                ", hits/calls=" + getHits() + "/" + getCalls() +
+               ", coalesced=" + getCoalesced() +
                '}';
     }
 
@@ -0,0 +1,787 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.solr;
+
+import dk.kb.netarchivesuite.solrwayback.util.CollectionUtils;
+import dk.kb.netarchivesuite.solrwayback.util.DateUtils;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.common.SolrDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Local index of the captures for each {@code url_norm}, used for answering nearest harvest, previous/next,
+ * first/last and count lookups without issuing sorted Solr requests.
+ * <p>
+ * Captures are stored as fixed size records of {@code (url_norm hash, crawl time, offset, file id, status, flags)},
+ * sorted by hash and crawl time, in a file that is memory mapped. A lookup is a binary search for the hash followed by
+ * a sequential read of the captures for the URL. The {@code source_file_path}s are stored once in a separate file and
+ * referenced by id.
+ * <p>
+ * The timeline is built by streaming the full index once. After that it is kept current by requesting documents with
+ * an {@code index_time} at or after the latest seen {@code index_time}, see {@link #update(SolrClient)}. These
+ * additions are held in memory until there are more than {@code maxDeltaRecords}, after which they are merged into a
+ * new file. Deletions from the index are not tracked: A rebuild is needed if documents are removed.
+ * <p>
+ * URLs are represented by the 64 bit MurmurHash3 of the {@code url_norm}. The probability of two URLs sharing hash is
+ * very small, but not zero: Callers that use the {@link Capture#getSourceFilePath()} and {@link Capture#getOffset()}
+ * for retrieving the full document should verify the {@code url_norm}.
+ * <p>
+ * Lookups are thread safe and can be issued while updating.
+ */
+public class CaptureTimeline implements IndexTimeTracking.Updatable {
+    private static final Logger log = LoggerFactory.getLogger(CaptureTimeline.class);
+
+    static final int RECORD_BYTES = 32;
+    private static final int CHUNK_RECORDS = 1 << 25; // 1GB per mapped chunk
+    private static final int RUN_RECORDS = 500000;    // Captures to sort in memory before spilling to a run file
+
+    static final String META_FILE = "timeline.properties";
+    static final String FILES_FILE = "files.txt";
+    private static final String RECORDS_KEY = "records";
+    private static final String RECORDS_FILE_KEY = "records.file";
+
+    /** The capture is not a revisit, as defined by {@link dk.kb.netarchivesuite.solrwayback.util.SolrUtils#NO_REVISIT_FILTER}. */
+    public static final int FLAG_NO_REVISIT = 1;
+    /** The {@code url} of the capture starts with {@code http://}. */
+    public static final int FLAG_HTTP = 2;
+    /** The {@code url} of the capture starts with {@code https://}. */
+    public static final int FLAG_HTTPS = 4;
+    /** The {@code url} of the capture ends with {@code /}. */
+    public static final int FLAG_SLASH_LAST = 8;
+
+    static final List<String> FIELDS = Arrays.asList(
+            "url_norm", "url", "crawl_date", "source_file_path", "source_file_offset", "status_code", "record_type");
+
+    // Order of the records in the files. Identical captures are adjacent and removed when merging
+    static final Comparator<Capture> ORDER = Comparator.
+            comparingLong((Capture c) -> c.urlHash).
+            thenComparingLong(c -> c.crawlTime).
+            thenComparingInt(c -> c.fileId).
+            thenComparingLong(c -> c.offset);
+
+    private final File folder;
+    private final int maxDeltaRecords;
+    private final Object updateLock = new Object();
+    // Shared by all states. Only appended to, while holding updateLock
+    private final List<String> files;
+    private final Map<String, Integer> fileIds = new HashMap<>();
+    // Paths encountered during build or update, added to files in one go to avoid repeated copying
+    private final List<String> newFiles = new ArrayList<>();
+
+    private volatile State state;
+
+    private CaptureTimeline(File folder, int maxDeltaRecords, List<String> files, State state) {
+        this.folder = folder;
+        this.maxDeltaRecords = maxDeltaRecords;
+        this.files = new CopyOnWriteArrayList<>(files);
+        for (int i = 0 ; i < files.size() ; i++) {
+            fileIds.put(files.get(i), i);
+        }
+        this.state = state;
+    }
+
+    /**
+     * @param folder a folder that might contain a timeline.
+     * @return true if a timeline has been built in the folder.
+     */
+    public static boolean exists(File folder) {
+        return new File(folder, META_FILE).isFile();
+    }
+
+    /**
+     * Open a previously built timeline. Call {@link #update(SolrClient)} afterwards to get captures that were added
+     * to the index since the timeline was last written.
+     * @param folder          the folder with the timeline.
+     * @param maxDeltaRecords the maximum number of added captures to hold in memory.
+     * @return the timeline.
+     * @throws IOException if the timeline could not be opened.
+     */
+    public static CaptureTimeline open(File folder, int maxDeltaRecords) throws IOException {
+        Properties meta = IndexTimeTracking.loadMeta(new File(folder, META_FILE));
+        long records = Long.parseLong(meta.getProperty(RECORDS_KEY));
+        File recordsFile = new File(folder, meta.getProperty(RECORDS_FILE_KEY));
+        long indexTime = Long.parseLong(meta.getProperty(IndexTimeTracking.INDEX_TIME_KEY));
+        List<String> files = Files.readAllLines(new File(folder, FILES_FILE).toPath(), StandardCharsets.UTF_8);
+
+        CaptureTimeline timeline = new CaptureTimeline(
+                folder, maxDeltaRecords, files, new State(Records.map(recordsFile, records), Records.EMPTY, indexTime));
+        log.info("Opened " + timeline);
+        return timeline;
+    }
+
+    /**
+     * Build a timeline for all documents in the index by streaming {@link #FIELDS}. This can take hours for large
+     * indexes. Any previous timeline in the folder is replaced.
+     * @param solrClient      the client for the index.
+     * @param folder          the folder to hold the timeline. Created if it does not exist.
+     * @param maxDeltaRecords the maximum number of added captures to hold in memory.
+     * @return the timeline.
+     * @throws IOException if the timeline could not be build.
+     */
+    public static CaptureTimeline build(SolrClient solrClient, File folder, int maxDeltaRecords) throws IOException {
+        final long startNS = System.nanoTime();
+        Files.createDirectories(folder.toPath());
+        // Documents indexed while streaming are picked up by the first update
+        long indexTime = IndexTimeTracking.getMaxIndexTime(solrClient);
+        CaptureTimeline timeline = new CaptureTimeline(
+                folder, maxDeltaRecords, Collections.emptyList(), new State(Records.EMPTY, Records.EMPTY, indexTime));
+
+        List<File> runs = new ArrayList<>();
+        List<Capture> buffer = new ArrayList<>();
+        long records = 0;
+        try {
+            try (CollectionUtils.CloseableIterator<SolrDocument> docs =
+                         timeline.request(solrClient, IndexTimeTracking.upToQuery(indexTime)).iterate()) {
+                while (docs.hasNext()) {
+                    Capture capture = timeline.toCapture(docs.next());
+                    if (capture == null) {
+                        continue;
+                    }
+                    buffer.add(capture);
+                    if (buffer.size() == RUN_RECORDS) {
+                        runs.add(writeRun(buffer, folder));
+                        buffer.clear();
+                    }
+                }
+            }
+            timeline.addNewFiles();
+            buffer.sort(ORDER);
+            List<Iterator<Capture>> sources = new ArrayList<>();
+            for (File run: runs) {
+                sources.add(new RunReader(run));
+            }
+            sources.add(buffer.iterator());
+            String recordsFile = "captures-" + System.currentTimeMillis() + ".bin";
+            records = writeMerged(sources, new File(folder, recordsFile));
+            timeline.writeMeta(recordsFile, records, indexTime);
+            timeline.state = new State(
+                    Records.map(new File(folder, recordsFile), records), Records.EMPTY, indexTime);
+        } finally {
+            for (File run: runs) {
+                Files.deleteIfExists(run.toPath());
+            }
+        }
+        log.info("Built " + timeline + " in " + (System.nanoTime() - startNS) / 1000000 + " ms");
+        return timeline;
+    }
+
+    /**
+     * Add the captures that have been indexed since last build or update.
+     * @param solrClient the client for the index.
+     * @return the number of documents received from Solr.
+     * @throws IOException if the additions could not be requested or merged.
+     */
+    @Override
+    public long update(SolrClient solrClient) throws IOException {
+        synchronized (updateLock) {
+            State current = state;
+            long indexTime = IndexTimeTracking.getMaxIndexTime(solrClient);
+            if (indexTime < current.indexTime) {
+                return 0;
+            }
+            // Documents at the start of the interval are received again. Already known captures are removed when
+            // merging
+            List<Capture> added = new ArrayList<>();
+            try (CollectionUtils.CloseableIterator<SolrDocument> docs = request(
+                    solrClient, IndexTimeTracking.rangeQuery(current.indexTime, indexTime)).iterate()) {
+                while (docs.hasNext()) {
+                    Capture capture = toCapture(docs.next());
+                    if (capture != null && !current.main.contains(capture)) {
+                        added.add(capture);
+                    }
+                }
+            }
+            addNewFiles();
+            added.sort(ORDER);
+            List<Capture> delta = new ArrayList<>();
+            merge(Arrays.asList(current.delta.iterator(), added.iterator()), delta::add);
+
+            if (delta.size() > maxDeltaRecords) {
+                compact(current, delta, indexTime);
+            } else {
+                state = new State(current.main, Records.of(delta), indexTime);
+            }
+            return added.size();
+        }
+    }
+
+    /**
+     * Merge the main records with the delta into a new file.
+     */
+    private void compact(State current, List<Capture> delta, long indexTime) throws IOException {
+        final long startNS = System.nanoTime();
+        String recordsFile = "captures-" + System.currentTimeMillis() + ".bin";
+        long records = writeMerged(Arrays.asList(current.main.iterator(), delta.iterator()),
+                                   new File(folder, recordsFile));
+        writeMeta(recordsFile, records, indexTime);
+        state = new State(Records.map(new File(folder, recordsFile), records), Records.EMPTY, indexTime);
+        if (current.main.file != null && !current.main.file.delete()) {
+            log.debug("Unable to delete the previous timeline records " + current.main.file);
+        }
+        log.info("Merged " + delta.size() + " added captures into " + this + " in " +
+                 (System.nanoTime() - startNS) / 1000000 + " ms");
+    }
+
+    /**
+     * @param urlNorm a normalised URL.
+     * @return all captures for the URL, sorted by crawl time. Empty if there are no captures.
+     */
+    public List<Capture> getCaptures(String urlNorm) {
+        final long hash = hash(urlNorm);
+        State current = state;
+        List<Capture> captures = new ArrayList<>();
+        current.main.collect(hash, files, captures);
+        if (current.delta.size > 0) {
+            int mainSize = captures.size();
+            current.delta.collect(hash, files, captures);
+            if (captures.size() > mainSize && mainSize > 0) {
+                List<Capture> all = new ArrayList<>(captures.size());
+                merge(Arrays.asList(captures.subList(0, mainSize).iterator(),
+                                    captures.subList(mainSize, captures.size()).iterator()), all::add);
+                captures = all;
+            }
+        }
+        return captures;
+    }
+
+    /**
+     * @param urlNorm a normalised URL.
+     * @param time    epoch milliseconds.
+     * @param filter  only captures accepted by the filter are considered.
+     * @return the accepted capture nearest to the time or null if there are none. Ties are resolved to the earliest.
+     */
+    public Capture getNearest(String urlNorm, long time, Predicate<Capture> filter) {
+        return nearest(getCaptures(urlNorm), time, filter);
+    }
+
+    /**
+     * @param captures captures sorted by crawl time.
+     * @param time     epoch milliseconds.
+     * @param filter   only captures accepted by the filter are considered.
+     * @return the accepted capture nearest to the time or null if there are none. Ties are resolved to the earliest.
+     */
+    public static Capture nearest(List<Capture> captures, long time, Predicate<Capture> filter) {
+        Capture best = null;
+        long bestDistance = Long.MAX_VALUE;
+        for (Capture capture: captures) {
+            long distance = Math.abs(capture.crawlTime - time);
+            if (distance < bestDistance && filter.test(capture)) {
+                best = capture;
+                bestDistance = distance;
+            } else if (capture.crawlTime > time && distance > bestDistance) {
+                break; // Sorted by time, so the rest are further away
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the latest capture with a crawl time before the given time or null if there are none.
+     */
+    public Capture getPrevious(String urlNorm, long time) {
+        Capture previous = null;
+        for (Capture capture: getCaptures(urlNorm)) {
+            if (capture.crawlTime >= time) {
+                break;
+            }
+            previous = capture;
+        }
+        return previous;
+    }
+
+    /**
+     * @return the earliest capture with a crawl time after the given time or null if there are none.
+     */
+    public Capture getNext(String urlNorm, long time) {
+        for (Capture capture: getCaptures(urlNorm)) {
+            if (capture.crawlTime > time) {
+                return capture;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the earliest capture of the URL or null if there are none.
+     */
+    public Capture getFirst(String urlNorm) {
+        List<Capture> captures = getCaptures(urlNorm);
+        return captures.isEmpty() ? null : captures.get(0);
+    }
+
+    /**
+     * @return the latest capture of the URL or null if there are none.
+     */
+    public Capture getLast(String urlNorm) {
+        List<Capture> captures = getCaptures(urlNorm);
+        return captures.isEmpty() ? null : captures.get(captures.size()-1);
+    }
+
+    /**
+     * @return the number of captures of the URL.
+     */
+    public int getCount(String urlNorm) {
+        return getCaptures(urlNorm).size();
+    }
+
+    /**
+     * @return the number of captures in the memory mapped file.
+     */
+    public long getSize() {
+        return state.main.size;
+    }
+
+    /**
+     * @return the number of captures added since the memory mapped file was written.
+     */
+    public long getDeltaSize() {
+        return state.delta.size;
+    }
+
+    @Override
+    public String toString() {
+        State current = state;
+        return "CaptureTimeline(folder='" + folder + "', captures=" + current.main.size +
+               ", added=" + current.delta.size + "/" + maxDeltaRecords + ", files=" + files.size() +
+               ", indexTime=" + IndexTimeTracking.solrDate(current.indexTime) + ")";
+    }
+
+    static long hash(String urlNorm) {
+        return UniqueHashTracker.murmur3(urlNorm)[0];
+    }
+
+    private SRequest request(SolrClient solrClient, String query) {
+        return SRequest.builder().
+                solrClient(solrClient).
+                query(query).
+                fields(FIELDS);
+    }
+
+    /**
+     * @return the Capture representation of the document or null if the document is not a capture with a location.
+     */
+    private Capture toCapture(SolrDocument doc) {
+        String urlNorm = (String) doc.getFieldValue("url_norm");
+        Date crawlDate = (Date) doc.getFieldValue("crawl_date");
+        String path = (String) doc.getFieldValue("source_file_path");
+        if (urlNorm == null || crawlDate == null || path == null) {
+            return null;
+        }
+        String url = (String) doc.getFieldValue("url");
+        String recordType = (String) doc.getFieldValue("record_type");
+        Number status = (Number) doc.getFieldValue("status_code");
+
+        int flags = 0;
+        if ("response".equals(recordType) || "arc".equals(recordType) || "resource".equals(recordType)) {
+            flags |= FLAG_NO_REVISIT;
+        }
+        if (url != null) {
+            flags |= url.startsWith("http://") ? FLAG_HTTP : 0;
+            flags |= url.startsWith("https://") ? FLAG_HTTPS : 0;
+            flags |= url.endsWith("/") ? FLAG_SLASH_LAST : 0;
+        }
+        Integer fileId = fileIds.get(path);
+        if (fileId == null) {
+            fileId = files.size() + newFiles.size();
+            newFiles.add(path);
+            fileIds.put(path, fileId);
+        }
+        return new Capture(hash(urlNorm), crawlDate.getTime(), NetarchiveSolrClient.getOffset(doc), fileId,
+                           status == null ? -1 : status.intValue(), flags, path);
+    }
+
+    private void addNewFiles() {
+        files.addAll(newFiles);
+        newFiles.clear();
+    }
+
+    private void writeMeta(String recordsFile, long records, long indexTime) throws IOException {
+        // Paths are only appended, so the files list is valid for older meta files
+        File filesTmp = new File(folder, FILES_FILE + ".tmp");
+        Files.write(filesTmp.toPath(), files, StandardCharsets.UTF_8);
+        IndexTimeTracking.replace(filesTmp, new File(folder, FILES_FILE));
+
+        Properties meta = new Properties();
+        meta.setProperty(RECORDS_KEY, Long.toString(records));
+        meta.setProperty(RECORDS_FILE_KEY, recordsFile);
+        meta.setProperty(IndexTimeTracking.INDEX_TIME_KEY, Long.toString(indexTime));
+        IndexTimeTracking.storeMeta(new File(folder, META_FILE), meta, "CaptureTimeline");
+    }
+
+    private static File writeRun(List<Capture> captures, File folder) throws IOException {
+        captures.sort(ORDER);
+        File run = File.createTempFile("timeline_run_", ".bin", folder);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+            for (Capture capture: captures) {
+                capture.write(out);
+            }
+        }
+        return run;
+    }
+
+    /**
+     * Merge the sorted sources into the target file, skipping duplicates.
+     * @return the number of written records.
+     */
+    private static long writeMerged(List<Iterator<Capture>> sources, File target) throws IOException {
+        File tmp = new File(target.getPath() + ".tmp");
+        long[] records = new long[1];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            merge(sources, capture -> {
+                try {
+                    capture.write(out);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Unable to write timeline records to " + tmp, e);
+                }
+                records[0]++;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            for (Iterator<Capture> source: sources) {
+                if (source instanceof Closeable) {
+                    ((Closeable) source).close();
+                }
+            }
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return records[0];
+    }
+
+    /**
+     * Merge the sorted sources, skipping duplicates.
+     */
+    private static void merge(List<Iterator<Capture>> sources, Consumer<Capture> consumer) {
+        PriorityQueue<Head> heads = new PriorityQueue<>(Math.max(1, sources.size()), (h1, h2) -> ORDER.compare(h1.capture, h2.capture));
+        for (Iterator<Capture> source: sources) {
+            if (source.hasNext()) {
+                heads.add(new Head(source.next(), source));
+            }
+        }
+        Capture last = null;
+        while (!heads.isEmpty()) {
+            Head head = heads.poll();
+            if (last == null || ORDER.compare(last, head.capture) != 0) {
+                consumer.accept(head.capture);
+                last = head.capture;
+            }
+            if (head.source.hasNext()) {
+                heads.add(new Head(head.source.next(), head.source));
+            }
+        }
+    }
+
+    private static final class Head {
+        final Capture capture;
+        final Iterator<Capture> source;
+
+        Head(Capture capture, Iterator<Capture> source) {
+            this.capture = capture;
+            this.source = source;
+        }
+    }
+
+    /**
+     * Immutable view of the timeline, replaced atomically on updates.
+     */
+    private static final class State {
+        final Records main;
+        final Records delta;
+        final long indexTime;
+
+        State(Records main, Records delta, long indexTime) {
+            this.main = main;
+            this.delta = delta;
+            this.indexTime = indexTime;
+        }
+    }
+
+    /**
+     * Sorted fixed size records, either memory mapped or on the heap. Only absolute reads are used, so the buffers
+     * can be shared between threads.
+     */
+    static final class Records {
+        static final Records EMPTY = new Records(new ByteBuffer[0], 0, null);
+
+        private final ByteBuffer[] chunks;
+        final long size;
+        final File file;
+
+        private Records(ByteBuffer[] chunks, long size, File file) {
+            this.chunks = chunks;
+            this.size = size;
+            this.file = file;
+        }
+
+        static Records map(File file, long size) throws IOException {
+            if (file.length() < size * RECORD_BYTES) {
+                throw new IOException("Expected " + size + " records in " + file + " but it holds " +
+                                      file.length() / RECORD_BYTES);
+            }
+            ByteBuffer[] chunks = new ByteBuffer[(int) ((size + CHUNK_RECORDS - 1) / CHUNK_RECORDS)];
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                for (int i = 0 ; i < chunks.length ; i++) {
+                    long records = Math.min(CHUNK_RECORDS, size - (long) i * CHUNK_RECORDS);
+                    chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                                            (long) i * CHUNK_RECORDS * RECORD_BYTES, records * RECORD_BYTES);
+                }
+            }
+            return new Records(chunks, size, file);
+        }
+
+        static Records of(List<Capture> sorted) {
+            if (sorted.isEmpty()) {
+                return EMPTY;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(sorted.size() * RECORD_BYTES);
+            for (Capture capture: sorted) {
+                capture.write(buffer);
+            }
+            return new Records(new ByteBuffer[]{buffer}, sorted.size(), null);
+        }
+
+        long hash(long index) {
+            return chunks[(int) (index / CHUNK_RECORDS)].getLong((int) (index % CHUNK_RECORDS) * RECORD_BYTES);
+        }
+
+        Capture get(long index, List<String> files) {
+            ByteBuffer chunk = chunks[(int) (index / CHUNK_RECORDS)];
+            int pos = (int) (index % CHUNK_RECORDS) * RECORD_BYTES;
+            int fileId = chunk.getInt(pos + 24);
+            return new Capture(chunk.getLong(pos), chunk.getLong(pos + 8), chunk.getLong(pos + 16), fileId,
+                               chunk.getShort(pos + 28), chunk.getShort(pos + 30),
+                               files == null || fileId >= files.size() ? null : files.get(fileId));
+        }
+
+        /**
+         * Add all captures with the given hash to the list.
+         */
+        void collect(long hash, List<String> files, List<Capture> captures) {
+            for (long index = lowerBound(hash) ; index < size && hash(index) == hash ; index++) {
+                captures.add(get(index, files));
+            }
+        }
+
+        boolean contains(Capture capture) {
+            for (long index = lowerBound(capture.urlHash) ; index < size && hash(index) == capture.urlHash ; index++) {
+                if (ORDER.compare(capture, get(index, null)) == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the index of the first record with the hash or a larger hash.
+         */
+        private long lowerBound(long hash) {
+            long low = 0;
+            long high = size;
+            while (low < high) {
+                long mid = (low + high) >>> 1;
+                if (hash(mid) < hash) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        Iterator<Capture> iterator() {
+            return new Iterator<Capture>() {
+                long index = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return index < size;
+                }
+
+                @Override
+                public Capture next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return get(index++, null);
+                }
+            };
+        }
+    }
+
+    /**
+     * Iterates the captures in a run file.
+     */
+    private static final class RunReader implements Iterator<Capture>, Closeable {
+        private final DataInputStream in;
+        private Capture next;
+
+        RunReader(File run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+            next = read();
+        }
+
+        private Capture read() throws IOException {
+            try {
+                return new Capture(in.readLong(), in.readLong(), in.readLong(), in.readInt(),
+                                   in.readShort(), in.readShort(), null);
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Capture next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Capture current = next;
+            try {
+                next = read();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read timeline run", e);
+            }
+            return current;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * A single capture of a URL.
+     */
+    public static final class Capture {
+        final long urlHash;
+        final long crawlTime;
+        final long offset;
+        final int fileId;
+        final int statusCode;
+        final int flags;
+        final String sourceFilePath;
+
+        Capture(long urlHash, long crawlTime, long offset, int fileId, int statusCode, int flags,
+                String sourceFilePath) {
+            this.urlHash = urlHash;
+            this.crawlTime = crawlTime;
+            this.offset = offset;
+            this.fileId = fileId;
+            this.statusCode = statusCode;
+            this.flags = flags;
+            this.sourceFilePath = sourceFilePath;
+        }
+
+        /**
+         * @return the crawl time as epoch milliseconds.
+         */
+        public long getCrawlTime() {
+            return crawlTime;
+        }
+
+        /**
+         * @return the crawl time as a Solr timestamp with second precision.
+         */
+        public String getCrawlDate() {
+            return DateUtils.getSolrDate(new Date(crawlTime));
+        }
+
+        public String getSourceFilePath() {
+            return sourceFilePath;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return the HTTP status code or -1 if not known.
+         */
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * @param flag one of the {@code FLAG_}-constants in {@link CaptureTimeline}.
+         * @return true if the flag is set for the capture.
+         */
+        public boolean is(int flag) {
+            return (flags & flag) != 0;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(urlHash);
+            out.writeLong(crawlTime);
+            out.writeLong(offset);
+            out.writeInt(fileId);
+            out.writeShort(statusCode);
+            out.writeShort(flags);
+        }
+
+        void write(ByteBuffer buffer) {
+            buffer.putLong(urlHash);
+            buffer.putLong(crawlTime);
+            buffer.putLong(offset);
+            buffer.putInt(fileId);
+            buffer.putShort((short) statusCode);
+            buffer.putShort((short) flags);
+        }
+
+        @Override
+        public String toString() {
+            return "Capture(crawlDate=" + getCrawlDate() + ", status=" + statusCode + ", flags=" + flags +
+                   ", source='" + sourceFilePath + "#" + offset + "')";
+        }
+    }
+}
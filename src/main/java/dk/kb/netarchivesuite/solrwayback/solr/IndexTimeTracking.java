@@ -0,0 +1,193 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.solr;
+
+import dk.kb.netarchivesuite.solrwayback.util.DateUtils;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Properties;
+import java.util.function.Consumer;
+
+/**
+ * Shared handling of the local structures derived from the index, {@link CaptureTimeline} and
+ * {@link ArchivedUrlFilter}.
+ * <p>
+ * The structures are built by streaming the full index once and stored in a folder. After that they are kept current
+ * by requesting documents with an {@code index_time} at or after the latest seen {@code index_time}. The folder holds a
+ * meta file with the latest seen {@code index_time}, which is written last so that an interrupted write leaves the
+ * previous structure in place.
+ */
+final class IndexTimeTracking {
+    private static final Logger log = LoggerFactory.getLogger(IndexTimeTracking.class);
+
+    static final String INDEX_TIME_KEY = "index.time";
+
+    /**
+     * A structure that can be updated with the documents added to the index since last build or update.
+     */
+    interface Updatable {
+        /**
+         * @param solrClient the client for the index.
+         * @return the number of documents received from Solr.
+         * @throws IOException if the additions could not be requested or stored.
+         */
+        long update(SolrClient solrClient) throws IOException;
+    }
+
+    /**
+     * Opens or builds a structure.
+     */
+    @FunctionalInterface
+    interface Loader<T> {
+        T load() throws IOException;
+    }
+
+    private IndexTimeTracking() { }
+
+    /**
+     * Open the structure if it exists in the folder, else build it. Then update it with the documents indexed since it
+     * was written and hand it to {@code onReady}. This is done in a background thread, as building can take hours
+     * for large indexes.
+     * @param designation human readable name of the structure, used for logging.
+     * @param folder      the folder for the structure.
+     * @param exists      whether the structure exists in the folder.
+     * @param opener      opens the existing structure.
+     * @param builder     builds the structure from the full index.
+     * @param solrClient  the client for the index.
+     * @param onReady     receives the structure when it is ready. Not called if initialization fails.
+     */
+    static <T extends Updatable> void initializeInBackground(
+            String designation, File folder, boolean exists, Loader<T> opener, Loader<T> builder,
+            SolrClient solrClient, Consumer<T> onReady) {
+        Thread initializer = new Thread(() -> {
+            try {
+                T structure;
+                if (exists) {
+                    structure = opener.load();
+                } else {
+                    log.info("Building " + designation + " in '" + folder + "'. Solr is used until done");
+                    structure = builder.load();
+                }
+                structure.update(solrClient);
+                onReady.accept(structure);
+            } catch (Exception e) {
+                log.error("Unable to initialize the " + designation + " in '" + folder + "'. Solr will be used", e);
+            }
+        }, "Initialize " + designation);
+        initializer.setDaemon(true);
+        initializer.start();
+    }
+
+    /**
+     * Update the structure with the documents added to the index. Failures are logged, not thrown.
+     * @param designation human readable name of the structure, used for logging.
+     * @param structure   the structure to update. If null, nothing is done.
+     * @param solrClient  the client for the index.
+     */
+    static void update(String designation, Updatable structure, SolrClient solrClient) {
+        if (structure == null) {
+            return;
+        }
+        try {
+            long added = structure.update(solrClient);
+            log.debug("Updated " + designation + " with " + added + " documents: " + structure);
+        } catch (Exception e) {
+            log.warn("Unable to update the " + designation + " with changes to the index: " + structure, e);
+        }
+    }
+
+    /**
+     * @return the latest {@code index_time} in the index as epoch milliseconds or 0 if the index is empty.
+     */
+    static long getMaxIndexTime(SolrClient solrClient) throws IOException {
+        SolrQuery query = new SolrQuery("*:*");
+        query.setRows(1);
+        query.setFields("index_time");
+        query.setSort("index_time", SolrQuery.ORDER.desc);
+        query.set("facet", "false");
+        try {
+            QueryResponse rsp = solrClient.query(query, SolrRequest.METHOD.POST);
+            return rsp.getResults().isEmpty() ? 0 : ((Date) rsp.getResults().get(0).getFieldValue("index_time")).getTime();
+        } catch (SolrServerException e) {
+            throw new IOException("Unable to request the latest index_time", e);
+        }
+    }
+
+    /**
+     * @return a query for the documents indexed at or before the given time, used for building.
+     */
+    static String upToQuery(long indexTime) {
+        return "index_time:[* TO \"" + solrDate(indexTime) + "\"]";
+    }
+
+    /**
+     * The interval is inclusive at both ends, as more documents can share {@code index_time}. Updates must handle
+     * that documents are received twice.
+     * @return a query for the documents indexed in the given interval, used for updating.
+     */
+    static String rangeQuery(long fromIndexTime, long toIndexTime) {
+        return "index_time:[\"" + solrDate(fromIndexTime) + "\" TO \"" + solrDate(toIndexTime) + "\"]";
+    }
+
+    static String solrDate(long time) {
+        return DateUtils.getSolrDateFull(new Date(time));
+    }
+
+    /**
+     * @param metaFile a meta file written with {@link #storeMeta(File, Properties, String)}.
+     * @return the content of the meta file.
+     */
+    static Properties loadMeta(File metaFile) throws IOException {
+        Properties meta = new Properties();
+        try (InputStream in = new FileInputStream(metaFile)) {
+            meta.load(in);
+        }
+        return meta;
+    }
+
+    /**
+     * Write the meta file through a temporary file, so that an interrupted write leaves the previous meta file.
+     */
+    static void storeMeta(File metaFile, Properties meta, String comment) throws IOException {
+        File metaTmp = new File(metaFile.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(metaTmp)) {
+            meta.store(out, comment);
+        }
+        replace(metaTmp, metaFile);
+    }
+
+    /**
+     * Atomically move {@code source} to {@code target}, replacing {@code target} if it exists.
+     */
+    static void replace(File source, File target) throws IOException {
+        Files.move(source.toPath(), target.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
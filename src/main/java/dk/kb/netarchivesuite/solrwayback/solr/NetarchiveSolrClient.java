@@ -1,11 +1,14 @@
 package dk.kb.netarchivesuite.solrwayback.solr;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.URL;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.time.LocalDate;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -52,14 +55,27 @@ import dk.kb.netarchivesuite.solrwayback.util.DateUtils;
 public class NetarchiveSolrClient {
     private static final Logger log = LoggerFactory.getLogger(NetarchiveSolrClient.class);
     private static final long M = 1000000; // ns -> ms
+    private static final int LENIENT_URLS_PER_REQUEST = 50; // Preferred number of URLs in a lenient request
 
     protected static SolrClient solrServer;
     protected static SolrClient noCacheSolrServer;
     protected static NetarchiveSolrClient instance = null;
     protected static IndexWatcher indexWatcher = null;
+    // Optional local index of captures. null if disabled or not yet ready
+    protected static volatile CaptureTimeline captureTimeline = null;
+    // Optional filter for skipping lookups of URLs that are not in the index. null if disabled or not yet ready
+    protected static volatile ArchivedUrlFilter archivedUrlFilter = null;
     protected static Pattern TAGS_VALID_PATTERN = Pattern.compile("[-_.a-zA-Z0-9Ã¦Ã¸Ã¥Ã†Ã˜Ã…]+");
     private final AtomicLong lenientAttempts = new AtomicLong(0);
     private final AtomicLong lenientSuccesses = new AtomicLong(0);
+    private final AtomicLong lenientRequests = new AtomicLong(0);
+    // Incremented each time the IndexWatcher reports a changed index. Used for invalidating derived caches
+    private final AtomicLong indexGeneration = new AtomicLong(0);
+    // Used by getWayBackStatistics. null if disabled. Only active if isIndexWatched
+    private final TimeCache<DomainHarvests> domainHarvestsCache = createDomainHarvestsCache();
+    // Used by findNearestHarvestTimeForMultipleUrlsFewFields and findNearestUrlsShort. Created on first use if
+    // isIndexWatched, see getResolutionCache
+    private volatile ResolutionCache resolutionCache = null;
 
     protected Boolean solrAvailable = null;
 
@@ -78,9 +94,10 @@ public class NetarchiveSolrClient {
 
         if (PropertiesLoader.SOLR_SERVER_CACHING) {
             int maxCachingEntries = PropertiesLoader.SOLR_SERVER_CACHING_MAX_ENTRIES;
+            long maxCachingBytes = PropertiesLoader.SOLR_SERVER_CACHING_MAX_BYTES;
             int maxCachingSeconds = PropertiesLoader.SOLR_SERVER_CACHING_AGE_SECONDS;
-            solrServer = new CachingSolrClient(innerSolrClient, maxCachingEntries,  maxCachingSeconds, -1); //-1 means no maximum number of connections 
-            log.info("SolrClient initialized with caching properties: maxCachedEntrie="+maxCachingEntries +" cacheAgeSeconds="+maxCachingSeconds);
+            solrServer = new CachingSolrClient(innerSolrClient, maxCachingEntries, maxCachingBytes, maxCachingSeconds, -1); //-1 means no maximum number of connections 
+            log.info("SolrClient initialized with caching properties: maxCachedEntrie="+maxCachingEntries +" maxCachedBytes="+maxCachingBytes +" cacheAgeSeconds="+maxCachingSeconds);
         } else {
             solrServer = innerSolrClient;
             log.info("SolrClient initialized without caching");
@@ -99,9 +116,53 @@ public class NetarchiveSolrClient {
                     innerSolrClient, PropertiesLoader.SOLR_SERVER_CHECK_INTERVAL, instance::indexStatusChanged);
         }
 
+        if (PropertiesLoader.TIMELINE_FOLDER != null) {
+            if (instance.isIndexWatched()) {
+                initializeCaptureTimeline(innerSolrClient, new File(PropertiesLoader.TIMELINE_FOLDER));
+            } else {
+                log.warn("The capture timeline requires solr.server.check.interval.seconds > 0 to track index " +
+                         "changes and will not be used");
+            }
+        }
+
+        if (PropertiesLoader.URL_FILTER_FOLDER != null) {
+            if (instance.isIndexWatched()) {
+                initializeArchivedUrlFilter(innerSolrClient, new File(PropertiesLoader.URL_FILTER_FOLDER));
+            } else {
+                log.warn("The archived URL filter requires solr.server.check.interval.seconds > 0 to track index " +
+                         "changes and will not be used");
+            }
+        }
+
         log.info("SolrClient initialized with solr server url:" + solrServerUrl);
     }
 
+    /**
+     * Opens or builds the {@link CaptureTimeline} in the background. Until it is ready, all lookups use Solr.
+     */
+    private static void initializeCaptureTimeline(SolrClient solrClient, File folder) {
+        if (Normalisation.getType() == Normalisation.NormaliseType.LEGACY) {
+            log.warn("The capture timeline does not support the legacy URL normaliser and will not be used");
+            return;
+        }
+        IndexTimeTracking.initializeInBackground(
+                "capture timeline", folder, CaptureTimeline.exists(folder),
+                () -> CaptureTimeline.open(folder, PropertiesLoader.TIMELINE_DELTA_MAX_RECORDS),
+                () -> CaptureTimeline.build(solrClient, folder, PropertiesLoader.TIMELINE_DELTA_MAX_RECORDS),
+                solrClient, timeline -> captureTimeline = timeline);
+    }
+
+    /**
+     * Opens or builds the {@link ArchivedUrlFilter} in the background. Until it is ready, all URLs are looked up in Solr.
+     */
+    private static void initializeArchivedUrlFilter(SolrClient solrClient, File folder) {
+        IndexTimeTracking.initializeInBackground(
+                "archived URL filter", folder, ArchivedUrlFilter.exists(folder),
+                () -> ArchivedUrlFilter.open(folder),
+                () -> ArchivedUrlFilter.build(solrClient, folder, PropertiesLoader.URL_FILTER_FALSE_POSITIVE_RATE),
+                solrClient, filter -> archivedUrlFilter = filter);
+    }
+
     public static NetarchiveSolrClient getInstance() {
         if (instance == null) {
             throw new IllegalArgumentException("SolrClient not initialized");
@@ -112,6 +173,18 @@ public class NetarchiveSolrClient {
     private void indexStatusChanged(IndexWatcher.STATUS status) {
         switch (status) {
             case changed:
+                // The derived structures are updated first, so that lookups after the caches have been cleared
+                // see the changes
+                IndexTimeTracking.update("capture timeline", captureTimeline, noCacheSolrServer);
+                IndexTimeTracking.update("archived URL filter", archivedUrlFilter, noCacheSolrServer);
+                indexGeneration.incrementAndGet();
+                if (domainHarvestsCache != null) {
+                    domainHarvestsCache.clear();
+                }
+                ResolutionCache cache = resolutionCache;
+                if (cache != null) {
+                    cache.clear();
+                }
                 if (solrServer instanceof CachingSolrClient) {
                     ((CachingSolrClient)solrServer).clearCache();
                 }
@@ -139,6 +212,24 @@ public class NetarchiveSolrClient {
         return solrAvailable;
     }
 
+    /**
+     * The index generation is incremented each time the {@link IndexWatcher} reports that the backing Solr has
+     * changed. Caches of data derived from the index can include the generation in their keys to avoid serving
+     * stale data.
+     * @return the current index generation.
+     * @see #isIndexWatched()
+     */
+    public long getIndexGeneration() {
+        return indexGeneration.get();
+    }
+
+    /**
+     * @return true if an {@link IndexWatcher} is running, meaning that {@link #getIndexGeneration()} tracks changes.
+     */
+    public boolean isIndexWatched() {
+        return indexWatcher != null;
+    }
+
     /*
      * Delegate
      */
@@ -151,12 +242,32 @@ public class NetarchiveSolrClient {
         }
     }
 
+    /**
+     * Asynchronous version of {@link #getDomainFacets(String, int, boolean, Date, Date)}, for issuing the requests
+     * for many domains concurrently.
+     */
+    public CompletableFuture<List<FacetCount>> getDomainFacetsAsync(
+            String domain, int facetLimit, boolean ingoing, Date crawlDateStart, Date crawlDateEnd) {
+        if (ingoing) {
+            return queryAsync(solrServer, createDomainFacetsIngoingQuery(domain, facetLimit, crawlDateStart, crawlDateEnd))
+                    .thenApply(rsp -> getDomainFacetsIngoing(rsp));
+        } else {
+            return queryAsync(noCacheSolrServer, createDomainFacetsOutgoingQuery(domain, facetLimit, crawlDateStart, crawlDateEnd))
+                    .thenApply(rsp -> getDomainFacetsOutgoing(rsp, domain));
+        }
+    }
+
     /*
      * Get other domains linking to this domain
      *
      */
     public List<FacetCount> getDomainFacetsIngoing(String domain, int facetLimit, Date crawlDateStart, Date crawlDateEnd) throws Exception {
+        QueryResponse rsp = solrServer.query(
+                createDomainFacetsIngoingQuery(domain, facetLimit, crawlDateStart, crawlDateEnd), METHOD.POST);
+        return getDomainFacetsIngoing(rsp);
+    }
 
+    private SolrQuery createDomainFacetsIngoingQuery(String domain, int facetLimit, Date crawlDateStart, Date crawlDateEnd) {
         String dateStart = DateUtils.getSolrDate(crawlDateStart);
         String dateEnd = DateUtils.getSolrDate(crawlDateEnd);
 
@@ -169,7 +280,10 @@ public class NetarchiveSolrClient {
         solrQuery.addFilterQuery("crawl_date:[" + dateStart + " TO " + dateEnd + "]");
 
         solrQuery.add("fl","id");
-        QueryResponse rsp = solrServer.query(solrQuery, METHOD.POST);
+        return solrQuery;
+    }
+
+    private List<FacetCount> getDomainFacetsIngoing(QueryResponse rsp) {
         List<FacetCount> facetList = new ArrayList<FacetCount>();
         FacetField facet = rsp.getFacetField("domain");
         for (Count c : facet.getValues()) {
@@ -185,7 +299,12 @@ public class NetarchiveSolrClient {
      * Get the domains this domain links to this domain
      */
     public List<FacetCount> getDomainFacetsOutgoing(String domain, int facetLimit, Date crawlDateStart, Date crawlDateEnd) throws Exception {
+        QueryResponse rsp = noCacheSolrServer.query(
+                createDomainFacetsOutgoingQuery(domain, facetLimit, crawlDateStart, crawlDateEnd), METHOD.POST); //do not cache
+        return getDomainFacetsOutgoing(rsp, domain);
+    }
 
+    private SolrQuery createDomainFacetsOutgoingQuery(String domain, int facetLimit, Date crawlDateStart, Date crawlDateEnd) {
         String dateStart = DateUtils.getSolrDate(crawlDateStart);
         String dateEnd = DateUtils.getSolrDate(crawlDateEnd);
 
@@ -198,7 +317,10 @@ public class NetarchiveSolrClient {
         solrQuery.add("facet.limit", "" + (facetLimit + 1)); // +1 because itself will be removed and is almost certain of resultset is self-linking
         solrQuery.addFilterQuery("crawl_date:[" + dateStart + " TO " + dateEnd + "]");
         solrQuery.add("fl","id");                                                                                                                                                                  // request
-        QueryResponse rsp = noCacheSolrServer.query(solrQuery, METHOD.POST); //do not cache
+        return solrQuery;
+    }
+
+    private List<FacetCount> getDomainFacetsOutgoing(QueryResponse rsp, String domain) {
         List<FacetCount> facetList = new ArrayList<FacetCount>();
         FacetField facet = rsp.getFacetField("links_domains");
 
@@ -214,8 +336,20 @@ public class NetarchiveSolrClient {
         return facetList;
     }
 
-    
-    
+    /**
+     * Issue the query asynchronously using POST. If the client is a {@link RestrictedSolrClient} with HTTP/2
+     * transport, no thread is occupied while waiting for the response. Else the shared {@link Processing} threads
+     * are used.
+     * @param client any SolrClient.
+     * @param query  the query to issue.
+     * @return the future response.
+     */
+    static CompletableFuture<QueryResponse> queryAsync(SolrClient client, SolrQuery query) {
+        if (client instanceof RestrictedSolrClient) {
+            return ((RestrictedSolrClient) client).queryAsync(query, METHOD.POST);
+        }
+        return Processing.async(() -> client.query(query, METHOD.POST));
+    }
 
     /*
     public String getRawSolrQuery(String query,List<String> fq,String fieldList, int rows, int startRow,HashMap<String,String> rawQueryParams)  throws Exception{        
@@ -252,9 +386,11 @@ public class NetarchiveSolrClient {
      }
     */
 
-    /*
-     * The logic for getting the 4 dates in 2 queries is too complicated, and only
-     * gives small performance boost...
+    /**
+     * Collect the number of harvests and the first, previous, next and last harvest dates for the URL, together
+     * with harvest statistics for its domain.
+     * The capture timeline is used if available, else the statistics are resolved with a single Solr request
+     * using query facets for the harvests before and after {@code crawlDate}.
      */
     public WaybackStatistics getWayBackStatistics(int statusCode, String url, String url_norm, String crawlDate) throws Exception {
         final long startNS = System.nanoTime();
@@ -266,113 +402,223 @@ public class NetarchiveSolrClient {
         // them below
         stats.setLastHarvestDate(crawlDate);
         stats.setFirstHarvestDate(crawlDate);
-
-        // We query for 1 result to get the domain.
-        String domain = null;
         stats.setHarvestDate(crawlDate);
-        final String statsField = "crawl_date";
-
-        long results = 0;
 
-        String query = "url_norm:\"" + url_norm + "\" AND crawl_date:{\"" + crawlDate + "\" TO *]";
-
-        SolrQuery solrQuery = new SolrQuery(query);
+        CaptureTimeline timeline = getCaptureTimeline();
+        if (timeline != null) {
+            return getWayBackStatistics(timeline, stats, url_norm, crawlDate, startNS);
+        }
 
+        // A single request for all harvests of the url. The document is used for getting the domain and the
+        // harvests before and after the given crawlDate are collected with query facets
+        SolrQuery solrQuery = new SolrQuery("url_norm:\"" + url_norm + "\"");
         solrQuery.setRows(1);
-        solrQuery.setGetFieldStatistics(true);
-        solrQuery.setGetFieldStatistics(statsField);
+        solrQuery.add("fl", "domain");
+        solrQuery.setParam("json.facet",
+                "{after:{type:query,q:'crawl_date:{\"" + crawlDate + "\" TO *]'," +
+                "facet:{min:'min(crawl_date)',max:'max(crawl_date)'}}," +
+                "before:{type:query,q:'crawl_date:[* TO \"" + crawlDate + "\"}'," +
+                "facet:{min:'min(crawl_date)',max:'max(crawl_date)'}}}");
 
-        long call1ns = -System.nanoTime();
+        long callUrlNS = -System.nanoTime();
         QueryResponse rsp = solrServer.query(solrQuery, METHOD.POST);
-        call1ns += System.nanoTime();
-        final long call1nsSolr = rsp.getQTime();
+        callUrlNS += System.nanoTime();
+        final long callUrlSolr = rsp.getQTime();
 
-        results += rsp.getResults().getNumFound();
-        if (rsp.getResults().getNumFound() != 0) {
-            domain = (String) rsp.getResults().get(0).getFieldValue("domain");
-            final FieldStatsInfo fieldStats = rsp.getFieldStatsInfo().get(statsField);
-            if (fieldStats != null) {
-                stats.setLastHarvestDate(DateUtils.getSolrDate((Date) fieldStats.getMax()));
-                String next = DateUtils.getSolrDate((Date) fieldStats.getMin());
-                if (!crawlDate.equals(next)) {
-                    stats.setNextHarvestDate(next);// Dont want same as next
-                }
+        long results = 0;
+        NamedList<?> facets = (NamedList<?>) rsp.getResponse().get("facets");
+        NamedList<?> after = facets == null ? null : (NamedList<?>) facets.get("after");
+        if (after != null && getCount(after) > 0) {
+            results += getCount(after);
+            stats.setLastHarvestDate(getFacetDate(after, "max"));
+            String next = getFacetDate(after, "min");
+            if (!crawlDate.equals(next)) {
+                stats.setNextHarvestDate(next);// Dont want same as next
+            }
+        }
+        NamedList<?> before = facets == null ? null : (NamedList<?>) facets.get("before");
+        if (before != null && getCount(before) > 0) {
+            results += getCount(before);
+            stats.setFirstHarvestDate(getFacetDate(before, "min"));
+            String previous = getFacetDate(before, "max");
+            if (!crawlDate.equals(previous)) { // Dont want same as previous
+                stats.setPreviousHarvestDate(previous);
             }
         }
+        stats.setNumberOfHarvest(results + 1); // The +1 is the input value that is not included in any of the two result sets.
 
-        solrQuery = new SolrQuery("(url_norm:\"" + url_norm + "\") AND crawl_date:[* TO \"" + crawlDate + "\"}");
-        solrQuery.setRows(1);
-        solrQuery.add("fl", "domain");
-        solrQuery.setGetFieldStatistics(true);
-        solrQuery.setGetFieldStatistics(statsField);
+        if (rsp.getResults().isEmpty()) {
+            return stats; // url never found.
+        }
+        final String domain = (String) rsp.getResults().get(0).getFieldValue("domain");
+        stats.setDomain(domain);
 
-        long call2ns = -System.nanoTime();
-        rsp = solrServer.query(solrQuery, METHOD.POST);
-        call2ns += System.nanoTime();
-        final long call2nsSolr = rsp.getQTime();
+        long callDomainNS = -System.nanoTime();
+        DomainHarvests domainHarvests = getDomainHarvests(domain);
+        callDomainNS += System.nanoTime();
+        stats.setNumberHarvestDomain(domainHarvests.count);
+        stats.setDomainHarvestTotalContentLength(domainHarvests.totalContentLength);
 
-        results += rsp.getResults().getNumFound();
-        if (rsp.getResults().getNumFound() != 0) {
-            domain = (String) rsp.getResults().get(0).getFieldValue("domain");
-            final FieldStatsInfo fieldStats = rsp.getFieldStatsInfo().get(statsField);
-            if (fieldStats != null) {
-                stats.setFirstHarvestDate(DateUtils.getSolrDate((Date) fieldStats.getMin()));
-                String previous = DateUtils.getSolrDate((Date) fieldStats.getMax());
-                if (!crawlDate.equals(previous)) { // Dont want same as previous
-                    stats.setPreviousHarvestDate(previous);
+        log.info(String.format(
+                "Wayback statistics for url='%s', solrdate=%s extracted in %d ms " +
+                "(url_call=%d ms (qtime=%d ms), domain=%d ms (%s))",
+                url_norm.length() > 50 ? url_norm.substring(0, 50) + "..." : url_norm, crawlDate,
+                (System.nanoTime() - startNS) / M, callUrlNS / M, callUrlSolr, callDomainNS / M,
+                domainHarvests.qtime < 0 ? "cached" : "qtime=" + domainHarvests.qtime + " ms"));
+        return stats;
+    }
+
+    /**
+     * Harvest dates and counts from the {@link CaptureTimeline}. Only the domain is requested from Solr.
+     */
+    private WaybackStatistics getWayBackStatistics(
+            CaptureTimeline timeline, WaybackStatistics stats, String url_norm, String crawlDate, long startNS)
+            throws SolrServerException, IOException {
+        final long time = DateUtils.solrTimestampToJavaDate(crawlDate).getTime();
+        List<CaptureTimeline.Capture> captures = timeline.getCaptures(url_norm);
+        long before = 0;
+        long after = 0;
+        CaptureTimeline.Capture previous = null;
+        CaptureTimeline.Capture next = null;
+        for (CaptureTimeline.Capture capture: captures) {
+            if (capture.getCrawlTime() < time) {
+                before++;
+                previous = capture;
+            } else if (capture.getCrawlTime() > time) {
+                after++;
+                if (next == null) {
+                    next = capture;
                 }
             }
         }
+        if (before > 0) {
+            stats.setFirstHarvestDate(captures.get(0).getCrawlDate());
+            if (!crawlDate.equals(previous.getCrawlDate())) { // Dont want same as previous
+                stats.setPreviousHarvestDate(previous.getCrawlDate());
+            }
+        }
+        if (after > 0) {
+            stats.setLastHarvestDate(captures.get(captures.size()-1).getCrawlDate());
+            if (!crawlDate.equals(next.getCrawlDate())) { // Dont want same as next
+                stats.setNextHarvestDate(next.getCrawlDate());
+            }
+        }
+        stats.setNumberOfHarvest(before + after + 1); // The +1 is the input value
+        if (captures.isEmpty()) {
+            return stats; // url never found.
+        }
 
-        stats.setNumberOfHarvest(results + 1); // The +1 is the input value that is not included in any of the two result sets.
+        SolrQuery solrQuery = new SolrQuery("url_norm:\"" + url_norm + "\"");
+        solrQuery.setRows(1);
+        solrQuery.add("fl", "domain");
+        solrQuery.set("facet", "false");
+        QueryResponse rsp = solrServer.query(solrQuery, METHOD.POST);
+        if (rsp.getResults().isEmpty()) {
+            return stats; // Not yet or no longer in the index
+        }
+        final String domain = (String) rsp.getResults().get(0).getFieldValue("domain");
+        stats.setDomain(domain);
+        DomainHarvests domainHarvests = getDomainHarvests(domain);
+        stats.setNumberHarvestDomain(domainHarvests.count);
+        stats.setDomainHarvestTotalContentLength(domainHarvests.totalContentLength);
+
+        log.info(String.format(
+                "Wayback statistics for url='%s', solrdate=%s extracted in %d ms using capture timeline (domain: %s)",
+                url_norm.length() > 50 ? url_norm.substring(0, 50) + "..." : url_norm, crawlDate,
+                (System.nanoTime() - startNS) / M,
+                domainHarvests.qtime < 0 ? "cached" : "qtime=" + domainHarvests.qtime + " ms"));
+        return stats;
+    }
+
+    /**
+     * @return the capture timeline if it is ready and usable with the current URL normaliser, else null.
+     */
+    private static CaptureTimeline getCaptureTimeline() {
+        return Normalisation.getType() == Normalisation.NormaliseType.LEGACY ? null : captureTimeline;
+    }
+
+    private static long getCount(NamedList<?> facet) {
+        return ((Number) facet.get("count")).longValue();
+    }
+
+    private static String getFacetDate(NamedList<?> facet, String key) {
+        Object date = facet.get(key);
+        return date instanceof Date ? DateUtils.getSolrDate((Date) date) : String.valueOf(date);
+    }
 
-        long callDomain = -1;
-        long callDomainSolr = -1;
+    /**
+     * The number of harvests and the total content length for a domain. As the numbers are the same for all pages
+     * on the domain, they are cached until the {@link IndexWatcher} reports a changed index. Without an
+     * IndexWatcher, nothing would invalidate the cached values, so the cache is not used.
+     */
+    private DomainHarvests getDomainHarvests(String domain) throws SolrServerException, IOException {
         if (domain == null) {
-            // This can happen if we only have 1 harvest. It will not be include in the
-            // {x,*] og [*,x } since x is not included
-            solrQuery = new SolrQuery("url_norm:\"" + url_norm + "\"");
-            solrQuery.setRows(1);
-            solrQuery.setGetFieldStatistics(true);
-            solrQuery.setGetFieldStatistics(statsField);
-
-            callDomain = -System.nanoTime();
-            rsp = solrServer.query(solrQuery, METHOD.POST);
-            callDomain += System.nanoTime();
-            callDomainSolr = rsp.getQTime();
-            if (rsp.getResults().size() == 0) {
-                return stats; // url never found.
+            return new DomainHarvests(0, 0, -1);
+        }
+        if (domainHarvestsCache == null || !isIndexWatched()) {
+            return requestDomainHarvests(domain);
+        }
+        try {
+            final boolean[] loaded = new boolean[]{false};
+            DomainHarvests cached = domainHarvestsCache.get(domain, () -> {
+                try {
+                    loaded[0] = true;
+                    return requestDomainHarvests(domain);
+                } catch (SolrServerException | IOException e) {
+                    throw new RuntimeException("Unable to request statistics for domain '" + domain + "'", e);
+                }
+            });
+            return loaded[0] ? cached : new DomainHarvests(cached.count, cached.totalContentLength, -1);
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof SolrServerException) {
+                throw (SolrServerException) e.getCause();
             }
-            domain = (String) rsp.getResults().get(0).getFieldValue("domain");
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
         }
-        stats.setDomain(domain);
-        solrQuery = new SolrQuery("domain:\"" + domain + "\"");
+    }
+
+    private DomainHarvests requestDomainHarvests(String domain) throws SolrServerException, IOException {
+        SolrQuery solrQuery = new SolrQuery("domain:\"" + domain + "\"");
         solrQuery.setRows(0);
         solrQuery.setGetFieldStatistics(true);
         solrQuery.setGetFieldStatistics("content_length");
+        QueryResponse rsp = solrServer.query(solrQuery, METHOD.POST);
 
-        long call3ns = -System.nanoTime();
-        rsp = solrServer.query(solrQuery, METHOD.POST);
-        call3ns += System.nanoTime();
-        final long call3nsSolr = rsp.getQTime();
-
-        long numberHarvestDomain = rsp.getResults().getNumFound();
-        stats.setNumberHarvestDomain(numberHarvestDomain);
-        if (numberHarvestDomain != 0) {
+        long count = rsp.getResults().getNumFound();
+        long totalContentLength = 0;
+        if (count != 0) {
             final FieldStatsInfo fieldStats = rsp.getFieldStatsInfo().get("content_length");
             if (fieldStats != null) {
-                double totalContentLength = (Double) fieldStats.getSum();
-                stats.setDomainHarvestTotalContentLength((long) totalContentLength);
+                totalContentLength = (long) (double) (Double) fieldStats.getSum();
             }
         }
+        return new DomainHarvests(count, totalContentLength, rsp.getQTime());
+    }
 
-        log.info(String.format(
-                "Wayback statistics for url='%s', solrdate=%s extracted in %d ms "
-                        + "(call_1=%d ms (qtime=%d ms), call_2=%d ms (qtime=%d ms), call_3=%d ms (qtime=%d ms), " + "domain_call=%d ms (qtime=%d ms))",
-                url_norm.length() > 50 ? url_norm.substring(0, 50) + "..." : url_norm, crawlDate, (System.nanoTime() - startNS) / M, call1ns / M, call1nsSolr,
-                call2ns / M, call2nsSolr, call3ns / M, call3nsSolr, callDomain / M, callDomainSolr));
-        return stats;
+    private static TimeCache<DomainHarvests> createDomainHarvestsCache() {
+        if (PropertiesLoader.TOOLBAR_DOMAIN_CACHE_MAX_ENTRIES <= 0) {
+            return null;
+        }
+        return new TimeCache<>(PropertiesLoader.TOOLBAR_DOMAIN_CACHE_MAX_ENTRIES,
+                               PropertiesLoader.TOOLBAR_DOMAIN_CACHE_AGE_SECONDS*1000L);
+    }
 
+    /**
+     * Number of harvests and total content length for a domain. A negative qtime means that the value was cached.
+     */
+    private static final class DomainHarvests {
+        final long count;
+        final long totalContentLength;
+        final long qtime;
+
+        DomainHarvests(long count, long totalContentLength, long qtime) {
+            this.count = count;
+            this.totalContentLength = totalContentLength;
+            this.qtime = qtime;
+        }
     }
 
     /**
@@ -403,7 +649,7 @@ public class NetarchiveSolrClient {
      * attempts a {@code url_norm:"<url>"} search. Duplicates are removed and if there is a hit for the URL, the
      * resulting {@link SolrDocument} is passed on. This step is done in batches.
      * <p>
-     * All URLs without hits are resolved individually using {@link dk.kb.netarchivesuite.solrwayback.util.UrlUtils#lenientURLQuery(String)},
+     * All URLs without hits are resolved in batches using {@link dk.kb.netarchivesuite.solrwayback.util.UrlUtils#lenientURLQuery(String)},
      * where the document with the highest score is selected. If there are no hits for an URL after this step, it is
      * discarded.
      * <p>
@@ -428,7 +674,7 @@ public class NetarchiveSolrClient {
      * delivered {@code SolrDocument} and introduces a memory overhead: This method should only be called for a limited
      * amount of URLs, such as 1000-10,000.
      * <p>
-     * All URLs without hits are resolved individually using {@link dk.kb.netarchivesuite.solrwayback.util.UrlUtils#lenientURLQuery(String)},
+     * All URLs without hits are resolved in batches using {@link dk.kb.netarchivesuite.solrwayback.util.UrlUtils#lenientURLQuery(String)},
      * where the document with the highest score is selected. If there are no hits for an URL after this step, it is
      * discarded.
      * <p>
@@ -503,6 +749,7 @@ public class NetarchiveSolrClient {
         // Create list of url queries for the normURLs
         Stream<String> urlQueries = urlPairs.stream()
                 .map(Pair::second)
+                .filter(NetarchiveSolrClient::mightBeArchived)
                 .map(normURL -> "url_norm:" + SolrUtils.createPhrase(normURL));
 
         // Resolve SolrDocuments using direct url_norm search and store them in a Map with url_norm as key
@@ -531,7 +778,9 @@ public class NetarchiveSolrClient {
 
     /**
      * Perform lenient resolving of originalURLs and deliver the result as a {code Map<originalURL, SolrDocument>}.
-     * The URLs are resolved individually but in parallel. This is a fairly heavy process.
+     * The {@code url_norm}s are resolved with {@link #resolveURLNormsLenient(List, String[])}, after which the
+     * documents for the {@code url_norm}s are requested in a single batch if other fields than {@code url_norm} are
+     * needed.
      * @param fields the fields to return in the SolrDocument. These <b>must</b> include {@code url_norm}.
      * @param urlPairs pairs of {@code originalURL, normURL}.
      * @param filterQueries 0 or more filters for the search.
@@ -542,63 +791,149 @@ public class NetarchiveSolrClient {
         if (!fields.contains("url_norm")) {
             throw new IllegalStateException("fields does not contain 'url_norm'");
         }
-        // Create jobs for unresolved originalURLs that delivers [originalURL, SolrDocument]
-        Stream<Callable<Pair<String, SolrDocument>>> lenientJobs = urlPairs
-                .map(Pair::first) // Only the originalURL is relevant when doing lenient resolving
-                .map(originalURL -> () -> new Pair<>(
-                        originalURL,
-                        resolveURLLenient(fields, originalURL, filterQueries)));
-
-        // Run jobs and collect Map with [originalURL, SolrDocument]
-        return Processing.batch(lenientJobs).
-                peek(jobPair -> {
-                    if (Objects.isNull(jobPair.second())) {
-                        log.debug("Unable to lenient resolve '{}'", jobPair.first());
-                    }
-                })
-                .filter(jobPair -> Objects.nonNull(jobPair.second()))
-                .peek(jobPair -> {
-                    String originalURL = jobPair.first();
-                    String normURL = Objects.toString(jobPair.second().getFieldValue("url_norm"));
-                    if (originalURL.equals(normURL)) {
-                        log.debug("Note: Lenient resolved '{}', but the url_norm was equal to the originalURL",
-                                originalURL);
-                    } else {
-                        log.debug("Lenient resolved '{}' to '{}'", originalURL, normURL);
-                    }
-                        }
-                )
-                .collect(Collectors.toMap(Pair::first, Pair::second));
+        // Only the originalURL is relevant when doing lenient resolving
+        List<String> originalURLs = urlPairs.map(Pair::first).collect(Collectors.toList());
+        Map<String, String> normResolved = resolveURLNormsLenient(originalURLs, filterQueries);
+
+        List<Pair<String, String>> lenientURLPairs = new ArrayList<>(); // [originalURL, lenientResolvedNormURL]
+        for (String originalURL: originalURLs) {
+            String normURL = normResolved.get(originalURL);
+            if (normURL == null) {
+                log.debug("Unable to lenient resolve '{}'", originalURL);
+            } else if (originalURL.equals(normURL)) {
+                log.debug("Note: Lenient resolved '{}', but the url_norm was equal to the originalURL", originalURL);
+            } else {
+                log.debug("Lenient resolved '{}' to '{}'", originalURL, normURL);
+            }
+            if (normURL != null) {
+                lenientURLPairs.add(new Pair<>(originalURL, normURL));
+            }
+        }
+
+        if (fields.size() == 1) { // Only url_norm
+            return lenientURLPairs.stream().collect(Collectors.toMap(Pair::first, urlPair -> {
+                SolrDocument doc = new SolrDocument();
+                doc.setField("url_norm", urlPair.second());
+                return doc;
+            }));
+        }
+        return resolveURLsDirect(fields, lenientURLPairs, filterQueries);
     }
 
     /**
-     * Perform lenient resolving of a single URL and deliver the first result, if any.
-     * This uses {@link UrlUtils#lenientURLQuery(String)} for constructing the query.
-     * @param fields the fields to return in the SolrDocument. These <b>must</b> include {@code url_norm}.
-     * @param url a raw URL.
+     * Resolve the {@code url_norm} of the document with the highest score for
+     * {@link UrlUtils#lenientURLQuery(String)} for each URL.
+     * <p>
+     * Instead of a request for each URL, the URLs are grouped by host and resolved using at most
+     * {@link PropertiesLoader#LENIENT_MAX_REQUESTS} requests, issued concurrently. Each request holds a query facet
+     * for each of its URLs, where the lenient query selects the candidates and a terms facet on {@code url_norm},
+     * sorted by the maximum {@code query(lenient query)} score, selects the best match. This gives the same ranking as
+     * individual requests, except that ties between different {@code url_norm}s are resolved by term order.
+     * @param originalURLs the URLs to resolve.
      * @param filterQueries 0 or more filters for the search.
-     * @return the first SolrDocument matching the lenient query or null if there were no matches.
+     * @return a {@code Map<originalURL, url_norm>} for all resolved URLs.
      */
-    public SolrDocument resolveURLLenient(List<String> fields, String url, String... filterQueries) {
-        SolrQuery solrQuery = new SolrQuery();
-        solrQuery.setQuery(UrlUtils.lenientURLQuery(url));
+    private Map<String, String> resolveURLNormsLenient(List<String> originalURLs, String[] filterQueries) {
+        if (archivedUrlFilter != null) {
+            originalURLs = originalURLs.stream()
+                    .filter(NetarchiveSolrClient::mightBeArchivedLenient)
+                    .collect(Collectors.toList());
+        }
+        if (originalURLs.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        lenientAttempts.addAndGet(originalURLs.size());
+
+        // Group by host so that the clauses for the same host are evaluated in the same request
+        List<String> sorted = originalURLs.stream()
+                .sorted(Comparator.comparing(NetarchiveSolrClient::getHostSafe))
+                .collect(Collectors.toList());
+        int requests = Math.max(1, Math.min(
+                PropertiesLoader.LENIENT_MAX_REQUESTS,
+                (sorted.size() + LENIENT_URLS_PER_REQUEST - 1) / LENIENT_URLS_PER_REQUEST));
+
+        List<CompletableFuture<Map<String, String>>> jobs = new ArrayList<>(requests);
+        for (int i = 0 ; i < requests ; i++) {
+            List<String> batch = sorted.subList(i * sorted.size() / requests, (i + 1) * sorted.size() / requests);
+            lenientRequests.incrementAndGet();
+            jobs.add(queryAsync(noCacheSolrServer, createLenientBatchQuery(batch, filterQueries))
+                             .handle((response, e) -> {
+                                 if (e != null) {
+                                     throw new RuntimeException(
+                                             "Exception trying to resolve " + batch.size() + " URLs lenient", e);
+                                 }
+                                 return getLenientBatchResult(batch, response);
+                             }));
+        }
+
+        Map<String, String> resolved = new HashMap<>();
+        jobs.stream().map(CompletableFuture::join).forEach(resolved::putAll);
+        lenientSuccesses.addAndGet(resolved.size());
+        return resolved;
+    }
+
+    private SolrQuery createLenientBatchQuery(List<String> urls, String... filterQueries) {
+        SolrQuery solrQuery = new SolrQuery("*:*");
         solrQuery.setFilterQueries(filterQueries);
-        solrQuery.set(CommonParams.ROWS, 1);
-        solrQuery.set(CommonParams.FL, String.join(",", fields));
+        solrQuery.set(CommonParams.ROWS, 0);
         solrQuery.set(HighlightParams.HIGHLIGHT, false);
         solrQuery.set(FacetParams.FACET, false);
         solrQuery.set(GroupParams.GROUP, false);
-        QueryResponse response;
-        try {
-            lenientAttempts.incrementAndGet();
-            response = noCacheSolrServer.query(solrQuery);
-            if (response.getResults() != null && !response.getResults().isEmpty()) {
-                lenientSuccesses.incrementAndGet();
+        StringBuilder facets = new StringBuilder("{");
+        for (int i = 0 ; i < urls.size() ; i++) {
+            solrQuery.set("lq" + i, UrlUtils.lenientURLQuery(urls.get(i)));
+            facets.append(i == 0 ? "" : ",").
+                    append("u").append(i).append(":{type:query,q:'{!lucene v=$lq").append(i).append("}',").
+                    append("facet:{norm:{type:terms,field:url_norm,limit:1,sort:'s desc',").
+                    append("facet:{s:'max(query($lq").append(i).append("))'}}}}");
+        }
+        solrQuery.set("json.facet", facets.append("}").toString());
+        return solrQuery;
+    }
+
+    /**
+     * @return a {@code Map<originalURL, url_norm>} for the resolved URLs in the response.
+     */
+    private Map<String, String> getLenientBatchResult(List<String> urls, QueryResponse response) {
+        Map<String, String> resolved = new HashMap<>();
+        NamedList<?> facets = (NamedList<?>) response.getResponse().get("facets");
+        if (facets == null) {
+            return resolved;
+        }
+        for (int i = 0 ; i < urls.size() ; i++) {
+            NamedList<?> urlFacet = (NamedList<?>) facets.get("u" + i);
+            NamedList<?> norm = urlFacet == null ? null : (NamedList<?>) urlFacet.get("norm");
+            List<?> buckets = norm == null ? null : (List<?>) norm.get("buckets");
+            if (buckets != null && !buckets.isEmpty()) {
+                resolved.put(urls.get(i), Objects.toString(((NamedList<?>) buckets.get(0)).get("val")));
             }
+        }
+        return resolved;
+    }
+
+    /**
+     * @return false if the {@link ArchivedUrlFilter} is ready and the normalised URL is definitely not in the index.
+     */
+    private static boolean mightBeArchived(String urlNorm) {
+        ArchivedUrlFilter filter = archivedUrlFilter;
+        return filter == null || filter.mightContain(urlNorm);
+    }
+
+    /**
+     * @return false if the {@link ArchivedUrlFilter} is ready and the URL definitely cannot be resolved leniently.
+     */
+    private static boolean mightBeArchivedLenient(String url) {
+        ArchivedUrlFilter filter = archivedUrlFilter;
+        return filter == null || filter.mightContainLenient(url, UrlUtils.punyCodeAndNormaliseUrlSafe(url));
+    }
+
+    private static String getHostSafe(String url) {
+        try {
+            String host = new URL(url).getHost();
+            return host == null ? "" : host.toLowerCase(Locale.ROOT);
         } catch (Exception e) {
-            throw new RuntimeException("Exception trying to resolve URL lenient for '" + url + "'", e);
+            return "";
         }
-        return response.getResults().isEmpty() ? null : response.getResults().get(0);
     }
 
     /**
@@ -638,6 +973,14 @@ public class NetarchiveSolrClient {
     public ArrayList<Date> getHarvestTimesForUrl(String url) throws Exception {
         ArrayList<Date> dates = new ArrayList<Date>();
 
+        CaptureTimeline timeline = getCaptureTimeline();
+        if (timeline != null) {
+            for (CaptureTimeline.Capture capture: timeline.getCaptures(normalizeUrl(url))) {
+                dates.add(new Date(capture.getCrawlTime()));
+            }
+            return dates;
+        }
+
         String query=UrlUtils.fixLegacyNormaliseUrlErrorQuery(url);
         SolrQuery solrQuery = new SolrQuery();
         solrQuery = new SolrQuery(query);
@@ -873,10 +1216,16 @@ public class NetarchiveSolrClient {
                 .collect(Collectors.toCollection(ArrayList::new));
     }
 
+    /**
+     * Resolves {@link IndexDocShort}s for the given URLs. URLs resolved earlier for nearly the same timestamp are
+     * delivered from the {@link ResolutionCache}.
+     * @param urls      URLs for the resources to locate.
+     * @param timeStamp in case of multiple hits for a single URL, the resource with harvest time closest to this
+     *                  timestamp is preferred.
+     * @return a list of {@link IndexDocShort} for the given URLs.
+     */
     public ArrayList<IndexDocShort> findNearestHarvestTimeForMultipleUrlsFewFields(Collection<String> urls, String timeStamp){
-        return findNearestDocuments(SolrUtils.indexDocFieldListShort, timeStamp, urls.stream())
-                .map(SolrUtils::solrDocument2IndexDocShort)
-                .collect(Collectors.toCollection(ArrayList::new));
+        return findNearestUrlsShort(urls, timeStamp, false);
     }
 
 
@@ -892,6 +1241,19 @@ public class NetarchiveSolrClient {
      * @return a list of {@link IndexDocShort} for the given URLs.
      */
     public ArrayList<IndexDocShort> findNearestUrlsShort(Collection<String> urls, String timeStamp, boolean lenient) {
+        ResolutionCache cache = getResolutionCache();
+        if (cache == null) { // Cached entries would never be invalidated
+            return findNearestUrlsShortSolr(urls, timeStamp, lenient);
+        }
+        ArrayList<IndexDocShort> docs = cache.resolve(
+                urls, timeStamp, lenient, getIndexGeneration(),
+                missing -> findNearestUrlsShortSolr(missing, timeStamp, lenient));
+        log.debug("Resolved {} URLs: {}", urls.size(), cache);
+        return docs;
+    }
+
+    private ArrayList<IndexDocShort> findNearestUrlsShortSolr(
+            Collection<String> urls, String timeStamp, boolean lenient) {
         Stream<SolrDocument> docs = lenient ?
                 findNearestDocumentsLenient(SolrUtils.indexDocFieldListShort, timeStamp, urls.stream()) :
                 findNearestDocuments(SolrUtils.indexDocFieldListShort, timeStamp, urls.stream());
@@ -920,6 +1282,7 @@ public class NetarchiveSolrClient {
         Stream<String> urlQueries = urls
                 .filter(url -> !url.startsWith("data:"))
                 .map(NetarchiveSolrClient::normalizeUrl)
+                .filter(NetarchiveSolrClient::mightBeArchived)
                 .map(SolrUtils::createPhrase)
                 .map(url -> "url_norm:" + url);
 
@@ -1124,6 +1487,64 @@ public class NetarchiveSolrClient {
         if (url == null || timeStamp == null) {
             throw new IllegalArgumentException("harvestUrl or timeStamp is null"); // Can happen for url-rewrites that are not corrected
         }
+
+        CaptureTimeline timeline = getCaptureTimeline();
+        if (timeline != null) {
+            String urlNorm = normalizeUrl(url);
+            CaptureTimeline.Capture capture = findClosestCapture(timeline, url, urlNorm, timeStamp);
+            if (capture == null) {
+                // The timeline might lag behind the index, e.g. if an update failed
+                log.debug("No capture timeline result for '" + url + "'. Using Solr lookup");
+            } else {
+                IndexDoc doc = getIndexDoc(capture.getSourceFilePath(), capture.getOffset());
+                if (doc != null && urlNorm.equals(doc.getUrl_norm())) {
+                    return doc;
+                }
+                log.debug("Capture timeline result " + capture + " for '" + url + "' not matched in Solr. Using Solr lookup");
+            }
+        }
+        return findClosestHarvestTimeForUrlSolr(url, timeStamp);
+    }
+
+    /**
+     * Same selection as {@link #findClosestHarvestTimeForUrlSolr(String, String)}: The nearest status 200 capture that
+     * is not a revisit, using the same protocol as the url and ending with {@code /} if the url does. If no capture
+     * satisfies protocol and {@code /}, the nearest status 200 capture that is not a revisit is used.
+     * @return the nearest capture or null if there are none.
+     */
+    private static CaptureTimeline.Capture findClosestCapture(
+            CaptureTimeline timeline, String url, String urlNorm, String timeStamp) {
+        final long time = DateUtils.solrTimestampToJavaDate(timeStamp).getTime();
+        final int protocol = url.startsWith("http://") ? CaptureTimeline.FLAG_HTTP :
+                url.startsWith("https://") ? CaptureTimeline.FLAG_HTTPS : 0;
+        final boolean slashLast = url.endsWith("/");
+
+        List<CaptureTimeline.Capture> captures = timeline.getCaptures(urlNorm);
+        CaptureTimeline.Capture best = CaptureTimeline.nearest(captures, time, capture ->
+                capture.getStatusCode() == 200 && capture.is(CaptureTimeline.FLAG_NO_REVISIT) &&
+                protocol != 0 && capture.is(protocol) &&
+                (!slashLast || capture.is(CaptureTimeline.FLAG_SLASH_LAST)));
+        return best != null ? best : CaptureTimeline.nearest(captures, time, capture ->
+                capture.getStatusCode() == 200 && capture.is(CaptureTimeline.FLAG_NO_REVISIT));
+    }
+
+    /**
+     * @return the document at the given location or null if it is not in the index.
+     */
+    private IndexDoc getIndexDoc(String source_file_path, long offset) throws SolrServerException, IOException {
+        SolrQuery solrQuery = new SolrQuery(
+                "source_file_path:\"" + source_file_path + "\" AND source_file_offset:" + offset);
+        solrQuery.set("facet", "false");
+        solrQuery.add("fl", SolrUtils.indexDocFieldList);
+        solrQuery.setRows(1);
+        QueryResponse rsp = noCacheSolrServer.query(solrQuery, METHOD.POST);
+        return rsp.getResults().isEmpty() ? null : SolrUtils.solrDocList2IndexDoc(rsp.getResults()).get(0);
+    }
+
+    /**
+     * Find the closest harvest by sorting in Solr.
+     */
+    private IndexDoc findClosestHarvestTimeForUrlSolr(String url, String timeStamp) throws Exception {
         //log.info("sort time:"+timeStamp + " url:"+url);
         // normalize will remove last slash if not slashpage
         boolean slashLast = url.endsWith("/");
@@ -1762,4 +2183,40 @@ public class NetarchiveSolrClient {
     public long getLenientSuccesses() {
         return lenientSuccesses.get();
     }
+
+    /**
+     * @return the number of Solr requests issued for resolving URLs leniently.
+     */
+    public long getLenientRequests() {
+        return lenientRequests.get();
+    }
+
+    /**
+     * @return the filter for URLs that are not in the index. null if disabled or not yet ready.
+     */
+    public static ArchivedUrlFilter getArchivedUrlFilter() {
+        return archivedUrlFilter;
+    }
+
+    /**
+     * @return the cache used for resolving URLs in playback, created on first call. null if not
+     *         {@link #isIndexWatched()}, as cached entries would never be invalidated.
+     */
+    public ResolutionCache getResolutionCache() {
+        if (!isIndexWatched()) {
+            return null;
+        }
+        ResolutionCache cache = resolutionCache;
+        if (cache == null) {
+            synchronized (this) {
+                cache = resolutionCache;
+                if (cache == null) {
+                    cache = new ResolutionCache(PropertiesLoader.PLAYBACK_RESOLVE_CACHE_MAX_ENTRIES,
+                                                PropertiesLoader.PLAYBACK_RESOLVE_CACHE_BUCKET_SECONDS);
+                    resolutionCache = cache;
+                }
+            }
+        }
+        return cache;
+    }
 }
@@ -0,0 +1,426 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.solr;
+
+import dk.kb.netarchivesuite.solrwayback.normalise.Normalisation;
+import dk.kb.netarchivesuite.solrwayback.service.dto.IndexDocShort;
+import dk.kb.netarchivesuite.solrwayback.util.DateUtils;
+import dk.kb.netarchivesuite.solrwayback.util.UrlUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Cache of resolved URLs for playback, keyed by {@code (url_norm, time bucket, lenient)}. Pages on the same site
+ * share most of their embedded resources (CSS, JavaScript, logos), so browsing a harvest resolves the same URLs
+ * against Solr over and over. With the cache, only the URLs not seen before for the time bucket are resolved.
+ * <p>
+ * URLs that could not be resolved are cached too, as they are requested just as often as the resolved ones.
+ * <p>
+ * The time bucket is the harvest time of the page divided by the bucket width: All requests within a bucket share
+ * the resolved resource. With a bucket width of an hour, this is nearly always the resource that Solr would have
+ * resolved anyway, as pages and their resources are normally harvested within minutes of each other.
+ * <p>
+ * Entries are held in two generations of primitive arrays with open addressing. When the current generation is full,
+ * it replaces the previous generation, which is discarded. Entries found in the previous generation are promoted to
+ * the current one, so that the frequently used entries survive.
+ * <p>
+ * The cache must be invalidated when the index changes: See the {@code generation} argument to
+ * {@link #resolve(Collection, String, boolean, long, Function)}.
+ */
+public class ResolutionCache {
+    // Marker for a cached URL that could not be resolved
+    private static final IndexDocShort UNRESOLVED = new IndexDocShort();
+    // Marker for an unknown crawl date
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    private final int maxEntries;
+    private final long bucketMS;
+
+    private Table current;
+    private Table previous;
+    private long generation = 0;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong unresolvedHits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong admissions = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+    private final AtomicLong resolves = new AtomicLong(0);
+    private final AtomicLong skippedResolves = new AtomicLong(0);
+
+    /**
+     * @param maxEntries    the maximum number of URLs to hold in the cache. 0 disables the cache.
+     * @param bucketSeconds the width of the time buckets. 0 disables the cache.
+     */
+    public ResolutionCache(int maxEntries, int bucketSeconds) {
+        this.maxEntries = bucketSeconds <= 0 ? 0 : Math.max(0, maxEntries);
+        this.bucketMS = bucketSeconds * 1000L;
+        clear();
+    }
+
+    /**
+     * Resolve the given URLs, using the cache for the URLs resolved earlier in the same time bucket and the resolver
+     * for the rest. The result is the same as {@code resolver.apply(urls)}, except that the time of the delivered
+     * resources is only guaranteed to be closest to the given timeStamp within the time bucket.
+     * <p>
+     * {@code data:}-URLs and URLs that cannot be normalised are not delivered, which matches the resolvers in
+     * {@link NetarchiveSolrClient}.
+     * @param urls       URLs for the resources to locate.
+     * @param timeStamp  ISO-timestamp, Solr style: {@code 2011-10-14T14:44:00Z}.
+     * @param lenient    whether the resolver is lenient. Lenient and direct resolving are cached separately.
+     * @param generation the current index generation. If it is larger than the generation for the cached entries,
+     *                   the cache is cleared. If it is smaller, the resolved URLs are not cached.
+     * @param resolver   resolves the URLs not in the cache to documents with the normalised URL as {@code url_norm}.
+     * @return the resolved documents. The order of the documents is not defined.
+     */
+    public ArrayList<IndexDocShort> resolve(
+            Collection<String> urls, String timeStamp, boolean lenient, long generation,
+            Function<Collection<String>, ArrayList<IndexDocShort>> resolver) {
+        if (maxEntries <= 0 || timeStamp == null) {
+            return resolver.apply(urls);
+        }
+        long bucket;
+        try {
+            bucket = Math.floorDiv(Instant.parse(timeStamp).toEpochMilli(), bucketMS);
+        } catch (DateTimeParseException e) {
+            return resolver.apply(urls);
+        }
+
+        ArrayList<IndexDocShort> result = new ArrayList<>();
+        Map<String, String> missing = new LinkedHashMap<>(); // normalised URL -> URL
+        List<String> uncachable = new ArrayList<>();
+        Set<String> delivered = new HashSet<>();
+        synchronized (this) {
+            if (generation > this.generation) {
+                clear();
+                this.generation = generation;
+            }
+            for (String url: urls) {
+                if (url.startsWith("data:")) {
+                    continue;
+                }
+                String norm = normalise(url, lenient);
+                if (norm == null) {
+                    if (!lenient) { // The resolver might know how to handle it
+                        uncachable.add(url);
+                    }
+                    continue;
+                }
+                if (delivered.contains(norm) || missing.containsKey(norm)) {
+                    continue;
+                }
+                IndexDocShort cached = get(norm, bucket, lenient);
+                if (cached == null) {
+                    missing.put(norm, url);
+                    misses.incrementAndGet();
+                    continue;
+                }
+                hits.incrementAndGet();
+                delivered.add(norm);
+                if (cached == UNRESOLVED) {
+                    unresolvedHits.incrementAndGet();
+                } else {
+                    result.add(cached);
+                }
+            }
+        }
+        if (missing.isEmpty() && uncachable.isEmpty()) {
+            skippedResolves.incrementAndGet();
+            return result;
+        }
+
+        List<String> unresolved = new ArrayList<>(missing.size() + uncachable.size());
+        unresolved.addAll(missing.values());
+        unresolved.addAll(uncachable);
+        resolves.incrementAndGet();
+        ArrayList<IndexDocShort> resolved = resolver.apply(unresolved);
+        result.addAll(resolved);
+
+        synchronized (this) {
+            if (generation != this.generation) {
+                return result; // The index has changed while resolving
+            }
+            Map<String, IndexDocShort> byNorm = new HashMap<>(resolved.size());
+            resolved.forEach(doc -> byNorm.put(doc.getUrl_norm(), doc));
+            for (String norm: missing.keySet()) {
+                put(norm, bucket, lenient, byNorm.getOrDefault(norm, UNRESOLVED));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the URL normalised the same way as the resolver does it, null if the URL cannot be normalised.
+     */
+    private static String normalise(String url, boolean lenient) {
+        if (lenient) {
+            return UrlUtils.punyCodeAndNormaliseUrlSafe(url);
+        }
+        try {
+            return Normalisation.canonicaliseURL(url);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private IndexDocShort get(String norm, long bucket, boolean lenient) {
+        long[] hash = hash(norm, bucket, lenient);
+        IndexDocShort doc = current.get(hash[0], hash[1]);
+        if (doc == null) {
+            doc = previous.get(hash[0], hash[1]);
+            if (doc != null) { // Promote
+                put(hash, doc);
+            }
+        }
+        return doc;
+    }
+
+    private void put(String norm, long bucket, boolean lenient, IndexDocShort doc) {
+        put(hash(norm, bucket, lenient), doc);
+        admissions.incrementAndGet();
+    }
+
+    private void put(long[] hash, IndexDocShort doc) {
+        if (!current.put(hash[0], hash[1], doc)) {
+            evictions.addAndGet(previous.size);
+            previous = current;
+            current = new Table(current.maxSize);
+            current.put(hash[0], hash[1], doc);
+        }
+    }
+
+    private static long[] hash(String norm, long bucket, boolean lenient) {
+        long[] hash = UniqueHashTracker.murmur3(norm + "\n" + bucket + (lenient ? "\nL" : "\nD"));
+        if ((hash[0] | hash[1]) == 0) { // 0 marks empty slots
+            hash[1] = 1;
+        }
+        return hash;
+    }
+
+    /**
+     * Remove all entries from the cache.
+     */
+    public synchronized void clear() {
+        int generationSize = Math.max(1, maxEntries / 2);
+        if (current == null || current.size > 0) {
+            current = new Table(generationSize);
+        }
+        if (previous == null || previous.size > 0) {
+            previous = new Table(maxEntries <= 0 ? 1 : generationSize);
+        }
+    }
+
+    /**
+     * @return the number of cached URLs, including URLs that could not be resolved.
+     */
+    public synchronized int size() {
+        return current.size + previous.size;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of hits for URLs that were cached as not resolvable. These are included in {@link #getHits()}.
+     */
+    public long getUnresolvedHits() {
+        return unresolvedHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getAdmissions() {
+        return admissions.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of calls to the resolver. Each call results in one or more Solr requests.
+     */
+    public long getResolves() {
+        return resolves.get();
+    }
+
+    /**
+     * @return the number of calls where all URLs were cached, so that the resolver was not called at all.
+     */
+    public long getSkippedResolves() {
+        return skippedResolves.get();
+    }
+
+    /**
+     * @return the fraction of URLs that were delivered from the cache.
+     */
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : 1.0 * hits.get() / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+                             "ResolutionCache(entries=%d/%d, bucketSeconds=%d, hitRate=%.2f, hits=%d, " +
+                             "unresolvedHits=%d, misses=%d, admissions=%d, evictions=%d, resolves=%d, " +
+                             "skippedResolves=%d)",
+                             size(), maxEntries, bucketMS / 1000, getHitRate(), hits.get(), unresolvedHits.get(),
+                             misses.get(), admissions.get(), evictions.get(), resolves.get(), skippedResolves.get());
+    }
+
+    /**
+     * Open addressing hash table with linear probing, holding the fields of {@link IndexDocShort} in primitive arrays.
+     * Source file paths are stored once per table and {@code url_norm} and {@code url} are stored as UTF-8 in a
+     * shared byte array.
+     */
+    private static final class Table {
+        final int maxSize;
+        final int mask;
+        final long[] hashes1;
+        final long[] hashes2;
+        final long[] offsets;
+        final long[] crawlTimes;
+        final int[] pathIDs; // -1 means unresolved
+        final int[] textStarts;
+        final int[] normLengths;
+        final int[] urlLengths;
+        byte[] texts = new byte[1024];
+        int textSize = 0;
+        final List<String> paths = new ArrayList<>();
+        final Map<String, Integer> pathMap = new HashMap<>();
+        int size = 0;
+
+        Table(int maxSize) {
+            this.maxSize = maxSize;
+            int slots = Integer.highestOneBit(Math.max(2, maxSize) * 2 - 1) << 1; // Load factor <= 0.5
+            mask = slots - 1;
+            hashes1 = new long[slots];
+            hashes2 = new long[slots];
+            offsets = new long[slots];
+            crawlTimes = new long[slots];
+            pathIDs = new int[slots];
+            textStarts = new int[slots];
+            normLengths = new int[slots];
+            urlLengths = new int[slots];
+        }
+
+        IndexDocShort get(long hash1, long hash2) {
+            int slot = slot(hash1, hash2);
+            if (hashes1[slot] == 0 && hashes2[slot] == 0) {
+                return null;
+            }
+            if (pathIDs[slot] == -1) {
+                return UNRESOLVED;
+            }
+            IndexDocShort doc = new IndexDocShort();
+            int start = textStarts[slot];
+            doc.setUrl_norm(new String(texts, start, normLengths[slot], StandardCharsets.UTF_8));
+            if (urlLengths[slot] >= 0) {
+                doc.setUrl(new String(texts, start + normLengths[slot], urlLengths[slot], StandardCharsets.UTF_8));
+            }
+            doc.setOffset(offsets[slot]);
+            doc.setSource_file_path(paths.get(pathIDs[slot]));
+            if (crawlTimes[slot] != NO_TIME) {
+                doc.setCrawlDate(DateUtils.getSolrDate(new Date(crawlTimes[slot])));
+            }
+            return doc;
+        }
+
+        /**
+         * @return false if the table is full, else true.
+         */
+        boolean put(long hash1, long hash2, IndexDocShort doc) {
+            int slot = slot(hash1, hash2);
+            boolean isNew = hashes1[slot] == 0 && hashes2[slot] == 0;
+            if (isNew && size >= maxSize) {
+                return false;
+            }
+            if (doc == UNRESOLVED) {
+                pathIDs[slot] = -1;
+            } else {
+                byte[] norm = doc.getUrl_norm().getBytes(StandardCharsets.UTF_8);
+                byte[] url = doc.getUrl() == null ? null : doc.getUrl().getBytes(StandardCharsets.UTF_8);
+                int length = norm.length + (url == null ? 0 : url.length);
+                if ((long) textSize + length > Integer.MAX_VALUE - 16) {
+                    return false;
+                }
+                if (textSize + length > texts.length) {
+                    texts = Arrays.copyOf(texts, (int) Math.min(Integer.MAX_VALUE - 16,
+                                                                Math.max(textSize + length, texts.length * 2L)));
+                }
+                textStarts[slot] = textSize;
+                normLengths[slot] = norm.length;
+                urlLengths[slot] = url == null ? -1 : url.length;
+                System.arraycopy(norm, 0, texts, textSize, norm.length);
+                textSize += norm.length;
+                if (url != null) {
+                    System.arraycopy(url, 0, texts, textSize, url.length);
+                    textSize += url.length;
+                }
+                offsets[slot] = doc.getOffset();
+                crawlTimes[slot] = crawlTime(doc.getCrawlDate());
+                pathIDs[slot] = pathMap.computeIfAbsent(doc.getSource_file_path(), path -> {
+                    paths.add(path);
+                    return paths.size() - 1;
+                });
+            }
+            if (isNew) {
+                hashes1[slot] = hash1;
+                hashes2[slot] = hash2;
+                size++;
+            }
+            return true;
+        }
+
+        /**
+         * @return the slot holding the given hash or the empty slot where it should be inserted.
+         */
+        private int slot(long hash1, long hash2) {
+            int slot = (int) hash1 & mask;
+            while ((hashes1[slot] != 0 || hashes2[slot] != 0) &&
+                   (hashes1[slot] != hash1 || hashes2[slot] != hash2)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private static long crawlTime(String crawlDate) {
+            try {
+                return crawlDate == null ? NO_TIME : Instant.parse(crawlDate).toEpochMilli();
+            } catch (DateTimeParseException e) {
+                return NO_TIME;
+            }
+        }
+    }
+}
@@ -15,11 +15,13 @@
 package dk.kb.netarchivesuite.solrwayback.solr;
 
 import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
+import dk.kb.netarchivesuite.solrwayback.util.Processing;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrRequest;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.StreamingResponseCallback;
 import org.apache.solr.client.solrj.beans.DocumentObjectBinder;
+import org.apache.solr.client.solrj.impl.Http2SolrClient;
 import org.apache.solr.client.solrj.impl.HttpSolrClient;
 import org.apache.solr.client.solrj.request.QueryRequest;
 import org.apache.solr.client.solrj.response.QueryResponse;
@@ -31,6 +33,8 @@ import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.client.solrj.util.AsyncListener;
+import org.apache.solr.client.solrj.util.Cancellable;
 import org.apache.solr.common.util.NamedList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,6 +45,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -92,7 +97,8 @@ public class RestrictedSolrClient extends SolrClient {
     private static final Pattern SOLR_COLLECTION_PATTERN = Pattern.compile("(http.*)/([^/]+)/?$");
 
     /**
-     * Create a {@link HttpSolrClient} wrapped as a {@code RestrictedSolrClient} using the property
+     * Create a {@link HttpSolrClient} or a {@link Http2SolrClient}, depending on
+     * {@link PropertiesLoader#SOLR_CLIENT_TRANSPORT}, wrapped as a {@code RestrictedSolrClient} using the property
      * {@link PropertiesLoader#SOLR_PARAMS_MAP} for restrictions and the given {@code collection} as
      * {@link #defaultCollection}.
      * @param solrBaseURL an URL to a Solr server, sans collection. Example: {@code http://localhost:8983/solr}.
@@ -100,8 +106,29 @@ public class RestrictedSolrClient extends SolrClient {
      * @return a {@code SolrClient} where all calls are restricted aka "safe".
      */
     public static RestrictedSolrClient createSolrClient(String solrBaseURL, String collection) {
-        log.info("Creating RestrictedSolrClient(solrBaseURL='{}', collection='{}')", solrBaseURL, collection);
-        return new RestrictedSolrClient(new HttpSolrClient.Builder(solrBaseURL).build(), collection);
+        return createSolrClient(solrBaseURL, collection, PropertiesLoader.SOLR_CLIENT_TRANSPORT);
+    }
+
+    /**
+     * Create a {@link HttpSolrClient} or a {@link Http2SolrClient} wrapped as a {@code RestrictedSolrClient} using
+     * the property {@link PropertiesLoader#SOLR_PARAMS_MAP} for restrictions and the given {@code collection} as
+     * {@link #defaultCollection}.
+     * @param solrBaseURL an URL to a Solr server, sans collection. Example: {@code http://localhost:8983/solr}.
+     * @param collection the collection to use for {@link #defaultCollection}. Example: {@code netarchivebuilder}.
+     * @param transport {@code http1} for {@link HttpSolrClient} or {@code http2} for {@link Http2SolrClient}.
+     * @return a {@code SolrClient} where all calls are restricted aka "safe".
+     */
+    public static RestrictedSolrClient createSolrClient(String solrBaseURL, String collection, String transport) {
+        log.info("Creating RestrictedSolrClient(solrBaseURL='{}', collection='{}', transport='{}')",
+                 solrBaseURL, collection, transport);
+        if (transport == null || "http1".equalsIgnoreCase(transport)) {
+            return new RestrictedSolrClient(new HttpSolrClient.Builder(solrBaseURL).build(), collection);
+        }
+        if ("http2".equalsIgnoreCase(transport)) {
+            return new RestrictedSolrClient(new Http2SolrClient.Builder(solrBaseURL).build(), collection);
+        }
+        throw new IllegalArgumentException(
+                "Unsupported Solr client transport '" + transport + "'. Valid values are http1 and http2");
     }
 
     /**
@@ -439,6 +466,48 @@ public class RestrictedSolrClient extends SolrClient {
         return inner.query(defaultCollection, restrict(params), method);
     }
 
+    /**
+     * Issue the query asynchronously. If the inner client is a {@link Http2SolrClient}, the request is multiplexed
+     * over its connections without occupying a thread while waiting for the response. Other clients are called
+     * using the shared {@link Processing} threads.
+     * @param params the query parameters.
+     * @param method the HTTP method to use.
+     * @return the future response. Cancelling the future cancels the request when using {@link Http2SolrClient}.
+     */
+    public CompletableFuture<QueryResponse> queryAsync(SolrParams params, SolrRequest.METHOD method) {
+        QueryRequest request = new QueryRequest(restrict(params), method);
+        if (!(inner instanceof Http2SolrClient)) {
+            return Processing.async(() -> request.process(inner, defaultCollection));
+        }
+        CompletableFuture<QueryResponse> future = new CompletableFuture<>();
+        Cancellable cancellable = ((Http2SolrClient) inner).asyncRequest(
+                request, defaultCollection, new AsyncListener<NamedList<Object>>() {
+                    @Override
+                    public void onSuccess(NamedList<Object> response) {
+                        future.complete(new QueryResponse(response, inner));
+                    }
+
+                    @Override
+                    public void onFailure(Throwable throwable) {
+                        future.completeExceptionally(throwable);
+                    }
+                });
+        future.whenComplete((response, throwable) -> {
+            if (future.isCancelled()) {
+                cancellable.cancel();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * @return true if the inner client is a {@link Http2SolrClient}, meaning that {@link #queryAsync} does not
+     *         occupy a thread per request.
+     */
+    public boolean isAsync() {
+        return inner instanceof Http2SolrClient;
+    }
+
     @Override
     public QueryResponse queryAndStreamResponse(String collection, SolrParams params, StreamingResponseCallback callback) throws SolrServerException, IOException {
         return inner.queryAndStreamResponse(collection, restrict(params), callback);
@@ -60,6 +60,8 @@ public class SRequest {
      * unique values. Each entry takes up about ~150 bytes plus the value itself, so
      * something like 250 bytes/entry as a rule of thumb. The default MAX_UNIQUE is thus
      * about 1.25GB of maximum heap.
+     * <p>
+     * The limit only applies when {@link #uniqueHashing(boolean)} is false.
      */
     public static final int DEFAULT_MAX_UNIQUE = 5_000_000;
 
@@ -74,6 +76,18 @@ public class SRequest {
     public SolrQuery solrQuery = new SolrQuery();
     public boolean expandResources = false;
     public List<String> expandResourcesFilterQueries;
+    /**
+     * The number of webpages to resolve resources for concurrently when {@link #expandResources} is true.
+     * See {@link #expandResourcesParallel(int)}.
+     */
+    public int expandResourcesParallel = PropertiesLoader.EXPAND_RESOURCES_PARALLEL;
+    /**
+     * If defined, resource links are taken from these fields instead of from the WARC record for the webpage.
+     * See {@link #expandResourcesLinkFields(String...)}.
+     */
+    public List<String> expandResourcesLinkFields = PropertiesLoader.EXPAND_RESOURCES_LINK_FIELDS.isEmpty() ?
+            null :
+            Arrays.asList(PropertiesLoader.EXPAND_RESOURCES_LINK_FIELDS.split(" *, *"));
 
     public boolean ensureUnique = false;
     public Integer maxUnique = DEFAULT_MAX_UNIQUE;
@@ -89,6 +103,11 @@ public class SRequest {
      * Default sort used when exporting. Ends with tie breaking on id.
      */
     public static final String DEFAULT_SORT = "score desc, id asc";
+    /**
+     * Sort used for storage locality: Documents are ordered by their position in the (W)ARC files.
+     * Both fields are docValues in the SolrWayback schema.
+     */
+    public static final String LOCALITY_SORT = "source_file_path asc, source_file_offset asc";
     /**
      * The sort param as given by the caller. It is recommended to call {@link #getFullSort()} instead of using this
      * value directly as {@code getFullSort()} extends the sort with relevant clauses depending on other attributes
@@ -100,6 +119,11 @@ public class SRequest {
     public List<String> filterQueries;
     public int pageSize = SolrStreamDirect.DEFAULT_PAGESIZE;
     public boolean usePaging = true;
+    /**
+     * The number of pages to request from Solr in the background while the current page is being processed.
+     * 0 means no prefetching. See {@link #prefetchPages(int)}.
+     */
+    public int prefetchPages = 0;
     public int queryBatchSize = SolrStreamDirect.DEFAULT_QUERY_BATCHSIZE;
     public List<String> shards = null;
     public String collection = null;
@@ -201,6 +225,38 @@ public class SRequest {
         return this;
     }
 
+    /**
+     * Resolve resources for up to {@code parallel} upcoming webpages concurrently when {@link #expandResources}
+     * is true. The delivery order is unchanged: A webpage is always followed by its resources.
+     * <p>
+     * The resolving uses a pool of {@code export.expand.threads} threads, shared between all exports, which limits
+     * the overall load from exports on Solr and WARC resolving.
+     * @param parallel the number of webpages to work on ahead of delivery. 1 means no concurrency.
+     *                 Default is {@code export.expand.parallel.pages} from the properties.
+     * @return the SRequest adjusted with the provided value.
+     * @see #expandResources(Boolean)
+     */
+    public SRequest expandResourcesParallel(int parallel) {
+        this.expandResourcesParallel = parallel;
+        return this;
+    }
+
+    /**
+     * Take links to resources from the given fields in the Solr documents for webpages, e.g. {@code links_images},
+     * instead of extracting them from the WARC records. This avoids reading and parsing the webpages, but only
+     * resources of the types represented by the fields are resolved.
+     * @param linkFields 0 or more fields. If none are given, links are extracted from the WARC records.
+     *                   Default is {@code export.expand.link.fields} from the properties.
+     * @return the SRequest adjusted with the provided value.
+     * @see #expandResources(Boolean)
+     */
+    public SRequest expandResourcesLinkFields(String... linkFields) {
+        this.expandResourcesLinkFields = linkFields == null || linkFields.length == 0 ?
+                null :
+                Arrays.asList(linkFields);
+        return this;
+    }
+
     /**
      * @param ensureUnique if true, unique documents are guaranteed. This is only sane if expandResources is true.
      *                     Default is false.
@@ -217,7 +273,8 @@ public class SRequest {
     }
 
     /**
-     * @param maxUnique the maximum number of uniques to track when ensureUnique is true.
+     * @param maxUnique the maximum number of uniques to track when ensureUnique is true and
+     *                  {@link #uniqueHashing(boolean)} is false.
      *                  If the number of uniques exceeds this limit, an exception will be thrown.
      *                  Default is {@link #DEFAULT_MAX_UNIQUE}.
      * @return the SRequest adjusted with the provided value.
@@ -250,9 +307,10 @@ public class SRequest {
     }
 
     /**
-     * Using the hash of {@link #uniqueFields(String...)} instead of the field content for tracking uniqueness has
-     * far lower memory impact (factor 10+), but with the possibility of hash collisions.
-     * @param useHashing if true, hashing is used for determining uniqueness. Default is false.
+     * Using 128 bit hashes of {@link #uniqueFields(String...)} instead of the field content for tracking uniqueness
+     * has bounded memory impact, as hashes are spilled to disk when {@code export.unique.memory.bytes} is reached.
+     * The probability of hash collisions is negligible and {@link #maxUnique(Integer)} does not apply.
+     * @param useHashing if true, hashing is used for determining uniqueness. Default is true.
      * @return the SRequest adjusted with the provided value.
      * @see #ensureUnique(Boolean)
      * @see #uniqueFields(String...)
@@ -432,6 +490,23 @@ public class SRequest {
         return this;
     }
 
+    /**
+     * Storage locality sorting. This is a shorthand for {@code sort(LOCALITY_SORT)}.
+     * <p>
+     * Use case: Exports of many records, where the order of the records does not matter. The records are delivered
+     * in the order they are stored in the (W)ARC files, so each (W)ARC is read forward from start to end instead
+     * of jumping randomly between (W)ARC files. This turns random I/O into sequential I/O, which is a large
+     * speed up on spinning drives and network storage.
+     * <p>
+     * Note: {@link #deduplicateFields(String...)} takes precedence over locality.
+     * @return the SRequest adjusted with locality sorting.
+     * @throws IllegalStateException if sort has already been assigned.
+     * @see #LOCALITY_SORT
+     */
+    public SRequest localitySort() {
+        return sort(LOCALITY_SORT);
+    }
+
     /**
      * Note: {@link #timeProximityDeduplication(String, String...)} and {@link #deduplicateFields(String...)} takes
      * precedence over sort by prefixing with {@link #deduplicateFields}.
@@ -709,6 +784,21 @@ public class SRequest {
         return this;
     }
 
+    /**
+     * Request up to {@code prefetchPages} pages of documents from Solr in the background while the current page is
+     * being processed. This lets Solr round-trips overlap with processing of the documents, e.g. resolving WARC
+     * entries for exports, at the cost of holding up to {@code prefetchPages+1} pages in memory.
+     * <p>
+     * The background requests are stopped when the iterator or stream from the request is closed.
+     * @param prefetchPages the number of pages to request ahead. Default is 0 (no prefetching).
+     * @return the SRequest adjusted with the provided value.
+     * @see #pageSize(int)
+     */
+    public SRequest prefetchPages(int prefetchPages) {
+        this.prefetchPages = prefetchPages;
+        return this;
+    }
+
     /**
      * Disables paging through result sets, so that only {@link #pageSize(int)} results are processed for each query.
      * <p>
@@ -985,6 +1075,10 @@ public class SRequest {
             fl.add("content_type_norm");  // Needed to determine if a resource is a webpage
             fl.add("source_file_path");   // Needed to fetch the webpage for link extraction
             fl.add("source_file_offset"); // Needed to fetch the webpage for link extraction
+            if (expandResourcesLinkFields != null) {
+                fl.add("crawl_date");     // Needed for time proximity when links are taken from the index
+                fl.addAll(expandResourcesLinkFields);
+            }
         }
         if (expandResources && ensureUnique) {
             fl.add("id"); // id is shorter than sourcefile@offset in webarchive-discovery compatible indexes
@@ -1055,7 +1149,11 @@ public class SRequest {
                 queries(queries). // TODO: Does not really make sense. What do we do here?
                 filterQueries(copy(filterQueries)).
                 expandResourcesFilterQueries(copy(expandResourcesFilterQueries)).
+                expandResourcesParallel(expandResourcesParallel).
+                expandResourcesLinkFields(expandResourcesLinkFields == null ?
+                                                  null : expandResourcesLinkFields.toArray(new String[0])).
                 pageSize(pageSize).
+                prefetchPages(prefetchPages).
                 collection(collection).
                 shards(copy(shards)).
                 shardDivide(shardDivide);
@@ -1117,6 +1215,7 @@ public class SRequest {
                "fields=" + fields + ", " +
                "sort=" + sort + ", " +
                "pageSize=" + pageSize + ", " +
+               "prefetchPages=" + prefetchPages + ", " +
                "maxResults=" + maxResults + ", " +
                "deduplicateFields=" + deduplicateFields + ", " +
                "uniqueFields=" + uniqueFields + ", " +
@@ -1125,6 +1224,8 @@ public class SRequest {
                "uniqueHashing=" + useHashingForUnique + ", " +
                "expandResources=" + expandResources + ", " +
                "expandResourcesFilterQueries=" + limit(expandResourcesFilterQueries, 20) + ", " +
+               "expandResourcesParallel=" + expandResourcesParallel + ", " +
+               "expandResourcesLinkFields=" + expandResourcesLinkFields + ", " +
                "collection='" + collection + "'" + ", " +
                "shards=" + shards + ", " +
                "shardDivide=" + shardDivide + ", " +
@@ -0,0 +1,94 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.solr;
+
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.util.NamedList;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Rough estimation of the heap usage of Solr responses and other simple object structures, used for limiting the
+ * size of caches. The estimate follows Strings, Numbers, arrays, Collections, Maps (including SolrDocuments) and
+ * NamedLists. Other objects are counted with a fixed size.
+ * <p>
+ * The estimate is meant for comparing responses with each other and will not match the real heap usage precisely.
+ */
+public class SizeEstimator {
+    private static final long OBJECT_BYTES = 16;
+    private static final long REFERENCE_BYTES = 8;
+    private static final int MAX_DEPTH = 20; // Guard against cyclic structures
+
+    /**
+     * @param o any object, including null.
+     * @return the estimated number of bytes on the heap used by the object and the objects it references.
+     */
+    public static long estimate(Object o) {
+        return estimate(o, 0);
+    }
+
+    private static long estimate(Object o, int depth) {
+        if (o == null) {
+            return 0;
+        }
+        if (depth > MAX_DEPTH) {
+            return OBJECT_BYTES;
+        }
+        if (o instanceof CharSequence) {
+            return OBJECT_BYTES + 24 + ((CharSequence) o).length(); // Latin-1 compact strings are most common
+        }
+        if (o instanceof Number || o instanceof Boolean || o instanceof Character) {
+            return OBJECT_BYTES + 8;
+        }
+        if (o instanceof QueryResponse) {
+            return OBJECT_BYTES + estimate(((QueryResponse) o).getResponse(), depth+1);
+        }
+        if (o instanceof byte[]) {
+            return OBJECT_BYTES + ((byte[]) o).length;
+        }
+        if (o instanceof Object[]) {
+            long bytes = OBJECT_BYTES;
+            for (Object element: (Object[]) o) {
+                bytes += REFERENCE_BYTES + estimate(element, depth+1);
+            }
+            return bytes;
+        }
+        if (o instanceof NamedList) {
+            NamedList<?> list = (NamedList<?>) o;
+            long bytes = OBJECT_BYTES;
+            for (int i = 0 ; i < list.size() ; i++) {
+                bytes += 2*REFERENCE_BYTES + estimate(list.getName(i), depth+1) + estimate(list.getVal(i), depth+1);
+            }
+            return bytes;
+        }
+        if (o instanceof Map) {
+            long bytes = OBJECT_BYTES;
+            for (Map.Entry<?, ?> entry: ((Map<?, ?>) o).entrySet()) {
+                bytes += OBJECT_BYTES + 2*REFERENCE_BYTES +
+                         estimate(entry.getKey(), depth+1) + estimate(entry.getValue(), depth+1);
+            }
+            return bytes;
+        }
+        if (o instanceof Collection) {
+            long bytes = OBJECT_BYTES;
+            for (Object element: (Collection<?>) o) {
+                bytes += REFERENCE_BYTES + estimate(element, depth+1);
+            }
+            return bytes;
+        }
+        return OBJECT_BYTES + REFERENCE_BYTES;
+    }
+}
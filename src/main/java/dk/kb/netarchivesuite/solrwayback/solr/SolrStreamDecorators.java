@@ -17,19 +17,24 @@ package dk.kb.netarchivesuite.solrwayback.solr;
 import dk.kb.netarchivesuite.solrwayback.parsers.ArcParserFileResolver;
 import dk.kb.netarchivesuite.solrwayback.parsers.HtmlParserUrlRewriter;
 import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
+import dk.kb.netarchivesuite.solrwayback.util.DateUtils;
 import org.apache.solr.common.SolrDocument;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Date;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
@@ -130,11 +135,15 @@ public class SolrStreamDecorators {
      * those nearest in time to the originating page.
      * Plain {@code <a href="..." ...>} links are not part of this.
      * The graph traversal is only 1 level deep.
+     * <p>
+     * The links are extracted from the WARC record for the page, unless {@code linkFields} are given, in which case
+     * they are taken from those fields in the page document, e.g. {@code links_images}.
      */
     public static class HTMLResourceExpander implements Function<SolrDocument, Stream<SolrDocument>> {
         private final String fields; // Comma separated
         private final String[] expandFilterQueries;
         private final boolean returnInput;
+        private final List<String> linkFields;
 
         /**
          * @param fields comma separated list of fields to request for resources.
@@ -142,8 +151,22 @@ public class SolrStreamDecorators {
          * @param returnInput if true, the input document in {@link #apply(SolrDocument)} will always be returned.
          */
         public HTMLResourceExpander(String fields, String[] expandFilterQueries, boolean returnInput) {
+            this(fields, expandFilterQueries, null, returnInput);
+        }
+
+        /**
+         * @param fields comma separated list of fields to request for resources.
+         * @param expandFilterQueries 0 or more filters that are added when searching for resources.
+         * @param linkFields if not null or empty, resource links are taken from these fields in the input document
+         *                   instead of being extracted from the WARC record. The input documents must contain
+         *                   {@code crawl_date} as well as the {@code linkFields}.
+         * @param returnInput if true, the input document in {@link #apply(SolrDocument)} will always be returned.
+         */
+        public HTMLResourceExpander(
+                String fields, String[] expandFilterQueries, List<String> linkFields, boolean returnInput) {
             this.fields = fields;
             this.expandFilterQueries = expandFilterQueries;
+            this.linkFields = linkFields == null || linkFields.isEmpty() ? null : linkFields;
             this.returnInput = returnInput;
         }
 
@@ -153,18 +176,54 @@ public class SolrStreamDecorators {
                 if (!"html".equals(doc.getFieldValue("content_type_norm"))) {
                     return returnInput ? Stream.of(doc) : Stream.of();
                 }
-                String sourceFile = doc.getFieldValue("source_file_path").toString();
-                long offset = Long.parseLong(doc.getFieldValue("source_file_offset").toString());
-                ArcEntry arc= ArcParserFileResolver.getArcEntry(sourceFile, offset);
-                HashSet<String> resources = HtmlParserUrlRewriter.getResourceLinksForHtmlFromArc(arc);
-                Stream<SolrDocument> resourceStream =
-                        NetarchiveSolrClient.getInstance().findNearestDocuments(
-                                fields, arc.getCrawlDate(), resources.stream(), expandFilterQueries);
+                Stream<SolrDocument> resourceStream = findResources(doc);
                 return returnInput ? Stream.concat(Stream.of(doc), resourceStream) : resourceStream;
             } catch (Exception e) {
                 log.warn("Exception getting resources for SolrDocument '" + doc + "'", e);
                 return returnInput ? Stream.of(doc) : Stream.of();
             }
         }
+
+        /**
+         * Non-lazy version of {@link #apply(SolrDocument)}, where all resources are resolved before returning.
+         * Used for resolving resources for multiple pages concurrently.
+         * @param doc any SolrDocument. Only {@code content_type_norm:html} documents are expanded.
+         * @return the input document, if {@code returnInput} is true, followed by the resources.
+         */
+        public List<SolrDocument> resolve(SolrDocument doc) {
+            try {
+                return apply(doc).collect(Collectors.toList());
+            } catch (Exception e) {
+                log.warn("Exception resolving resources for SolrDocument '" + doc + "'", e);
+                return returnInput ? Collections.singletonList(doc) : Collections.emptyList();
+            }
+        }
+
+        private Stream<SolrDocument> findResources(SolrDocument doc) throws Exception {
+            Set<String> resources;
+            String crawlDate;
+            if (linkFields == null) {
+                String sourceFile = doc.getFieldValue("source_file_path").toString();
+                long offset = Long.parseLong(doc.getFieldValue("source_file_offset").toString());
+                ArcEntry arc = ArcParserFileResolver.getArcEntry(sourceFile, offset);
+                resources = HtmlParserUrlRewriter.getResourceLinksForHtmlFromArc(arc);
+                crawlDate = arc.getCrawlDate();
+            } else {
+                resources = new LinkedHashSet<>();
+                for (String linkField: linkFields) {
+                    Collection<Object> links = doc.getFieldValues(linkField);
+                    if (links != null) {
+                        links.forEach(link -> resources.add(link.toString()));
+                    }
+                }
+                Object date = doc.getFieldValue("crawl_date");
+                crawlDate = date instanceof Date ? DateUtils.getSolrDate((Date) date) : date.toString();
+            }
+            if (resources.isEmpty()) {
+                return Stream.of();
+            }
+            return NetarchiveSolrClient.getInstance().findNearestDocuments(
+                    fields, crawlDate, resources.stream(), expandFilterQueries);
+        }
     }
 }
@@ -16,12 +16,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.NoSuchElementException;
 import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
@@ -121,6 +130,22 @@ public class SolrStreamDirect implements Iterable<SolrDocument> {
     static final AtomicLong solrRequests = new AtomicLong(0);
     static final AtomicLong totalDelivered = new AtomicLong(0);
 
+    /**
+     * Shared executor for page prefetching, see {@link SRequest#prefetchPages(int)}.
+     * <p>
+     * The thread pool size is unbounded as each prefetching stream has at most 1 active request at a time.
+     */
+    private static final Executor prefetchExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        @SuppressWarnings("NullableProblems")
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "SolrStreamPrefetch_" + threadCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
     private final String collection;           // The collection (typically the default collection) to query against
     private final SRequest request;
     private final SolrQuery originalSolrQuery; // The original SolrQuery from the SRequest. Never modify this!
@@ -135,6 +160,9 @@ public class SolrStreamDirect implements Iterable<SolrDocument> {
 
     private SolrDocumentList undelivered = null; // Leftover form previous call to keep deliveries below pageSize
 
+    // Stops background page prefetching when set to false
+    private final AtomicBoolean continueProcessing;
+
 
     /**
      * The default SolrClient is simple and non-caching as streaming exports typically makes unique requests.
@@ -154,7 +182,8 @@ public class SolrStreamDirect implements Iterable<SolrDocument> {
      */
     public static Stream<SolrDocument> stream(SRequest request) throws IllegalArgumentException {
         SolrStreamDirect base = new SolrStreamDirect(request);
-        return SolrStreamFactory.addPostProcessors(base.stream(), base.request, String.join(",", base.adjustedFields));
+        return SolrStreamFactory.addPostProcessors(base.stream(), base.request, String.join(",", base.adjustedFields))
+                .onClose(() -> base.continueProcessing.set(false));
     }
 
     /**
@@ -169,7 +198,10 @@ public class SolrStreamDirect implements Iterable<SolrDocument> {
      */
     public static Iterator<SolrDocument> iterate(SRequest request) throws IllegalArgumentException {
         SolrStreamDirect base = new SolrStreamDirect(request);
-        return SolrStreamFactory.addPostProcessors(base.iterator(), base.request, String.join(",", base.adjustedFields));
+        Iterator<SolrDocument> docs = SolrStreamFactory.addPostProcessors(
+                base.iterator(), base.request, String.join(",", base.adjustedFields));
+        // Ensure that close() on the iterator stops background prefetching
+        return request.prefetchPages > 0 ? CollectionUtils.CloseableIterator.of(docs, base.continueProcessing) : docs;
     }
 
     /**
@@ -181,6 +213,20 @@ public class SolrStreamDirect implements Iterable<SolrDocument> {
      * @see SolrStreamFactory#addPostProcessors
      */
     protected SolrStreamDirect(SRequest request) {
+        this(request, new AtomicBoolean(true));
+    }
+
+    /**
+     * Generic stream where all parts except {@link SRequest#query(String)} and {@link SRequest#fields(String...)}
+     * are optional.
+     * <p>
+     * Note: This is the "raw" stream where post-processors such as ensure uniqueness and expand resources are not added.
+     * @param request stream setup.
+     * @param continueProcessing shared state. If set to false, background prefetching of pages is stopped.
+     * @see SolrStreamFactory#addPostProcessors
+     */
+    SolrStreamDirect(SRequest request, AtomicBoolean continueProcessing) {
+        this.continueProcessing = continueProcessing;
         if (!request.isSingleCollection()) {
             throw new IllegalArgumentException("Request cannot be evaluated against a single collection as shards " +
                                                "parameter specifies more than one: " + request);
@@ -272,6 +318,9 @@ public class SolrStreamDirect implements Iterable<SolrDocument> {
      */
     @Override
     public Iterator<SolrDocument> iterator() {
+        if (request.prefetchPages > 0) {
+            return prefetchingIterator();
+        }
         return new Iterator<SolrDocument>() {
             SolrDocumentList list = null;
             int index = 0;
@@ -304,6 +353,73 @@ public class SolrStreamDirect implements Iterable<SolrDocument> {
         };
     }
 
+    /**
+     * Iterator that keeps up to {@link SRequest#prefetchPages} requests for pages ahead of the consumer.
+     * <p>
+     * The requests are chained so that they are executed one at a time and in order, as each request depends on the
+     * paging state from the previous one. Exceptions are delivered to the consumer when it reaches the failed page.
+     * When {@link #continueProcessing} is set to false, no further requests are started.
+     * @return an iterator of SolrDocuments.
+     */
+    private Iterator<SolrDocument> prefetchingIterator() {
+        return new Iterator<SolrDocument>() {
+            final Deque<CompletableFuture<SolrDocumentList>> pending = new ArrayDeque<>();
+            boolean finished = false;
+            SolrDocumentList list = null;
+            int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (!finished && (list == null || index == list.size())) {
+                    if (!continueProcessing.get()) {
+                        finished = true;
+                        break;
+                    }
+                    if (pending.isEmpty()) {
+                        pending.add(CompletableFuture.supplyAsync(this::nextPage, prefetchExecutor));
+                    }
+                    CompletableFuture<SolrDocumentList> current = pending.poll();
+                    while (pending.size() < request.prefetchPages) {
+                        CompletableFuture<SolrDocumentList> last = pending.isEmpty() ? current : pending.getLast();
+                        pending.add(last.thenApplyAsync(
+                                previous -> previous == null ? null : nextPage(), prefetchExecutor));
+                    }
+                    try {
+                        list = current.join();
+                    } catch (CompletionException e) {
+                        finished = true;
+                        throw new RuntimeException("Exception requesting next batch", e.getCause());
+                    }
+                    index = 0;
+                    finished = list == null;
+                }
+                return !finished;
+            }
+
+            @Override
+            public SolrDocument next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("No more elements");
+                }
+                return list.get(index++);
+            }
+
+            /**
+             * @return the next page of documents or null if there are no more documents or processing is stopped.
+             */
+            private SolrDocumentList nextPage() {
+                if (!continueProcessing.get() || hasFinished()) {
+                    return null;
+                }
+                try {
+                    return nextDocuments();
+                } catch (SolrServerException | IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
     /**
      * @param defaultSolrClient the SolrClient that will be used if no SolrClient is provided for the calls.
      */
@@ -14,7 +14,9 @@
  */
 package dk.kb.netarchivesuite.solrwayback.solr;
 
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
 import dk.kb.netarchivesuite.solrwayback.util.CollectionUtils;
+import dk.kb.netarchivesuite.solrwayback.util.Processing;
 import dk.kb.netarchivesuite.solrwayback.util.SolrUtils;
 import dk.kb.netarchivesuite.solrwayback.util.ThroughputTracker;
 import org.apache.solr.common.SolrDocument;
@@ -23,9 +25,16 @@ import org.slf4j.LoggerFactory;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Handles {@link SolrDocument} stream creation with decorators defined in {@link SRequest}s.
@@ -38,6 +47,19 @@ public class SolrStreamFactory {
     private static final Logger log = LoggerFactory.getLogger(SolrStreamFactory.class);
     private static final Logger exportLog = LoggerFactory.getLogger("kb.dk.export");
 
+    // Resource expansion for exports is kept separate from the shared processing threads used by searches and
+    // playback, so that long running exports do not starve those
+    private static final ExecutorService expandExecutor = Executors.newFixedThreadPool(
+            Math.max(1, PropertiesLoader.EXPAND_RESOURCES_THREADS), new ThreadFactory() {
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ExpandResources_" + threadCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
     /**
      * Depending on the backing Solr (Cloud) topology, the collection and the {@link SRequest#shardDivide},
      * {@link SRequest#shardDivideAutoMinShards} and {@link SRequest#shardDivideAutoMinHits}, either standard
@@ -181,12 +203,26 @@ public class SolrStreamFactory {
         }
 
         if (request.expandResources) {
-            docs = docs.flatMap(new SolrStreamDecorators.HTMLResourceExpander(
-                    adjustedFields, request.getExpandResourcesFilterQueries(), true));
+            SolrStreamDecorators.HTMLResourceExpander expander = new SolrStreamDecorators.HTMLResourceExpander(
+                    adjustedFields, request.getExpandResourcesFilterQueries(), request.expandResourcesLinkFields, true);
+            if (request.expandResourcesParallel > 1) {
+                Stream<SolrDocument> pages = docs;
+                CollectionUtils.WindowedMappingIterator<SolrDocument, List<SolrDocument>> expanded =
+                        Processing.orderedMap(pages.iterator(), expander::resolve, request.expandResourcesParallel,
+                                              expandExecutor);
+                docs = StreamSupport.stream(Spliterators.spliteratorUnknownSize(expanded, Spliterator.ORDERED), false)
+                        .flatMap(List::stream)
+                        .onClose(expanded::close)
+                        .onClose(pages::close);
+            } else {
+                docs = docs.flatMap(expander);
+            }
         }
 
         if (request.ensureUnique) {
-            docs = docs.filter(new UniqueFilter(request.useHashingForUnique, request.maxUnique, request.uniqueFields));
+            UniqueFilter uniqueFilter = new UniqueFilter(
+                    request.useHashingForUnique, request.maxUnique, request.uniqueFields);
+            docs = docs.filter(uniqueFilter).onClose(uniqueFilter::close);
         }
 
         // Reduce documents to contain requested fields only
@@ -224,14 +260,26 @@ public class SolrStreamFactory {
                     docs, new SolrStreamDecorators.OrderedDeduplicator(request.deduplicateFields));
         }
 
+        // Pending parallel expansions must be stopped when the iterator is closed
+        CollectionUtils.WindowedMappingIterator<SolrDocument, List<SolrDocument>> expanded = null;
         if (request.expandResources) {
-            docs = CollectionUtils.ExpandingIterator.ofStream(docs, new SolrStreamDecorators.HTMLResourceExpander(
-                    adjustedFields, request.getExpandResourcesFilterQueries(), true));
+            SolrStreamDecorators.HTMLResourceExpander expander = new SolrStreamDecorators.HTMLResourceExpander(
+                    adjustedFields, request.getExpandResourcesFilterQueries(), request.expandResourcesLinkFields, true);
+            if (request.expandResourcesParallel > 1) {
+                expanded = Processing.orderedMap(docs, expander::resolve, request.expandResourcesParallel,
+                                                 expandExecutor);
+                docs = StreamSupport.stream(Spliterators.spliteratorUnknownSize(expanded, Spliterator.ORDERED), false)
+                        .flatMap(List::stream)
+                        .iterator();
+            } else {
+                docs = CollectionUtils.ExpandingIterator.ofStream(docs, expander);
+            }
         }
 
+        UniqueFilter uniqueFilter = null;
         if (request.ensureUnique) {
-            docs = CollectionUtils.ReducingIterator.of(
-                    docs, new UniqueFilter(request.useHashingForUnique, request.maxUnique, request.uniqueFields));
+            uniqueFilter = new UniqueFilter(request.useHashingForUnique, request.maxUnique, request.uniqueFields);
+            docs = CollectionUtils.ReducingIterator.of(docs, uniqueFilter);
         }
 
         // Reduce documents to contain requested fields only
@@ -247,10 +295,27 @@ public class SolrStreamFactory {
                 .logger(exportLog);
         docs = CollectionUtils.ReducingIterator.of(docs, tracker::test);
 
+        final CollectionUtils.WindowedMappingIterator<SolrDocument, List<SolrDocument>> expandedFinal = expanded;
+        final UniqueFilter uniqueFilterFinal = uniqueFilter;
         docs = new CollectionUtils.CloseableIterator<SolrDocument>(docs, new AtomicBoolean(true), request.maxResults) {
+            @Override
+            public SolrDocument next() {
+                SolrDocument doc = super.next();
+                if (expandedFinal != null && !getContinueProcessing().get()) { // maxResults reached
+                    expandedFinal.close();
+                }
+                return doc;
+            }
+
             @Override
             public void close() {
+                if (expandedFinal != null) {
+                    expandedFinal.close();
+                }
                 tracker.close();
+                if (uniqueFilterFinal != null) {
+                    uniqueFilterFinal.close();
+                }
                 super.close();
             }
         };
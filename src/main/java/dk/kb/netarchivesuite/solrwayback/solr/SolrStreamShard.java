@@ -141,7 +141,7 @@ public class SolrStreamShard {
         // TODO: Consider a different pageSize for shardDivide requests
         List<Iterator<SolrDocument>> documentIterators = shards.stream()
                 .map(shard -> base.deepCopy().collection(shard.collectionID).shards(shard.shardID))
-                .map(SolrStreamDirect::new)
+                .map(shardRequest -> new SolrStreamDirect(shardRequest, continueProcessing))
                 // Basic "raw results"
                 .map(SolrStreamDirect::iterator)
                 // Limit hammering on the Solr Cloud
@@ -18,73 +18,94 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 
 /**
  * Time oriented cache where oldest entry can be evicted either due to not being accessed in a given time or the cache
  * being full. The cache can share size with other TimeCaches when checking for fullness.
+ * <p>
+ * Fullness is measured both as number of entries and as the estimated number of bytes held by the values, as
+ * cached Solr responses vary from a few bytes to many megabytes. The cache is backed by a {@link ConcurrentHashMap}
+ * so lookups does not block each other. When the cache is full, a single thread evicts the least recently used
+ * entries across all linked caches until the cache is 90% full. Expired entries are removed at regular intervals,
+ * independent of how often new entries are added.
  */
 public class TimeCache<O> implements Map<String, O> {
     private static final Logger log = LoggerFactory.getLogger(TimeCache.class);
 
-    private final Map<String, TimeEntry<O>> inner;
-    private final int maxCapacity;
+    // Rough overhead of an entry in the map, excluding key and value
+    private static final long ENTRY_OVERHEAD_BYTES = 100;
+    // Base for access times in recency values, see TimeEntry#recency
+    private static final long RECENCY_EPOCH_MS = System.currentTimeMillis() - 1;
+
+    private final Map<String, TimeEntry<O>> inner = new ConcurrentHashMap<>();
+    private final Budget budget;
     private final long maxAgeMS;
-    private final AtomicLong calls = new AtomicLong(0);
-    private final AtomicLong hits = new AtomicLong(0);
+    private final long sweepIntervalMS;
+    private final ToLongFunction<Object> weigher;
+    // LongAdders as the counters are updated on every lookup from all threads
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
 
-    private final Set<TimeCache<?>> linkedCaches = new HashSet<>();
+    // Values currently being created by a supplier, used for letting concurrent callers share the result
+    private final Map<String, CompletableFuture<O>> inFlight = new ConcurrentHashMap<>();
 
     /**
      * @param maxCapacity the maximum numbers of entries to hold in the cache.
      * @param maxAgeMS    the maximum number og milliseconds that an object can exist in the cache.
      */
     public TimeCache(int maxCapacity, long maxAgeMS) {
+        this(maxCapacity, Long.MAX_VALUE, maxAgeMS);
+    }
+
+    /**
+     * @param maxCapacity the maximum numbers of entries to hold in the cache.
+     * @param maxBytes    the maximum number of bytes, as estimated by {@link SizeEstimator}, to hold in the cache.
+     * @param maxAgeMS    the maximum number og milliseconds that an object can exist in the cache.
+     */
+    public TimeCache(int maxCapacity, long maxBytes, long maxAgeMS) {
+        this(new Budget(maxCapacity, maxBytes), maxAgeMS, SizeEstimator::estimate);
+    }
+
+    private TimeCache(Budget budget, long maxAgeMS, ToLongFunction<Object> weigher) {
         super();
-        this.maxCapacity = maxCapacity;
+        this.budget = budget;
         this.maxAgeMS = maxAgeMS;
-        this.inner = Collections.synchronizedMap(new LinkedHashMap<String, TimeEntry<O>>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<String, TimeEntry<O>> eldest) {
-                int totalSize = size() + linkedCaches.stream().mapToInt(TimeCache::size).sum();
-                return totalSize > maxCapacity || eldest.getValue().isTooOld();
-            }
-        });
+        this.sweepIntervalMS = Math.max(1000, Math.min(60000, maxAgeMS / 10));
+        this.weigher = weigher;
+        budget.members.add(this);
     }
 
     /**
      * Create a new cache, typically with another type, that is linked to this cache.
      * Linked cache has shared capacity.
      * @param <T> the type of the cache.
-     * @return a new cache with limits (max count and age) shared with this cache.
+     * @return a new cache with limits (max count, max bytes and age) shared with this cache.
      */
     public <T> TimeCache<T> createLinked() {
-        TimeCache<T> other = new TimeCache<T>(maxCapacity, maxAgeMS);
-        other.link(this);
-        return other;
-    }
-    
-    /**
-     * Link this cache to the other cache. maxCapacity must be equal and current capacity will be the sum.
-     * More than 2 caches can be linked.
-     * @param other another cache to link to.
-     */
-    private void link(TimeCache<?> other) {
-        if (linkedCaches.contains(other)) {
-            return; // Already linked. Needed to avoid endless loop
-        }
-        linkedCaches.add(other);
-        linkedCaches.forEach(c -> link(this));
+        return new TimeCache<T>(budget, maxAgeMS, weigher);
     }
 
     /**
      * Get the object with the given key from the cache. If the object is not available, attempt to create a new one
      * using the supplier. If a new object is created, add it to the cache and return it.
      *
+     * If another thread is already creating the object for the same key, the call waits for that thread and returns
+     * the same object, so that concurrent requests for the same key only calls the supplier once. If the supplier
+     * throws an exception, the exception is thrown to all waiting callers.
+     *
      * If the key is null, no caching is attempted and the supplier is called directly.
      * @param key      the key for the object to retrieve.
      * @param supplier used for creating the object if it is not available.
@@ -96,13 +117,58 @@ public class TimeCache<O> implements Map<String, O> {
             return supplier.get();
         }
         O o = get(key);
-        if (o == null) {
-            o = supplier.get();
-            if (o != null) {
-                put(key, o);
+        if (o != null) {
+            return o;
+        }
+
+        CompletableFuture<O> created = new CompletableFuture<>();
+        CompletableFuture<O> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            coalesced.increment();
+            return waitFor(existing);
+        }
+        try {
+            // Another thread might have finished creating the value between the lookup and the registration
+            o = peek(key);
+            if (o == null) {
+                o = supplier.get();
+                if (o != null) {
+                    put(key, o);
+                }
+            }
+            created.complete(o);
+            return o;
+        } catch (RuntimeException | Error e) {
+            created.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, created);
+        }
+    }
+
+    /**
+     * Wait for the value from another thread and unwrap any exception thrown by its supplier.
+     */
+    private O waitFor(CompletableFuture<O> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
             }
+            throw e;
         }
-        return o;
+    }
+
+    /**
+     * Lookup without updating statistics or access time.
+     */
+    private O peek(String key) {
+        TimeEntry<O> o = inner.get(key);
+        return o == null || o.isTooOld() ? null : o.getValue();
     }
 
     @Override
@@ -110,17 +176,21 @@ public class TimeCache<O> implements Map<String, O> {
         if (!(key instanceof String)) {
             return null;
         }
-        calls.incrementAndGet();
+        calls.increment();
+        final long now = System.currentTimeMillis();
+        if (now >= budget.nextSweepMS) {
+            enforceLimits(true);
+        }
         TimeEntry<O> o = inner.get(key);
         if (o == null) {
             return null;
         }
-        if (o.isTooOld()) {
-            inner.remove(key);
+        if (o.isTooOld(now)) {
+            removeEntry((String)key, o);
             return null;
         }
-        hits.incrementAndGet();
-        inner.put((String)key, o);
+        hits.increment();
+        o.touch(now);
         return o.getValue();
     }
 
@@ -133,14 +203,41 @@ public class TimeCache<O> implements Map<String, O> {
      * The number of times a value was requested from the cache.
      */
     public long getCalls() {
-        return calls.get();
+        return calls.sum();
     }
 
     /**
      * The number of hits (the value was available) in the cache.
      */
     public long getHits() {
-        return hits.get();
+        return hits.sum();
+    }
+
+    /**
+     * The number of times a value was not in the cache, but was being created by another thread and the call
+     * waited for that value instead of calling its own supplier.
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * The number of entries removed from this and linked caches because the caches were full.
+     * Expired entries are not counted.
+     */
+    public long getEvictions() {
+        return budget.evictions.get();
+    }
+
+    /**
+     * The estimated number of bytes held by this and linked caches.
+     */
+    public long getBytes() {
+        return budget.bytes.get();
+    }
+
+    public long getMaxBytes() {
+        return budget.maxBytes;
     }
 
     @Override
@@ -149,7 +246,7 @@ public class TimeCache<O> implements Map<String, O> {
     }
 
     public int capacity() {
-        return maxCapacity;
+        return budget.maxEntries;
     }
 
     public long getMaxAgeMS() {
@@ -168,36 +265,57 @@ public class TimeCache<O> implements Map<String, O> {
 
     @Override
     public boolean containsValue(Object value) {
-        synchronized (inner) {
-            return inner.values().stream()
-                    .map(TimeEntry::getValue)
-                    .anyMatch(value::equals);
-        }
+        return inner.values().stream()
+                .map(TimeEntry::getValue)
+                .anyMatch(value::equals);
     }
 
     @Override
     public O put(String key, O value) {
-        TimeEntry<O> entry = new TimeEntry<>(value);
-        return Optional.ofNullable(inner.put(key, entry))
-                .map(TimeEntry::getValue)
-                .orElse(null);
+        TimeEntry<O> entry = new TimeEntry<>(
+                value, ENTRY_OVERHEAD_BYTES + 2L*key.length() + weigher.applyAsLong(value), budget.insertions.incrementAndGet());
+        if (entry.isTooOld()) { // Negative max age
+            return remove(key);
+        }
+        TimeEntry<O> old = inner.put(key, entry);
+        budget.add(entry, old);
+        if (old == null) {
+            log.trace("Added entry with estimated size {} bytes, cache is now {}", entry.weight, budget);
+        }
+        enforceLimits(false);
+        return old == null ? null : old.getValue();
     }
 
     @Override
     public O remove(Object key) {
-        return Optional.ofNullable(inner.remove(key))
-                .map(TimeEntry::getValue)
-                .orElse(null);
+        TimeEntry<O> old = inner.remove(key);
+        if (old == null) {
+            return null;
+        }
+        budget.release(old);
+        return old.getValue();
+    }
+
+    /**
+     * Remove the given entry if it is still mapped from the key.
+     * @return true if the entry was removed.
+     */
+    private boolean removeEntry(String key, TimeEntry<?> entry) {
+        if (inner.remove(key, entry)) {
+            budget.release(entry);
+            return true;
+        }
+        return false;
     }
 
     @Override
     public void putAll(Map<? extends String, ? extends O> m) {
-        m.forEach((key, value) -> inner.put(key, new TimeEntry<>(value)));
+        m.forEach(this::put);
     }
 
     @Override
     public void clear() {
-        inner.clear();
+        inner.forEach(this::removeEntry);
     }
 
     /**
@@ -205,9 +323,7 @@ public class TimeCache<O> implements Map<String, O> {
      */
     @Override
     public Set<String> keySet() {
-        synchronized (inner) {
-            return new HashSet<>(inner.keySet());
-        }
+        return new HashSet<>(inner.keySet());
     }
 
     /**
@@ -215,11 +331,9 @@ public class TimeCache<O> implements Map<String, O> {
      */
     @Override
     public Collection<O> values() {
-        synchronized (inner) {
-            return inner.values().stream()
-                    .map(TimeEntry::getValue)
-                    .collect(Collectors.toList());
-        }
+        return inner.values().stream()
+                .map(TimeEntry::getValue)
+                .collect(Collectors.toList());
     }
 
     /**
@@ -227,33 +341,191 @@ public class TimeCache<O> implements Map<String, O> {
      */
     @Override
     public Set<Entry<String, O>> entrySet() {
-        synchronized (inner) {
-            return inner.entrySet().stream()
-                    .map(e -> new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue().getValue()))
-                    .collect(Collectors.toSet());
+        return inner.entrySet().stream()
+                .map(e -> new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue().getValue()))
+                .collect(Collectors.toSet());
+    }
+
+    /* Eviction */
+
+    /**
+     * Remove expired entries if it is time for a sweep and evict the least recently used entries if the linked caches
+     * are full. Only one thread performs eviction at a time. Other threads continue unhindered while this happens,
+     * so the caches can temporarily be slightly larger than the limits.
+     * @param sweep if true, remove expired entries in all linked caches.
+     */
+    private void enforceLimits(boolean sweep) {
+        while ((sweep || budget.isFull()) && budget.evicting.compareAndSet(false, true)) {
+            try {
+                if (sweep) {
+                    budget.nextSweepMS = System.currentTimeMillis() + sweepIntervalMS;
+                    budget.members.forEach(TimeCache::removeExpired);
+                    sweep = false;
+                }
+                if (budget.isFull()) {
+                    evictLeastRecentlyUsed();
+                }
+            } finally {
+                budget.evicting.set(false);
+            }
+        }
+    }
+
+    private void removeExpired() {
+        inner.forEach((key, entry) -> {
+            if (entry.isTooOld()) {
+                removeEntry(key, entry);
+            }
+        });
+    }
+
+    /**
+     * Evict the least recently used entries from this and linked caches until they are at 90% of the limits.
+     * <p>
+     * The recency of all entries is collected as primitive longs and sorted to find the cutoff for eviction.
+     * The number of entries to evict is estimated from the average entry size if the byte limit is exceeded, so
+     * more than one round is needed if the evicted entries are smaller than average.
+     */
+    private void evictLeastRecentlyUsed() {
+        final int targetEntries = budget.maxEntries - budget.maxEntries/10;
+        final long targetBytes = budget.maxBytes - budget.maxBytes/10;
+        long evicted = 0;
+        while (budget.entries.get() > targetEntries || budget.bytes.get() > targetBytes) {
+            long[] recencies = budget.members.stream()
+                    .flatMapToLong(cache -> cache.inner.values().stream().mapToLong(TimeEntry::recency))
+                    .toArray();
+            if (recencies.length == 0) {
+                break;
+            }
+            int count = Math.max(1, budget.entries.get() - targetEntries);
+            long excessBytes = budget.bytes.get() - targetBytes;
+            if (excessBytes > 0) {
+                long averageBytes = Math.max(1, budget.bytes.get() / Math.max(1, budget.entries.get()));
+                count = (int) Math.max(count, Math.min(recencies.length, excessBytes / averageBytes + 1));
+            }
+            Arrays.sort(recencies);
+            final long cutoff = recencies[Math.min(count, recencies.length) - 1];
+            for (TimeCache<?> cache: budget.members) {
+                evicted += cache.removeUpTo(cutoff);
+            }
+        }
+        budget.evictions.addAndGet(evicted);
+        log.debug("Evicted {} entries from TimeCache, state is now {}", evicted, budget);
+    }
+
+    /**
+     * Remove all entries with {@link TimeEntry#recency()} at or below the cutoff.
+     * @return the number of removed entries.
+     */
+    private int removeUpTo(long cutoff) {
+        int removed = 0;
+        for (Map.Entry<String, TimeEntry<O>> entry: inner.entrySet()) {
+            if (entry.getValue().recency() <= cutoff && removeEntry(entry.getKey(), entry.getValue())) {
+                removed++;
+            }
         }
+        return removed;
     }
 
-    /* Helper class */
+    /* Helper classes */
 
     public class TimeEntry<O> {
         private final O value;
-        private final Instant created = Instant.now();
+        private final long created = System.currentTimeMillis();
+        private final long weight;
+        private final long order; // Insertion order, used for ordering entries with the same access time
+        private volatile long lastAccess = created;
 
-        public TimeEntry(O o) {
+        public TimeEntry(O o, long weight, long order) {
             this.value = o;
+            this.weight = weight;
+            this.order = order;
         }
 
         public Instant getCreated() {
-            return created;
+            return Instant.ofEpochMilli(created);
         }
 
         public O getValue() {
             return value;
         }
 
+        /**
+         * @return the estimated number of bytes held by the entry.
+         */
+        public long getWeight() {
+            return weight;
+        }
+
         public boolean isTooOld() {
-            return getCreated().plus(maxAgeMS, ChronoUnit.MILLIS).isBefore(Instant.now());
+            return isTooOld(System.currentTimeMillis());
+        }
+
+        boolean isTooOld(long now) {
+            return now - created > maxAgeMS;
+        }
+
+        /**
+         * Update the access time. The access time has millisecond granularity, so popular entries are only
+         * written to once per millisecond.
+         */
+        void touch(long now) {
+            if (lastAccess != now) {
+                lastAccess = now;
+            }
+        }
+
+        /**
+         * @return the access time combined with the insertion order, so that entries can be ordered by recency
+         *         using a single long. The lower 24 bits of the insertion order are used for ordering entries with
+         *         the same access time.
+         */
+        long recency() {
+            return ((lastAccess - RECENCY_EPOCH_MS) << 24) | (order & 0xFFFFFF);
+        }
+    }
+
+    /**
+     * Limits and usage shared between linked caches.
+     */
+    private static class Budget {
+        final int maxEntries;
+        final long maxBytes;
+        final AtomicInteger entries = new AtomicInteger(0);
+        final AtomicLong bytes = new AtomicLong(0);
+        final AtomicLong evictions = new AtomicLong(0);
+        final AtomicLong insertions = new AtomicLong(0);
+        final AtomicBoolean evicting = new AtomicBoolean(false);
+        final List<TimeCache<?>> members = new CopyOnWriteArrayList<>();
+        volatile long nextSweepMS = 0;
+
+        Budget(int maxEntries, long maxBytes) {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+        }
+
+        void add(TimeCache<?>.TimeEntry<?> entry, TimeCache<?>.TimeEntry<?> replaced) {
+            if (replaced == null) {
+                entries.incrementAndGet();
+                bytes.addAndGet(entry.weight);
+            } else {
+                bytes.addAndGet(entry.weight - replaced.weight);
+            }
+        }
+
+        void release(TimeCache<?>.TimeEntry<?> entry) {
+            entries.decrementAndGet();
+            bytes.addAndGet(-entry.weight);
+        }
+
+        boolean isFull() {
+            return entries.get() > maxEntries || bytes.get() > maxBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "entries=" + entries + "/" + maxEntries + ", bytes=" + bytes + "/" + maxBytes;
         }
     }
+
 }
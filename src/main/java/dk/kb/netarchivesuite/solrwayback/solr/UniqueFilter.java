@@ -14,8 +14,7 @@
  */
 package dk.kb.netarchivesuite.solrwayback.solr;
 
-import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
-import it.unimi.dsi.fastutil.ints.IntSet;
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
 import org.apache.solr.common.SolrDocument;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,29 +28,33 @@ import java.util.stream.Collectors;
 
 /**
  * Acts as a uniqueness filter for a {@code Stream<SolrDocument>}, using the content from given fields as unique values.
- * This filter holds values for all unique encountered documents in memory and thus does not scale indefinitely.
- * When constructed, the maximum number of unique values to track is specified. If this limit is reached, an exception
- * is thrown.
+ * <p>
+ * With hashing, 128 bit hashes of the values are tracked by a {@link UniqueHashTracker}, which uses a bounded amount
+ * of off-heap memory ({@link PropertiesLoader#UNIQUE_MEMORY_BYTES}) and spills to temporary files beyond that.
+ * Without hashing, the values themselves are held on the heap and the maximum number of unique values to track is
+ * specified at construction. If this limit is reached, an exception is thrown.
+ * <p>
+ * The filter should be {@link #close() closed} after use to release temporary files.
  * <p>
  * This implementation is thread safe.
  */
-public class UniqueFilter implements Predicate<SolrDocument> {
+public class UniqueFilter implements Predicate<SolrDocument>, AutoCloseable {
     private static final Logger log = LoggerFactory.getLogger(UniqueFilter.class);
 
     private final List<String> fields;
     private final int maxUnique;
     private final Set<String> uniqueValues;
-    private final IntSet uniqueHashes;
+    private final UniqueHashTracker uniqueHashes;
 
     public long tests = 0;
     public long duplicates = 0;
 
     /**
-     * @param useHashing true, hashes of the values from the given fields are used for tracking instead of the
-     *                   values themselves. Using hashing vastly (factor 10+) reduce the memory footprint, but
-     *                   introduces the possibility of hash collisions and thereby does not guarantee uniqueness.
-     *                   Hashing is recommended unless there is a strict need for uniqueness.
+     * @param useHashing true, 128 bit hashes of the values from the given fields are used for tracking instead of
+     *                   the values themselves. Hashing has a bounded memory footprint and the probability of a
+     *                   false duplicate is negligible. Hashing is recommended.
      * @param maxUnique the maximum number of unique elements before an exception is thrown.
+     *                  Only used when {@code useHashing} is false.
      * @param fields the fields to use for uniqueness tracking.
      */
     public UniqueFilter(boolean useHashing, int maxUnique, String... fields) {
@@ -59,11 +62,11 @@ public class UniqueFilter implements Predicate<SolrDocument> {
     }
 
     /**
-     * @param useHashing true, hashes of the values from the given fields are used for tracking instead of the
-     *                   values themselves. Using hashing vastly (factor 10+) reduce the memory footprint, but
-     *                   introduces the possibility of hash collisions and thereby does not guarantee uniqueness.
-     *                   Hashing is recommended unless there is a strict need for uniqueness.
+     * @param useHashing true, 128 bit hashes of the values from the given fields are used for tracking instead of
+     *                   the values themselves. Hashing has a bounded memory footprint and the probability of a
+     *                   false duplicate is negligible. Hashing is recommended.
      * @param maxElements the maximum number of unique elements before an exception is thrown.
+     *                    Only used when {@code useHashing} is false.
      * @param fields the fields to use for uniqueness tracking.
      */
     public UniqueFilter(boolean useHashing, int maxElements, List<String> fields) {
@@ -73,7 +76,7 @@ public class UniqueFilter implements Predicate<SolrDocument> {
         this.fields = fields;
         this.maxUnique = maxElements;
         if (useHashing) {
-            uniqueHashes = new IntOpenHashSet();
+            uniqueHashes = new UniqueHashTracker(PropertiesLoader.UNIQUE_MEMORY_BYTES, null);
             uniqueValues = null;
         } else {
             uniqueHashes = null;
@@ -98,9 +101,12 @@ public class UniqueFilter implements Predicate<SolrDocument> {
         if (uniqueValues != null) { // values
             ok = uniqueValues.add(fieldValue);
         } else {
-            ok = uniqueHashes.add(fieldValue.hashCode());
+            ok = uniqueHashes.add(fieldValue);
+        }
+        if (!ok) {
+            duplicates++;
         }
-        if (uniqueCount() > maxUnique) {
+        if (uniqueValues != null && uniqueValues.size() > maxUnique) {
             log.warn("Throwing ArrayIndexOutOfBoundsException as the unique limit of {} has been reached", maxUnique);
             throw new ArrayIndexOutOfBoundsException(
                     "The number of elements in the unique tracker exceeded the limit " + maxUnique +
@@ -124,7 +130,7 @@ public class UniqueFilter implements Predicate<SolrDocument> {
     /**
      * @return the number of unique values encountered.
      */
-    public int uniqueCount() {
+    public synchronized long uniqueCount() {
         return uniqueValues != null ? uniqueValues.size() : uniqueHashes.size();
     }
 
@@ -142,4 +148,15 @@ public class UniqueFilter implements Predicate<SolrDocument> {
     public long duplicateCount() {
         return duplicates;
     }
+
+    /**
+     * Release resources, such as temporary files used for hashes. The filter cannot be used after this.
+     */
+    @Override
+    public synchronized void close() {
+        if (uniqueHashes != null) {
+            log.debug("Closing {}", uniqueHashes);
+            uniqueHashes.close();
+        }
+    }
 }
@@ -0,0 +1,521 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.solr;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tracks uniqueness of Strings using 128 bit hashes, with bounded memory usage.
+ * <p>
+ * Hashes are kept in an open addressing table in off-heap memory. When the table reaches the memory budget, its
+ * content is sorted and written to a temporary file (a run) and the table is cleared. New values are checked against
+ * the table and all runs. Lookups in a run costs a single positional read, as a sparse index for each run is held
+ * in memory. When there are {@link #MERGE_FACTOR} runs of similar size, they are merged into a single run, so the
+ * number of runs grows logarithmically with the number of unique values.
+ * <p>
+ * With 128 bit hashes, the probability of a false duplicate is negligible (about 10^-20 for 10^9 values).
+ * <p>
+ * This implementation is not thread safe.
+ */
+public class UniqueHashTracker implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(UniqueHashTracker.class);
+
+    private static final Cleaner cleaner = Cleaner.create();
+
+    private static final int MIN_SLOTS = 1024;
+    private static final double LOAD_FACTOR = 0.7;
+    private static final int BLOCK_ENTRIES = 256; // Entries between sparse index points in runs
+    static final int MERGE_FACTOR = 4;
+
+    private final long maxSlots;
+    private final File tempFolder;
+
+    private LongBuffer table; // Pairs of longs, off-heap. (0, 0) marks an empty slot
+    private int slots;
+    private int tableSize = 0;
+    private long size = 0;
+
+    private final List<Run> runs = new ArrayList<>();
+    private long spills = 0;
+    private long merges = 0;
+
+    /**
+     * @param memoryBudget the maximum number of bytes to use for the off-heap table. Values beyond what the table can
+     *                     hold are spilled to disk.
+     * @param tempFolder   the folder for temporary files. If null, the system temporary folder is used.
+     */
+    public UniqueHashTracker(long memoryBudget, File tempFolder) {
+        // Power of two slots of 16 bytes, within the budget and within the limits of a single direct buffer
+        long max = Long.highestOneBit(Math.max(MIN_SLOTS, memoryBudget / 16));
+        this.maxSlots = Math.min(max, 1 << 26);
+        this.tempFolder = tempFolder;
+        allocate((int) Math.min(maxSlots, 16*1024));
+        cleaner.register(this, new RunsCleaner(runs));
+    }
+
+    /**
+     * Add the value to the tracker.
+     * @param value any String.
+     * @return true if the value has not been added before, false if the value has been added before.
+     */
+    public boolean add(String value) {
+        long[] hash = murmur3(value);
+        long hi = hash[0];
+        long lo = hash[1];
+        if (hi == 0 && lo == 0) {
+            lo = 1; // (0, 0) marks empty slots
+        }
+        int slot = findSlot(hi, lo);
+        if (table.get(slot << 1) != 0 || table.get((slot << 1) + 1) != 0) {
+            return false; // In table
+        }
+        for (Run run: runs) {
+            if (run.contains(hi, lo)) {
+                return false;
+            }
+        }
+        table.put(slot << 1, hi);
+        table.put((slot << 1) + 1, lo);
+        tableSize++;
+        size++;
+        if (tableSize > slots * LOAD_FACTOR) {
+            if (slots < maxSlots) {
+                grow();
+            } else {
+                spill();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of unique values added.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the number of times the table has been written to disk.
+     */
+    public long getSpills() {
+        return spills;
+    }
+
+    /**
+     * @return the number of runs on disk.
+     */
+    public int getRuns() {
+        return runs.size();
+    }
+
+    /**
+     * Release the temporary files. The tracker cannot be used after this.
+     */
+    @Override
+    public void close() {
+        new RunsCleaner(runs).run();
+        table = null;
+    }
+
+    @Override
+    public String toString() {
+        return "UniqueHashTracker(size=" + size + ", tableSize=" + tableSize + "/" + slots +
+               ", maxSlots=" + maxSlots + ", runs=" + runs.size() + ", spills=" + spills +
+               ", merges=" + merges + ")";
+    }
+
+    /* Table handling */
+
+    private void allocate(int slots) {
+        this.slots = slots;
+        this.table = ByteBuffer.allocateDirect(slots * 16).asLongBuffer();
+        this.tableSize = 0;
+    }
+
+    /**
+     * @return the slot containing the hash or the empty slot where it should be inserted.
+     */
+    private int findSlot(long hi, long lo) {
+        int mask = slots - 1;
+        int slot = (int) (lo ^ (lo >>> 32)) & mask;
+        while (true) {
+            long sHi = table.get(slot << 1);
+            long sLo = table.get((slot << 1) + 1);
+            if ((sHi == 0 && sLo == 0) || (sHi == hi && sLo == lo)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void grow() {
+        LongBuffer old = table;
+        int oldSlots = slots;
+        allocate(slots << 1);
+        for (int i = 0 ; i < oldSlots ; i++) {
+            long hi = old.get(i << 1);
+            long lo = old.get((i << 1) + 1);
+            if (hi != 0 || lo != 0) {
+                int slot = findSlot(hi, lo);
+                table.put(slot << 1, hi);
+                table.put((slot << 1) + 1, lo);
+                tableSize++;
+            }
+        }
+    }
+
+    /**
+     * Sort the content of the table, write it to a run and clear the table.
+     */
+    private void spill() {
+        // Compact non-empty entries to the start of the table
+        int entries = 0;
+        for (int i = 0 ; i < slots ; i++) {
+            long hi = table.get(i << 1);
+            long lo = table.get((i << 1) + 1);
+            if (hi != 0 || lo != 0) {
+                table.put(entries << 1, hi);
+                table.put((entries << 1) + 1, lo);
+                entries++;
+            }
+        }
+        final LongBuffer t = table;
+        it.unimi.dsi.fastutil.Arrays.quickSort(0, entries, (a, b) -> compare(
+                t.get(a << 1), t.get((a << 1) + 1), t.get(b << 1), t.get((b << 1) + 1)), (a, b) -> {
+            long hi = t.get(a << 1);
+            long lo = t.get((a << 1) + 1);
+            t.put(a << 1, t.get(b << 1));
+            t.put((a << 1) + 1, t.get((b << 1) + 1));
+            t.put(b << 1, hi);
+            t.put((b << 1) + 1, lo);
+        });
+        try {
+            File file = createTempFile();
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file), 65536))) {
+                for (int i = 0 ; i < entries ; i++) {
+                    out.writeLong(table.get(i << 1));
+                    out.writeLong(table.get((i << 1) + 1));
+                }
+            }
+            runs.add(new Run(file, entries));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to spill unique hashes to disk", e);
+        }
+        spills++;
+        log.debug("Spilled {} unique hashes to disk: {}", entries, this);
+
+        // Clear the table
+        for (int i = 0 ; i < slots << 1 ; i++) {
+            table.put(i, 0);
+        }
+        tableSize = 0;
+        maybeMerge();
+    }
+
+    /* Run handling */
+
+    /**
+     * Merge the smallest runs if there are at least {@link #MERGE_FACTOR} runs of similar size.
+     * Runs are merged repeatedly, so merged runs can trigger further merges.
+     */
+    private void maybeMerge() {
+        while (true) {
+            runs.sort((r1, r2) -> Long.compare(r1.entries, r2.entries));
+            if (runs.size() < MERGE_FACTOR) {
+                return;
+            }
+            List<Run> candidates = new ArrayList<>(runs.subList(0, MERGE_FACTOR));
+            // Similar size means within a factor MERGE_FACTOR of the smallest run
+            if (candidates.get(MERGE_FACTOR-1).entries > candidates.get(0).entries * MERGE_FACTOR) {
+                return;
+            }
+            try {
+                Run merged = merge(candidates);
+                runs.removeAll(candidates);
+                candidates.forEach(Run::delete);
+                runs.add(merged);
+                merges++;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to merge unique hash runs", e);
+            }
+        }
+    }
+
+    private Run merge(List<Run> sources) throws IOException {
+        File file = createTempFile();
+        List<DataInputStream> ins = new ArrayList<>();
+        long[][] heads = new long[sources.size()][];
+        long entries = 0;
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 65536))) {
+            for (int i = 0 ; i < sources.size() ; i++) {
+                ins.add(new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(sources.get(i).file), 65536)));
+                heads[i] = readEntry(ins.get(i));
+            }
+            while (true) {
+                int min = -1;
+                for (int i = 0 ; i < heads.length ; i++) {
+                    if (heads[i] != null &&
+                        (min == -1 || compare(heads[i][0], heads[i][1], heads[min][0], heads[min][1]) < 0)) {
+                        min = i;
+                    }
+                }
+                if (min == -1) {
+                    break;
+                }
+                out.writeLong(heads[min][0]);
+                out.writeLong(heads[min][1]);
+                entries++;
+                heads[min] = readEntry(ins.get(min));
+            }
+        } finally {
+            for (DataInputStream in: ins) {
+                in.close();
+            }
+        }
+        return new Run(file, entries);
+    }
+
+    private long[] readEntry(DataInputStream in) throws IOException {
+        try {
+            return new long[]{in.readLong(), in.readLong()};
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private File createTempFile() throws IOException {
+        File file = tempFolder == null ?
+                File.createTempFile("uniquehashes_", ".bin") :
+                File.createTempFile("uniquehashes_", ".bin", tempFolder);
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * Unsigned comparison of 128 bit values.
+     */
+    private static int compare(long hi1, long lo1, long hi2, long lo2) {
+        int c = Long.compareUnsigned(hi1, hi2);
+        return c != 0 ? c : Long.compareUnsigned(lo1, lo2);
+    }
+
+    /**
+     * Sorted hashes on disk with a sparse in-memory index of every {@link #BLOCK_ENTRIES}th hash.
+     */
+    private static class Run {
+        final File file;
+        final long entries;
+        final long[] indexHi;
+        final long[] indexLo;
+        final FileChannel channel;
+        final ByteBuffer block = ByteBuffer.allocate(BLOCK_ENTRIES * 16);
+
+        Run(File file, long entries) throws IOException {
+            this.file = file;
+            this.entries = entries;
+            int indexSize = (int) ((entries + BLOCK_ENTRIES - 1) / BLOCK_ENTRIES);
+            indexHi = new long[indexSize];
+            indexLo = new long[indexSize];
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+                for (long i = 0 ; i < entries ; i++) {
+                    long hi = in.readLong();
+                    long lo = in.readLong();
+                    if (i % BLOCK_ENTRIES == 0) {
+                        indexHi[(int) (i / BLOCK_ENTRIES)] = hi;
+                        indexLo[(int) (i / BLOCK_ENTRIES)] = lo;
+                    }
+                }
+            }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+
+        boolean contains(long hi, long lo) {
+            // Last index point <= the hash
+            int low = 0;
+            int high = indexHi.length - 1;
+            int blockIndex = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int c = compare(indexHi[mid], indexLo[mid], hi, lo);
+                if (c == 0) {
+                    return true;
+                } else if (c < 0) {
+                    blockIndex = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (blockIndex == -1) {
+                return false; // Smaller than the first entry
+            }
+
+            int blockEntries = (int) Math.min(BLOCK_ENTRIES, entries - (long) blockIndex * BLOCK_ENTRIES);
+            block.clear().limit(blockEntries * 16);
+            try {
+                long position = (long) blockIndex * BLOCK_ENTRIES * 16;
+                while (block.hasRemaining()) {
+                    if (channel.read(block, position + block.position()) == -1) {
+                        throw new EOFException("Unexpected end of run " + file);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read unique hash run " + file, e);
+            }
+            low = 0;
+            high = blockEntries - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int c = compare(block.getLong(mid * 16), block.getLong(mid * 16 + 8), hi, lo);
+                if (c == 0) {
+                    return true;
+                } else if (c < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return false;
+        }
+
+        void delete() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Unable to close unique hash run " + file, e);
+            }
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                log.warn("Unable to delete unique hash run " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Deletes runs when the tracker is closed or garbage collected. Must not reference the tracker.
+     */
+    private static class RunsCleaner implements Runnable {
+        private final List<Run> runs;
+
+        RunsCleaner(List<Run> runs) {
+            this.runs = runs;
+        }
+
+        @Override
+        public void run() {
+            runs.forEach(Run::delete);
+            runs.clear();
+        }
+    }
+
+    /* MurmurHash3 x64 128, see https://github.com/aappleby/smhasher/blob/master/src/MurmurHash3.cpp */
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    /**
+     * MurmurHash3 x64 128 of the UTF-16 code units of the value, processed as little endian bytes.
+     * @return the 128 bit hash as {@code [h1, h2]}.
+     */
+    static long[] murmur3(String value) {
+        final int length = value.length();
+        long h1 = 0;
+        long h2 = 0;
+        int pos = 0;
+        // 16 bytes = 8 chars per block
+        for ( ; pos + 8 <= length ; pos += 8) {
+            long k1 = chars(value, pos);
+            long k2 = chars(value, pos + 4);
+
+            k1 *= C1; k1 = Long.rotateLeft(k1, 31); k1 *= C2; h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27); h1 += h2; h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2; k2 = Long.rotateLeft(k2, 33); k2 *= C1; h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31); h2 += h1; h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        // Tail
+        long k1 = 0;
+        long k2 = 0;
+        int remaining = length - pos;
+        for (int i = 0 ; i < remaining ; i++) {
+            long c = value.charAt(pos + i);
+            if (i < 4) {
+                k1 |= c << (16 * i);
+            } else {
+                k2 |= c << (16 * (i - 4));
+            }
+        }
+        if (remaining > 4) {
+            k2 *= C2; k2 = Long.rotateLeft(k2, 33); k2 *= C1; h2 ^= k2;
+        }
+        if (remaining > 0) {
+            k1 *= C1; k1 = Long.rotateLeft(k1, 31); k1 *= C2; h1 ^= k1;
+        }
+
+        // Finalization
+        long bytes = 2L * length;
+        h1 ^= bytes;
+        h2 ^= bytes;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+        return new long[]{h1, h2};
+    }
+
+    private static long chars(String value, int pos) {
+        return ((long) value.charAt(pos)) |
+               ((long) value.charAt(pos + 1) << 16) |
+               ((long) value.charAt(pos + 2) << 32) |
+               ((long) value.charAt(pos + 3) << 48);
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
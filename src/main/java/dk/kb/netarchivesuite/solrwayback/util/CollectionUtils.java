@@ -20,11 +20,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
@@ -33,7 +35,10 @@ import java.util.Spliterator;
 import java.util.Spliterators;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -631,6 +636,93 @@ public class CollectionUtils {
         }
     }
 
+    /**
+     * Iterator wrapper that maps elements from a source {@link Iterator} using an {@link ExecutorService}, working on
+     * up to {@code window} elements ahead of delivery. The mapped elements are delivered in the same order as the
+     * source elements.
+     * <p>
+     * The source {@code inner} is only accessed from the calling thread, so it does not need to be thread safe.
+     * Exceptions from the {@code mapper} are re-thrown as {@link RuntimeException}s from {@link #next()}.
+     * <p>
+     * Calling {@link #close()} cancels all pending mappings.
+     */
+    public static class WindowedMappingIterator<S, T> implements Iterator<T>, AutoCloseable {
+        private final Iterator<S> inner;
+        private final Function<S, T> mapper;
+        private final ExecutorService executor;
+        private final int window;
+        private final Deque<Future<T>> pending = new ArrayDeque<>();
+        private boolean closed = false;
+
+        /**
+         * Wrap the given {@code inner} {@link Iterator} and start mapping up to {@code window} elements.
+         * @param inner    any iterator.
+         * @param mapper   maps elements from {@code inner}. Called from the threads of the {@code executor}.
+         * @param executor used for mapping the elements.
+         * @param window   the maximum number of elements being mapped or waiting for delivery.
+         *                 If {@code < 1} this will be set to {@code 1}.
+         */
+        public static <S, T> WindowedMappingIterator<S, T> of(
+                Iterator<S> inner, Function<S, T> mapper, ExecutorService executor, int window) {
+            return new WindowedMappingIterator<>(inner, mapper, executor, window);
+        }
+
+        /**
+         * Wrap the given {@code inner} {@link Iterator} and start mapping up to {@code window} elements.
+         * @param inner    any iterator.
+         * @param mapper   maps elements from {@code inner}. Called from the threads of the {@code executor}.
+         * @param executor used for mapping the elements.
+         * @param window   the maximum number of elements being mapped or waiting for delivery.
+         *                 If {@code < 1} this will be set to {@code 1}.
+         */
+        public WindowedMappingIterator(Iterator<S> inner, Function<S, T> mapper, ExecutorService executor, int window) {
+            this.inner = inner;
+            this.mapper = mapper;
+            this.executor = executor;
+            this.window = Math.max(1, window);
+        }
+
+        @Override
+        public boolean hasNext() {
+            fillWindow();
+            return !pending.isEmpty();
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new IllegalStateException("next() called when hasNext() == false");
+            }
+            Future<T> head = pending.removeFirst();
+            fillWindow(); // Keep the window full while waiting for the head
+            try {
+                return head.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for mapped element", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Exception while mapping element", e.getCause());
+            }
+        }
+
+        /**
+         * Cancel all pending mappings. No further elements will be delivered.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            pending.forEach(future -> future.cancel(true));
+            pending.clear();
+        }
+
+        private void fillWindow() {
+            while (!closed && pending.size() < window && inner.hasNext()) {
+                S element = inner.next();
+                pending.addLast(executor.submit(() -> mapper.apply(element)));
+            }
+        }
+    }
+
     /**
      * Order based merge of {@code streams}. The elements in the {@code streams} must be in the same order as
      * ensured by the provided {@code comparator}. The merge uses a {@link PriorityQueue} for ordering the
@@ -0,0 +1,325 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.util;
+
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared pool of open read-only {@link FileChannel}s, used for reading entries from local (W)ARC files.
+ * <p>
+ * Streams from the pool use positional reads ({@code pread}) on a shared channel, so any number of threads can read
+ * from the same file at the same time without opening a new file descriptor per request. Skipping is free as it
+ * only moves the position of the stream.
+ * <p>
+ * The number of open channels is bounded. When the bound is exceeded, the least recently used channels are
+ * removed from the pool. A removed channel is closed when the last stream using it is closed.
+ * <p>
+ * A {@link FileChannel} is closed for all users if a thread is interrupted while reading from it. Closed channels are
+ * replaced in the pool on the next request and streams on a closed channel retry once with a new channel.
+ */
+public class FileChannelPool {
+    private static final Logger log = LoggerFactory.getLogger(FileChannelPool.class);
+
+    private static FileChannelPool instance;
+
+    private final Map<Path, PooledChannel> channels = new ConcurrentHashMap<>();
+    private final int maxChannels;
+    private final AtomicBoolean evicting = new AtomicBoolean(false);
+    private final AtomicLong useCounter = new AtomicLong(0);
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong opens = new AtomicLong(0);
+
+    /**
+     * @return a pool shared by all local file {@code ArcSource}s, bounded by
+     *         {@link PropertiesLoader#WARC_SOURCE_FILE_MAX_CHANNELS}.
+     */
+    public static synchronized FileChannelPool getInstance() {
+        if (instance == null) {
+            instance = new FileChannelPool(PropertiesLoader.WARC_SOURCE_FILE_MAX_CHANNELS);
+        }
+        return instance;
+    }
+
+    /**
+     * @param maxChannels the maximum number of open channels in the pool. Channels in use by streams are not
+     *                    closed when evicted, so the actual number of open channels can be higher.
+     */
+    public FileChannelPool(int maxChannels) {
+        this.maxChannels = maxChannels;
+    }
+
+    /**
+     * Open a stream for the given file, starting at the given offset.
+     * <p>
+     * The caller must close the returned stream.
+     * @param file   a file on the local file system.
+     * @param offset the position in the file to start the stream at.
+     * @return a stream for the file, starting at offset.
+     * @throws java.nio.file.NoSuchFileException if the file does not exist.
+     * @throws IOException if the file could not be opened.
+     */
+    public InputStream getInputStream(String file, long offset) throws IOException {
+        Path path = Paths.get(file);
+        return new ChannelInputStream(path, acquire(path), offset);
+    }
+
+    private PooledChannel acquire(Path path) throws IOException {
+        while (true) {
+            PooledChannel channel;
+            try {
+                channel = channels.computeIfAbsent(path, p -> {
+                    try {
+                        opens.incrementAndGet();
+                        return new PooledChannel(FileChannel.open(p, StandardOpenOption.READ));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (channel.retain()) {
+                if (!channel.channel.isOpen()) { // Closed by an interrupted reader
+                    channel.release();
+                    invalidate(path, channel);
+                    continue;
+                }
+                channel.lastUse = useCounter.incrementAndGet();
+                hits.incrementAndGet();
+                if (channels.size() > maxChannels && evicting.compareAndSet(false, true)) {
+                    try {
+                        evict();
+                    } finally {
+                        evicting.set(false);
+                    }
+                }
+                return channel;
+            }
+            // The channel was evicted and closed between lookup and retain
+            channels.remove(path, channel);
+        }
+    }
+
+    /**
+     * Remove the given channel from the pool if it is still registered for the path.
+     */
+    private void invalidate(Path path, PooledChannel channel) {
+        if (channels.remove(path, channel)) {
+            channel.release(); // The pool's own reference
+        }
+    }
+
+    /**
+     * Remove the least recently used channels until the pool holds 90% of max channels.
+     */
+    private void evict() {
+        int excess = channels.size() - (int) (maxChannels * 0.9);
+        if (excess <= 0) {
+            return;
+        }
+        long[] uses = channels.values().stream().mapToLong(c -> c.lastUse).toArray();
+        Arrays.sort(uses);
+        final long cutoff = uses[Math.min(excess, uses.length) - 1];
+        channels.entrySet().removeIf(entry -> {
+            if (entry.getValue().lastUse <= cutoff) {
+                entry.getValue().release(); // The pool's own reference
+                return true;
+            }
+            return false;
+        });
+        log.debug("Evicted channels from FileChannelPool, new size is {}", channels.size());
+    }
+
+    /**
+     * Remove all channels from the pool. Channels in use are closed when their streams are closed.
+     */
+    public void clear() {
+        channels.entrySet().removeIf(entry -> {
+            entry.getValue().release();
+            return true;
+        });
+    }
+
+    public int size() {
+        return channels.size();
+    }
+
+    /**
+     * The number of times a channel has been handed out, including newly opened channels.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * The number of times a file has been opened.
+     */
+    public long getOpens() {
+        return opens.get();
+    }
+
+    @Override
+    public String toString() {
+        return "FileChannelPool(size=" + channels.size() + "/" + maxChannels + ", hits=" + hits +
+               ", opens=" + opens + ")";
+    }
+
+    /**
+     * Reference counted channel. The pool holds one reference and each open stream holds one.
+     */
+    private static class PooledChannel {
+        final FileChannel channel;
+        final AtomicInteger references = new AtomicInteger(1);
+        volatile long lastUse = 0;
+
+        PooledChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * @return true if a reference was obtained, false if the channel has been closed.
+         */
+        boolean retain() {
+            while (true) {
+                int current = references.get();
+                if (current <= 0) {
+                    return false;
+                }
+                if (references.compareAndSet(current, current+1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    log.warn("IOException closing pooled FileChannel", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * InputStream with its own position on a shared channel. Not thread safe, but any number of streams can share
+     * the same channel.
+     */
+    private class ChannelInputStream extends InputStream {
+        private final Path path;
+        private PooledChannel pooled;
+        private long position;
+        private boolean closed = false;
+
+        ChannelInputStream(Path path, PooledChannel pooled, long position) {
+            this.path = path;
+            this.pooled = pooled;
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : 0xFF & b[0];
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int read;
+            try {
+                read = pooled.channel.read(ByteBuffer.wrap(b, off, len), position);
+            } catch (ClosedChannelException e) {
+                reopen(e);
+                read = pooled.channel.read(ByteBuffer.wrap(b, off, len), position);
+            }
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            long size;
+            try {
+                size = pooled.channel.size();
+            } catch (ClosedChannelException e) {
+                reopen(e);
+                size = pooled.channel.size();
+            }
+            long skipped = Math.max(0, Math.min(n, size - position));
+            position += skipped;
+            return skipped;
+        }
+
+        /**
+         * Called when the channel has been closed, typically because a thread was interrupted while reading from it.
+         * The channel is removed from the pool and, unless the current thread is the interrupted one, replaced with
+         * a new channel for the same file.
+         */
+        private void reopen(ClosedChannelException e) throws IOException {
+            PooledChannel old = pooled;
+            invalidate(path, old);
+            if (e instanceof ClosedByInterruptException) {
+                throw e;
+            }
+            pooled = acquire(path);
+            old.release();
+        }
+
+        @Override
+        public int available() throws IOException {
+            return closed ? 0 : (int) Math.min(Integer.MAX_VALUE, Math.max(0, pooled.channel.size() - position));
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                pooled.release();
+            }
+        }
+    }
+}
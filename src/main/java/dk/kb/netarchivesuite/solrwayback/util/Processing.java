@@ -17,13 +17,17 @@ package dk.kb.netarchivesuite.solrwayback.util;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
 /**
@@ -83,6 +87,58 @@ public class Processing {
                 map(Processing::safeGet); //
     }
 
+    /**
+     * Threaded ordered mapping of the elements from {@code source}, working on up to {@code window} elements ahead
+     * of delivery. Elements are delivered in the same order as in {@code source}.
+     * <p>
+     * Note that a shared {@link #executorService} is used with a maximum of {@link #THREADS} threads.
+     * The returned iterator should be closed if it is not depleted, to cancel pending jobs.
+     * @param source any iterator. This is only accessed from the calling thread.
+     * @param mapper maps elements from {@code source}. Called from the threads of the {@link #executorService}.
+     * @param window the maximum number of elements being mapped or waiting for delivery.
+     * @return the mapped elements, in the same order as in {@code source}.
+     */
+    public static <S, T> CollectionUtils.WindowedMappingIterator<S, T> orderedMap(
+            Iterator<S> source, Function<S, T> mapper, int window) {
+        return orderedMap(source, mapper, window, executorService);
+    }
+
+    /**
+     * Threaded ordered mapping of the elements from {@code source}, working on up to {@code window} elements ahead
+     * of delivery. Elements are delivered in the same order as in {@code source}.
+     * <p>
+     * The returned iterator should be closed if it is not depleted, to cancel pending jobs.
+     * @param source   any iterator. This is only accessed from the calling thread.
+     * @param mapper   maps elements from {@code source}. Called from the threads of the {@code executor}.
+     * @param window   the maximum number of elements being mapped or waiting for delivery.
+     * @param executor the executor for the mapping jobs.
+     * @return the mapped elements, in the same order as in {@code source}.
+     */
+    public static <S, T> CollectionUtils.WindowedMappingIterator<S, T> orderedMap(
+            Iterator<S> source, Function<S, T> mapper, int window, ExecutorService executor) {
+        return CollectionUtils.WindowedMappingIterator.of(source, mapper, executor, window);
+    }
+
+    /**
+     * Runs a single job in the background and delivers the result as a {@link CompletableFuture}, for combining
+     * with other asynchronous results. Exceptions thrown by the job completes the future exceptionally.
+     * <p>
+     * Note that a shared {@link #executorService} is used with a maximum of {@link #THREADS} threads.
+     * @param job any job.
+     * @return a future for the result of the job.
+     */
+    public static <T> CompletableFuture<T> async(Callable<T> job) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return job.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executorService);
+    }
+
     /**
      * Processes the full batch at once using the {@link #executorService}.
      * Callers are advised to keep batches at a manageable size.
@@ -0,0 +1,236 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded pipe between a producer thread writing to {@link #getOutputStream()} and a consumer thread reading from
+ * {@link #getInputStream()}, backed by a single reusable ring buffer.
+ * <p>
+ * Compared to {@link java.io.PipedInputStream} the buffer is configurable and typically much larger, bulk reads and
+ * writes are copied with {@link System#arraycopy} and hand-offs are signalled immediately instead of polling every
+ * second. Writers block when the ring is full and readers block when it is empty.
+ * <p>
+ * Exceptions from the producer are propagated with {@link #setException(IOException)}: All subsequent reads throw the
+ * exception. If the consumer closes the InputStream, subsequent writes throw an IOException so that the producer
+ * stops.
+ * <p>
+ * As with {@link java.io.PipedInputStream}, the threads using the streams are tracked: A blocked writer fails if the
+ * last thread that read from the pipe has terminated and a blocked reader fails if the last thread that wrote to the
+ * pipe has terminated without closing the OutputStream.
+ */
+public class RingBufferPipe {
+    private final byte[] ring;
+    private int readPos = 0; // Position of the next byte to read
+    private int size = 0;    // Number of bytes in the ring
+
+    private boolean writerClosed = false;
+    private boolean readerClosed = false;
+    private IOException exception = null;
+    private Thread readerThread = null;
+    private Thread writerThread = null;
+
+    // How often blocked readers and writers check whether the thread at the other end is alive
+    private static final long LIVENESS_CHECK_MS = 1000;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private final InputStream in = new RingInputStream();
+    private final OutputStream out = new RingOutputStream();
+
+    /**
+     * @param bufferSize the number of bytes that the producer can be ahead of the consumer.
+     */
+    public RingBufferPipe(int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be positive but was " + bufferSize);
+        }
+        this.ring = new byte[bufferSize];
+    }
+
+    /**
+     * @return the stream for the consumer. There is only one stream per pipe.
+     */
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    /**
+     * @return the stream for the producer. There is only one stream per pipe. Closing it signals end of stream.
+     */
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * After setting an exception it will be thrown on calls to any read method.
+     * @param e an IOException to be propagated.
+     */
+    public void setException(IOException e) {
+        lock.lock();
+        try {
+            exception = e;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private class RingInputStream extends InputStream {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) == -1 ? -1 : 0xFF & single[0];
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            lock.lock();
+            try {
+                readerThread = Thread.currentThread();
+                while (size == 0 && !writerClosed && exception == null && !readerClosed) {
+                    if (!notEmpty.await(LIVENESS_CHECK_MS, TimeUnit.MILLISECONDS) &&
+                        writerThread != null && !writerThread.isAlive()) {
+                        throw new IOException("Write end dead");
+                    }
+                }
+                if (exception != null) {
+                    throw exception;
+                }
+                if (readerClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                if (size == 0) {
+                    return -1; // writerClosed
+                }
+                int n = Math.min(len, size);
+                int first = Math.min(n, ring.length - readPos);
+                System.arraycopy(ring, readPos, b, off, first);
+                if (first < n) {
+                    System.arraycopy(ring, 0, b, off + first, n - first);
+                }
+                readPos = (readPos + n) % ring.length;
+                size -= n;
+                notFull.signal();
+                return n;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for data");
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            lock.lock();
+            try {
+                if (exception != null) {
+                    throw exception;
+                }
+                return size;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                readerClosed = true;
+                size = 0;
+                notFull.signalAll();
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private class RingOutputStream extends OutputStream {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                lock.lock();
+                try {
+                    writerThread = Thread.currentThread();
+                    while (size == ring.length && !readerClosed && !writerClosed) {
+                        if (!notFull.await(LIVENESS_CHECK_MS, TimeUnit.MILLISECONDS) &&
+                            readerThread != null && !readerThread.isAlive()) {
+                            throw new IOException("Read end dead");
+                        }
+                    }
+                    if (readerClosed) {
+                        throw new IOException("Pipe closed by reader");
+                    }
+                    if (writerClosed) {
+                        throw new IOException("Pipe closed");
+                    }
+                    int n = Math.min(len, ring.length - size);
+                    int writePos = (readPos + size) % ring.length;
+                    int first = Math.min(n, ring.length - writePos);
+                    System.arraycopy(b, off, ring, writePos, first);
+                    if (first < n) {
+                        System.arraycopy(b, off + first, ring, 0, n - first);
+                    }
+                    size += n;
+                    off += n;
+                    len -= n;
+                    notEmpty.signal();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for free space");
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                writerClosed = true;
+                notEmpty.signalAll();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -19,15 +19,30 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * HTTP InputStream with the special feature that {@link InputStream#skip(long)} uses HTTP Range Request to perform
  * efficient skipping.
+ * <p>
+ * Connections are established lazily: Skips before the first read only moves the position and the first read
+ * issues a single Range Request starting at that position. Range Requests are bounded: If the expected length is
+ * given at construction, the first request is for exactly that number of bytes. Subsequent requests, or all requests
+ * if the length is unknown, are for {@link #MIN_RANGE} bytes doubling up to {@link #MAX_RANGE} bytes.
+ * <p>
+ * Bounded responses are fully consumable, which allows the JVM wide keep-alive cache of {@link HttpURLConnection}
+ * to reuse connections across streams. The size of the cache is controlled with the system property
+ * {@code http.maxConnections} (default 5 per destination).
+ * <p>
+ * Whether or not a server supports Range Requests is cached per host and learned from the responses, so no extra
+ * requests are needed for probing.
  */
 public class SkippingHTTPInputStream extends InputStream {
     private static final Logger log = LoggerFactory.getLogger(SkippingHTTPInputStream.class);
@@ -35,12 +50,30 @@ public class SkippingHTTPInputStream extends InputStream {
     // Skips smaller than this are handled by reads instead of creating a new connection
     private static final long TRIVIAL_SKIP = 8192;
 
+    /**
+     * Range Requests for data of unknown length starts with this number of bytes.
+     */
+    public static final long MIN_RANGE = 64*1024;
+    /**
+     * Range Requests for data of unknown length doubles in size up to this number of bytes.
+     */
+    public static final long MAX_RANGE = 8*1024*1024;
+
+    // bytes 0-65535/3500000 or bytes */3500000
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(?:(\\d+)-(\\d+)|\\*)/(\\d+|\\*)");
+
+    // Key is protocol://host:port, value is whether the server supports Range Requests
+    private static final Map<String, Boolean> rangeSupport = new ConcurrentHashMap<>();
+
     private final boolean fallbackToRead;
     private final URL url;
+    private final String hostKey;
 
-    private final boolean supportsRangeRequests;
-    private long position = 0;
+    private long position;
     private InputStream inner;
+    private long rangeEnd = -1;       // Exclusive end of the current Range Response. -1 means unbounded
+    private long resourceLength = -1; // Total size of the resource, if known
+    private long nextRangeLength;
 
     /**
      * Construct an InputStream for the given url, with the special feature that calling {@link InputStream#skip(long)}
@@ -65,67 +98,173 @@ public class SkippingHTTPInputStream extends InputStream {
      * @see "https://developer.mozilla.org/en-US/docs/Web/HTTP/Range_requests"
      */
     public SkippingHTTPInputStream(URL url, boolean fallbackToRead) throws IOException {
+        this(url, fallbackToRead, 0, -1);
+    }
+
+    /**
+     * Construct an InputStream for the given url, starting at the given offset. The expected length is used for
+     * sizing the first Range Request. It is possible to read past the expected length.
+     * @param url a HTTP or HTTPS URL.
+     * @param fallbackToRead if true, the implementation will use {@link InputStream#read} if the server does not
+     *                       support Range Requests. If false, skipping will fail.
+     * @param offset         the position in the resource to start the stream at.
+     * @param expectedLength the number of bytes expected to be read from offset. -1 if unknown.
+     * @throws java.io.IOException if the stream could not be constructed.
+     */
+    public SkippingHTTPInputStream(URL url, boolean fallbackToRead, long offset, long expectedLength)
+            throws IOException {
         this.url = url;
         this.fallbackToRead = fallbackToRead;
-        supportsRangeRequests = supportsRangeRequests(url);
+        this.hostKey = getHostKey(url);
+        this.position = offset;
+        this.nextRangeLength = expectedLength > 0 ? expectedLength : MIN_RANGE;
+        if (offset > 0 && !fallbackToRead && Boolean.FALSE.equals(rangeSupport.get(hostKey))) {
+            throw new IOException("Start at offset " + offset + " requested but the server does not support " +
+                                  "HTTP Range Requests and fallbackToRead == false: " + url);
+        }
         log.debug("Created " + this);
     }
 
     /**
+     * Checks whether the server for the url supports HTTP Range Requests. The result is cached for the host and
+     * a {@code HEAD} request is only issued if the host has not been seen before.
      * @param url a HTTP or HTTPS URL.
      * @return true if the server supports HTTP Range Requests.
      */
     public static boolean supportsRangeRequests(URL url) throws IOException {
-        URLConnection urlCon = url.openConnection();
-        // There is no explicit close() for URLConnection. Hopefully getHeaderFields closes after itself
-        Map<String, List<String>> map = urlCon.getHeaderFields();
-        List<String> acceptRanges = map.get("Accept-Ranges");
-        return acceptRanges != null && acceptRanges.contains("bytes");
+        String hostKey = getHostKey(url);
+        Boolean supported = rangeSupport.get(hostKey);
+        if (supported == null) {
+            URLConnection urlCon = url.openConnection();
+            if (urlCon instanceof HttpURLConnection) {
+                ((HttpURLConnection) urlCon).setRequestMethod("HEAD");
+            }
+            try {
+                urlCon.getInputStream().close(); // Hands the connection back to the keep-alive cache
+            } catch (IOException e) {
+                log.warn("Unable to probe HTTP Range Request support for " + url, e);
+                return false; // Not cached as the problem might be temporary
+            }
+            supported = "bytes".equals(urlCon.getHeaderField("Accept-Ranges"));
+            rangeSupport.put(hostKey, supported);
+        }
+        return supported;
+    }
+
+    /**
+     * Clear the cached per-host information on HTTP Range Request support.
+     */
+    public static void clearRangeSupportCache() {
+        rangeSupport.clear();
+    }
+
+    private static String getHostKey(URL url) {
+        return url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
     }
 
     /**
-     * Connect to the url given in the constructor, using a Range Request if {@code startOffset != 0}.
+     * Connect to the url given in the constructor, using a Range Request if the server supports it or if support
+     * is unknown.
      * @param startOffset start position in the data.
-     * @return startOffset.
      * @throws IOException if the connection at the given offset could not be established.
      */
-    long connect(long startOffset) throws IOException {
-        if (inner != null) {
-            try {
-                inner.close();
-            } catch (IOException e) {
-                log.warn("IOException closing existing inner as preparation for Range Request to pos " + startOffset);
+    void connect(long startOffset) throws IOException {
+        closeInner();
+
+        Boolean supported = rangeSupport.get(hostKey);
+        if (startOffset > 0 && Boolean.FALSE.equals(supported) && !fallbackToRead) {
+            throw new IOException("connect(startOffset=" + startOffset + ") called for server that does not " +
+                                  "support HTTP Range Requests: " + url);
+        }
+        long rangeLength = Boolean.FALSE.equals(supported) ? -1 : nextRangeLength;
+        HttpURLConnection urlCon = createURLConnection(startOffset, rangeLength);
+        int status = urlCon.getResponseCode();
+
+        if (status == HttpURLConnection.HTTP_PARTIAL) {
+            rangeSupport.put(hostKey, true);
+            Matcher range = CONTENT_RANGE.matcher(urlCon.getHeaderField("Content-Range"));
+            if (!range.matches() || range.group(1) == null || Long.parseLong(range.group(1)) != startOffset) {
+                urlCon.getInputStream().close();
+                throw new IOException("Unexpected Content-Range '" + urlCon.getHeaderField("Content-Range") +
+                                      "' for request from position " + startOffset + ": " + url);
             }
+            rangeEnd = Long.parseLong(range.group(2)) + 1;
+            resourceLength = "*".equals(range.group(3)) ? -1 : Long.parseLong(range.group(3));
+            nextRangeLength = Math.min(Math.max(MIN_RANGE, nextRangeLength*2), MAX_RANGE);
+            inner = urlCon.getInputStream();
+            position = startOffset;
+            return;
+        }
+
+        if (status == 416) { // Range Not Satisfiable: startOffset is at or beyond EOF
+            rangeSupport.put(hostKey, true);
+            Matcher range = CONTENT_RANGE.matcher(String.valueOf(urlCon.getHeaderField("Content-Range")));
+            resourceLength = range.matches() && !"*".equals(range.group(3)) ?
+                    Long.parseLong(range.group(3)) :
+                    startOffset;
+            closeQuietly(urlCon.getErrorStream());
+            position = startOffset;
+            return;
         }
 
-        URLConnection urlCon = createURLConnection(startOffset);
+        // Any non-200 response will throw an Exception here
         inner = urlCon.getInputStream();
-        position = startOffset;
-        return startOffset;
+        rangeEnd = -1;
+        position = 0;
+        if (rangeLength != -1) {
+            log.debug("Server for {} does not support HTTP Range Requests", url);
+            rangeSupport.put(hostKey, false);
+        }
+        if (startOffset > 0) {
+            if (!fallbackToRead) {
+                closeInner();
+                throw new IOException("connect(startOffset=" + startOffset + ") called for server that does not " +
+                                      "support HTTP Range Requests: " + url);
+            }
+            long skipped = InputStreamUtils.skip(inner, startOffset);
+            position = skipped;
+            if (skipped != startOffset) {
+                log.debug("Reached EOF at position {} while read-skipping to position {} for {}",
+                          skipped, startOffset, url);
+            }
+        }
     }
 
     /**
-     * Create a URLConnection where the available inputStream starts at startOffset.
+     * Create a connection where the available inputStream starts at startOffset, if the server supports
+     * HTTP Range Requests.
      * @param startOffset start position in the data.
-     * @return a URLConnection where the available inputStream starts at startOffset.
-     * @throws IOException if the connection at the given offset could not be established.
+     * @param length      the number of bytes to request. -1 means no Range Request.
+     * @return a connection for the url.
+     * @throws IOException if the connection could not be created.
      */
-    URLConnection createURLConnection(long startOffset) throws IOException {
-        URLConnection urlCon = url.openConnection();
+    HttpURLConnection createURLConnection(long startOffset, long length) throws IOException {
+        HttpURLConnection urlCon = (HttpURLConnection) url.openConnection();
         urlCon.setRequestProperty("User-Agent", "Java Client; SolrWayback");
         urlCon.setRequestProperty("Accept", "*/*");
-        urlCon.setRequestProperty("Connection", "close");
-        if (startOffset > 0) {
-            if (!supportsRangeRequests) {
-                throw new IOException("connect(startOffset=" + startOffset + ") called for server that does not " +
-                                      "support HTTP Range Requests: " + url);
-            }
+        if (length != -1) {
             // https://developer.mozilla.org/en-US/docs/Web/HTTP/Headers/Range
-            urlCon.setRequestProperty("Range", "bytes=" + startOffset + "-");
+            urlCon.setRequestProperty("Range", "bytes=" + startOffset + "-" + (startOffset + length - 1));
         }
         return urlCon;
     }
 
+    /**
+     * Ensure that inner can deliver the byte at the current position, issuing a new Range Request if needed.
+     * @return false if EOF has been reached.
+     */
+    private boolean ensureInner() throws IOException {
+        if (inner != null && (rangeEnd == -1 || position < rangeEnd)) {
+            return true;
+        }
+        if (resourceLength != -1 && position >= resourceLength) {
+            closeInner();
+            return false;
+        }
+        connect(position);
+        return inner != null;
+    }
+
     /**
      * @return the position in the resource, measured in bytes.
      */
@@ -141,26 +280,25 @@ public class SkippingHTTPInputStream extends InputStream {
         if (n == 0) {
             return 0;
         }
+        if (resourceLength != -1 && position + n > resourceLength) {
+            n = Math.max(0, resourceLength - position);
+        }
 
-        if (n < TRIVIAL_SKIP || (!supportsRangeRequests && fallbackToRead)) {
+        if (Boolean.FALSE.equals(rangeSupport.get(hostKey))) {
+            if (n >= TRIVIAL_SKIP && !fallbackToRead) {
+                throw new IOException("Skip of " + n + " bytes requested but the server does not support " +
+                                      "HTTP Range Requests and fallbackToRead == false: " + url);
+            }
             // Skip by delegating to the standard HTTP/HTTPS-InputStream which uses read for skips
+            return ensureInner() ? skipByDelegation(n) : 0;
+        }
+        if (inner != null && n < TRIVIAL_SKIP && (rangeEnd == -1 || position + n <= rangeEnd)) {
             return skipByDelegation(n);
-        };
-
-        if (!supportsRangeRequests) {
-            throw new IOException("Skip of " + n + " bytes requested but the server does not support " +
-                                  "HTTP Range Requests and fallbackToRead == false: " + url);
         }
 
-        // Skip by creating a new connection
-        long oldPosition = position;
-        connect(position + n);
-        if (position != oldPosition + n) {
-            throw new IOException(String.format(
-                    Locale.ROOT,
-                    "Unable to (re)connect and skip %d bytes from %d to %d. Only skipped %d bytes to %d: %s",
-                    n, oldPosition, oldPosition + n, position - oldPosition, position, url));
-        }
+        // The connection to the new position is established lazily on the next read
+        closeInner();
+        position += n;
         return n;
     }
 
@@ -168,10 +306,6 @@ public class SkippingHTTPInputStream extends InputStream {
      * Delegates skipping to inner, which typically means reading instead of skipping.
      */
     long skipByDelegation(long n) throws IOException {
-        if (inner == null) {
-            connect(0);
-        }
-
         long skipped = inner.skip(n); // Note that skip does not guarantee skipping n, only <= n
         if (skipped != n) {
             log.debug(String.format(
@@ -179,13 +313,13 @@ public class SkippingHTTPInputStream extends InputStream {
                     n, position, position + n, skipped, position + skipped, url));
         }
         position += skipped;
-        return n;
+        return skipped;
     }
 
     @Override
     public int read() throws IOException {
-        if (inner == null) {
-            connect(0);
+        if (!ensureInner()) {
+            return -1;
         }
         int b = inner.read();
         if (b != -1) {
@@ -201,26 +335,54 @@ public class SkippingHTTPInputStream extends InputStream {
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        if (inner == null) {
-            connect(0);
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureInner()) {
+            return -1;
         }
         int read = inner.read(b, off, len);
-        position += read;
+        if (read > 0) {
+            position += read;
+        }
         return read;
     }
 
     @Override
     public int available() throws IOException {
-        if (inner == null) {
-            connect(0);
+        if (inner == null || (rangeEnd != -1 && position >= rangeEnd)) {
+            return 0;
         }
         return inner.available();
     }
 
     @Override
     public void close() throws IOException {
+        closeInner();
+    }
+
+    /**
+     * Closing the stream from a {@link HttpURLConnection} hands the connection back to the keep-alive cache if the
+     * remaining content is small enough to be drained.
+     */
+    private void closeInner() throws IOException {
         if (inner != null) {
-            inner.close();
+            try {
+                inner.close();
+            } finally {
+                inner = null;
+                rangeEnd = -1;
+            }
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                log.debug("IOException closing error stream", e);
+            }
         }
     }
 
@@ -229,7 +391,7 @@ public class SkippingHTTPInputStream extends InputStream {
         return "SkippingHTTPInputStream(" +
                "url=" + url +
                ", fallbackToRead=" + fallbackToRead +
-               ", supportsRangeRequests=" + supportsRangeRequests +
+               ", supportsRangeRequests=" + rangeSupport.get(hostKey) +
                ", position=" + position +
                ')';
     }
@@ -14,6 +14,7 @@
  */
 package dk.kb.netarchivesuite.solrwayback.util;
 
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,6 +26,9 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -55,7 +59,7 @@ public class StreamBridge {
      * @param provider the provider of the bytes to pipe to the returned InputStream.
      * @return an InputStream which will be populated with data from the provider.
      */
-    public static InputStream outputToInput(Consumer<OutputStream> provider) throws IOException {
+    public static InputStream outputToInput(Consumer<OutputStream> provider) {
         return outputToInput(Collections.singletonList(provider));
     }
 
@@ -76,7 +80,7 @@ public class StreamBridge {
      * @param provider the provider of the bytes to pipe to the returned InputStream.
      * @return an InputStream which will be populated with data from the provider.
      */
-    public static InputStream outputToInputSafe(Consumer<SafeOutputStream> provider) throws IOException {
+    public static InputStream outputToInputSafe(Consumer<SafeOutputStream> provider) {
         return outputToInputSafe(Collections.singletonList(provider));
     }
 
@@ -95,10 +99,29 @@ public class StreamBridge {
      * @param providers the providers of the bytes to pipe to the returned InputStream.
      * @return an InputStream which will be populated with data from the provider.
      */
-    public static InputStream outputToInput(Collection<Consumer<OutputStream>> providers) throws IOException {
-        PipedOutputStream out = new PipedOutputStream();
-        PipedInputStream in = new PipedInputStream(out);
-        ExceptionCatchingInputStream ein = new ExceptionCatchingInputStream(in);
+    public static InputStream outputToInput(Collection<Consumer<OutputStream>> providers) {
+        return outputToInput(providers, PropertiesLoader.STREAM_BRIDGE_BUFFER_BYTES);
+    }
+
+    /**
+     * The providers are responsible for adding content to the provided OutputStream. The added content will be
+     * available in the form of the returned InputStream.
+     *
+     * The providers will be called inside of a Thread and the coupling of the OutputStream and the InputStream will be
+     * through a {@link RingBufferPipe} of the given size. The providers are blocked when the buffer is full.
+     *
+     * The stream will be automatically closed after the producer has finished processing or if processing fails.
+     *
+     * Important: This method uses a thread from {@link #executor}. Do not make thousands of call to this method without
+     * ensuring that the InputStreams from previous calls has been depleted. The number of providers in a single call
+     * has no limit per se.
+     * @param providers  the providers of the bytes to pipe to the returned InputStream.
+     * @param bufferSize the number of bytes that the providers can be ahead of the reader of the InputStream.
+     * @return an InputStream which will be populated with data from the provider.
+     */
+    public static InputStream outputToInput(Collection<Consumer<OutputStream>> providers, int bufferSize) {
+        RingBufferPipe pipe = new RingBufferPipe(bufferSize);
+        OutputStream out = pipe.getOutputStream();
 
         List<Consumer<OutputStream>> providerList = new ArrayList<>(providers);
         OutputStream noCloseOut = new NonClosingOutputStream(out); // The sub-streams are concatenated
@@ -117,7 +140,7 @@ public class StreamBridge {
                             i+1, providerList.size(), Thread.currentThread().getName(), providerList.get(i));
                     log.warn(message, e);
                     // Next read call on the returned InputStream will throw this Exception
-                    ein.setException(new IOException(message, e));
+                    pipe.setException(new IOException(message, e));
                     break;
                 }
             }
@@ -129,7 +152,7 @@ public class StreamBridge {
                 log.error("IOException closing piped stream", e);
             }
         });
-        return ein;
+        return pipe.getInputStream();
     }
 
     /**
@@ -150,78 +173,13 @@ public class StreamBridge {
      * @param providers the providers of the bytes to pipe to the returned InputStream.
      * @return an InputStream which will be populated with data from the provider.
      */
-    public static InputStream outputToInputSafe(Collection<Consumer<SafeOutputStream>> providers) throws IOException {
+    public static InputStream outputToInputSafe(Collection<Consumer<SafeOutputStream>> providers) {
         Collection<Consumer<OutputStream>> unsafes = providers.stream().
                 map(SafeOutputStream::acceptUnsafe).
                 collect(Collectors.toList());
         return outputToInput(unsafes);
     }
 
-    /**
-     * Wrapper that throws an assigned IOException on reads. Used to propagate Exceptions using {@link PipedInputStream}
-     * and {@link PipedOutputStream}.
-     */
-    @SuppressWarnings("NullableProblems")
-    private static final class ExceptionCatchingInputStream extends FilterInputStream {
-        private IOException e;
-        public ExceptionCatchingInputStream(InputStream inputStream) {
-            super(inputStream);
-        }
-
-        /**
-         * After setting an exception it will be thrown on calls to any read method.
-         * @param e an IOException to be propagated.
-         */
-        public void setException(IOException e) {
-            this.e = e;
-        }
-
-        @Override
-        public int read() throws IOException {
-            int b = super.read();
-            if (e != null) { // This check must be after the call to super to ensure happens-before
-                throw e;
-            }
-            return b;
-        }
-
-        @Override
-        public int read(byte[] bytes) throws IOException {
-            int read = super.read(bytes);
-            if (e != null) { // This check must be after the call to super to ensure happens-before
-                throw e;
-            }
-            return read;
-        }
-
-        @Override
-        public int read(byte[] bytes, int i, int i1) throws IOException {
-            int read = super.read(bytes, i, i1);    // TODO: Implement this
-            if (e != null) { // This check must be after the call to super to ensure happens-before
-                throw e;
-            }
-            return read;
-        }
-
-        @Override
-        public long skip(long l) throws IOException {
-            long skipped = super.skip(l);
-            if (e != null) { // This check must be after the call to super to ensure happens-before
-                throw e;
-            }
-            return skipped;
-        }
-
-        @Override
-        public int available() throws IOException {
-            int available = super.available();
-            if (e != null) { // This check must be after the call to super to ensure happens-before
-                throw e;
-            }
-            return available;
-        }
-    }
-
     /**
      * Wrapper for an Outputstream that ignores calls to {@link OutputStream#close()}.
      * Used for ensuring that sub-providers in a list of providers does not close the overall OutputStream.
@@ -231,6 +189,11 @@ public class StreamBridge {
             super(out);
         }
 
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len); // FilterOutputStream writes single bytes
+        }
+
         @Override
         public void close() throws IOException {
             // no-op
@@ -340,6 +303,52 @@ public class StreamBridge {
         };
     }
 
+    /**
+     * Gzip the content of the given stream while it is being read, without using a separate thread as
+     * {@link #gzip(Consumer)} with {@link #outputToInput(Consumer)} does. The result is a single gzip member,
+     * equivalent to the output from {@link GZIPOutputStream}.
+     * @param raw the stream to compress. This is closed when the returned stream is closed.
+     * @return a stream delivering the gzipped content of {@code raw}.
+     */
+    public static InputStream gzipInput(InputStream raw) {
+        final CRC32 crc = new CRC32();
+        final long[] rawSize = new long[1];
+        InputStream checked = new FilterInputStream(raw) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    crc.update(b);
+                    rawSize[0]++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                    crc.update(b, off, read);
+                    rawSize[0] += read;
+                }
+                return read;
+            }
+        };
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        // The trailer is resolved when the compressed content has been fully read, as it needs CRC and size
+        InputStream trailer = new DelayedInputStream(() -> {
+            deflater.end();
+            long crcValue = crc.getValue();
+            long size = rawSize[0];
+            return new ByteArrayInputStream(new byte[]{
+                    (byte) crcValue, (byte) (crcValue >> 8), (byte) (crcValue >> 16), (byte) (crcValue >> 24),
+                    (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)});
+        });
+        return concat(new ByteArrayInputStream(GZIP_HEADER), new DeflaterInputStream(checked, deflater), trailer);
+    }
+    // Magic, deflate compression, no flags, no modification time, no extra flags, OS unknown
+    private static final byte[] GZIP_HEADER = new byte[]{0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 0};
+
     /**
      * Retrieves the content from the given {@code is} and stores it in a cache, handling Exceptions by marking them in
      * the returned {@link StatusInputStream}. Guaranteed to return a StatusInputStream, unless it runs out of heap or
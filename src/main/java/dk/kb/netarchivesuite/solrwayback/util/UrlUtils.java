@@ -289,6 +289,16 @@ public class UrlUtils {
         query.append(")");
         return query.toString();
     }
+
+    /**
+     * The host used by {@link #lenientURLQuery(String)} for matching URLs with arguments.
+     * @param norm an URL normalised with {@link #punyCodeAndNormaliseUrl(String)}.
+     * @return the host if the URL has arguments, else null.
+     */
+    public static String lenientURLHost(String norm) {
+        Matcher argMatcher = ARG_URL.matcher(norm);
+        return argMatcher.matches() ? argMatcher.group(1) : null;
+    }
     private static final Pattern ARG_URL = Pattern.compile("https?://([^/]+)/([^?]*)[?](.+)");
 }
 
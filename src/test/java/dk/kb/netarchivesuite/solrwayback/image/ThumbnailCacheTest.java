@@ -0,0 +1,172 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.image;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ThumbnailCacheTest {
+
+    @Test
+    public void testMemoryHit() {
+        ThumbnailCache cache = new ThumbnailCache(1000, null, 0);
+        byte[] png = new byte[10];
+        assertNull("Nothing should be cached initially", cache.get("a.warc", 1, 200, 200));
+        cache.offer("a.warc", 1, 200, 200, png);
+        assertArrayEquals(png, cache.get("a.warc", 1, 200, 200));
+        assertNull("Other dimensions should be cached separately", cache.get("a.warc", 1, 100, 100));
+        assertNull("Other offsets should be cached separately", cache.get("a.warc", 2, 200, 200));
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testEvictionAndBypass() {
+        ThumbnailCache cache = new ThumbnailCache(1600, null, 0);
+        for (int i = 0 ; i < 100 ; i++) {
+            cache.offer("a.warc", i, 200, 200, new byte[100]);
+        }
+        assertTrue("The cache should stay within budget: " + cache, cache.getCachedBytes() <= 1600);
+        assertTrue("Entries should have been evicted", cache.getEvictions() > 0);
+        assertNull("The oldest entry should be evicted", cache.get("a.warc", 0, 200, 200));
+        assertTrue("The newest entry should be cached", cache.get("a.warc", 99, 200, 200) != null);
+
+        cache.offer("b.warc", 0, 200, 200, new byte[101]);
+        assertEquals("An entry above 1/16 of the budget should not be cached", 1, cache.getBypasses());
+        assertNull(cache.get("b.warc", 0, 200, 200));
+    }
+
+    @Test
+    public void testDiskPersistence() throws Exception {
+        Path folder = Files.createTempDirectory("thumbnail_cache_test");
+        try {
+            ThumbnailCache cache = new ThumbnailCache(10000, folder.toString(), 1600);
+            byte[] png = new byte[]{1, 2, 3};
+            cache.offer("a.warc", 1, 200, 200, png);
+            for (int i = 0 ; i < 30 ; i++) {
+                cache.offer("b.warc", i, 200, 200, new byte[100]);
+            }
+            assertTrue("The disk budget should be respected: " + cache, cache.getStoredBytes() <= 1600);
+
+            ThumbnailCache reopened = new ThumbnailCache(10000, folder.toString(), 1600);
+            assertEquals("The stored entries should be registered on reopen",
+                         cache.storedSize(), reopened.storedSize());
+            assertTrue("A recent entry should be served from disk",
+                       reopened.get("b.warc", 29, 200, 200) != null);
+            assertEquals(1, reopened.getDiskHits());
+            assertNull("The oldest entry should be evicted from disk", reopened.get("a.warc", 1, 200, 200));
+            reopened.get("b.warc", 29, 200, 200);
+            assertEquals("A disk hit should be promoted to memory", 1, reopened.getHits());
+
+            reopened.clear();
+            assertEquals(0, reopened.storedSize());
+            assertEquals("Clear should remove the files", 0, Files.list(folder).count());
+        } finally {
+            FileUtils.deleteDirectory(folder.toFile());
+        }
+    }
+
+    @Test
+    public void testUnreadableDiskEntry() throws Exception {
+        Path folder = Files.createTempDirectory("thumbnail_cache_test");
+        try {
+            ThumbnailCache cache = new ThumbnailCache(10000, folder.toString(), 1600);
+            cache.offer("a.warc", 1, 200, 200, new byte[]{1, 2, 3});
+            cache.offer("a.warc", 2, 200, 200, new byte[]{4, 5});
+            ThumbnailCache reopened = new ThumbnailCache(10000, folder.toString(), 1600);
+            assertEquals(2, reopened.storedSize());
+
+            try (Stream<Path> files = Files.list(folder)) {
+                for (Path file: files.collect(Collectors.toList())) {
+                    Files.delete(file);
+                }
+            }
+            assertNull("A missing file should be a miss", reopened.get("a.warc", 1, 200, 200));
+            assertEquals("The unreadable entry should be dropped", 1, reopened.storedSize());
+            assertEquals("The size of the unreadable entry should be released", 2, reopened.getStoredBytes());
+        } finally {
+            FileUtils.deleteDirectory(folder.toFile());
+        }
+    }
+
+    @Test
+    public void testSubsampledScaling() throws Exception {
+        byte[] jpeg = createJPEG(1200, 800);
+
+        BufferedImage scaled = ImageUtils.getScaledImageFromBinary(new ByteArrayInputStream(jpeg), 200, 200);
+        assertEquals("The width should be scaled to the target", 200, scaled.getWidth());
+        assertEquals("The aspect ratio should be kept", 133, scaled.getHeight(), 1);
+
+        BufferedImage small = ImageUtils.getScaledImageFromBinary(new ByteArrayInputStream(jpeg), 2000, 2000);
+        assertEquals("An image that fits should not be scaled", 1200, small.getWidth());
+    }
+
+    /**
+     * Compares full decoding with subsampled decoding of a large JPEG when scaling to a thumbnail.
+     * The full decode allocates about 700MB, so this is not part of the normal build. Run it manually.
+     */
+    @Ignore("Benchmark with high memory use")
+    @Test
+    public void testSubsampledScalingSpeed() throws Exception {
+        byte[] jpeg = createJPEG(6000, 4000);
+
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        for (boolean subsampled: new boolean[]{false, true}) {
+            long allocated = mx.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            if (subsampled) {
+                ImageUtils.getScaledImageFromBinary(new ByteArrayInputStream(jpeg), 200, 200);
+            } else {
+                BufferedImage full = ImageUtils.getImageFromBinary(new ByteArrayInputStream(jpeg));
+                ImageUtils.resizeImage(full, full.getWidth(), full.getHeight(), 200, 200);
+            }
+            System.out.printf(Locale.ROOT, "Scaling 6000x4000 JPEG to 200x200 (subsampled=%b): %d ms, %d MB allocated%n",
+                              subsampled, (System.nanoTime() - start) / 1000000,
+                              (mx.getThreadAllocatedBytes(thread) - allocated) / 1048576);
+        }
+    }
+
+    private static byte[] createJPEG(int width, int height) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.BLUE, width, height, Color.ORANGE));
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+}
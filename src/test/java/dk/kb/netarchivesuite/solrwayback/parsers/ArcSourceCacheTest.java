@@ -0,0 +1,118 @@
+package dk.kb.netarchivesuite.solrwayback.parsers;
+
+import dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+public class ArcSourceCacheTest {
+
+    @Test
+    public void testHitsAndMisses() throws FileNotFoundException {
+        ArcSourceCache cache = new ArcSourceCache(100, 60000, 60000);
+        CountingResolver resolver = new CountingResolver();
+
+        ArcSource first = cache.get("/warcs/a.warc.gz", resolver);
+        assertSame("The cached source should be returned", first, cache.get("/warcs/a.warc.gz", resolver));
+        cache.get("/warcs/b.warc.gz", resolver);
+
+        assertEquals("The resolver should be called once per path", 2, resolver.calls.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testMissing() throws FileNotFoundException, InterruptedException {
+        ArcSourceCache cache = new ArcSourceCache(100, 60000, 200);
+        CountingResolver resolver = new CountingResolver();
+
+        cache.get("/warcs/missing.warc.gz", resolver);
+        cache.markMissing("/warcs/missing.warc.gz");
+        for (int i = 0 ; i < 3 ; i++) {
+            try {
+                cache.get("/warcs/missing.warc.gz", resolver);
+                fail("A missing source should result in an exception");
+            } catch (FileNotFoundException e) {
+                // Expected
+            }
+        }
+        assertEquals("The resolver should not be called for known missing sources", 1, resolver.calls.get());
+        assertEquals(3, cache.getMissingHits());
+
+        Thread.sleep(300);
+        cache.get("/warcs/missing.warc.gz", resolver);
+        assertEquals("The resolver should be called after the missing entry has expired", 2, resolver.calls.get());
+    }
+
+    @Test
+    public void testAge() throws FileNotFoundException, InterruptedException {
+        ArcSourceCache cache = new ArcSourceCache(100, 100, 100);
+        CountingResolver resolver = new CountingResolver();
+
+        cache.get("/warcs/a.warc.gz", resolver);
+        Thread.sleep(200);
+        cache.get("/warcs/a.warc.gz", resolver);
+        assertEquals("Expired entries should be resolved again", 2, resolver.calls.get());
+    }
+
+    @Test
+    public void testMaxEntries() throws FileNotFoundException {
+        ArcSourceCache cache = new ArcSourceCache(100, 60000, 60000);
+        CountingResolver resolver = new CountingResolver();
+
+        for (int i = 0 ; i < 1000 ; i++) {
+            cache.get("/warcs/" + i + ".warc.gz", resolver);
+        }
+        assertTrue("The cache should be bounded but had size " + cache.size(), cache.size() <= 100);
+        assertTrue("Some entries should have been evicted", cache.getEvictions() >= 900);
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        final int THREADS = 20;
+        final int LOOKUPS = 10000;
+        ArcSourceCache cache = new ArcSourceCache(500, 60000, 60000);
+        CountingResolver resolver = new CountingResolver();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0 ; t < THREADS ; t++) {
+            final int seed = t;
+            futures.add(executor.submit(() -> {
+                for (int i = 0 ; i < LOOKUPS ; i++) {
+                    String path = "/warcs/" + ((i * 31 + seed) % 1000) + ".warc.gz";
+                    assertEquals(path, cache.get(path, resolver).getSource());
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future: futures) {
+            future.get(); // Propagates exceptions
+        }
+        executor.shutdown();
+
+        assertEquals(THREADS*LOOKUPS, cache.getHits() + cache.getMisses());
+        assertTrue("The cache should be (nearly) bounded but had size " + cache.size(), cache.size() <= 500 + THREADS);
+    }
+
+    private static class CountingResolver implements Function<String, ArcSource> {
+        final AtomicInteger calls = new AtomicInteger(0);
+
+        @Override
+        public ArcSource apply(String path) {
+            calls.incrementAndGet();
+            return new ArcSource(path, () -> {
+                throw new UnsupportedOperationException("Not used in test");
+            });
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package dk.kb.netarchivesuite.solrwayback.parsers;
+
+import dk.kb.netarchivesuite.solrwayback.UnitTestUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class HeaderLineReaderTest extends UnitTestUtils {
+
+    private static final byte[] CONTENT_LENGTH = HeaderLineReader.field("Content-Length:");
+
+    @Test
+    public void testLines() throws IOException {
+        HeaderLineReader reader = reader("HTTP/1.1 302 Found\r\ncontent-LENGTH:  \t42 \r\nLF only\n\r\nbinary");
+        assertTrue(reader.nextLine());
+        assertEquals("HTTP/1.1 302 Found", reader.asString());
+        assertEquals(302, reader.statusCode());
+        assertEquals(20, reader.getByteCount());
+
+        assertTrue(reader.nextLine());
+        assertTrue("Field names should match case-insensitively", reader.startsWith(CONTENT_LENGTH));
+        assertEquals(42, reader.longValue(CONTENT_LENGTH.length));
+
+        assertTrue(reader.nextLine());
+        assertEquals("LF only", reader.asString());
+        assertEquals(8, reader.getByteCount());
+
+        assertTrue(reader.nextLine());
+        assertTrue("The header block should end with an empty line", reader.isEmpty());
+        assertEquals(2, reader.getByteCount());
+
+        assertEquals("The stream should be positioned at the binary",
+                     "binary", IOUtils.toString(reader, StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void testBufferBoundary() throws IOException {
+        StringBuilder longValue = new StringBuilder();
+        for (int i = 0 ; i < 20000 ; i++) {
+            longValue.append((char) ('a' + i % 26));
+        }
+        HeaderLineReader reader = reader("Location: " + longValue + "\r\n\r\n");
+        assertTrue(reader.nextLine());
+        assertEquals("Lines longer than the stream buffer should be read fully",
+                     longValue.toString(), reader.value("Location:".length()));
+        assertEquals(10 + longValue.length() + 2, reader.getByteCount());
+        assertTrue(reader.nextLine());
+        assertTrue(reader.isEmpty());
+        assertFalse("EOF should be signalled", reader.nextLine());
+    }
+
+    @Test
+    public void testSameAsLegacy() throws IOException {
+        byte[] warc = loadWarc();
+        assertEquals("Both parsers should find the same content lengths", parseLegacy(warc), parseLineReader(warc));
+    }
+
+    /**
+     * Compares the speed of the old per-byte line reader with {@link HeaderLineReader} by reading all header
+     * lines for all records in a test WARC, matching the fields used by {@link WarcParser}. Run manually.
+     */
+    @Ignore("Manual benchmark")
+    @Test
+    public void testSpeed() throws IOException {
+        byte[] warc = loadWarc();
+        final int RUNS = 20;
+
+        for (int warmup = 0 ; warmup < 5 ; warmup++) {
+            parseLegacy(warc);
+            parseLineReader(warc);
+        }
+        long legacyNS = -System.nanoTime();
+        for (int run = 0 ; run < RUNS ; run++) {
+            parseLegacy(warc);
+        }
+        legacyNS += System.nanoTime();
+        long readerNS = -System.nanoTime();
+        for (int run = 0 ; run < RUNS ; run++) {
+            parseLineReader(warc);
+        }
+        readerNS += System.nanoTime();
+        System.out.printf(Locale.ROOT, "Header parsing of %d bytes WARC: readLineCount %.1fms/run, " +
+                                       "HeaderLineReader %.1fms/run%n",
+                          warc.length, legacyNS/1000000.0/RUNS, readerNS/1000000.0/RUNS);
+    }
+
+    private byte[] loadWarc() throws IOException {
+        File file = getFile("src/test/resources/example_warc/IAH-20080430204825-00000-blackbook.warc.gz");
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    // Sum of WARC Content-Lengths and HTTP Content-Lengths for all records, using the pre-HeaderLineReader approach
+    private long parseLegacy(byte[] warc) throws IOException {
+        BufferedInputStream bis = new BufferedInputStream(new ByteArrayInputStream(warc));
+        long sum = 0;
+        while (bis.available() > 0) {
+            String line = WarcParser.readLineCount(bis).getLine();
+            long recordLength = 0;
+            boolean response = false;
+            while (!"".equals(line)) {
+                line = WarcParser.readLineCount(bis).getLine();
+                if (line.startsWith("Content-Length:")) {
+                    recordLength = Long.parseLong(line.split(" ")[1].trim());
+                } else if (line.startsWith("WARC-Type:")) {
+                    response = "response".equals(line.split(" ")[1].trim());
+                }
+            }
+            sum += recordLength;
+            long httpBytes = 0;
+            if (response) {
+                do {
+                    LineAndByteCount lc = WarcParser.readLineCount(bis);
+                    line = lc.getLine();
+                    httpBytes += lc.getByteCount();
+                    if (line.toLowerCase().startsWith("content-length:")) {
+                        sum += Long.parseLong(line.split(":")[1].trim());
+                    }
+                } while (!"".equals(line));
+            }
+            IOUtils.skipFully(bis, recordLength - httpBytes + 4);
+        }
+        return sum;
+    }
+
+    private long parseLineReader(byte[] warc) throws IOException {
+        HeaderLineReader reader = new HeaderLineReader(new ByteArrayInputStream(warc));
+        byte[] warcType = HeaderLineReader.field("WARC-Type:");
+        long sum = 0;
+        while (reader.nextLine()) {
+            long recordLength = 0;
+            boolean response = false;
+            do {
+                reader.nextLine();
+                if (reader.startsWith(CONTENT_LENGTH)) {
+                    recordLength = reader.longValue(CONTENT_LENGTH.length);
+                } else if (reader.startsWith(warcType)) {
+                    response = "response".equals(reader.value(warcType.length));
+                }
+            } while (!reader.isEmpty());
+            sum += recordLength;
+            long httpBytes = 0;
+            if (response) {
+                do {
+                    reader.nextLine();
+                    httpBytes += reader.getByteCount();
+                    if (reader.startsWith(CONTENT_LENGTH)) {
+                        sum += reader.longValue(CONTENT_LENGTH.length);
+                    }
+                } while (!reader.isEmpty());
+            }
+            IOUtils.skipFully(reader, recordLength - httpBytes + 4);
+        }
+        return sum;
+    }
+
+    private HeaderLineReader reader(String content) {
+        return new HeaderLineReader(new ByteArrayInputStream(content.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+}
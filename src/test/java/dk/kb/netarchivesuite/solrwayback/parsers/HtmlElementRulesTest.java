@@ -0,0 +1,166 @@
+package dk.kb.netarchivesuite.solrwayback.parsers;
+
+import dk.kb.netarchivesuite.solrwayback.UnitTestUtils;
+import dk.kb.netarchivesuite.solrwayback.normalise.Normalisation;
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
+import dk.kb.netarchivesuite.solrwayback.util.URLAbsoluter;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class HtmlElementRulesTest {
+    private static final String BASE = "http://example.com/dir/page.html";
+
+    @Before
+    public void invalidateProperties()  throws Exception{
+        PropertiesLoader.initProperties(UnitTestUtils.getFile("properties/solrwayback_unittest.properties").getPath());
+        Normalisation.setTypeFromConfig();
+        PropertiesLoader.WAYBACK_BASEURL = "http://localhost:0000/solrwayback/";
+    }
+
+    @Test
+    public void testRuleOrder() {
+        Document doc = Jsoup.parse(
+                "<html><body><IMG src=\"a.png\" style=\"background: url(b.png)\"><p style=\"x\">t</p></body></html>",
+                BASE);
+        List<String> visits = new ArrayList<>();
+        new HtmlElementRules(doc.baseUri())
+                .add("img", "abs:src", url -> { visits.add("src:" + url); return url + "?1"; })
+                .add("*", "style", style -> { visits.add("style:" + style); return null; })
+                .addRegexp("img", "style", url -> { visits.add("bg:" + url); return null; },
+                           Pattern.compile("url\\(([^)]*)\\)"))
+                .apply(doc);
+        assertEquals("Rules should be applied per element in the order they were added",
+                     "[src:http://example.com/dir/a.png, style:background: url(b.png), " +
+                     "bg:http://example.com/dir/b.png, style:x]",
+                     visits.toString());
+        assertEquals("The src attribute should be rewritten",
+                     "http://example.com/dir/a.png?1", doc.selectFirst("img").attr("src"));
+    }
+
+    /**
+     * The single traversal used by {@link HtmlParserUrlRewriter#getUrlResourcesForHtmlPage(Document, String)} should
+     * collect the same URLs as a {@code doc.select(...)} for each rule.
+     */
+    @Test
+    public void testSameAsMultiPass() throws Exception {
+        String html = createLargePage(64*1024);
+        Set<String> multiURLs = collectMultiPass(Jsoup.parse(html, BASE));
+        Set<String> singleURLs = HtmlParserUrlRewriter.getUrlResourcesForHtmlPage(Jsoup.parse(html, BASE), BASE);
+        assertFalse("Some URLs should be collected", singleURLs.isEmpty());
+        assertEquals("Single traversal should collect the same URLs as multi pass", multiURLs, singleURLs);
+    }
+
+    /**
+     * Compares URL collection using a {@code doc.select(...)} for each rule with the single traversal used by
+     * {@link HtmlParserUrlRewriter#getUrlResourcesForHtmlPage(Document, String)}, on a large page constructed from
+     * the pages in {@code example_rewrite}. Run manually.
+     */
+    @Ignore("Manual benchmark")
+    @Test
+    public void testSpeed() throws Exception {
+        String html = createLargePage(1024*1024);
+        final int RUNS = 5;
+
+        Set<String> multiURLs = null;
+        Set<String> singleURLs = null;
+        long multiNS = 0;
+        long singleNS = 0;
+        for (int run = 0 ; run <= RUNS ; run++) { // First run is warm up
+            Document doc = Jsoup.parse(html, BASE);
+            long startNS = System.nanoTime();
+            multiURLs = collectMultiPass(doc);
+            long ns = System.nanoTime() - startNS;
+            multiNS += run == 0 ? 0 : ns;
+
+            doc = Jsoup.parse(html, BASE);
+            startNS = System.nanoTime();
+            singleURLs = HtmlParserUrlRewriter.getUrlResourcesForHtmlPage(doc, BASE);
+            ns = System.nanoTime() - startNS;
+            singleNS += run == 0 ? 0 : ns;
+        }
+        assertEquals("Single traversal should collect the same URLs as multi pass", multiURLs, singleURLs);
+        System.out.printf(Locale.ROOT, "Collecting %d URLs from %dKB HTML: multi pass %.1fms, single traversal %.1fms%n",
+                          singleURLs.size(), html.length()/1024, multiNS/1000000.0/RUNS, singleNS/1000000.0/RUNS);
+    }
+
+    /**
+     * The URL collection as it was done before {@link HtmlElementRules}: One {@code doc.select(...)} per rule.
+     */
+    private Set<String> collectMultiPass(Document doc) {
+        Set<String> urls = new HashSet<>();
+        URLAbsoluter absoluter = new URLAbsoluter(BASE, true);
+        UnaryOperator<String> collector = url -> {
+            urls.add(absoluter.apply(url));
+            return null;
+        };
+        for (String[] rule: new String[][]{
+                {"img", "abs:src"}, {"img", "abs:data-src"}, {"embed", "abs:src"}, {"source", "abs:src"},
+                {"script", "abs:src"}, {"body", "abs:background"}, {"td", "abs:background"},
+                {"table", "abs:background"}, {"area", "abs:href"}, {"link", "abs:href"}, {"frame", "abs:src"},
+                {"iframe", "abs:src"}}) {
+            HtmlParserUrlRewriter.processElement(doc, rule[0], rule[1], collector);
+        }
+        HtmlParserUrlRewriter.processMultiAttribute(doc, "img", "srcset", collector);
+        HtmlParserUrlRewriter.processMultiAttribute(doc, "img", "data-srcset", collector);
+        HtmlParserUrlRewriter.processMultiAttribute(doc, "source", "srcset", collector);
+        HtmlParserUrlRewriter.processElementRegexp(doc, "style", null, collector, Pattern.compile(
+                "(?s)\\s*@import\\s+(?:url)?[(]?\\s*['\"]?([^'\")]*\\.css[^'\") ]*)['\"]?\\s*[)]?"));
+        HtmlParserUrlRewriter.processElementRegexp(doc, "*", "style", collector,
+                                                   Pattern.compile("background(?:-image)?\\s*:([^;}]*)"),
+                                                   Pattern.compile("url\\s*\\(\\s*[\"']?([^)\"']*)[\"']?\\s*\\)"));
+        HtmlParserUrlRewriter.processElement(doc, "script", null, content -> {
+            urls.addAll(ScriptRewriter.getInstance().getResourceURLs(content, BASE));
+            return null;
+        });
+        return urls;
+    }
+
+    /**
+     * Concatenates the bodies of the pages in {@code example_rewrite} until the page is at least minSize characters.
+     */
+    private String createLargePage(int minSize) throws Exception {
+        List<String> bodies = new ArrayList<>();
+        for (File file: UnitTestUtils.getFile("example_rewrite/simple.html").getParentFile().listFiles()) {
+            if (file.getName().endsWith(".html") && !file.getName().contains("expected")) {
+                String html = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+                bodies.add(Jsoup.parse(html, BASE).body().html());
+            }
+        }
+        StringBuilder sb = new StringBuilder("<html><head><title>Large</title></head><body>\n");
+        int page = 0;
+        while (sb.length() < minSize) {
+            sb.append("<div>").append(bodies.get(page++ % bodies.size())).append("</div>\n");
+        }
+        return sb.append("</body></html>").toString();
+    }
+}
@@ -0,0 +1,215 @@
+package dk.kb.netarchivesuite.solrwayback.parsers;
+
+import dk.kb.netarchivesuite.solrwayback.UnitTestUtils;
+import dk.kb.netarchivesuite.solrwayback.normalise.Normalisation;
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Attribute;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class HtmlStreamingRewriterTest {
+    private static final String URL = "http://example.com/somefolder/";
+    private static final String CRAWL_DATE = "2020-04-30T13:07:00";
+    private static final String[] PAGES = new String[]{
+            "simple", "multisource", "css", "css2", "css_import", "style_element", "cdata", "script", "script2",
+            "script_escape", "encoding", "url_escape", "inline_css"};
+
+    @Before
+    public void invalidateProperties()  throws Exception{
+        // Need this to ensure that the normaliser has a known setting
+        PropertiesLoader.initProperties(UnitTestUtils.getFile("properties/solrwayback_unittest.properties").getPath());
+        Normalisation.setTypeFromConfig();
+
+        // We need this so that we know what the Solr server is set to
+        PropertiesLoader.WAYBACK_BASEURL = "http://localhost:0000/solrwayback/";
+    }
+
+    @Test
+    public void testCollectEquivalence() throws Exception {
+        for (String page: PAGES) {
+            final String html = RewriteTestHelper.fetchUTF8("example_rewrite/" + page + ".html");
+            assertEquals("The collected URLs for '" + page + "' should match the DOM engine",
+                         HtmlParserUrlRewriter.getUrlResourcesForHtmlPage(Jsoup.parse(html, URL), URL),
+                         new HtmlStreamingRewriter(() -> new StringReader(html), URL, CRAWL_DATE).getUrlResources());
+        }
+    }
+
+    @Test
+    public void testRewriteEquivalence() throws Exception {
+        for (String page: PAGES) {
+            assertRewriteEquivalence(page, RewriteTestHelper.fetchUTF8("example_rewrite/" + page + ".html"));
+        }
+    }
+
+    @Test
+    public void testBaseHref() throws Exception {
+        assertRewriteEquivalence(
+                "base", "<html><head><link rel=\"stylesheet\" href=\"style_o1.css\">" +
+                        "<base href=\"http://other.example.com/base/\"></head>" +
+                        "<body><img src=\"image_o2.png\"><a href=\"page.html\">link</a></body></html>");
+    }
+
+    @Test
+    public void testMarkupEdgeCases() throws Exception {
+        assertRewriteEquivalence(
+                "edge", "<!DOCTYPE html><html><head><!-- <img src=\"comment_o1.png\"> --></head>" +
+                        "<BODY BACKGROUND=bg_o2.png><IMG SRC='upper_o3.png' alt=\"a > b\">" +
+                        "<img src = \"spaced_o4.png\" ><img data-src=\"a_o5.png?x=1&amp;y=2\" src>" +
+                        "<textarea><img src=\"textarea_o6.png\"></textarea>" +
+                        "<script>var s = '<img src=\"script_o7.png\">';</script >" +
+                        "<div style=\"background: url('div_o8.png')\">x</div></body></html>");
+    }
+
+    @Test
+    public void testInjection() throws Exception {
+        final String html = "<html><head><title>t</title></head><body class=\"x\"><p>Hello</p></body></html>";
+        HtmlStreamingRewriter rewriter = new HtmlStreamingRewriter(() -> new StringReader(html), URL, CRAWL_DATE);
+        rewriter.resolve(RewriteTestHelper.createOXResolver(true));
+        StringWriter sw = new StringWriter();
+        rewriter.write(sw, "<meta name=\"referrer\" content=\"unsafe-url\">", "<div id=\"toolbar\"></div>");
+        assertEquals("The injections should be placed after the start tags",
+                     "<html><head><meta name=\"referrer\" content=\"unsafe-url\"><title>t</title></head>" +
+                     "<body class=\"x\"><div id=\"toolbar\"></div><p>Hello</p></body></html>",
+                     sw.toString());
+
+        final String noBody = "<p>Hello</p>";
+        rewriter = new HtmlStreamingRewriter(() -> new StringReader(noBody), URL, CRAWL_DATE);
+        rewriter.resolve(RewriteTestHelper.createOXResolver(true));
+        sw = new StringWriter();
+        rewriter.write(sw, null, "<div id=\"toolbar\"></div>");
+        assertEquals("Without a body, the injection should be at the end",
+                     "<p>Hello</p><div id=\"toolbar\"></div>", sw.toString());
+    }
+
+    @Test
+    public void testInjectionWithoutHead() throws Exception {
+        final String meta = "<meta name=\"referrer\" content=\"unsafe-url\">";
+        String[][] cases = new String[][]{
+                {"<!DOCTYPE html>\n<html><title>t</title><body><p>Hello</p></body></html>",
+                 "<!DOCTYPE html>\n<html><title>t</title>" + meta + "<body><p>Hello</p></body></html>"},
+                {"<html>\n<p>Hello</p></html>",
+                 "<html>\n" + meta + "<p>Hello</p></html>"},
+                {"<meta charset=\"utf-8\">Hello",
+                 "<meta charset=\"utf-8\">" + meta + "Hello"},
+                {"<html></html>",
+                 "<html>" + meta + "</html>"}
+        };
+        for (String[] c: cases) {
+            HtmlStreamingRewriter rewriter = new HtmlStreamingRewriter(() -> new StringReader(c[0]), URL, CRAWL_DATE);
+            rewriter.resolve(RewriteTestHelper.createOXResolver(true));
+            StringWriter sw = new StringWriter();
+            rewriter.write(sw, meta, null);
+            assertEquals("Without a head, the injection should be before the first body content for " + c[0],
+                         c[1], sw.toString());
+        }
+    }
+
+    /**
+     * Compares time for the DOM and the streaming engine on a large page. Not a proper micro benchmark.
+     * The equivalence of the engines is covered by the other tests. Run manually.
+     */
+    @Ignore("Manual benchmark")
+    @Test
+    public void testSpeed() throws Exception {
+        StringBuilder sb = new StringBuilder("<html><head><title>Large</title></head><body>\n");
+        int copy = 0;
+        while (sb.length() < 2*1024*1024) {
+            for (String page: PAGES) {
+                String html = RewriteTestHelper.fetchUTF8("example_rewrite/" + page + ".html");
+                html = html.replaceAll("(?s).*<body[^>]*>", "").replaceAll("(?s)</body>.*", "");
+                sb.append(html.replaceAll("_o([0-9]+)", "_c" + copy++ + "_o$1"));
+            }
+        }
+        final String large = sb.append("</body></html>").toString();
+
+        // Warm up
+        HtmlParserUrlRewriter.replaceLinks(large, URL, CRAWL_DATE, RewriteTestHelper.createOXResolver(true));
+        HtmlStreamingRewriter.replaceLinks(large, URL, CRAWL_DATE, RewriteTestHelper.createOXResolver(true));
+
+        long domNS = -System.nanoTime();
+        ParseResult dom = HtmlParserUrlRewriter.replaceLinks(
+                large, URL, CRAWL_DATE, RewriteTestHelper.createOXResolver(true));
+        domNS += System.nanoTime();
+        long streamingNS = -System.nanoTime();
+        ParseResult streaming = HtmlStreamingRewriter.replaceLinks(
+                large, URL, CRAWL_DATE, RewriteTestHelper.createOXResolver(true));
+        streamingNS += System.nanoTime();
+
+        System.out.printf(Locale.ROOT, "Rewriting %.1fMB page with %d links: DOM %.1fms, streaming %.1fms%n",
+                          large.length()/1048576.0, dom.getNumberOfLinksReplaced(), domNS/1000000.0,
+                          streamingNS/1000000.0);
+        assertEquals("The number of replaced links should match",
+                     dom.getNumberOfLinksReplaced(), streaming.getNumberOfLinksReplaced());
+        assertEquals("The rewritten elements should match",
+                     elements(dom.getReplaced()), elements(streaming.getReplaced()));
+    }
+
+    /**
+     * Rewrites the html with both the DOM and the streaming engine and compares the elements after parsing the
+     * results with JSOUP, as the DOM engine normalises the markup.
+     */
+    private void assertRewriteEquivalence(String designation, String html) throws Exception {
+        for (boolean identity: new boolean[]{false, true}) {
+            HtmlParserUrlRewriter.NearestResolver resolver = identity ?
+                    RewriteTestHelper.createIdentityResolver() :
+                    RewriteTestHelper.createOXResolver(true);
+            ParseResult dom = HtmlParserUrlRewriter.replaceLinks(html, URL, CRAWL_DATE, resolver);
+            ParseResult streaming = HtmlStreamingRewriter.replaceLinks(html, URL, CRAWL_DATE, resolver);
+
+            String message = "For '" + designation + "' with identity=" + identity + ", ";
+            assertEquals(message + "the rewritten elements should match the DOM engine",
+                         elements(dom.getReplaced()), elements(streaming.getReplaced()));
+            assertEquals(message + "the number of replaced links should match the DOM engine",
+                         dom.getNumberOfLinksReplaced(), streaming.getNumberOfLinksReplaced());
+            assertEquals(message + "the number of not found links should match the DOM engine",
+                         dom.getNumberOfLinksNotFound(), streaming.getNumberOfLinksNotFound());
+        }
+    }
+
+    /**
+     * @return the elements in document order with sorted attributes and the data for script and style elements.
+     */
+    private List<String> elements(String html) {
+        Document doc = Jsoup.parse(html, URL);
+        List<String> elements = new ArrayList<>();
+        for (Element element: doc.getAllElements()) {
+            Set<String> attributes = new HashSet<>();
+            for (Attribute attribute: element.attributes()) {
+                attributes.add(attribute.getKey() + "=" + attribute.getValue());
+            }
+            elements.add(element.normalName() + " " + attributes.stream().sorted().collect(Collectors.toList()) +
+                         ("script".equals(element.normalName()) || "style".equals(element.normalName()) ?
+                                 " " + element.data().trim() : ""));
+        }
+        return elements;
+    }
+}
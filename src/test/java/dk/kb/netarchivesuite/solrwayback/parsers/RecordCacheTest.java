@@ -0,0 +1,138 @@
+package dk.kb.netarchivesuite.solrwayback.parsers;
+
+import dk.kb.netarchivesuite.solrwayback.UnitTestUtils;
+import dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource;
+import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RecordCacheTest {
+    private static final String WARC = "src/test/resources/example_warc/IAH-20080430204825-00000-blackbook.warc.gz";
+    private static final long ROBOTS = 707;  // text/plain, 685 bytes compressed
+    private static final long LOGO = 11823;  // image/jpeg
+
+    @Test
+    public void testAdmissionAndHit() throws Exception {
+        CountingSource source = new CountingSource();
+        RecordCache cache = new RecordCache(1024*1024, 100*1024);
+
+        byte[] expected = readBinary(WarcParser.getWarcEntry(source.source, ROBOTS, true));
+        assertNull("The record should not be cached before being offered", cache.get(WARC, ROBOTS));
+
+        cache.offer(WARC, ROBOTS, WarcParser.getWarcEntry(source.source, ROBOTS, true));
+        assertEquals("The first offer should not admit the record", 0, cache.size());
+        ArcEntry offered = cache.offer(WARC, ROBOTS, WarcParser.getWarcEntry(source.source, ROBOTS, true));
+        assertEquals("The second offer should admit the record", 1, cache.size());
+        assertArrayEquals("The offered entry should deliver the binary", expected, readBinary(offered));
+
+        int opens = source.opens.get();
+        ArcEntry cached = cache.get(WARC, ROBOTS);
+        assertNotNull("The record should be cached", cached);
+        assertEquals("http://www.archive.org/robots.txt", cached.getUrl());
+        assertArrayEquals("The cached entry should deliver the binary", expected, readBinary(cached));
+        assertArrayEquals("The binary should be deliverable more than once", expected, readBinary(cached));
+        assertEquals("Cache hits should not open the WARC", opens, source.opens.get());
+        assertEquals(1, cache.getHits());
+        assertTrue(cache.getHitRate() > 0);
+    }
+
+    @Test
+    public void testCopies() throws Exception {
+        CountingSource source = new CountingSource();
+        RecordCache cache = new RecordCache(1024*1024, 100*1024);
+        cache.offer(WARC, ROBOTS, WarcParser.getWarcEntry(source.source, ROBOTS, true));
+        cache.offer(WARC, ROBOTS, WarcParser.getWarcEntry(source.source, ROBOTS, true));
+
+        ArcEntry first = cache.get(WARC, ROBOTS);
+        byte[] expected = readBinary(first);
+        first.setStringContent("Replaced");
+        assertArrayEquals("Modifying a returned entry should not change the cached entry",
+                          expected, readBinary(cache.get(WARC, ROBOTS)));
+    }
+
+    @Test
+    public void testBounds() throws Exception {
+        CountingSource source = new CountingSource();
+        ArcEntry robots = WarcParser.getWarcEntry(source.source, ROBOTS, true);
+        long robotsSize = robots.getBinaryArraySize();
+        readBinary(robots);
+
+        RecordCache small = new RecordCache(1024*1024, (int) robotsSize - 1);
+        small.offer(WARC, ROBOTS, WarcParser.getWarcEntry(source.source, ROBOTS, true));
+        small.offer(WARC, ROBOTS, WarcParser.getWarcEntry(source.source, ROBOTS, true));
+        assertEquals("Records larger than max record size should not be cached", 0, small.size());
+
+        RecordCache budget = new RecordCache(robotsSize, (int) robotsSize*100);
+        for (long offset: new long[]{ROBOTS, LOGO}) {
+            budget.offer(WARC, offset, WarcParser.getWarcEntry(source.source, offset, true));
+            budget.offer(WARC, offset, WarcParser.getWarcEntry(source.source, offset, true));
+        }
+        assertTrue("The cache should stay within its byte budget, but held " + budget.getCachedBytes() + " bytes",
+                   budget.getCachedBytes() <= robotsSize);
+        assertTrue("Records should have been evicted", budget.getEvictions() > 0);
+    }
+
+    @Test
+    public void testFrequencyAdmission() throws Exception {
+        CountingSource source = new CountingSource();
+        long robotsSize = WarcParser.getWarcEntry(source.source, ROBOTS, true).getBinaryArraySize();
+        RecordCache cache = new RecordCache(robotsSize*3, 100*1024);
+        for (int i = 0 ; i < 5 ; i++) {
+            cache.offer(WARC, ROBOTS, WarcParser.getWarcEntry(source.source, ROBOTS, true));
+        }
+        // The content is the same for all offsets, but the cache only uses the offsets as keys
+        for (int i = 0 ; i < 100 ; i++) {
+            cache.offer(WARC, 1000000+i, WarcParser.getWarcEntry(source.source, ROBOTS, true));
+            cache.offer(WARC, 1000000+i, WarcParser.getWarcEntry(source.source, ROBOTS, true));
+        }
+        assertNotNull("A frequently requested record should not be evicted by less frequent records",
+                      cache.get(WARC, ROBOTS));
+        assertTrue("The cache should stay within its byte budget", cache.getCachedBytes() <= robotsSize*3);
+    }
+
+    @Test
+    public void testAging() throws Exception {
+        CountingSource source = new CountingSource();
+        long robotsSize = WarcParser.getWarcEntry(source.source, ROBOTS, true).getBinaryArraySize();
+        RecordCache cache = new RecordCache(robotsSize, 100*1024);
+        for (int i = 0 ; i < 5 ; i++) {
+            cache.offer(WARC, ROBOTS, WarcParser.getWarcEntry(source.source, ROBOTS, true));
+        }
+        for (int i = 0 ; i < 5000 ; i++) { // One-off requests, which are never admitted
+            cache.offer(WARC, 1000000+i, WarcParser.getWarcEntry(source.source, ROBOTS, true));
+        }
+        assertEquals("One-off requests should not be admitted", 1, cache.size());
+        cache.offer(WARC, 42, WarcParser.getWarcEntry(source.source, ROBOTS, true));
+        cache.offer(WARC, 42, WarcParser.getWarcEntry(source.source, ROBOTS, true));
+        assertNotNull("The popularity of the old record should have faded, so a new record can replace it",
+                      cache.get(WARC, 42));
+        assertNull(cache.get(WARC, ROBOTS));
+    }
+
+    private byte[] readBinary(ArcEntry entry) throws IOException {
+        try (InputStream in = entry.getBinaryRaw()) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    private static class CountingSource {
+        final AtomicInteger opens = new AtomicInteger(0);
+        final ArcSource source;
+
+        CountingSource() throws IOException {
+            File file = UnitTestUtils.getFile(WARC);
+            ArcSource plain = ArcSource.fromFile(file.getCanonicalPath());
+            source = new ArcSource(plain.getSource(), () -> {
+                opens.incrementAndGet();
+                return plain.get();
+            });
+        }
+    }
+}
@@ -17,9 +17,11 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
@@ -243,6 +245,50 @@ public class TestExportWarcStreaming extends UnitTestUtils {
     }
   }
 
+  @Test
+  public void testParallelOrder() throws Exception {
+    final String WARC = "example_warc/IAH-20080430204825-00000-blackbook.warc.gz";
+    String[][] entries = FileUtils.readLines(getFile(WARC + ".cdx"), "UTF-8").stream().
+            skip(1).
+            map(line -> line.split(" ")).
+            filter(tokens -> "200".equals(tokens[4])).
+            map(tokens -> new String[]{WARC, tokens[9]}).
+            toArray(String[][]::new);
+    assertTrue("There should be multiple records to export, but there were " + entries.length, entries.length > 10);
+
+    for (boolean gzip: new boolean[]{false, true}) {
+      byte[] serial = IOUtils.toByteArray(new StreamingSolrWarcExportBufferedInputStream(
+              getMockedSolrDocs(entries), entries.length, gzip, 1, 1024*1024));
+      // Small buffer to force pausing and temporary file buffering of the larger records
+      StreamingSolrWarcExportBufferedInputStream parallelStream = new StreamingSolrWarcExportBufferedInputStream(
+              getMockedSolrDocs(entries), entries.length, gzip, 8, 100*1024);
+      byte[] parallel = IOUtils.toByteArray(parallelStream);
+      log.info("Parallel export: " + parallelStream);
+      assertTrue("The export should not be empty", serial.length > 0);
+      assertTrue("Parallel and serial export should be equal with gzip=" + gzip, Arrays.equals(serial, parallel));
+    }
+  }
+
+  @Test
+  public void testGzipPassthrough() throws Exception {
+    final String WARC = "example_warc/IAH-20080430204825-00000-blackbook.warc.gz";
+    String[][] entries = FileUtils.readLines(getFile(WARC + ".cdx"), "UTF-8").stream().
+            skip(1).
+            map(line -> new String[]{WARC, line.split(" ")[9]}).
+            toArray(String[][]::new);
+    long responses = FileUtils.readLines(getFile(WARC + ".cdx"), "UTF-8").stream().
+            skip(1).filter(line -> !"-".equals(line.split(" ")[4])).count();
+
+    byte[] plain = IOUtils.toByteArray(new StreamingSolrWarcExportBufferedInputStream(
+            getMockedSolrDocs(entries), entries.length, false));
+    StreamingSolrWarcExportBufferedInputStream gzipStream = new StreamingSolrWarcExportBufferedInputStream(
+            getMockedSolrDocs(entries), entries.length, true);
+    byte[] gzipped = IOUtils.toByteArray(gzipStream);
+    assertEquals("All HTTP responses should be passed through", responses, gzipStream.getPassthroughRecords());
+    byte[] gunzipped = IOUtils.toByteArray(new GzipCompressorInputStream(new ByteArrayInputStream(gzipped), true));
+    assertTrue("The gunzipped export should match the non-gzipped export", Arrays.equals(plain, gunzipped));
+  }
+
   /**
    * Checks that the last exported binary is exported correctly.
    *
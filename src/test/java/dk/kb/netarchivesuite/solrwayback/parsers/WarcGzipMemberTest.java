@@ -0,0 +1,53 @@
+package dk.kb.netarchivesuite.solrwayback.parsers;
+
+import dk.kb.netarchivesuite.solrwayback.UnitTestUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WarcGzipMemberTest {
+    private static final String WARC = "src/test/resources/example_warc/IAH-20080430204825-00000-blackbook.warc.gz";
+
+    @Test
+    public void testMemberLengths() throws Exception {
+        File file = UnitTestUtils.getFile(WARC);
+        byte[] data = Files.readAllBytes(file.toPath());
+        List<String> cdx = Files.readAllLines(new File(file.getPath() + ".cdx").toPath());
+        assertTrue("There should be records in the CDX", cdx.size() > 10);
+        for (String line: cdx.subList(1, cdx.size())) {
+            String[] tokens = line.split(" ");
+            long length = "-".equals(tokens[4]) ? -1 : Long.parseLong(tokens[8]); // Only HTTP responses
+            int offset = Integer.parseInt(tokens[9]);
+            try (InputStream in = new ByteArrayInputStream(data, offset, data.length - offset)) {
+                assertEquals("The member length for the " + tokens[3] + " record at offset " + offset + " should match the CDX",
+                             length, WarcGzipMember.getMemberLength(in));
+            }
+        }
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        File file = UnitTestUtils.getFile(WARC);
+        byte[] data = Files.readAllBytes(file.toPath());
+        String[] tokens = Files.readAllLines(new File(file.getPath() + ".cdx").toPath()).get(3).split(" ");
+        int offset = Integer.parseInt(tokens[9]);
+        int length = Integer.parseInt(tokens[8]);
+        byte[] truncated = Arrays.copyOfRange(data, offset, offset + length - 10);
+        assertEquals("A truncated member should not be accepted",
+                     -1, WarcGzipMember.getMemberLength(new ByteArrayInputStream(truncated)));
+    }
+
+    @Test
+    public void testNotGzip() throws Exception {
+        assertEquals("Non-gzip content should not be accepted",
+                     -1, WarcGzipMember.getMemberLength(new ByteArrayInputStream("WARC/1.0\r\n".getBytes("UTF-8"))));
+    }
+}
@@ -4,6 +4,7 @@ import static org.junit.Assert.*;
 import java.awt.image.BufferedImage;
 import java.io.BufferedInputStream;
 import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.IOUtils;
 import org.junit.Test;
@@ -11,6 +12,8 @@ import org.junit.Test;
 import dk.kb.netarchivesuite.solrwayback.UnitTestUtils;
 import dk.kb.netarchivesuite.solrwayback.facade.Facade;
 import dk.kb.netarchivesuite.solrwayback.image.ImageUtils;
+import dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource;
+import dk.kb.netarchivesuite.solrwayback.parsers.WarcParser;
 import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
 
 
@@ -59,6 +62,29 @@ public class WarcGzParserTest  extends UnitTestUtils{
     
     }
 
+    @Test
+    public void testRetainedBinary() throws Exception {
+        File file = getFile("src/test/resources/example_warc/IAH-20080430204825-00000-blackbook.warc.gz");
+        AtomicInteger opens = new AtomicInteger(0);
+        ArcSource plain = ArcSource.fromFile(file.getCanonicalPath());
+        ArcSource counting = new ArcSource(plain.getSource(), () -> {
+            opens.incrementAndGet();
+            return plain.get();
+        });
+
+        byte[] expected = IOUtils.toByteArray(WarcParser.lazyLoadBinary(plain, 48777));
+
+        ArcEntry arcEntry = WarcParser.getWarcEntry(counting, 48777, true);
+        assertEquals("Header parse should open the source once", 1, opens.get());
+        assertTrue("Binary offset should be known after header parse", arcEntry.getBinaryOffset() > 0);
+        assertArrayEquals(expected, IOUtils.toByteArray(arcEntry.getBinaryRaw()));
+        assertEquals("First binary read should reuse the retained stream", 1, opens.get());
+
+        // Second read re-opens the source but skips directly to the binary
+        assertArrayEquals(expected, IOUtils.toByteArray(arcEntry.getBinaryRaw()));
+        assertEquals("Second binary read should open the source again", 2, opens.get());
+    }
+
     /* The warc file used for these tests below can not be shared.
    
      @Test
@@ -0,0 +1,153 @@
+package dk.kb.netarchivesuite.solrwayback.playback;
+
+import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class PlaybackCacheTest {
+    private static final String WARC = "/warcs/some.warc.gz";
+
+    @Test
+    public void testHit() throws Exception {
+        PlaybackCache cache = new PlaybackCache(1024*1024, 100*1024, null, 0);
+        String page = page("Hello", 100);
+        assertNull("Nothing should be cached initially", cache.get(WARC, 10, true, false, 0));
+
+        ArcEntry offered = cache.offer(WARC, 10, true, false, 0, rendered(page));
+        assertEquals("The offered entry should still deliver the content", page, read(offered));
+        assertTrue("The page should be held compressed, but took " + cache.getCachedBytes() + " bytes",
+                   cache.getCachedBytes() < page.length() / 4);
+
+        ArcEntry cached = cache.get(WARC, 10, true, false, 0);
+        assertNotNull("The rendered page should be cached", cached);
+        assertEquals("The cached content should match", page, read(cached));
+        assertEquals("The content should be deliverable more than once", page, read(cached));
+        assertTrue("The cached entry should be marked as rendered", cached.isHasBeenDecompressed());
+        assertEquals("text/html", cached.getContentType());
+
+        assertNull("Another showToolbar should be a separate entry", cache.get(WARC, 10, false, false, 0));
+        assertNull("Another lenient should be a separate entry", cache.get(WARC, 10, true, true, 0));
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testCopies() {
+        PlaybackCache cache = new PlaybackCache(1024*1024, 100*1024, null, 0);
+        cache.offer(WARC, 10, true, false, 0, rendered("Original"));
+        cache.get(WARC, 10, true, false, 0).setStringContent("Replaced");
+        assertEquals("Modifying a returned entry should not change the cached entry",
+                     "Original", read(cache.get(WARC, 10, true, false, 0)));
+    }
+
+    @Test
+    public void testBypass() {
+        PlaybackCache cache = new PlaybackCache(1024*1024, 100, null, 0);
+        cache.offer(WARC, 10, true, false, 0, rendered(page("Large", 200)));
+        assertEquals("Output larger than max entry bytes should not be cached", 0, cache.size());
+
+        ArcEntry streamed = rendered("Streamed");
+        streamed.setStreamingContent(new ByteArrayInputStream("Streamed".getBytes(StandardCharsets.UTF_8)));
+        cache.offer(WARC, 20, true, false, 0, streamed);
+        assertEquals("Streamed output should not be cached", 0, cache.size());
+        assertEquals("Streamed output should be deliverable after being offered", "Streamed", read(streamed));
+        assertEquals(2, cache.getBypasses());
+    }
+
+    @Test
+    public void testGeneration() {
+        PlaybackCache cache = new PlaybackCache(1024*1024, 100*1024, null, 0);
+        cache.offer(WARC, 10, true, false, 0, rendered("Generation 0"));
+        assertNull("A new index generation should not see old entries", cache.get(WARC, 10, true, false, 1));
+
+        cache.offer(WARC, 20, true, false, 1, rendered("Generation 1"));
+        assertEquals("Admitting an entry for a new generation should clear the old entries", 1, cache.size());
+        cache.offer(WARC, 10, true, false, 0, rendered("Late generation 0"));
+        assertEquals("Entries rendered for an old generation should not be admitted", 1, cache.size());
+        assertEquals("Generation 1", read(cache.get(WARC, 20, true, false, 1)));
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        Path folder = Files.createTempDirectory("playback_cache_test");
+        try {
+            String first = page("First", 100);
+            String second = page("Second", 100);
+            long firstDeflated = deflatedSize(first);
+            PlaybackCache cache = new PlaybackCache(firstDeflated + 1, 100*1024, folder.toString(), 1024*1024);
+
+            cache.offer(WARC, 10, true, false, 0, rendered(first));
+            cache.offer(WARC, 20, true, false, 0, rendered(second));
+            assertTrue("The first page should have been evicted from memory", cache.getEvictions() > 0);
+            assertTrue("The first page should have been spilled to disk", cache.getSpilledBytes() > 0);
+
+            assertEquals("The spilled page should be served from disk", first, read(cache.get(WARC, 10, true, false, 0)));
+            assertEquals(1, cache.getDiskHits());
+            assertEquals("Both pages should still be cached", 2, cache.size());
+
+            cache.clear();
+            assertEquals("Clearing should remove all entries", 0, cache.size());
+            try (Stream<Path> files = Files.walk(folder)) {
+                assertEquals("Clearing should delete all spilled files",
+                             0, files.filter(Files::isRegularFile).count());
+            }
+        } finally {
+            FileUtils.deleteDirectory(folder.toFile());
+        }
+    }
+
+    private static long deflatedSize(String page) {
+        PlaybackCache probe = new PlaybackCache(1024*1024, 100*1024, null, 0);
+        probe.offer(WARC, 0, true, false, 0, rendered(page));
+        return probe.getCachedBytes();
+    }
+
+    private static String page(String designation, int repetitions) {
+        StringBuilder sb = new StringBuilder("<html><body>");
+        for (int i = 0 ; i < repetitions ; i++) {
+            sb.append("<p>").append(designation).append(" paragraph ").append(i).append("</p>\n");
+        }
+        return sb.append("</body></html>").toString();
+    }
+
+    private static ArcEntry rendered(String content) {
+        ArcEntry entry = new ArcEntry();
+        entry.setContentType("text/html");
+        entry.setContentCharset("UTF-8");
+        entry.setStringContent(content);
+        return entry;
+    }
+
+    private static String read(ArcEntry entry) {
+        try (InputStream in = entry.getBinaryNoChunking()) {
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read binary", e);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.solr;
+
+import dk.kb.netarchivesuite.solrwayback.UnitTestUtils;
+import dk.kb.netarchivesuite.solrwayback.normalise.Normalisation;
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
+import dk.kb.netarchivesuite.solrwayback.service.dto.IndexDocShort;
+import dk.kb.netarchivesuite.solrwayback.util.UrlUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.CoreContainer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ArchivedUrlFilterTest {
+    private static final String SOLR_HOME = "target/test-classes/solr_9";
+    private static final String HARVEST = "2020-01-01T10:00:00Z";
+    private static final int HOSTS = 5;
+    private static final int PAGES = 200;
+
+    private static CoreContainer coreContainer = null;
+    private static EmbeddedSolrServer solr = null;
+    private static int id = 0;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        PropertiesLoader.initProperties(UnitTestUtils.getFile("properties/solrwayback_unittest.properties").getPath());
+
+        // Embedded Solr 9.1+ must have absolute home both as env and explicit param
+        System.setProperty("solr.install.dir", Path.of(SOLR_HOME).toAbsolutePath().toString());
+        coreContainer = CoreContainer.createAndLoad(Path.of(SOLR_HOME).toAbsolutePath());
+        coreContainer.load();
+        solr = new EmbeddedSolrServer(coreContainer, "netarchivebuilder");
+        NetarchiveSolrTestClient.initializeOverLoadUnitTest(solr);
+
+        solr.deleteByQuery("*:*");
+        Normalisation.setTypeFromConfig();
+        for (int host = 0 ; host < HOSTS ; host++) {
+            for (int page = 0 ; page < PAGES ; page++) {
+                addDocument(url(host, page));
+            }
+        }
+        solr.commit();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        coreContainer.shutdown();
+        solr.close();
+    }
+
+    @Before
+    public void setNormaliser() {
+        // Other tests might have changed the normaliser
+        Normalisation.setTypeFromConfig();
+    }
+
+    @Test
+    public void testBuildAndOpen() throws Exception {
+        Path folder = Files.createTempDirectory("archived_url_filter_test");
+        try {
+            ArchivedUrlFilter built = ArchivedUrlFilter.build(solr, folder.toFile(), 0.01);
+            ArchivedUrlFilter opened = ArchivedUrlFilter.open(folder.toFile());
+            for (ArchivedUrlFilter filter: new ArchivedUrlFilter[]{built, opened}) {
+                for (int host = 0 ; host < HOSTS ; host++) {
+                    for (int page = 0 ; page < PAGES ; page++) {
+                        String url = url(host, page);
+                        assertTrue("Indexed URLs should never be reported as absent: " + url,
+                                   filter.mightContain(Normalisation.canonicaliseURL(url)));
+                        assertTrue("Indexed URLs should never be reported as absent for lenient: " + url,
+                                   filter.mightContainLenient(url, UrlUtils.punyCodeAndNormaliseUrlSafe(url)));
+                    }
+                }
+                assertFalse("A URL that was never archived should be absent",
+                            filter.mightContain("http://host0.example.com/never.html"));
+                String argVariant = "http://host0.example.com/page.php?id=1&session=foo";
+                assertTrue("An argument variant on an indexed host might be resolved leniently",
+                           filter.mightContainLenient(argVariant, UrlUtils.punyCodeAndNormaliseUrlSafe(argVariant)));
+                String otherHost = "http://unknown.example.com/page.php?id=1";
+                assertFalse("An argument variant on an unknown host should not be resolvable leniently",
+                            filter.mightContainLenient(otherHost, UrlUtils.punyCodeAndNormaliseUrlSafe(otherHost)));
+            }
+            assertEquals("The opened filter should use the same memory as the built filter",
+                         built.getBytes(), opened.getBytes());
+            assertEquals("The opened filter should have the same estimated false positive rate as the built filter",
+                         built.getEstimatedFalsePositiveRate(), opened.getEstimatedFalsePositiveRate(), 0.0);
+        } finally {
+            FileUtils.deleteDirectory(folder.toFile());
+        }
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+        Path folder = Files.createTempDirectory("archived_url_filter_test");
+        try {
+            ArchivedUrlFilter filter = ArchivedUrlFilter.build(solr, folder.toFile(), 0.01);
+            String added = "http://added.example.com/page.html";
+            assertFalse("The URL should not be in the filter before it is indexed",
+                        filter.mightContain(Normalisation.canonicaliseURL(added)));
+            Thread.sleep(5); // Ensure later index_time
+            addDocument(added);
+            solr.commit();
+            assertTrue("The update should receive the added document", filter.update(solr) > 0);
+            assertTrue("The added URL should be in the filter after update",
+                       filter.mightContain(Normalisation.canonicaliseURL(added)));
+        } finally {
+            FileUtils.deleteDirectory(folder.toFile());
+        }
+    }
+
+    /**
+     * Checks the false positive rate and the memory use for a filter filled to capacity.
+     */
+    @Test
+    public void testFalsePositiveRate() {
+        final int entries = 200000;
+        ArchivedUrlFilter.Bloom bloom = ArchivedUrlFilter.Bloom.create(entries, 0.01);
+        for (int i = 0 ; i < entries ; i++) {
+            bloom.add("http://example.com/present" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0 ; i < entries ; i++) {
+            assertTrue("There should be no false negatives", bloom.mightContain("http://example.com/present" + i));
+            if (bloom.mightContain("http://example.com/absent" + i)) {
+                falsePositives++;
+            }
+        }
+        double rate = 1.0 * falsePositives / entries;
+        assertTrue("The false positive rate should be near 0.01 but was " + rate, rate < 0.015);
+        assertEquals("The estimated false positive rate should match the measured rate",
+                     rate, bloom.getEstimatedFalsePositiveRate(), 0.005);
+        double bytesPerEntry = 1.0 * bloom.getBytes() / entries;
+        assertTrue("A rate of 0.01 should use about 1.2 bytes per entry but used " + bytesPerEntry,
+                   bytesPerEntry > 1.1 && bytesPerEntry < 1.3);
+    }
+
+    @Test
+    public void testResolving() throws Exception {
+        Path folder = Files.createTempDirectory("archived_url_filter_test");
+        try {
+            ArchivedUrlFilter filter = ArchivedUrlFilter.build(solr, folder.toFile(), 0.01);
+            NetarchiveSolrClient client = NetarchiveSolrClient.getInstance();
+            List<String> urls = new ArrayList<>();
+            for (int page = 0 ; page < 20 ; page++) {
+                urls.add(url(page % HOSTS, page));
+                urls.add("http://host" + (page % HOSTS) + ".example.com/missing" + page + ".gif");
+                urls.add("http://unknown" + page + ".example.com/missing.gif?arg=" + page);
+            }
+            urls.add("http://host0.example.com/page.php?id=7&session=bar"); // Lenient match for host0 page 7
+
+            for (boolean lenient: new boolean[]{false, true}) {
+                List<String> unfiltered = describe(client.findNearestUrlsShort(urls, HARVEST, lenient));
+                long lenientBefore = client.getLenientAttempts();
+                NetarchiveSolrClient.archivedUrlFilter = filter;
+                try {
+                    assertEquals("Resolving with the filter should give the same result (lenient=" + lenient + ")",
+                                 unfiltered, describe(client.findNearestUrlsShort(urls, HARVEST, lenient)));
+                } finally {
+                    NetarchiveSolrClient.archivedUrlFilter = null;
+                }
+                if (lenient) {
+                    assertEquals("Only the argument variant should be resolved leniently",
+                                 1, client.getLenientAttempts() - lenientBefore);
+                }
+            }
+            assertTrue("The filter should have skipped lookups: " + filter, filter.getAbsent() > 0);
+        } finally {
+            FileUtils.deleteDirectory(folder.toFile());
+        }
+    }
+
+    private static void addDocument(String url) throws Exception {
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.addField("id", "doc" + id++);
+        doc.addField("url", url);
+        doc.addField("url_norm", Normalisation.canonicaliseURL(url));
+        doc.addField("host", UrlUtils.punyCodeAndNormaliseUrl(url).replaceAll("https?://([^/]+)/.*", "$1"));
+        doc.addField("crawl_date", HARVEST);
+        doc.addField("record_type", "response");
+        doc.addField("status_code", "200");
+        doc.addField("source_file_path", "some.warc");
+        doc.addField("source_file_offset", id);
+        solr.add(doc);
+    }
+
+    private static String url(int host, int page) {
+        return page % 10 == 7 ?
+                "http://host" + host + ".example.com/page.php?id=" + page :
+                "http://host" + host + ".example.com/page" + page + ".html";
+    }
+
+    private static List<String> describe(Collection<IndexDocShort> docs) {
+        return docs.stream()
+                .map(doc -> doc.getUrl_norm() + " " + doc.getUrl() + " " + doc.getCrawlDate() + " " +
+                            doc.getSource_file_path() + "@" + doc.getOffset())
+                .sorted()
+                .collect(Collectors.toList());
+    }
+}
@@ -1,8 +1,21 @@
 package dk.kb.netarchivesuite.solrwayback.solr;
 
 import junit.framework.TestCase;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /*
  *  Licensed under the Apache License, Version 2.0 (the "License");
  *  you may not use this file except in compliance with the License.
@@ -38,4 +51,86 @@ public class CachingSolrClientTest extends TestCase {
         assertEquals("The named cache (linked from query cache) time should match creation time",
                 CACHE_TIME_SECONDS*1000L, caching.namedCache.getMaxAgeMS());
     }
-}
\ No newline at end of file
+
+    public void testCoalescing() throws Exception {
+        final int THREADS = 100;
+        SlowSolrClient inner = new SlowSolrClient(false);
+        CachingSolrClient caching = new CachingSolrClient(inner, 100, 60, 10);
+
+        List<Future<QueryResponse>> futures = queryConcurrently(caching, THREADS);
+        QueryResponse first = futures.get(0).get();
+        for (Future<QueryResponse> future: futures) {
+            assertSame("All callers should get the same response", first, future.get());
+        }
+        assertEquals("The inner client should only be called once", 1, inner.calls.get());
+        assertEquals("The calls that waited for the first call should be counted",
+                     THREADS-1, caching.getCoalesced() + caching.getHits());
+    }
+
+    public void testCoalescingException() throws Exception {
+        final int THREADS = 100;
+        SlowSolrClient inner = new SlowSolrClient(true);
+        CachingSolrClient caching = new CachingSolrClient(inner, 100, 60, 10);
+
+        for (Future<QueryResponse> future: queryConcurrently(caching, THREADS)) {
+            try {
+                future.get();
+                fail("All callers should get the exception from the inner client");
+            } catch (java.util.concurrent.ExecutionException e) {
+                assertTrue("The exception should be a RuntimeException but was " + e.getCause(),
+                           e.getCause() instanceof RuntimeException);
+            }
+        }
+        assertTrue("The inner client should be called once per burst but was called " + inner.calls.get() +
+                   " times", inner.calls.get() < THREADS);
+        assertEquals("Failed calls should not be cached", 0, caching.size());
+    }
+
+    // Issues the same query from the given number of threads at the same time
+    private List<Future<QueryResponse>> queryConcurrently(CachingSolrClient caching, int threads) {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("q", "*:*");
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<QueryResponse>> futures = new ArrayList<>();
+        for (int t = 0 ; t < threads ; t++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                return caching.query(params);
+            }));
+        }
+        start.countDown();
+        executor.shutdown();
+        return futures;
+    }
+
+    /**
+     * Answers all requests with an empty response after a delay, optionally failing.
+     */
+    private static class SlowSolrClient extends SolrClient {
+        final AtomicInteger calls = new AtomicInteger(0);
+        private final boolean fail;
+
+        SlowSolrClient(boolean fail) {
+            this.fail = fail;
+        }
+
+        @Override
+        public NamedList<Object> request(SolrRequest request, String collection) {
+            calls.incrementAndGet();
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if (fail) {
+                throw new IllegalStateException("Simulated Solr failure");
+            }
+            return new NamedList<>();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.solr;
+
+import dk.kb.netarchivesuite.solrwayback.UnitTestUtils;
+import dk.kb.netarchivesuite.solrwayback.normalise.Normalisation;
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
+import dk.kb.netarchivesuite.solrwayback.service.dto.IndexDoc;
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.CoreContainer;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies that lookups using the {@link CaptureTimeline} delivers the same results as the Solr based lookups in
+ * {@link NetarchiveSolrClient}.
+ */
+public class CaptureTimelineTest {
+    private static final String SOLR_HOME = "target/test-classes/solr_9";
+    private static final String[] DATES = new String[]{
+            "2019-01-01T10:00:00Z", "2019-06-01T10:00:00Z", "2020-01-01T10:00:00Z",
+            "2020-06-01T10:00:00Z", "2021-01-01T10:00:00Z"};
+    private static final String[] LOOKUPS = new String[]{
+            "2018-01-01T00:00:00Z", "2019-03-01T10:00:00Z", "2019-06-01T10:00:00Z", "2019-12-24T18:00:00Z",
+            "2020-09-01T00:00:00Z", "2022-01-01T00:00:00Z"};
+    private static final String[] URLS = new String[]{
+            "http://example.com/page0.html", "https://example.com/page0.html",
+            "http://example.com/page1.html", "http://example.com/page2.html",
+            "http://example.com/folder/", "http://example.com/folder",
+            "http://example.com/missing.html"};
+
+    private static CoreContainer coreContainer = null;
+    private static EmbeddedSolrServer solr = null;
+    private static int id = 0;
+    private static int docs = 0; // Documents in the index
+
+    private File folder;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        PropertiesLoader.initProperties(UnitTestUtils.getFile("properties/solrwayback_unittest.properties").getPath());
+        Normalisation.setTypeFromConfig(); // The timeline is not used with the legacy normaliser
+
+        // Embedded Solr 9.1+ must have absolute home both as env and explicit param
+        System.setProperty("solr.install.dir", Path.of(SOLR_HOME).toAbsolutePath().toString());
+        coreContainer = CoreContainer.createAndLoad(Path.of(SOLR_HOME).toAbsolutePath());
+        coreContainer.load();
+        solr = new EmbeddedSolrServer(coreContainer, "netarchivebuilder");
+        NetarchiveSolrTestClient.initializeOverLoadUnitTest(solr);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        NetarchiveSolrClient.captureTimeline = null;
+        coreContainer.shutdown();
+        solr.close();
+    }
+
+    @Before
+    public void createIndex() throws Exception {
+        folder = Files.createTempDirectory("capture_timeline_test").toFile();
+        solr.deleteByQuery("*:*");
+        docs = 0;
+        for (int d = 0 ; d < DATES.length ; d++) {
+            String date = DATES[d];
+            add("http://example.com/page0.html", date, "response", 200);
+            if (d % 2 == 0) {
+                add("https://example.com/page0.html", date.replace("10:00:00", "11:00:00"), "response", 200);
+            }
+            add("http://example.com/page1.html", date, d == 2 ? "revisit" : "response", 200);
+            add("http://example.com/page2.html", date, "response", d < 3 ? 404 : 200);
+            add(d % 2 == 0 ? "http://example.com/folder/" : "http://example.com/folder", date, "response", 200);
+        }
+        solr.commit();
+    }
+
+    @After
+    public void deleteTimeline() throws Exception {
+        NetarchiveSolrClient.captureTimeline = null;
+        FileUtils.deleteDirectory(folder);
+    }
+
+    @Test
+    public void testEquivalence() throws Exception {
+        NetarchiveSolrClient client = NetarchiveSolrClient.getInstance();
+        CaptureTimeline timeline = CaptureTimeline.build(solr, folder, 1000);
+        assertEquals("All documents should be in the timeline", docs, timeline.getSize());
+
+        for (String url: URLS) {
+            List<Date> solrTimes = client.getHarvestTimesForUrl(url);
+            Collections.sort(solrTimes);
+            for (String lookup: LOOKUPS) {
+                NetarchiveSolrClient.captureTimeline = null;
+                String solrClosest = describe(client.findClosestHarvestTimeForUrl(url, lookup));
+                List<String> solrStats = describe(client.getWayBackStatistics(200, url, norm(url), lookup));
+
+                NetarchiveSolrClient.captureTimeline = timeline;
+                assertEquals("Closest harvest for " + url + " at " + lookup + " should match Solr",
+                             solrClosest, describe(client.findClosestHarvestTimeForUrl(url, lookup)));
+                assertEquals("Statistics for " + url + " at " + lookup + " should match Solr",
+                             solrStats, describe(client.getWayBackStatistics(200, url, norm(url), lookup)));
+            }
+            assertEquals("Harvest times for " + url + " should match Solr",
+                         solrTimes, client.getHarvestTimesForUrl(url));
+        }
+    }
+
+    @Test
+    public void testLookups() throws Exception {
+        CaptureTimeline timeline = CaptureTimeline.build(solr, folder, 1000);
+        String url = norm("http://example.com/page1.html");
+        long time = time("2020-01-01T10:00:00Z");
+
+        assertEquals(DATES.length, timeline.getCount(url));
+        assertEquals(DATES[0], timeline.getFirst(url).getCrawlDate());
+        assertEquals(DATES[DATES.length-1], timeline.getLast(url).getCrawlDate());
+        assertEquals(DATES[1], timeline.getPrevious(url, time).getCrawlDate());
+        assertEquals(DATES[3], timeline.getNext(url, time).getCrawlDate());
+        assertEquals("The exact match should be the nearest",
+                     DATES[2], timeline.getNearest(url, time, capture -> true).getCrawlDate());
+        assertEquals("The revisit should be skipped when requested", DATES[3], timeline.getNearest(
+                url, time, capture -> capture.is(CaptureTimeline.FLAG_NO_REVISIT)).getCrawlDate());
+        assertNull("The first capture has no previous", timeline.getPrevious(url, time(DATES[0])));
+        assertEquals("Unknown URLs should have no captures", 0, timeline.getCount("http://example.com/unknown"));
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+        CaptureTimeline timeline = CaptureTimeline.build(solr, folder, 1000);
+        String url = norm("http://example.com/page1.html");
+        String newUrl = norm("http://example.com/new.html");
+
+        add("http://example.com/page1.html", "2022-01-01T10:00:00Z", "response", 200);
+        add("http://example.com/new.html", "2022-01-01T10:00:00Z", "response", 200);
+        solr.commit();
+        assertEquals("Nothing should be added before update", 0, timeline.getCount(newUrl));
+
+        timeline.update(solr);
+        assertEquals("The added capture should be available", 1, timeline.getCount(newUrl));
+        assertEquals("The added capture should be merged with the existing",
+                     DATES.length + 1, timeline.getCount(url));
+        assertEquals("2022-01-01T10:00:00Z", timeline.getLast(url).getCrawlDate());
+        assertEquals("The added captures should be held in memory", 2, timeline.getDeltaSize());
+
+        timeline.update(solr);
+        assertEquals("A repeated update should not add duplicates", DATES.length + 1, timeline.getCount(url));
+    }
+
+    @Test
+    public void testMergeAndOpen() throws Exception {
+        CaptureTimeline timeline = CaptureTimeline.build(solr, folder, 0);
+        add("http://example.com/new.html", "2022-01-01T10:00:00Z", "response", 200);
+        solr.commit();
+        timeline.update(solr);
+        assertEquals("The added capture should be merged into the file", 0, timeline.getDeltaSize());
+        assertEquals(docs, timeline.getSize());
+
+        CaptureTimeline reopened = CaptureTimeline.open(folder, 1000);
+        assertEquals("The reopened timeline should contain all captures", docs, reopened.getSize());
+        CaptureTimeline.Capture capture = reopened.getFirst(norm("http://example.com/new.html"));
+        assertNotNull("The added capture should be in the reopened timeline", capture);
+        assertEquals("The source file path should be resolvable", "new.warc", capture.getSourceFilePath());
+        assertTrue("Only a single records file should remain",
+                   folder.listFiles((dir, name) -> name.endsWith(".bin")).length == 1);
+    }
+
+    /**
+     * Compares the latency of the Solr and the timeline lookups. Not a proper micro benchmark: The embedded Solr has
+     * no network overhead and a tiny index.
+     */
+    @Test
+    public void testLatency() throws Exception {
+        NetarchiveSolrClient client = NetarchiveSolrClient.getInstance();
+        CaptureTimeline timeline = CaptureTimeline.build(solr, folder, 1000);
+        final int runs = 20;
+        final long lookup = time(LOOKUPS[3]);
+        List<String> norms = new ArrayList<>();
+        for (String url: URLS) {
+            norms.add(norm(url));
+        }
+        long solrNS = 0;
+        long timelineNS = 0;
+        long closestNS = 0;
+        for (int run = 0 ; run <= runs ; run++) { // First run is warm up
+            long start = System.nanoTime();
+            NetarchiveSolrClient.captureTimeline = null;
+            for (String url: URLS) {
+                client.findClosestHarvestTimeForUrl(url, LOOKUPS[3]);
+            }
+            long middle = System.nanoTime();
+            NetarchiveSolrClient.captureTimeline = timeline;
+            for (String url: URLS) {
+                client.findClosestHarvestTimeForUrl(url, LOOKUPS[3]);
+            }
+            long end = System.nanoTime();
+            for (String urlNorm: norms) {
+                timeline.getNearest(urlNorm, lookup, capture -> capture.getStatusCode() == 200);
+            }
+            if (run > 0) {
+                solrNS += middle - start;
+                timelineNS += end - middle;
+                closestNS += System.nanoTime() - end;
+            }
+        }
+        System.out.printf(Locale.ROOT, "Closest harvest average latency: Solr %.2fms, timeline+document %.2fms, " +
+                                       "timeline only %.1fus%n",
+                          solrNS / 1000000.0 / (runs * URLS.length), timelineNS / 1000000.0 / (runs * URLS.length),
+                          closestNS / 1000.0 / (runs * URLS.length));
+    }
+
+    private static void add(String url, String date, String recordType, int status) throws Exception {
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.addField("id", "doc" + id);
+        doc.addField("url", url);
+        doc.addField("url_norm", norm(url));
+        doc.addField("domain", "example.com");
+        doc.addField("crawl_date", date);
+        doc.addField("content_length", 1000 + id);
+        doc.addField("record_type", recordType);
+        doc.addField("status_code", status);
+        doc.addField("source_file_path", url.contains("new") ? "new.warc" : "some" + (id % 3) + ".warc");
+        doc.addField("source_file_offset", id * 1000L);
+        solr.add(doc);
+        id++;
+        docs++;
+    }
+
+    private static String norm(String url) {
+        return Normalisation.canonicaliseURL(url);
+    }
+
+    private static long time(String date) {
+        return Date.from(java.time.Instant.parse(date)).getTime();
+    }
+
+    private static String describe(IndexDoc doc) {
+        return doc == null ? "null" : doc.getUrl() + "@" + doc.getCrawlDate() + " " + doc.getSource_file_path() +
+                                      "#" + doc.getOffset();
+    }
+
+    private static List<String> describe(WaybackStatistics stats) {
+        List<String> fields = new ArrayList<>();
+        fields.add("numberOfHarvest=" + stats.getNumberOfHarvest());
+        fields.add("first=" + stats.getFirstHarvestDate());
+        fields.add("previous=" + stats.getPreviousHarvestDate());
+        fields.add("harvest=" + stats.getHarvestDate());
+        fields.add("next=" + stats.getNextHarvestDate());
+        fields.add("last=" + stats.getLastHarvestDate());
+        fields.add("domain=" + stats.getDomain());
+        fields.add("numberHarvestDomain=" + stats.getNumberHarvestDomain());
+        fields.add("domainContentLength=" + stats.getDomainHarvestTotalContentLength());
+        return fields;
+    }
+}
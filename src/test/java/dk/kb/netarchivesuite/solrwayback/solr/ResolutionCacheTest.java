@@ -0,0 +1,256 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.solr;
+
+import dk.kb.netarchivesuite.solrwayback.UnitTestUtils;
+import dk.kb.netarchivesuite.solrwayback.normalise.Normalisation;
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
+import dk.kb.netarchivesuite.solrwayback.service.dto.IndexDocShort;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.CoreContainer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResolutionCacheTest {
+    private static final String SOLR_HOME = "target/test-classes/solr_9";
+    private static final String HARVEST = "2020-01-01T10:00:00Z";
+    private static final int SITES = 5;
+    private static final int PAGES = 20;
+    private static final int SHARED = 30;
+    private static final int UNIQUE = 5;
+
+    private static CoreContainer coreContainer = null;
+    private static EmbeddedSolrServer solr = null;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        PropertiesLoader.initProperties(UnitTestUtils.getFile("properties/solrwayback_unittest.properties").getPath());
+
+        // Embedded Solr 9.1+ must have absolute home both as env and explicit param
+        System.setProperty("solr.install.dir", Path.of(SOLR_HOME).toAbsolutePath().toString());
+        coreContainer = CoreContainer.createAndLoad(Path.of(SOLR_HOME).toAbsolutePath());
+        coreContainer.load();
+        solr = new EmbeddedSolrServer(coreContainer, "netarchivebuilder");
+        NetarchiveSolrTestClient.initializeOverLoadUnitTest(solr);
+
+        solr.deleteByQuery("*:*");
+        int id = 0;
+        for (int site = 0 ; site < SITES ; site++) {
+            for (int page = 0 ; page < PAGES ; page++) {
+                for (String url: resources(site, page)) {
+                    SolrInputDocument doc = new SolrInputDocument();
+                    doc.addField("id", "doc" + id++);
+                    doc.addField("url", url);
+                    doc.addField("url_norm", Normalisation.canonicaliseURL(url));
+                    doc.addField("crawl_date", HARVEST);
+                    doc.addField("record_type", "response");
+                    doc.addField("status_code", "200");
+                    doc.addField("source_file_path", "site" + site + ".warc");
+                    doc.addField("source_file_offset", id);
+                    solr.add(doc);
+                }
+            }
+        }
+        solr.commit();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        coreContainer.shutdown();
+        solr.close();
+    }
+
+    @Before
+    public void setNormaliser() {
+        // Other tests might have changed the normaliser
+        Normalisation.setTypeFromConfig();
+    }
+
+    @Test
+    public void testHitsAndBuckets() {
+        ResolutionCache cache = new ResolutionCache(1000, 3600);
+        CountingResolver resolver = new CountingResolver();
+        List<String> urls = Arrays.asList("http://example.com/a.css", "http://example.com/b.js",
+                                          "http://example.com/missing.png");
+
+        assertEquals("The first resolve should deliver the resolvable URLs",
+                     2, cache.resolve(urls, HARVEST, false, 0, resolver).size());
+        assertEquals(1, resolver.calls.get());
+
+        List<IndexDocShort> cached = cache.resolve(urls, "2020-01-01T10:30:00Z", false, 0, resolver);
+        assertEquals("The same bucket should be served from cache", 1, resolver.calls.get());
+        assertEquals("Cached documents should match the resolved ones",
+                     describe(new CountingResolver().apply(urls)), describe(cached));
+        assertEquals(3, cache.getHits());
+        assertEquals("The missing URL should be cached as unresolved", 1, cache.getUnresolvedHits());
+        assertEquals(1, cache.getSkippedResolves());
+
+        cache.resolve(urls, "2020-01-01T11:00:00Z", false, 0, resolver);
+        assertEquals("Another bucket should be resolved", 2, resolver.calls.get());
+        cache.resolve(urls, HARVEST, true, 0, resolver);
+        assertEquals("Lenient should be cached separately", 3, resolver.calls.get());
+
+        cache.resolve(Arrays.asList("http://example.com/a.css", "http://example.com/new.css"),
+                      HARVEST, false, 0, resolver);
+        assertEquals("Only URLs not in the cache should be resolved",
+                     Collections.singletonList("http://example.com/new.css"), resolver.last);
+    }
+
+    @Test
+    public void testGeneration() {
+        ResolutionCache cache = new ResolutionCache(1000, 3600);
+        CountingResolver resolver = new CountingResolver();
+        List<String> urls = Collections.singletonList("http://example.com/a.css");
+
+        cache.resolve(urls, HARVEST, false, 0, resolver);
+        cache.resolve(urls, HARVEST, false, 1, resolver);
+        assertEquals("A new index generation should not use old entries", 2, resolver.calls.get());
+        cache.resolve(urls, HARVEST, false, 1, resolver);
+        assertEquals(2, resolver.calls.get());
+
+        cache.resolve(Collections.singletonList("http://example.com/b.css"), HARVEST, false, 0, resolver);
+        assertEquals("Resolves for an old generation should not be cached", 1, cache.size());
+    }
+
+    @Test
+    public void testEviction() {
+        ResolutionCache cache = new ResolutionCache(100, 3600);
+        CountingResolver resolver = new CountingResolver();
+        List<String> popular = Collections.singletonList("http://example.com/popular.css");
+        for (int i = 0 ; i < 500 ; i++) {
+            cache.resolve(popular, HARVEST, false, 0, resolver);
+            cache.resolve(Collections.singletonList("http://example.com/page" + i + ".html"),
+                          HARVEST, false, 0, resolver);
+        }
+        assertTrue("The cache should be bounded, but held " + cache.size(), cache.size() <= 100);
+        assertTrue("Entries should have been evicted", cache.getEvictions() > 0);
+        assertEquals("The popular URL should survive evictions", 499, cache.getHits());
+    }
+
+    @Test
+    public void testDisabled() {
+        ResolutionCache cache = new ResolutionCache(1000, 0);
+        CountingResolver resolver = new CountingResolver();
+        List<String> urls = Collections.singletonList("http://example.com/a.css");
+        cache.resolve(urls, HARVEST, false, 0, resolver);
+        cache.resolve(urls, HARVEST, false, 0, resolver);
+        assertEquals("A disabled cache should always resolve", 2, resolver.calls.get());
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Simulates a user browsing the sites in the index and checks that the cache saves most of the Solr lookups.
+     */
+    @Test
+    public void testBrowsingSession() {
+        NetarchiveSolrClient client = NetarchiveSolrClient.getInstance();
+        for (boolean lenient: new boolean[]{false, true}) {
+            ResolutionCache cache = new ResolutionCache(10000, 3600);
+            AtomicInteger calls = new AtomicInteger(0);
+            Function<Collection<String>, ArrayList<IndexDocShort>> solrResolver = missing -> {
+                calls.incrementAndGet();
+                return client.findNearestUrlsShort(missing, HARVEST, lenient);
+            };
+
+            Random random = new Random(87);
+            int pages = 40;
+            for (int visit = 0 ; visit < pages ; visit++) {
+                int site = random.nextInt(SITES);
+                int page = random.nextInt(PAGES);
+                List<String> resources = resources(site, page);
+                resources.add("http://site" + site + ".example.com/missing" + random.nextInt(3) + ".gif");
+                String time = String.format(Locale.ROOT, "2020-01-01T10:%02d:00Z", random.nextInt(60));
+
+                assertEquals("Cached resolving should match Solr resolving for " + resources,
+                             describe(client.findNearestUrlsShort(resources, time, lenient)),
+                             describe(cache.resolve(resources, time, lenient, 0, solrResolver)));
+            }
+            assertTrue("The cache should call Solr for fewer pages than visited, but called " + calls.get(),
+                       calls.get() < pages);
+            assertTrue("The cache should save most of the Solr lookups, but had hit rate " + cache.getHitRate(),
+                       cache.getHitRate() > 0.7);
+        }
+    }
+
+    /**
+     * @return the page itself, the resources shared on the site and some resources unique to the page.
+     */
+    private static List<String> resources(int site, int page) {
+        String prefix = "http://site" + site + ".example.com/";
+        List<String> urls = new ArrayList<>();
+        urls.add(prefix + "page" + page + ".html");
+        for (int i = 0 ; i < SHARED ; i++) {
+            urls.add(prefix + "static/shared" + i + ".css");
+        }
+        for (int i = 0 ; i < UNIQUE ; i++) {
+            urls.add(prefix + "images/page" + page + "_" + i + ".jpg");
+        }
+        return urls;
+    }
+
+    private static List<String> describe(Collection<IndexDocShort> docs) {
+        return docs.stream()
+                .map(doc -> doc.getUrl_norm() + " " + doc.getUrl() + " " + doc.getCrawlDate() + " " +
+                            doc.getSource_file_path() + "@" + doc.getOffset())
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Resolves all URLs that do not contain "missing" and counts the calls.
+     */
+    private static class CountingResolver implements Function<Collection<String>, ArrayList<IndexDocShort>> {
+        final AtomicInteger calls = new AtomicInteger(0);
+        List<String> last = null;
+
+        @Override
+        public ArrayList<IndexDocShort> apply(Collection<String> urls) {
+            calls.incrementAndGet();
+            last = new ArrayList<>(urls);
+            ArrayList<IndexDocShort> docs = new ArrayList<>();
+            for (String url: urls) {
+                if (url.contains("missing")) {
+                    continue;
+                }
+                IndexDocShort doc = new IndexDocShort();
+                doc.setUrl(url);
+                doc.setUrl_norm(Normalisation.canonicaliseURL(url));
+                doc.setCrawlDate(HARVEST);
+                doc.setSource_file_path("some.warc");
+                doc.setOffset(url.length());
+                docs.add(doc);
+            }
+            return docs;
+        }
+    }
+}
@@ -35,12 +35,16 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
@@ -113,6 +117,130 @@ public class SolrStreamDirectTest {
         assertFalse("Basic streaming should return some ids", ids.isEmpty());
     }
 
+    @Test
+    public void prefetchPages() {
+        // Suppliers as multi query requests can only be used once
+        List<Supplier<SRequest>> requests = Arrays.asList(
+                () -> SRequest.builder().query("*:*").fields("id").pageSize(7),
+                () -> SRequest.builder().query("*:*").fields("id", "crawl_date").pageSize(3).
+                        timeProximityDeduplication("2019-04-15T12:31:51Z", "url"),
+                () -> SRequest.builder().queries(Stream.of("title:title_5", "title:title_6", "title:title_7")).
+                        fields("id").pageSize(1));
+        for (Supplier<SRequest> request: requests) {
+            List<String> expected = SolrStreamDirect.stream(request.get()).
+                    map(d -> d.getFieldValue("id").toString()).
+                    collect(Collectors.toList());
+            assertFalse("There should be results for " + request.get(), expected.isEmpty());
+            for (int prefetch: new int[]{1, 3}) {
+                List<String> prefetched = SolrStreamDirect.stream(request.get().prefetchPages(prefetch)).
+                        map(d -> d.getFieldValue("id").toString()).
+                        collect(Collectors.toList());
+                assertEquals("Prefetching " + prefetch + " pages should give the same result for " + request.get(),
+                             expected, prefetched);
+            }
+        }
+    }
+
+    @Test
+    public void prefetchPagesClose() throws Exception {
+        Iterator<SolrDocument> docs = SolrStreamDirect.iterate(
+                SRequest.builder().query("*:*").fields("id").pageSize(1).prefetchPages(2));
+        long requestsBefore = SolrStreamDirect.solrRequests.get();
+        for (int i = 0 ; i < 5 ; i++) {
+            docs.next();
+        }
+        assertTrue("The iterator should be closeable", docs instanceof AutoCloseable);
+        ((AutoCloseable)docs).close();
+        Thread.sleep(200);
+        long requestsAfterClose = SolrStreamDirect.solrRequests.get();
+        Thread.sleep(200);
+        assertEquals("No requests should be issued after close", requestsAfterClose, SolrStreamDirect.solrRequests.get());
+        assertTrue("At most the consumed pages plus the prefetched pages should have been requested, but there were " +
+                   (requestsAfterClose - requestsBefore) + " requests",
+                   requestsAfterClose - requestsBefore <= 5 + 2 + 1);
+        assertFalse("The iterator should be empty after close", docs.hasNext());
+    }
+
+    /**
+     * Locality sorting should deliver the documents ordered by {@code source_file_path} and numeric
+     * {@code source_file_offset}.
+     */
+    @Test
+    public void localitySort() {
+        List<String> locations = SolrStreamDirect.stream(
+                        SRequest.builder().
+                                query("*:*").
+                                fields("source_file_path", "source_file_offset").
+                                pageSize(7).
+                                localitySort())
+                .map(d -> d.getFieldValue("source_file_path") + "#" + d.getFieldValue("source_file_offset"))
+                .collect(Collectors.toList());
+        assertFalse("Locality sorted streaming should return some documents", locations.isEmpty());
+        List<String> sorted = new ArrayList<>(locations);
+        sorted.sort(Comparator.<String, String>comparing(l -> l.substring(0, l.lastIndexOf('#'))).
+                thenComparingLong(l -> Long.parseLong(l.substring(l.lastIndexOf('#') + 1))));
+        assertEquals("Documents should be delivered in (W)ARC order", sorted, locations);
+    }
+
+    /**
+     * Expansion of resources using links from the index, with and without concurrent resolving.
+     */
+    @Test
+    public void expandResourcesFromLinkFields() throws SolrServerException, IOException {
+        // Webpages are added temporarily to avoid disturbing tests that depend on the number of documents
+        addPage("page_a", "http://example.com/1", "http://example.com/2");
+        addPage("page_b", "http://example.com/3");
+        addPage("page_c");
+        embeddedServer.commit();
+        try {
+            Supplier<SRequest> request = () -> SRequest.builder().
+                    query("id:page_*").
+                    fields("id", "url_norm").
+                    sort("id asc").
+                    expandResources(true).
+                    expandResourcesLinkFields("links_images");
+
+            List<String> sequential = SolrStreamDirect.stream(request.get().expandResourcesParallel(1))
+                    .map(d -> d.getFieldValue("id") + ":" + d.getFieldValue("url_norm"))
+                    .collect(Collectors.toList());
+            List<String> parallel = SolrStreamDirect.stream(request.get().expandResourcesParallel(4))
+                    .map(d -> d.getFieldValue("id") + ":" + d.getFieldValue("url_norm"))
+                    .collect(Collectors.toList());
+            List<String> parallelIterator = new ArrayList<>();
+            SolrStreamDirect.iterate(request.get().expandResourcesParallel(4))
+                    .forEachRemaining(d -> parallelIterator.add(d.getFieldValue("id") + ":" + d.getFieldValue("url_norm")));
+
+            List<String> urls = sequential.stream().map(s -> s.split(":", 2)[1]).collect(Collectors.toList());
+            assertEquals("Webpages should be followed by their resources",
+                         Arrays.asList("http://example.com/page_a", "http://example.com/1", "http://example.com/2",
+                                       "http://example.com/page_b", "http://example.com/3",
+                                       "http://example.com/page_c"),
+                         urls);
+            assertEquals("Concurrent expansion should give the same result as sequential", sequential, parallel);
+            assertEquals("Concurrent expansion with iterator should give the same result as sequential",
+                         sequential, parallelIterator);
+        } finally {
+            embeddedServer.deleteByQuery("id:page_*");
+            embeddedServer.commit();
+        }
+    }
+
+    private static void addPage(String id, String... imageLinks) throws SolrServerException, IOException {
+        SolrInputDocument document = new SolrInputDocument();
+        document.setField("id", id);
+        document.addField("url", "http://example.com/" + id);
+        document.addField("url_norm", "http://example.com/" + id);
+        document.addField("content_type_norm", "html");
+        document.addField("record_type","response");
+        document.addField("source_file_path", "some.warc_" + id);
+        document.addField("source_file_offset", 0);
+        if (imageLinks.length > 0) {
+            document.addField("links_images", Arrays.asList(imageLinks));
+        }
+        document.setField("crawl_date", DateUtils.solrTimestampToJavaDate("2019-03-15T12:31:51Z"));
+        embeddedServer.add(document);
+    }
+
     /**
      * De-duplicate the stream on field {@code url} and get the records closest to the time {@code 2019-04-15T12:31:51Z}.
      */
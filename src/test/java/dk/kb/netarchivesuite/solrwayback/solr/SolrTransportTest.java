@@ -0,0 +1,166 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.solr;
+
+import dk.kb.netarchivesuite.solrwayback.UnitTestUtils;
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.embedded.JettyConfig;
+import org.apache.solr.client.solrj.embedded.JettySolrRunner;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the test Solr in Jetty, so that the HTTP/1.1 and the HTTP/2 transport of {@link RestrictedSolrClient} can be
+ * compared.
+ */
+public class SolrTransportTest {
+    private static final String SOLR_HOME = "target/test-classes/solr_9";
+    private static final String COLLECTION = "netarchivebuilder";
+    private static final int DOCS = 200;
+
+    private static JettySolrRunner jetty = null;
+    private static RestrictedSolrClient http1 = null;
+    private static RestrictedSolrClient http2 = null;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        PropertiesLoader.initProperties(UnitTestUtils.getFile("properties/solrwayback_unittest.properties").getPath());
+        System.setProperty("solr.install.dir", Path.of(SOLR_HOME).toAbsolutePath().toString());
+        jetty = new JettySolrRunner(Path.of(SOLR_HOME).toAbsolutePath().toString(),
+                                    JettyConfig.builder().setPort(0).build());
+        jetty.start();
+        String baseURL = jetty.getBaseUrl().toString();
+        http1 = RestrictedSolrClient.createSolrClient(baseURL, COLLECTION, "http1");
+        http2 = RestrictedSolrClient.createSolrClient(baseURL, COLLECTION, "http2");
+
+        http1.deleteByQuery("*:*");
+        for (int i = 0 ; i < DOCS ; i++) {
+            SolrInputDocument doc = new SolrInputDocument();
+            doc.addField("id", "doc" + i);
+            doc.addField("url", "http://example.com/page" + i);
+            doc.addField("url_norm", "http://example.com/page" + i);
+            doc.addField("domain", "example.com");
+            doc.addField("crawl_date", "2020-01-01T10:00:00Z");
+            doc.addField("record_type", "response");
+            doc.addField("status_code", "200");
+            doc.addField("source_file_path", "some.warc");
+            doc.addField("source_file_offset", i);
+            http1.add(doc);
+        }
+        http1.commit();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        if (http1 != null) {
+            http1.deleteByQuery("*:*");
+            http1.commit();
+            http1.close();
+        }
+        if (http2 != null) {
+            http2.close();
+        }
+        if (jetty != null) {
+            jetty.stop();
+        }
+    }
+
+    @Test
+    public void testAsyncEquivalence() {
+        assertTrue("The http2 client should be async", http2.isAsync());
+        assertEquals("Async results should match for the two transports",
+                     lookupAll(http1), lookupAll(http2));
+    }
+
+    /**
+     * Compares latency and client thread usage for a batch of lookups with the two transports.
+     * Not a proper micro benchmark: The Solr runs in the same JVM and on localhost, so there is no network latency
+     * to hide and the Solr request threads are the bottleneck.
+     */
+    @Test
+    public void testLatencyAndThreads() throws Exception {
+        lookupAll(http1); // Warm up
+        lookupAll(http2);
+        for (RestrictedSolrClient client: new RestrictedSolrClient[]{http1, http2, http1, http2}) {
+            AtomicInteger peakBlocked = new AtomicInteger(0);
+            AtomicBoolean running = new AtomicBoolean(true);
+            Thread sampler = new Thread(() -> {
+                while (running.get()) {
+                    peakBlocked.accumulateAndGet(blockedInClient(), Math::max);
+                }
+            });
+            sampler.start();
+            long ns = -System.nanoTime();
+            lookupAll(client);
+            ns += System.nanoTime();
+            running.set(false);
+            sampler.join();
+            System.out.printf(Locale.ROOT, "%s: %d concurrent lookups in %.1fms, peak threads blocked in client: %d%n",
+                              client.isAsync() ? "http2" : "http1", DOCS, ns / 1000000.0, peakBlocked.get());
+        }
+    }
+
+    /**
+     * @return the number of threads currently inside a request call of a SolrJ HTTP client.
+     */
+    private static int blockedInClient() {
+        int blocked = 0;
+        for (StackTraceElement[] stack: Thread.getAllStackTraces().values()) {
+            for (StackTraceElement frame: stack) {
+                if (("org.apache.solr.client.solrj.impl.HttpSolrClient".equals(frame.getClassName()) ||
+                     "org.apache.solr.client.solrj.impl.Http2SolrClient".equals(frame.getClassName())) &&
+                    "request".equals(frame.getMethodName())) {
+                    blocked++;
+                    break;
+                }
+            }
+        }
+        return blocked;
+    }
+
+    /**
+     * Issue a lookup for each document concurrently and collect the results.
+     */
+    private List<String> lookupAll(RestrictedSolrClient client) {
+        List<CompletableFuture<QueryResponse>> pending = new ArrayList<>();
+        for (int i = 0 ; i < DOCS ; i++) {
+            SolrQuery query = new SolrQuery("url_norm:\"http://example.com/page" + i + "\"");
+            query.setRows(1);
+            query.setFields("id");
+            pending.add(client.queryAsync(query, SolrRequest.METHOD.POST));
+        }
+        return pending.stream()
+                .map(CompletableFuture::join)
+                .map(rsp -> rsp.getResults().isEmpty() ? "" : (String) rsp.getResults().get(0).getFieldValue("id"))
+                .collect(Collectors.toList());
+    }
+}
@@ -1,8 +1,26 @@
 package dk.kb.netarchivesuite.solrwayback.solr;
 
-import junit.framework.TestCase;
+import org.junit.Ignore;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
 /*
  *  Licensed under the Apache License, Version 2.0 (the "License");
  *  you may not use this file except in compliance with the License.
@@ -17,8 +35,9 @@ import org.junit.Test;
  *  limitations under the License.
  *
  */
-public class TimeCacheTest extends TestCase {
+public class TimeCacheTest {
 
+    @Test
     public void testTimeBasedCaching() throws InterruptedException {
         TimeCache<Integer> timeCache = new TimeCache<>(100, 500);
         timeCache.get("first", () -> 1);
@@ -30,6 +49,7 @@ public class TimeCacheTest extends TestCase {
                 timeCache.containsKey("first"));
     }
 
+    @Test
     public void testTimeBasedCachingNegative() throws InterruptedException {
         TimeCache<Integer> timeCache = new TimeCache<>(100, -500);
         timeCache.get("first", () -> 1);
@@ -37,6 +57,7 @@ public class TimeCacheTest extends TestCase {
                 timeCache.containsKey("first"));
     }
 
+    @Test
     public void testCountBasedCaching() {
         TimeCache<Integer> timeCache = new TimeCache<>(1, 50000);
         timeCache.get("first", () -> 1);
@@ -48,4 +69,134 @@ public class TimeCacheTest extends TestCase {
         assertFalse("First entry should not be available after second has been added",
                 timeCache.containsKey("first"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testByteBasedCaching() {
+        TimeCache<String> timeCache = new TimeCache<>(1000, 100000, 50000);
+        for (int i = 0 ; i < 100 ; i++) {
+            timeCache.put("key" + i, new String(new char[5000]));
+        }
+        assertTrue("The estimated size should be within the limit but was " + timeCache.getBytes(),
+                   timeCache.getBytes() <= 100000);
+        assertTrue("Some entries should have been evicted", timeCache.getEvictions() > 0);
+        assertTrue("The latest entry should be available", timeCache.containsKey("key99"));
+        assertFalse("The first entry should have been evicted", timeCache.containsKey("key0"));
+    }
+
+    @Test
+    public void testLinkedByteBasedCaching() {
+        TimeCache<byte[]> first = new TimeCache<>(1000, 100000, 50000);
+        TimeCache<byte[]> second = first.createLinked();
+        first.put("first", new byte[60000]);
+        second.put("second", new byte[50000]);
+        assertFalse("The first entry should be evicted due to shared byte limit", first.containsKey("first"));
+        assertTrue("The second entry should still be available", second.containsKey("second"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsed() throws InterruptedException {
+        TimeCache<Integer> timeCache = new TimeCache<>(10, 50000);
+        for (int i = 0 ; i < 10 ; i++) {
+            timeCache.put("key" + i, i);
+            Thread.sleep(2); // Access times are tracked with millisecond granularity
+        }
+        timeCache.get("key0");
+        timeCache.put("key10", 10);
+        assertTrue("The recently accessed first entry should not be evicted", timeCache.containsKey("key0"));
+        assertFalse("The least recently used entry should be evicted", timeCache.containsKey("key1"));
+    }
+
+    @Test
+    public void testExpiryWithoutInserts() throws InterruptedException {
+        TimeCache<Integer> timeCache = new TimeCache<>(100, 100);
+        timeCache.put("first", 1);
+        timeCache.put("second", 2);
+        Thread.sleep(1200); // Expired entries are removed at least every second
+        assertNull("Expired entries should not be returned", timeCache.get("first"));
+        assertEquals("Expired entries should be removed by lookups", 0, timeCache.size());
+        assertEquals("No bytes should be accounted for after expiry", 0, timeCache.getBytes());
+    }
+
+    @Test
+    public void testConcurrentBound() throws Exception {
+        final int THREADS = 8;
+        final int OPS = 20000;
+        final int KEYS = 2000;
+        TimeCache<Long> timeCache = new TimeCache<>(KEYS/2, 60000);
+        timeOperations(THREADS, OPS, KEYS, (key, write) -> write ? timeCache.put(key, 1L) : timeCache.get(key));
+        assertTrue("The TimeCache should be (nearly) bounded but had size " + timeCache.size(),
+                   timeCache.size() <= KEYS/2 + THREADS);
+        assertTrue("Entries should have been evicted", timeCache.getEvictions() > 0);
+        assertTrue("There should be hits", timeCache.getHits() > 0);
+        assertTrue("Hits should not exceed calls", timeCache.getHits() <= timeCache.getCalls());
+        assertEquals("The byte count should match the remaining entries",
+                     timeCache.size() == 0, timeCache.getBytes() == 0);
+    }
+
+    /**
+     * Contention benchmark with 32 threads doing 90% reads and 10% writes, comparing TimeCache with a
+     * synchronized LinkedHashMap with age check and hit counting, as used by earlier versions of TimeCache.
+     * The difference depends heavily on the number of cores. Run manually.
+     */
+    @Ignore("Manual benchmark")
+    @Test
+    public void testContention() throws Exception {
+        final int THREADS = 32;
+        final int OPS = 200000;
+        final int KEYS = 2000;
+        final long MAX_AGE_MS = 60000;
+        // Values are creation times
+        Map<String, Long> legacy = Collections.synchronizedMap(new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > KEYS/2 || System.currentTimeMillis() - eldest.getValue() > MAX_AGE_MS;
+            }
+        });
+        AtomicLong legacyCalls = new AtomicLong(0);
+        AtomicLong legacyHits = new AtomicLong(0);
+        TimeCache<Long> timeCache = new TimeCache<>(KEYS/2, MAX_AGE_MS);
+
+        for (int run = 0 ; run < 3 ; run++) { // The first runs are warm up
+            long legacyNS = timeOperations(THREADS, OPS, KEYS, (key, write) -> {
+                if (write) {
+                    return legacy.put(key, System.currentTimeMillis());
+                }
+                legacyCalls.incrementAndGet();
+                Long created = legacy.get(key);
+                if (created == null || System.currentTimeMillis() - created > MAX_AGE_MS) {
+                    return null;
+                }
+                legacyHits.incrementAndGet();
+                return created;
+            });
+            long timeCacheNS = timeOperations(THREADS, OPS, KEYS, (key, write) -> write ?
+                    timeCache.put(key, 1L) : timeCache.get(key));
+            System.out.printf(Locale.ROOT, "Run %d: %d threads, %d operations each: synchronized LinkedHashMap " +
+                                           "%dms, TimeCache %dms%n",
+                              run, THREADS, OPS, legacyNS/1000000, timeCacheNS/1000000);
+        }
+    }
+
+    private long timeOperations(int threads, int ops, int keys, BiFunction<String, Boolean, Long> operation)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        long ns = -System.nanoTime();
+        for (int t = 0 ; t < threads ; t++) {
+            final Random random = new Random(t);
+            futures.add(executor.submit(() -> {
+                for (int i = 0 ; i < ops ; i++) {
+                    // Skewed towards low keys to simulate popular entries
+                    int key = (int) (keys * Math.pow(random.nextDouble(), 3));
+                    operation.apply("key" + key, random.nextInt(10) == 0);
+                }
+            }));
+        }
+        for (Future<?> future: futures) {
+            future.get();
+        }
+        ns += System.nanoTime();
+        executor.shutdown();
+        return ns;
+    }
+}
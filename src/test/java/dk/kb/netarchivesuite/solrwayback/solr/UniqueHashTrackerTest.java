@@ -0,0 +1,110 @@
+package dk.kb.netarchivesuite.solrwayback.solr;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class UniqueHashTrackerTest {
+
+    /**
+     * Strings built from the blocks "Aa" and "BB" all share the same {@link String#hashCode()}.
+     * The previous int based hashing in {@link UniqueFilter} would report all but the first as duplicates.
+     */
+    @Test
+    public void testHashCodeCollisions() {
+        List<String> colliding = new ArrayList<>();
+        for (int i = 0 ; i < 1024 ; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int bit = 0 ; bit < 10 ; bit++) {
+                sb.append(((i >> bit) & 1) == 0 ? "Aa" : "BB");
+            }
+            colliding.add(sb.toString());
+        }
+        assertEquals("All test strings should have the same hashCode",
+                     1, colliding.stream().mapToInt(String::hashCode).distinct().count());
+
+        try (UniqueFilter filter = new UniqueFilter(true, 10, "url_norm")) {
+            for (String value: colliding) {
+                assertTrue("The value '" + value + "' should be unique", filter.test(value));
+            }
+            for (String value: colliding) {
+                assertFalse("The value '" + value + "' should be a duplicate", filter.test(value));
+            }
+            assertEquals("The unique count should match", colliding.size(), filter.uniqueCount());
+            assertEquals("The duplicate count should match", colliding.size(), filter.duplicateCount());
+        }
+    }
+
+    @Test
+    public void testInMemory() {
+        try (UniqueHashTracker tracker = new UniqueHashTracker(64*1024*1024, null)) {
+            assertAdds(tracker, 100_000, 87);
+            assertEquals("There should be no spills", 0, tracker.getSpills());
+        }
+    }
+
+    @Test
+    public void testSpill() {
+        // 16KB holds 1024 slots, which forces frequent spills and merges
+        try (UniqueHashTracker tracker = new UniqueHashTracker(16*1024, null)) {
+            assertAdds(tracker, 100_000, 88);
+            assertTrue("There should be spills but got " + tracker, tracker.getSpills() > 100);
+            assertTrue("Runs should be merged but got " + tracker,
+                       tracker.getRuns() < tracker.getSpills() / UniqueHashTracker.MERGE_FACTOR);
+        }
+    }
+
+    @Test
+    public void testMurmur3() {
+        // Reference values from Guava Hashing.murmur3_128().hashUnencodedChars(...), as little endian longs
+        assertArrayEquals(new long[]{0, 0}, UniqueHashTracker.murmur3(""));
+        assertArrayEquals(new long[]{0x0c25a174b09e4de3L, 0x777166dd399ee02bL},
+                          UniqueHashTracker.murmur3("abc"));
+        assertArrayEquals(new long[]{0x26f115c8b86bbc9dL, 0x46ef47348ae6ba57L},
+                          UniqueHashTracker.murmur3("http://example.com/some/path?x=1"));
+        assertArrayEquals(new long[]{0x8b674fe7fbdbcc30L, 0x3b55b84c60d32adfL},
+                          UniqueHashTracker.murmur3("æøå €"));
+    }
+
+    /**
+     * Adds random values and checks that the tracker reports the same uniqueness as a {@link HashSet}.
+     */
+    private void assertAdds(UniqueHashTracker tracker, int count, int seed) {
+        Random random = new Random(seed);
+        Set<String> reference = new HashSet<>();
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0 ; i < count ; i++) {
+            // Limited range to get duplicates within the first pass too
+            values.add("http://example.com/" + random.nextInt(count*2));
+        }
+        for (String value: values) {
+            assertEquals("Adding '" + value + "' should match the reference",
+                         reference.add(value), tracker.add(value));
+        }
+        assertEquals("The number of unique values should match", reference.size(), tracker.size());
+        for (String value: values) {
+            assertFalse("Re-adding '" + value + "' should be reported as a duplicate", tracker.add(value));
+        }
+        assertEquals("The number of unique values should be unchanged", reference.size(), tracker.size());
+    }
+}
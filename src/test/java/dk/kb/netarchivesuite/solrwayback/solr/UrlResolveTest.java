@@ -19,9 +19,12 @@ import dk.kb.netarchivesuite.solrwayback.parsers.HtmlParserUrlRewriter;
 import dk.kb.netarchivesuite.solrwayback.parsers.ParseResult;
 import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
 import dk.kb.netarchivesuite.solrwayback.util.DateUtils;
+import dk.kb.netarchivesuite.solrwayback.util.UrlUtils;
+import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
 import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.core.CoreContainer;
 import org.apache.solr.core.NodeConfig;
@@ -34,6 +37,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -399,6 +403,50 @@ public class UrlResolveTest {
         }
     }
 
+    /**
+     * Lenient resolving of many URLs should use few Solr requests and give the same result as resolving the URLs
+     * individually.
+     */
+    @Test
+    public void testLenientBatched() throws Exception {
+        final List<String> fields = Arrays.asList("id", "url", "url_norm");
+        List<String> urls = new ArrayList<>();
+        for (int i = 0 ; i < 300 ; i++) { // A page with 300 links that requires lenient resolving
+            switch (i % 3) {
+                case 0: urls.add("https://www.EXAMPLE.org/foo?bar=year&mod=" + (i % 10) + "&cb=" + i); break;
+                case 1: urls.add("https://www.EXAMPLE.org/foo?bar=ged&zoo=pling&cb=" + i); break;
+                default: urls.add("https://www.EXAMPLE.org/drop" + i + "?bar=ged&zoo=ooling"); // Not resolvable
+            }
+        }
+        NetarchiveSolrClient client = NetarchiveSolrClient.getInstance();
+
+        Map<String, String> individual = new HashMap<>();
+        for (String url: urls) {
+            SolrQuery query = new SolrQuery(UrlUtils.lenientURLQuery(url));
+            query.setRows(1);
+            query.setFields("url_norm");
+            SolrDocumentList docs = solr.query(query).getResults();
+            if (!docs.isEmpty()) {
+                individual.put(url, docs.get(0).getFieldValue("url_norm").toString());
+            }
+        }
+
+        long requests = -client.getLenientRequests();
+        long attempts = -client.getLenientAttempts();
+        Map<String, String> batched = client.searchURLs(fields, urls.stream())
+                .collect(Collectors.toMap(doc -> doc.getFieldValue("originalURL").toString(),
+                                          doc -> doc.getFieldValue("url_norm").toString()));
+        requests += client.getLenientRequests();
+        attempts += client.getLenientAttempts();
+
+        assertEquals("All URLs should be attempted leniently", urls.size(), attempts);
+        assertEquals("Batched lenient resolving should match individual lenient resolving", individual, batched);
+        assertTrue("The number of lenient requests should be capped at " + PropertiesLoader.LENIENT_MAX_REQUESTS +
+                   " but was " + requests, requests <= PropertiesLoader.LENIENT_MAX_REQUESTS);
+        log.info("Lenient resolving of {} URLs ({} resolved) used {} Solr requests, previously {}",
+                 urls.size(), batched.size(), requests, urls.size());
+    }
+
     private static void addDoc(int id, Random r) throws SolrServerException, IOException {
         final String[] CRAWL_TIMES = new String[]{
                 "2018-03-15T12:31:51Z",
@@ -0,0 +1,241 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.solr;
+
+import dk.kb.netarchivesuite.solrwayback.UnitTestUtils;
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
+import dk.kb.netarchivesuite.solrwayback.util.DateUtils;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.response.FieldStatsInfo;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.CoreContainer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Verifies that the single request version of {@link NetarchiveSolrClient#getWayBackStatistics} delivers the same
+ * statistics as the previous four request version and compares the latency.
+ */
+public class WaybackStatisticsTest {
+    private static final String SOLR_HOME = "target/test-classes/solr_9";
+    private static final String[] DATES = new String[]{
+            "2019-01-01T10:00:00Z", "2019-06-01T10:00:00Z", "2020-01-01T10:00:00Z",
+            "2020-06-01T10:00:00Z", "2021-01-01T10:00:00Z"};
+
+    private static CoreContainer coreContainer = null;
+    private static EmbeddedSolrServer solr = null;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        PropertiesLoader.initProperties(UnitTestUtils.getFile("properties/solrwayback_unittest.properties").getPath());
+
+        // Embedded Solr 9.1+ must have absolute home both as env and explicit param
+        System.setProperty("solr.install.dir", Path.of(SOLR_HOME).toAbsolutePath().toString());
+        coreContainer = CoreContainer.createAndLoad(Path.of(SOLR_HOME).toAbsolutePath());
+        coreContainer.load();
+        solr = new EmbeddedSolrServer(coreContainer, "netarchivebuilder");
+        NetarchiveSolrTestClient.initializeOverLoadUnitTest(solr);
+
+        solr.deleteByQuery("*:*");
+        int id = 0;
+        for (int page = 0 ; page < 20 ; page++) {
+            for (int d = 0 ; d < DATES.length ; d++) {
+                if (page % 5 == 0 && d > 0) {
+                    continue; // Some pages are only harvested once
+                }
+                SolrInputDocument doc = new SolrInputDocument();
+                doc.addField("id", "doc" + id++);
+                doc.addField("url", url(page));
+                doc.addField("url_norm", url(page));
+                doc.addField("domain", domain(page));
+                doc.addField("crawl_date", DATES[d]);
+                doc.addField("content_length", 1000 + page * 10 + d);
+                doc.addField("record_type", "response");
+                doc.addField("status_code", "200");
+                doc.addField("source_file_path", "some.warc");
+                doc.addField("source_file_offset", id);
+                solr.add(doc);
+            }
+        }
+        solr.commit();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        coreContainer.shutdown();
+        solr.close();
+    }
+
+    @Test
+    public void testEquivalence() throws Exception {
+        NetarchiveSolrClient client = NetarchiveSolrClient.getInstance();
+        for (int page = 0 ; page < 20 ; page++) {
+            for (String date: DATES) {
+                assertEquals("Statistics for " + url(page) + " at " + date + " should match the previous version",
+                             describe(getWayBackStatisticsLegacy(200, url(page), url(page), date)),
+                             describe(client.getWayBackStatistics(200, url(page), url(page), date)));
+            }
+        }
+        String missing = "http://example.com/missing";
+        assertEquals("Statistics for a missing url should match the previous version",
+                     describe(getWayBackStatisticsLegacy(200, missing, missing, DATES[0])),
+                     describe(client.getWayBackStatistics(200, missing, missing, DATES[0])));
+    }
+
+    /**
+     * Compares the latency of the previous and the current version. Not a proper micro benchmark and the embedded
+     * Solr has no network overhead, which is where the current version saves most.
+     */
+    @Test
+    public void testLatency() throws Exception {
+        NetarchiveSolrClient client = NetarchiveSolrClient.getInstance();
+        final int runs = 5;
+        long legacyNS = 0;
+        long currentNS = 0;
+        for (int run = 0 ; run <= runs ; run++) { // First run is warm up
+            long start = System.nanoTime();
+            for (int page = 0 ; page < 20 ; page++) {
+                getWayBackStatisticsLegacy(200, url(page), url(page), DATES[2]);
+            }
+            long middle = System.nanoTime();
+            for (int page = 0 ; page < 20 ; page++) {
+                client.getWayBackStatistics(200, url(page), url(page), DATES[2]);
+            }
+            if (run > 0) {
+                legacyNS += middle - start;
+                currentNS += System.nanoTime() - middle;
+            }
+        }
+        System.out.printf(Locale.ROOT, "Toolbar statistics average latency: previous %.2fms, current %.2fms%n",
+                          legacyNS / 1000000.0 / (runs * 20), currentNS / 1000000.0 / (runs * 20));
+    }
+
+    private static String url(int page) {
+        return "http://site" + (page % 3) + ".example.com/page" + page + ".html";
+    }
+
+    private static String domain(int page) {
+        return "site" + (page % 3) + ".example.com";
+    }
+
+    private static List<String> describe(WaybackStatistics stats) {
+        List<String> fields = new ArrayList<>();
+        fields.add("numberOfHarvest=" + stats.getNumberOfHarvest());
+        fields.add("first=" + stats.getFirstHarvestDate());
+        fields.add("previous=" + stats.getPreviousHarvestDate());
+        fields.add("harvest=" + stats.getHarvestDate());
+        fields.add("next=" + stats.getNextHarvestDate());
+        fields.add("last=" + stats.getLastHarvestDate());
+        fields.add("domain=" + stats.getDomain());
+        fields.add("numberHarvestDomain=" + stats.getNumberHarvestDomain());
+        fields.add("domainContentLength=" + stats.getDomainHarvestTotalContentLength());
+        return fields;
+    }
+
+    /**
+     * The previous implementation of {@link NetarchiveSolrClient#getWayBackStatistics}, using up to four sequential
+     * requests.
+     */
+    private static WaybackStatistics getWayBackStatisticsLegacy(
+            int statusCode, String url, String url_norm, String crawlDate) throws Exception {
+        WaybackStatistics stats = new WaybackStatistics();
+        stats.setStatusCode(statusCode);
+        stats.setUrl(url);
+        stats.setUrl_norm(url_norm);
+        stats.setLastHarvestDate(crawlDate);
+        stats.setFirstHarvestDate(crawlDate);
+        String domain = null;
+        stats.setHarvestDate(crawlDate);
+        final String statsField = "crawl_date";
+        long results = 0;
+
+        SolrQuery solrQuery = new SolrQuery("url_norm:\"" + url_norm + "\" AND crawl_date:{\"" + crawlDate + "\" TO *]");
+        solrQuery.setRows(1);
+        solrQuery.setGetFieldStatistics(true);
+        solrQuery.setGetFieldStatistics(statsField);
+        QueryResponse rsp = solr.query(solrQuery, SolrRequest.METHOD.POST);
+        results += rsp.getResults().getNumFound();
+        if (rsp.getResults().getNumFound() != 0) {
+            domain = (String) rsp.getResults().get(0).getFieldValue("domain");
+            final FieldStatsInfo fieldStats = rsp.getFieldStatsInfo().get(statsField);
+            if (fieldStats != null) {
+                stats.setLastHarvestDate(DateUtils.getSolrDate((Date) fieldStats.getMax()));
+                String next = DateUtils.getSolrDate((Date) fieldStats.getMin());
+                if (!crawlDate.equals(next)) {
+                    stats.setNextHarvestDate(next);
+                }
+            }
+        }
+
+        solrQuery = new SolrQuery("(url_norm:\"" + url_norm + "\") AND crawl_date:[* TO \"" + crawlDate + "\"}");
+        solrQuery.setRows(1);
+        solrQuery.add("fl", "domain");
+        solrQuery.setGetFieldStatistics(true);
+        solrQuery.setGetFieldStatistics(statsField);
+        rsp = solr.query(solrQuery, SolrRequest.METHOD.POST);
+        results += rsp.getResults().getNumFound();
+        if (rsp.getResults().getNumFound() != 0) {
+            domain = (String) rsp.getResults().get(0).getFieldValue("domain");
+            final FieldStatsInfo fieldStats = rsp.getFieldStatsInfo().get(statsField);
+            if (fieldStats != null) {
+                stats.setFirstHarvestDate(DateUtils.getSolrDate((Date) fieldStats.getMin()));
+                String previous = DateUtils.getSolrDate((Date) fieldStats.getMax());
+                if (!crawlDate.equals(previous)) {
+                    stats.setPreviousHarvestDate(previous);
+                }
+            }
+        }
+        stats.setNumberOfHarvest(results + 1);
+
+        if (domain == null) {
+            solrQuery = new SolrQuery("url_norm:\"" + url_norm + "\"");
+            solrQuery.setRows(1);
+            solrQuery.setGetFieldStatistics(true);
+            solrQuery.setGetFieldStatistics(statsField);
+            rsp = solr.query(solrQuery, SolrRequest.METHOD.POST);
+            if (rsp.getResults().size() == 0) {
+                return stats;
+            }
+            domain = (String) rsp.getResults().get(0).getFieldValue("domain");
+        }
+        stats.setDomain(domain);
+        solrQuery = new SolrQuery("domain:\"" + domain + "\"");
+        solrQuery.setRows(0);
+        solrQuery.setGetFieldStatistics(true);
+        solrQuery.setGetFieldStatistics("content_length");
+        rsp = solr.query(solrQuery, SolrRequest.METHOD.POST);
+        long numberHarvestDomain = rsp.getResults().getNumFound();
+        stats.setNumberHarvestDomain(numberHarvestDomain);
+        if (numberHarvestDomain != 0) {
+            final FieldStatsInfo fieldStats = rsp.getFieldStatsInfo().get("content_length");
+            if (fieldStats != null) {
+                stats.setDomainHarvestTotalContentLength((long) (double) (Double) fieldStats.getSum());
+            }
+        }
+        return stats;
+    }
+}
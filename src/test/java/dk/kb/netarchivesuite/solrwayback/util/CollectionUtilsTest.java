@@ -7,10 +7,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -183,6 +186,46 @@ public class CollectionUtilsTest {
         assertFalse("First hasNext() should provide the expected result", pib.hasNext());
     }
 
+    @Test
+    public void testWindowedMappingIterator() {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Integer> source = new ArrayList<>();
+        for (int i = 0 ; i < 100 ; i++) {
+            source.add(i);
+        }
+        Random random = new Random(87);
+        List<Integer> sleeps = source.stream().map(i -> random.nextInt(5)).collect(Collectors.toList());
+        // Random delays so that later elements are often mapped before earlier ones
+        Iterator<String> mapped = CollectionUtils.WindowedMappingIterator.of(source.iterator(), i -> {
+            try {
+                Thread.sleep(sleeps.get(i));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return "m" + i;
+        }, executor, 8);
+        List<String> result = new ArrayList<>();
+        mapped.forEachRemaining(result::add);
+        executor.shutdown();
+        assertEquals("The mapped elements should be delivered in source order",
+                     source.stream().map(i -> "m" + i).collect(Collectors.toList()), result);
+    }
+
+    @Test
+    public void testWindowedMappingIteratorClose() {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        AtomicInteger pulled = new AtomicInteger(0);
+        Iterator<Integer> source = Stream.iterate(0, i -> i+1).peek(i -> pulled.incrementAndGet()).iterator();
+        CollectionUtils.WindowedMappingIterator<Integer, Integer> mapped =
+                CollectionUtils.WindowedMappingIterator.of(source, i -> i*2, executor, 5);
+        assertEquals("The first mapped element should be as expected", Integer.valueOf(0), mapped.next());
+        assertEquals("The source should only be read to fill the window", 6, pulled.get());
+        mapped.close();
+        assertFalse("A closed iterator should not deliver more elements", mapped.hasNext());
+        assertEquals("The source should not be read after close", 6, pulled.get());
+        executor.shutdown();
+    }
+
     @Test
     public void testMergeIterators() {
         Iterator<Integer> i1 = Arrays.asList(1, 3, 5).iterator();
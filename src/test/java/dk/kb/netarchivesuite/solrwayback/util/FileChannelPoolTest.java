@@ -0,0 +1,236 @@
+package dk.kb.netarchivesuite.solrwayback.util;
+
+import dk.kb.netarchivesuite.solrwayback.UnitTestUtils;
+import dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource;
+import dk.kb.netarchivesuite.solrwayback.parsers.WarcParser;
+import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
+import org.apache.commons.io.IOUtils;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class FileChannelPoolTest {
+    private static final String WARC = "src/test/resources/example_warc/IAH-20080430204825-00000-blackbook.warc.gz";
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        File file = UnitTestUtils.getFile(WARC);
+        byte[] data = Files.readAllBytes(file.toPath());
+        FileChannelPool pool = new FileChannelPool(10);
+
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0 ; t < 10 ; t++) {
+            final Random random = new Random(t);
+            futures.add(executor.submit(() -> {
+                for (int i = 0 ; i < 1000 ; i++) {
+                    int offset = random.nextInt(data.length - 100);
+                    try (InputStream is = pool.getInputStream(file.getPath(), offset)) {
+                        byte[] buffer = new byte[100];
+                        IOUtils.readFully(is, buffer);
+                        assertArrayEquals("Content at offset " + offset + " should match",
+                                          Arrays.copyOfRange(data, offset, offset + 100), buffer);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future: futures) {
+            future.get(); // Propagates exceptions
+        }
+        executor.shutdown();
+        assertEquals("The file should only be opened once", 1, pool.getOpens());
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        File file = UnitTestUtils.getFile(WARC);
+        File folder = Files.createTempDirectory("channelpool").toFile();
+        FileChannelPool pool = new FileChannelPool(2);
+
+        List<File> copies = new ArrayList<>();
+        for (int i = 0 ; i < 5 ; i++) {
+            File copy = new File(folder, i + ".warc.gz");
+            Files.copy(file.toPath(), copy.toPath());
+            copies.add(copy);
+        }
+        try (InputStream first = pool.getInputStream(copies.get(0).getPath(), 10)) {
+            for (File copy: copies) {
+                pool.getInputStream(copy.getPath(), 0).close();
+            }
+            assertTrue("The pool should be bounded, but had size " + pool.size(), pool.size() <= 2);
+            assertEquals("A stream should be readable after its channel has been evicted",
+                         Files.readAllBytes(file.toPath())[10], (byte) first.read());
+        } finally {
+            pool.clear();
+            for (File copy: copies) {
+                copy.delete();
+            }
+            folder.delete();
+        }
+    }
+
+    /**
+     * An interrupted read closes the shared channel. Other streams and later requests should get a new channel.
+     */
+    @Test
+    public void testInterruptedReader() throws Exception {
+        File file = UnitTestUtils.getFile(WARC);
+        byte[] data = Files.readAllBytes(file.toPath());
+        FileChannelPool pool = new FileChannelPool(10);
+
+        try (InputStream other = pool.getInputStream(file.getPath(), 20)) {
+            AtomicReference<Exception> failure = new AtomicReference<>();
+            Thread reader = new Thread(() -> {
+                try (InputStream is = pool.getInputStream(file.getPath(), 0)) {
+                    Thread.currentThread().interrupt();
+                    is.read(new byte[10]);
+                } catch (IOException e) {
+                    failure.set(e);
+                }
+            });
+            reader.start();
+            reader.join();
+            assertTrue("Reading with the interrupt flag set should fail, but got " + failure.get(),
+                       failure.get() instanceof ClosedByInterruptException);
+
+            assertEquals("A stream sharing the closed channel should retry with a new channel",
+                         data[20], (byte) other.read());
+        }
+        try (InputStream is = pool.getInputStream(file.getPath(), 30)) {
+            assertEquals("A new stream should not get the closed channel", data[30], (byte) is.read());
+        }
+        assertEquals("The file should be reopened once after the interrupt", 2, pool.getOpens());
+    }
+
+    @Test
+    public void testMissing() throws IOException {
+        try {
+            new FileChannelPool(10).getInputStream("/nonexisting/missing.warc.gz", 0);
+            fail("Opening a missing file should fail");
+        } catch (NoSuchFileException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testSameAsFileInputStream() throws Exception {
+        File file = UnitTestUtils.getFile(WARC);
+        String path = file.getCanonicalPath();
+        FileChannelPool pool = new FileChannelPool(10);
+        ArcSource legacy = legacySource(path);
+        ArcSource pooled = new ArcSource(path, legacy, (offset, length) -> pool.getInputStream(path, offset));
+        List<Long> offsets = recordOffsets(file);
+        assertEquals("Both sources should deliver the same content",
+                     readRecords(legacy, offsets, 100, 1, 1), readRecords(pooled, offsets, 100, 1, 1));
+    }
+
+    /**
+     * Compares random-offset record reads with a new {@link FileInputStream} per record against positional reads on
+     * a pooled channel. The test WARC is small, so this mainly measures the open/skip/close overhead. Run manually.
+     */
+    @Ignore("Manual benchmark")
+    @Test
+    public void testSpeed() throws Exception {
+        File file = UnitTestUtils.getFile(WARC);
+        List<Long> offsets = recordOffsets(file);
+        final int READS = 5000;
+        final int THREADS = 4;
+        String path = file.getCanonicalPath();
+        FileChannelPool pool = new FileChannelPool(10);
+        ArcSource legacy = legacySource(path);
+        ArcSource pooled = new ArcSource(path, legacy, (offset, length) -> pool.getInputStream(path, offset));
+
+        readRecords(legacy, offsets, READS, THREADS, 2); // Warm up
+        readRecords(pooled, offsets, READS, THREADS, 2);
+
+        long legacyNS = -System.nanoTime();
+        readRecords(legacy, offsets, READS, THREADS, 3);
+        legacyNS += System.nanoTime();
+        long pooledNS = -System.nanoTime();
+        readRecords(pooled, offsets, READS, THREADS, 3);
+        pooledNS += System.nanoTime();
+        System.out.printf(Locale.ROOT, "%d random record reads with %d threads: FileInputStream %dms, " +
+                                       "FileChannelPool %dms%n",
+                          READS, THREADS, legacyNS/1000000, pooledNS/1000000);
+    }
+
+    private static ArcSource legacySource(String path) {
+        return new ArcSource(path, () -> {
+            try {
+                return new FileInputStream(path);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    // Offsets for all records with HTTP status 200, taken from the CDX for the WARC
+    private static List<Long> recordOffsets(File file) throws IOException {
+        return Files.readAllLines(new File(file.getPath() + ".cdx").toPath()).stream().
+                skip(1).
+                map(line -> line.split(" ")).
+                filter(tokens -> "200".equals(tokens[4])).
+                map(tokens -> Long.parseLong(tokens[9])).
+                collect(Collectors.toList());
+    }
+
+    // Returns the total number of binary bytes read
+    private long readRecords(ArcSource source, List<Long> offsets, int reads, int threads, long seed)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Long>> futures = new ArrayList<>();
+        for (int t = 0 ; t < threads ; t++) {
+            final Random random = new Random(seed + t);
+            futures.add(executor.submit(() -> {
+                long bytes = 0;
+                for (int i = 0 ; i < reads/threads ; i++) {
+                    ArcEntry entry = WarcParser.getWarcEntry(source, offsets.get(random.nextInt(offsets.size())), true);
+                    try (InputStream binary = entry.getBinaryRaw()) {
+                        bytes += IOUtils.toByteArray(binary).length;
+                    }
+                }
+                return bytes;
+            }));
+        }
+        long total = 0;
+        for (Future<Long> future: futures) {
+            total += future.get();
+        }
+        executor.shutdown();
+        return total;
+    }
+}
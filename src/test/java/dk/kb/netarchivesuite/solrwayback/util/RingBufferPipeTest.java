@@ -0,0 +1,211 @@
+package dk.kb.netarchivesuite.solrwayback.util;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class RingBufferPipeTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] expected = new byte[100000];
+        new Random(87).nextBytes(expected);
+        // Tiny buffer and odd chunk sizes to exercise wrap-around
+        RingBufferPipe pipe = new RingBufferPipe(7);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> producer = executor.submit(() -> {
+            Random random = new Random(88);
+            try (OutputStream out = pipe.getOutputStream()) {
+                int pos = 0;
+                while (pos < expected.length) {
+                    if (random.nextInt(10) == 0) {
+                        out.write(expected[pos++]);
+                        continue;
+                    }
+                    int len = Math.min(expected.length - pos, random.nextInt(20));
+                    out.write(expected, pos, len);
+                    pos += len;
+                }
+            }
+            return null;
+        });
+        byte[] actual = IOUtils.toByteArray(pipe.getInputStream());
+        producer.get();
+        executor.shutdown();
+        assertArrayEquals("The piped bytes should match the produced bytes", expected, actual);
+    }
+
+    @Test
+    public void testException() throws IOException {
+        RingBufferPipe pipe = new RingBufferPipe(100);
+        pipe.getOutputStream().write(new byte[10]);
+        pipe.setException(new IOException("Failing on purpose"));
+        try {
+            pipe.getInputStream().read(new byte[10]);
+            fail("Reading after an exception has been set should fail");
+        } catch (IOException e) {
+            assertEquals("Failing on purpose", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testReaderClose() throws Exception {
+        RingBufferPipe pipe = new RingBufferPipe(100);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> producer = executor.submit(() -> {
+            OutputStream out = pipe.getOutputStream();
+            while (true) {
+                out.write(new byte[1000]); // Blocks when the ring is full
+            }
+        });
+        pipe.getInputStream().read(new byte[10]);
+        pipe.getInputStream().close();
+        try {
+            producer.get(1, TimeUnit.SECONDS);
+            fail("The producer should fail when the reader closes the stream");
+        } catch (ExecutionException e) {
+            assertTrue("The producer should get an IOException but got " + e.getCause(),
+                       e.getCause() instanceof IOException);
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void testDeadReader() throws Exception {
+        RingBufferPipe pipe = new RingBufferPipe(100);
+        Thread reader = new Thread(() -> {
+            try {
+                pipe.getInputStream().read(new byte[10]);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        pipe.getOutputStream().write(new byte[10]);
+        reader.start();
+        reader.join(); // The reader terminates without closing the stream
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> producer = executor.submit(() -> {
+            OutputStream out = pipe.getOutputStream();
+            while (true) {
+                out.write(new byte[1000]); // Blocks when the ring is full
+            }
+        });
+        try {
+            producer.get(5, TimeUnit.SECONDS);
+            fail("The producer should fail when the reader thread has terminated");
+        } catch (ExecutionException e) {
+            assertTrue("The producer should get an IOException but got " + e.getCause(),
+                       e.getCause() instanceof IOException);
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Compares the throughput of the previous {@link PipedInputStream} based bridge in {@link StreamBridge} with
+     * {@link RingBufferPipe} at different buffer sizes. Run manually.
+     */
+    @Ignore("Manual benchmark")
+    @Test
+    public void testSpeed() throws Exception {
+        final long TOTAL = 32*1024*1024;
+        final int CHUNK = 8192;
+        final int[] BUFFER_SIZES = new int[]{4*1024, 64*1024, 1024*1024};
+
+        // Warm up
+        measureLegacy(TOTAL/8, CHUNK);
+        for (int bufferSize: BUFFER_SIZES) {
+            measureRing(bufferSize, TOTAL/8, CHUNK);
+        }
+
+        long legacyNS = measureLegacy(TOTAL, CHUNK);
+        System.out.printf(Locale.ROOT, "Piping %dMB in %d byte chunks: PipedInputStream (1KB) %.0fMB/s%n",
+                          TOTAL/1024/1024, CHUNK, mbPerSecond(TOTAL, legacyNS));
+        for (int bufferSize: BUFFER_SIZES) {
+            long ns = measureRing(bufferSize, TOTAL, CHUNK);
+            System.out.printf(Locale.ROOT, "Piping %dMB in %d byte chunks: RingBufferPipe (%dKB) %.0fMB/s%n",
+                              TOTAL/1024/1024, CHUNK, bufferSize/1024, mbPerSecond(TOTAL, ns));
+        }
+    }
+
+    private double mbPerSecond(long bytes, long ns) {
+        return bytes * 1000.0 / ns;
+    }
+
+    /**
+     * Measures the pipe used by {@link StreamBridge} before {@link RingBufferPipe}: A {@link PipedInputStream}
+     * with default buffer size, written through a non-closing {@link FilterOutputStream}.
+     */
+    private long measureLegacy(long total, int chunk) throws Exception {
+        PipedOutputStream out = new PipedOutputStream();
+        InputStream in = new FilterInputStream(new PipedInputStream(out)) {};
+        OutputStream nonClosing = new FilterOutputStream(out) {
+            @Override
+            public void close() {
+                // Mirrors NonClosingOutputStream
+            }
+        };
+        return measure(in, nonClosing, out, total, chunk);
+    }
+
+    private long measureRing(int bufferSize, long total, int chunk) throws Exception {
+        RingBufferPipe pipe = new RingBufferPipe(bufferSize);
+        return measure(pipe.getInputStream(), pipe.getOutputStream(), pipe.getOutputStream(), total, chunk);
+    }
+
+    private long measure(InputStream in, OutputStream out, OutputStream closer, long total, int chunk)
+            throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        long startNS = System.nanoTime();
+        Future<?> producer = executor.submit(() -> {
+            byte[] buffer = new byte[chunk];
+            for (long written = 0 ; written < total ; written += chunk) {
+                out.write(buffer, 0, chunk);
+            }
+            out.flush();
+            closer.close();
+            return null;
+        });
+        byte[] buffer = new byte[chunk];
+        long read = 0;
+        int r;
+        while ((r = in.read(buffer, 0, chunk)) != -1) {
+            read += r;
+        }
+        producer.get();
+        long ns = System.nanoTime() - startNS;
+        executor.shutdown();
+        assertEquals("All bytes should be piped", (total+chunk-1)/chunk*chunk, read);
+        return ns;
+    }
+}
@@ -1,14 +1,34 @@
 package dk.kb.netarchivesuite.solrwayback.util;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import dk.kb.netarchivesuite.solrwayback.UnitTestUtils;
+import dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource;
+import dk.kb.netarchivesuite.solrwayback.parsers.WarcParser;
+import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
 import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 /*
@@ -72,6 +92,158 @@ public class SkippingHTTPInputStreamTest {
         }
     }
 
+    @Test
+    public void testLocalBoundedRanges() throws IOException {
+        byte[] data = createData(100000);
+        try (LocalServer server = new LocalServer(data, true)) {
+            for (int record = 0 ; record < 5 ; record++) {
+                int offset = 10000 + record*5000;
+                try (InputStream is = new SkippingHTTPInputStream(server.getURL(), false, offset, 1000)) {
+                    byte[] buffer = new byte[1000];
+                    IOUtils.readFully(is, buffer);
+                    assertArrayEquals("Record " + record + " should be as expected",
+                                      Arrays.copyOfRange(data, offset, offset + 1000), buffer);
+                }
+            }
+            assertEquals("There should be one request per record", 5, server.requests.size());
+            assertEquals("The first request should be bounded by the expected length",
+                         "bytes=10000-10999", server.requests.get(0));
+            assertEquals("Keep-alive should result in a single connection", 1, server.connections.size());
+        }
+    }
+
+    @Test
+    public void testLocalWindows() throws IOException {
+        byte[] data = createData((int) (SkippingHTTPInputStream.MIN_RANGE*5));
+        try (LocalServer server = new LocalServer(data, true);
+             InputStream is = new SkippingHTTPInputStream(server.getURL())) {
+            assertArrayEquals("Reading the full resource in windows should give the full data",
+                              data, IOUtils.toByteArray(is));
+            assertEquals("Range sizes should double, resulting in 3 requests", 3, server.requests.size());
+            assertEquals("Keep-alive should result in a single connection", 1, server.connections.size());
+        }
+    }
+
+    @Test
+    public void testLocalSkip() throws IOException {
+        byte[] data = createData(300000);
+        try (LocalServer server = new LocalServer(data, true);
+             InputStream is = new SkippingHTTPInputStream(server.getURL())) {
+            InputStreamUtils.skipFully(is, 200000);
+            assertEquals("Skipping before first read should not connect", 0, server.requests.size());
+            assertEquals(data[200000], (byte) is.read());
+            InputStreamUtils.skipFully(is, 99);
+            assertEquals("A small skip should read-skip", data[200100], (byte) is.read());
+            assertEquals("Small skips should not issue new requests", 1, server.requests.size());
+        }
+    }
+
+    @Test
+    public void testLocalNoRangeSupport() throws IOException {
+        byte[] data = createData(50000);
+        try (LocalServer server = new LocalServer(data, false)) {
+            assertFalse(SkippingHTTPInputStream.supportsRangeRequests(server.getURL()));
+            assertFalse(SkippingHTTPInputStream.supportsRangeRequests(server.getURL()));
+            assertEquals("Range support should only be probed once per host", 1, server.requests.size());
+
+            try (InputStream is = new SkippingHTTPInputStream(server.getURL(), true, 20000, 10)) {
+                assertEquals("Fallback to read should deliver the right byte", data[20000], (byte) is.read());
+            }
+            assertEquals("Range should not be requested for hosts known not to support it",
+                         "none", server.requests.get(1));
+        }
+    }
+
+    @Test
+    public void testLocalWarcRecords() throws Exception {
+        File warc = UnitTestUtils.getFile("src/test/resources/example_warc/IAH-20080430204825-00000-blackbook.warc.gz");
+        byte[] data = Files.readAllBytes(warc.toPath());
+        ArcSource fileSource = ArcSource.fromFile(warc.getCanonicalPath());
+        final long[] OFFSETS = new long[]{707, 11823, 48777};
+        try (LocalServer server = new LocalServer(data, true)) {
+            ArcSource httpSource = ArcSource.fromHTTP(server.getURL().toString() + "/test.warc.gz");
+            for (long offset: OFFSETS) {
+                ArcEntry entry = WarcParser.getWarcEntry(httpSource, offset, true);
+                try (InputStream expected = WarcParser.lazyLoadBinary(fileSource, offset);
+                     InputStream binary = entry.getBinaryRaw()) {
+                    assertArrayEquals("The binary for the record at offset " + offset + " should be as expected",
+                                      IOUtils.toByteArray(expected), IOUtils.toByteArray(binary));
+                }
+            }
+            assertEquals("There should be one request per record", OFFSETS.length, server.requests.size());
+            assertEquals("All records should be fetched over one connection", 1, server.connections.size());
+        }
+    }
+
+    private byte[] createData(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0 ; i < size ; i++) {
+            data[i] = (byte) (i*31 + (i >> 8));
+        }
+        return data;
+    }
+
+    /**
+     * Minimal HTTP server delivering the same data for all paths, optionally with support for Range Requests.
+     * Keeps track of requests and connections (distinct client ports).
+     */
+    private static class LocalServer implements AutoCloseable {
+        private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+        private final HttpServer server;
+        final List<String> requests = new CopyOnWriteArrayList<>();
+        final Set<Integer> connections = ConcurrentHashMap.newKeySet();
+
+        LocalServer(byte[] data, boolean rangeSupport) throws IOException {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.createContext("/", exchange -> {
+                connections.add(exchange.getRemoteAddress().getPort());
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                requests.add(range == null ? "none" : range);
+                if (rangeSupport) {
+                    exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+                }
+                if ("HEAD".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(200, -1);
+                    exchange.close();
+                    return;
+                }
+                Matcher matcher = range == null ? null : RANGE.matcher(range);
+                if (!rangeSupport || matcher == null || !matcher.matches()) {
+                    send(exchange, 200, data, 0, data.length);
+                    return;
+                }
+                int start = Integer.parseInt(matcher.group(1));
+                if (start >= data.length) {
+                    exchange.getResponseHeaders().add("Content-Range", "bytes */" + data.length);
+                    exchange.sendResponseHeaders(416, -1);
+                    exchange.close();
+                    return;
+                }
+                int end = matcher.group(2).isEmpty() ? data.length :
+                        Math.min(data.length, Integer.parseInt(matcher.group(2)) + 1);
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + (end-1) + "/" + data.length);
+                send(exchange, 206, data, start, end);
+            });
+            server.start();
+        }
+
+        private void send(HttpExchange exchange, int status, byte[] data, int start, int end) throws IOException {
+            exchange.sendResponseHeaders(status, end-start);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(data, start, end-start);
+            }
+        }
+
+        URL getURL() throws MalformedURLException {
+            return new URL("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort());
+        }
+
+        @Override
+        public void close() {
+            server.stop(0);
+        }
+    }
+
     private void skipSafe(InputStream is, long distance) {
         try {
             InputStreamUtils.skipFully(is, distance);
@@ -6,6 +6,7 @@ import org.apache.commons.io.IOUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilterInputStream;
@@ -18,6 +19,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
@@ -76,6 +78,25 @@ public class StreamBridgeTest extends UnitTestUtils {
         }
     }
 
+    @Test
+    public void testGzipInput() throws IOException {
+        Random random = new Random(87);
+        for (int size: new int[]{0, 1, 1000, 100000, 1000000}) {
+            byte[] raw = new byte[size];
+            for (int i = 0 ; i < size ; i++) {
+                raw[i] = (byte) ('a' + random.nextInt(10)); // Compressible
+            }
+            byte[] gzipped;
+            try (InputStream gzip = StreamBridge.gzipInput(new ByteArrayInputStream(raw))) {
+                gzipped = IOUtils.toByteArray(gzip);
+            }
+            try (InputStream gunzip = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+                Assert.assertArrayEquals("Gzipping and gunzipping " + size + " bytes should give the original bytes",
+                                         raw, IOUtils.toByteArray(gunzip));
+            }
+        }
+    }
+
     // Light hammering of StreamBridge with gzipped content
     @Test
     public void testMonkeyGZipStream() throws IOException {